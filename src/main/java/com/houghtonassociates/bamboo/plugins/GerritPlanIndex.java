@@ -0,0 +1,376 @@
+/**
+ * Copyright 2012 Houghton Associates
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.houghtonassociates.bamboo.plugins;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+
+import com.atlassian.bamboo.build.strategy.BuildStrategy;
+import com.atlassian.bamboo.build.strategy.TriggeredBuildStrategy;
+import com.atlassian.bamboo.chains.Chain;
+import com.atlassian.bamboo.event.BuildConfigurationUpdatedEvent;
+import com.atlassian.bamboo.event.PlanDeletedEvent;
+import com.atlassian.bamboo.plan.PlanKey;
+import com.atlassian.bamboo.plan.PlanManager;
+import com.atlassian.bamboo.plan.TopLevelPlan;
+import com.atlassian.bamboo.plan.branch.ChainBranch;
+import com.atlassian.bamboo.plan.branch.ChainBranchManager;
+import com.atlassian.bamboo.plan.cache.ImmutableChain;
+import com.atlassian.bamboo.project.Project;
+import com.atlassian.bamboo.repository.RepositoryDataEntity;
+import com.atlassian.bamboo.repository.RepositoryDefinition;
+import com.atlassian.bamboo.repository.RepositoryDefinitionManager;
+import com.atlassian.bamboo.trigger.TriggerDefinition;
+import com.atlassian.bamboo.util.Narrow;
+import com.atlassian.event.api.EventListener;
+import com.atlassian.event.api.EventPublisher;
+import com.atlassian.plugin.event.events.PluginModuleDisabledEvent;
+
+/**
+ * The plans using each Gerrit repository, by server, project and branch, so
+ * routing an event or finding a repository's plan is a map lookup instead
+ * of a walk over every plan and plan branch.
+ *
+ * The index is built on first use. A plan, with its branches, is indexed
+ * again when its configuration is saved or it is deleted. The whole index
+ * is rebuilt once it is older than <code>gerrit.planIndex.ttlMillis</code>
+ * (default 300000), which picks up what no event announces, such as new
+ * plan branches, suspended plans or linked repositories edited elsewhere.
+ *
+ * When the Gerrit repository module is disabled, on its own or with the
+ * plugin, the index stops listening and is dropped; the next use builds a
+ * new one with the components of that time.
+ */
+public class GerritPlanIndex {
+
+    public static final String PROP_TTL = "gerrit.planIndex.ttlMillis";
+
+    private static final long DEFAULT_TTL = 300000;
+
+    private static final Logger log = Logger.getLogger(GerritPlanIndex.class);
+
+    private static GerritPlanIndex instance = null;
+
+    /**
+     * A plan using a Gerrit repository.
+     */
+    public static class Route {
+
+        private final PlanKey planKey;
+        private final String repositoryName;
+        private final boolean remoteTriggered;
+        private final List<TriggerDefinition> triggers;
+        private final Set<String> keys;
+
+        Route(PlanKey planKey, String repositoryName,
+              boolean remoteTriggered, List<TriggerDefinition> triggers,
+              Set<String> keys) {
+            this.planKey = planKey;
+            this.repositoryName = repositoryName;
+            this.remoteTriggered = remoteTriggered;
+            this.triggers = triggers;
+            this.keys = keys;
+        }
+
+        public PlanKey getPlanKey() {
+            return planKey;
+        }
+
+        /**
+         * @param name
+         * @return true if the plan's repository has this name
+         */
+        public boolean isFor(String name) {
+            return repositoryName.equalsIgnoreCase(name);
+        }
+
+        /**
+         * @return true if the repository triggers the plan
+         */
+        public boolean isRemoteTriggered() {
+            return remoteTriggered;
+        }
+
+        public List<TriggerDefinition> getTriggers() {
+            return triggers;
+        }
+    }
+
+    private final PlanManager planManager;
+    private final ChainBranchManager chainBranchManager;
+    private final RepositoryDefinitionManager repositoryDefinitionManager;
+    private final EventPublisher eventPublisher;
+    private final String pluginKey;
+
+    // top level plans, each with its routes and those of its branches
+    private final Map<PlanKey, List<Route>> byPlan =
+        new LinkedHashMap<PlanKey, List<Route>>();
+    private volatile Map<String, List<Route>> routes = null;
+    private volatile long builtAt = 0;
+
+    private GerritPlanIndex(PlanManager planManager,
+                            ChainBranchManager chainBranchManager,
+                            RepositoryDefinitionManager repositoryDefinitionManager,
+                            EventPublisher eventPublisher, String pluginKey) {
+        this.planManager = planManager;
+        this.chainBranchManager = chainBranchManager;
+        this.repositoryDefinitionManager = repositoryDefinitionManager;
+        this.eventPublisher = eventPublisher;
+        this.pluginKey = pluginKey;
+    }
+
+    /**
+     * @param planManager
+     * @param chainBranchManager
+     * @param repositoryDefinitionManager
+     * @param eventPublisher
+     *            announces plan changes
+     * @param pluginKey
+     *            of the Gerrit repository
+     * @return
+     */
+    public static synchronized GerritPlanIndex
+                    getInstance(PlanManager planManager,
+                                ChainBranchManager chainBranchManager,
+                                RepositoryDefinitionManager repositoryDefinitionManager,
+                                EventPublisher eventPublisher,
+                                String pluginKey) {
+        if (instance == null) {
+            instance =
+                new GerritPlanIndex(planManager, chainBranchManager,
+                    repositoryDefinitionManager, eventPublisher, pluginKey);
+
+            if (eventPublisher != null)
+                eventPublisher.register(instance);
+        }
+
+        return instance;
+    }
+
+    /**
+     * @param host
+     * @param port
+     * @param project
+     * @param branch
+     * @return the plans using the project's branch on the server, in plan
+     *         order
+     */
+    public List<Route> getRoutes(String host, int port, String project,
+                                 String branch) {
+        Map<String, List<Route>> current = routes;
+        long ttl = Long.getLong(PROP_TTL, DEFAULT_TTL);
+
+        if (current == null || System.currentTimeMillis() - builtAt > ttl)
+            current = rebuild();
+
+        List<Route> found = current.get(toKey(host, port, project, branch));
+
+        return (found == null) ? Collections.<Route> emptyList() : found;
+    }
+
+    @EventListener
+    public void onPlanUpdated(BuildConfigurationUpdatedEvent e) {
+        reindex(e.getPlanKey());
+    }
+
+    @EventListener
+    public void onPlanDeleted(PlanDeletedEvent e) {
+        reindex(e.getPlanKey());
+    }
+
+    @EventListener
+    public void onModuleDisabled(PluginModuleDisabledEvent e) {
+        if (pluginKey.equals(e.getModule().getCompleteKey()))
+            dispose();
+    }
+
+    /**
+     * Stop listening for plan changes and drop the index, if it is the
+     * current one.
+     */
+    public void dispose() {
+        synchronized (GerritPlanIndex.class) {
+            if (instance == this)
+                instance = null;
+        }
+
+        if (eventPublisher != null)
+            eventPublisher.unregister(this);
+
+        log.debug("Plan index disposed.");
+    }
+
+    /**
+     * Index a plan again, or drop it if it no longer exists.
+     *
+     * @param planKey
+     *            a top level plan or a plan branch
+     */
+    public synchronized void reindex(PlanKey planKey) {
+        if (routes == null)
+            return;
+
+        ImmutableChain chain = planManager.getPlanByKey(planKey, Chain.class);
+
+        // a branch is indexed with its plan
+        if (chain instanceof ChainBranch)
+            chain = ((ChainBranch) chain).getMaster();
+
+        if (chain == null) {
+            // a deleted branch isn't known by its plan, rebuild on next use
+            if (byPlan.remove(planKey) == null)
+                builtAt = 0;
+        } else if (chain instanceof TopLevelPlan) {
+            byPlan.put(chain.getPlanKey(), index((TopLevelPlan) chain));
+        }
+
+        publish();
+    }
+
+    private synchronized Map<String, List<Route>> rebuild() {
+        long ttl = Long.getLong(PROP_TTL, DEFAULT_TTL);
+
+        // another thread was first
+        if (routes != null && System.currentTimeMillis() - builtAt <= ttl)
+            return routes;
+
+        long start = System.currentTimeMillis();
+        Map<Project, Collection<TopLevelPlan>> projectBuilds =
+            planManager.getProjectPlanMap(TopLevelPlan.class, false);
+
+        byPlan.clear();
+
+        for (Collection<TopLevelPlan> plans : projectBuilds.values())
+            for (TopLevelPlan pl : plans)
+                byPlan.put(pl.getPlanKey(), index(pl));
+
+        builtAt = System.currentTimeMillis();
+        publish();
+
+        log.debug(String.format("Indexed %d plans for %d Gerrit branches in %dms.",
+            byPlan.size(), routes.size(), builtAt - start));
+
+        return routes;
+    }
+
+    private void publish() {
+        Map<String, List<Route>> next = new HashMap<String, List<Route>>();
+
+        for (List<Route> planRoutes : byPlan.values()) {
+            for (Route r : planRoutes) {
+                for (String key : r.keys) {
+                    List<Route> list = next.get(key);
+
+                    if (list == null) {
+                        list = new ArrayList<Route>();
+                        next.put(key, list);
+                    }
+
+                    list.add(r);
+                }
+            }
+        }
+
+        routes = next;
+    }
+
+    private List<Route> index(TopLevelPlan pl) {
+        List<Route> planRoutes = new ArrayList<Route>();
+
+        if (pl.isSuspendedFromBuilding())
+            return planRoutes;
+
+        index(pl, planRoutes);
+
+        if (chainBranchManager.getBranchCount(pl) > 0)
+            for (ChainBranch c : chainBranchManager.getBranchesForChain(pl))
+                index(c, planRoutes);
+
+        return planRoutes;
+    }
+
+    private void index(ImmutableChain chain, List<Route> planRoutes) {
+        for (RepositoryDefinition rd : chain.getEffectiveRepositoryDefinitions()) {
+            if (!pluginKey.equals(rd.getPluginKey()))
+                continue;
+
+            HierarchicalConfiguration c = rd.getConfiguration();
+            String host =
+                c.getString(GerritRepositoryAdapter.REPOSITORY_GERRIT_REPOSITORY_HOSTNAME);
+            int port =
+                c.getInt(GerritRepositoryAdapter.REPOSITORY_GERRIT_REPOSITORY_PORT,
+                    29418);
+            String project =
+                c.getString(GerritRepositoryAdapter.REPOSITORY_GERRIT_PROJECT);
+            Set<String> keys = new LinkedHashSet<String>();
+
+            keys.add(toKey(host, port, project, c.getString(
+                GerritRepositoryAdapter.REPOSITORY_GERRIT_DEFAULT_BRANCH, "")));
+            keys.add(toKey(host, port, project, c.getString(
+                GerritRepositoryAdapter.REPOSITORY_GERRIT_CUSTOM_BRANCH, "")));
+
+            planRoutes.add(new Route(chain.getPlanKey(), rd.getName(),
+                isTriggeredBy(chain, rd), new ArrayList<TriggerDefinition>(
+                    chain.getTriggerDefinitions()), keys));
+        }
+    }
+
+    private boolean isTriggeredBy(ImmutableChain chain, RepositoryDefinition rd) {
+        for (BuildStrategy s : chain.getTriggers()) {
+            if (!(s instanceof TriggeredBuildStrategy))
+                return false;
+
+            TriggeredBuildStrategy tbs =
+                Narrow.downTo(s, TriggeredBuildStrategy.class);
+            Set<Long> repos = tbs.getTriggeringRepositories();
+
+            if (repos.contains(rd.getId()))
+                return true;
+
+            for (Long rID : repos) {
+                RepositoryDataEntity rde =
+                    repositoryDefinitionManager.getRepositoryDataEntity(rID);
+
+                if (rde != null && rde.getName().equals(rd.getName())
+                    && rde.getPluginKey().equals(pluginKey))
+                    return true;
+            }
+        }
+
+        return false;
+    }
+
+    // the same whether read from a plan's configuration, a repository or an
+    // event: surrounding blanks dropped, host names compared without case
+    private static String toKey(String host, int port, String project,
+                                String branch) {
+        return String.format("%s:%d %s %s", StringUtils.trimToEmpty(host)
+            .toLowerCase(Locale.ENGLISH), port, StringUtils
+            .trimToEmpty(project), StringUtils.trimToEmpty(branch));
+    }
+}
@@ -23,10 +23,10 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.configuration.HierarchicalConfiguration;
 import org.apache.commons.io.FileUtils;
@@ -34,6 +34,7 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.SystemUtils;
 import org.apache.commons.lang.builder.EqualsBuilder;
 import org.apache.http.auth.Credentials;
+import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.log4j.Logger;
 import org.eclipse.jgit.api.MergeResult.MergeStatus;
 import org.eclipse.jgit.lib.PersonIdent;
@@ -45,12 +46,9 @@ import org.jetbrains.annotations.Nullable;
 import com.atlassian.bamboo.author.Author;
 import com.atlassian.bamboo.author.AuthorCachingFacade;
 import com.atlassian.bamboo.bandana.PlanAwareBandanaContext;
-import com.atlassian.bamboo.build.BuildDefinition;
 import com.atlassian.bamboo.build.BuildLoggerManager;
 import com.atlassian.bamboo.build.fileserver.BuildDirectoryManager;
 import com.atlassian.bamboo.build.logger.BuildLogger;
-import com.atlassian.bamboo.build.strategy.BuildStrategy;
-import com.atlassian.bamboo.build.strategy.TriggeredBuildStrategy;
 import com.atlassian.bamboo.chains.Chain;
 import com.atlassian.bamboo.commit.Commit;
 import com.atlassian.bamboo.commit.CommitContext;
@@ -63,13 +61,10 @@ import com.atlassian.bamboo.plan.PlanExecutionManager;
 import com.atlassian.bamboo.plan.PlanKey;
 import com.atlassian.bamboo.plan.PlanKeys;
 import com.atlassian.bamboo.plan.PlanManager;
-import com.atlassian.bamboo.plan.TopLevelPlan;
-import com.atlassian.bamboo.plan.branch.ChainBranch;
 import com.atlassian.bamboo.plan.branch.ChainBranchManager;
 import com.atlassian.bamboo.plan.branch.VcsBranch;
 import com.atlassian.bamboo.plan.branch.VcsBranchImpl;
 import com.atlassian.bamboo.plan.cache.ImmutableChain;
-import com.atlassian.bamboo.project.Project;
 import com.atlassian.bamboo.repository.AbstractStandaloneRepository;
 import com.atlassian.bamboo.repository.AdvancedConfigurationAwareRepository;
 import com.atlassian.bamboo.repository.BranchInformationProvider;
@@ -78,14 +73,12 @@ import com.atlassian.bamboo.repository.BranchingAwareRepository;
 import com.atlassian.bamboo.repository.CustomVariableProviderRepository;
 import com.atlassian.bamboo.repository.PushCapableRepository;
 import com.atlassian.bamboo.repository.Repository;
-import com.atlassian.bamboo.repository.RepositoryDataEntity;
 import com.atlassian.bamboo.repository.RepositoryDefinition;
 import com.atlassian.bamboo.repository.RepositoryDefinitionManager;
 import com.atlassian.bamboo.repository.RepositoryException;
 import com.atlassian.bamboo.security.EncryptionService;
 import com.atlassian.bamboo.template.TemplateRenderer;
 import com.atlassian.bamboo.trigger.TriggerDefinition;
-import com.atlassian.bamboo.util.Narrow;
 import com.atlassian.bamboo.utils.SystemProperty;
 import com.atlassian.bamboo.utils.error.ErrorCollection;
 import com.atlassian.bamboo.utils.error.SimpleErrorCollection;
@@ -109,6 +102,9 @@ import com.houghtonassociates.bamboo.plugins.dao.GerritChangeVO;
 import com.houghtonassociates.bamboo.plugins.dao.GerritChangeVO.FileSet;
 import com.houghtonassociates.bamboo.plugins.dao.GerritChangeVO.PatchSet;
 import com.houghtonassociates.bamboo.plugins.dao.GerritConfig;
+import com.houghtonassociates.bamboo.plugins.dao.GerritDebouncer;
+import com.houghtonassociates.bamboo.plugins.dao.GerritEndpoint;
+import com.houghtonassociates.bamboo.plugins.dao.GerritMonitor;
 import com.houghtonassociates.bamboo.plugins.dao.GerritProcessListener;
 import com.houghtonassociates.bamboo.plugins.dao.GerritService;
 import com.houghtonassociates.bamboo.plugins.dao.jgit.JGitRepository;
@@ -116,6 +112,7 @@ import com.opensymphony.xwork2.TextProvider;
 import com.sonymobile.tools.gerrit.gerritevents.GerritConnectionConfig2;
 import com.sonymobile.tools.gerrit.gerritevents.dto.GerritEvent;
 import com.sonymobile.tools.gerrit.gerritevents.dto.events.PatchsetCreated;
+import com.sonymobile.tools.gerrit.gerritevents.dto.events.RefUpdated;
 import com.sonymobile.tools.gerrit.gerritevents.ssh.Authentication;
 import com.sonymobile.tools.gerrit.gerritevents.watchdog.WatchTimeExceptionData;
 
@@ -144,18 +141,18 @@ public class GerritRepositoryAdapter extends AbstractStandaloneRepository
     private static final String REPOSITORY_GERRIT_CHAIN_DESC =
         "chainDescription";
 
-    private static final String REPOSITORY_GERRIT_REPOSITORY_HOSTNAME =
+    static final String REPOSITORY_GERRIT_REPOSITORY_HOSTNAME =
         "repository.gerrit.hostname";
-    private static final String REPOSITORY_GERRIT_REPOSITORY_PORT =
+    static final String REPOSITORY_GERRIT_REPOSITORY_PORT =
         "repository.gerrit.port";
-    private static final String REPOSITORY_GERRIT_PROJECT =
+    static final String REPOSITORY_GERRIT_PROJECT =
         "repository.gerrit.project";
 
     private static final String REPOSITORY_GERRIT_BRANCH =
         "repository.gerrit.branch";
-    private static final String REPOSITORY_GERRIT_DEFAULT_BRANCH =
+    static final String REPOSITORY_GERRIT_DEFAULT_BRANCH =
         "repository.gerrit.default.branch";
-    private static final String REPOSITORY_GERRIT_CUSTOM_BRANCH =
+    static final String REPOSITORY_GERRIT_CUSTOM_BRANCH =
         "repository.gerrit.custom.branch";
 
     private static final String REPOSITORY_GERRIT_USERNAME =
@@ -193,6 +190,20 @@ public class GerritRepositoryAdapter extends AbstractStandaloneRepository
     private static final String REPOSITORY_GERRIT_VERBOSE_LOGS =
         "repository.gerrit.verbose.logs";
     private static final int DEFAULT_COMMAND_TIMEOUT_IN_MINUTES = 180;
+    private static final String REPOSITORY_GERRIT_TRANSPORT =
+        "repository.gerrit.transport";
+    private static final String REPOSITORY_GERRIT_FRONT_END_URL =
+        "repository.gerrit.frontEndUrl";
+    private static final String REPOSITORY_GERRIT_HTTP_USERNAME =
+        "repository.gerrit.http.username";
+    private static final String REPOSITORY_GERRIT_HTTP_PASSWORD =
+        "repository.gerrit.http.password";
+    private static final String REPOSITORY_GERRIT_REPLICAS =
+        "repository.gerrit.replicas";
+    private static final String TEMPORARY_GERRIT_HTTP_PASSWORD =
+        "temporary.gerrit.http.password";
+    private static final String TEMPORARY_GERRIT_HTTP_PASSWORD_CHANGE =
+        "temporary.gerrit.http.password.change";
 
     private static final String GIT_COMMIT_ACTION = "/COMMIT_MSG";
 
@@ -207,6 +218,17 @@ public class GerritRepositoryAdapter extends AbstractStandaloneRepository
     private static final String REPOSITORY_GERRIT_REVISION_NUMBER =
         "repository.gerrit.revision.number";
 
+    // options of the verification build processor
+    private static final String GERRIT_RUN = "custom.gerrit.run";
+    private static final String GERRIT_FAIL_FAST_STOP =
+        "custom.gerrit.failFast.stop";
+
+    /**
+     * Custom build data, followed by change and patch set: the plan that
+     * had failed the patch set when the job was queued.
+     */
+    public static final String GERRIT_FAILED_BY = "gerrit.failFast.failedBy.";
+
     private static final Logger log = Logger
         .getLogger(GerritRepositoryAdapter.class);
 
@@ -231,6 +253,11 @@ public class GerritRepositoryAdapter extends AbstractStandaloneRepository
     private boolean useSubmodules = false;
     private boolean verboseLogs = false;
     private int commandTimeout = 0;
+    private String transport = GerritConfig.TRANSPORT_SSH;
+    private String frontEndUrl = "";
+    private String httpUsername = "";
+    private String httpPassword = "";
+    private String replicas = "";
     private VcsBranch vcsBranch = MASTER_BRANCH;
 
     private GerritService gerritDAO = null;
@@ -337,6 +364,13 @@ public class GerritRepositoryAdapter extends AbstractStandaloneRepository
                 encryptionService.encrypt(strPhrase));
         }
 
+        if (buildConfiguration
+            .getBoolean(TEMPORARY_GERRIT_HTTP_PASSWORD_CHANGE)) {
+            buildConfiguration.setProperty(REPOSITORY_GERRIT_HTTP_PASSWORD,
+                encryptionService.encrypt(buildConfiguration
+                    .getString(TEMPORARY_GERRIT_HTTP_PASSWORD)));
+        }
+
         String decryptedKey = "";
         if (buildConfiguration.getBoolean(TEMPORARY_GERRIT_SSH_KEY_CHANGE)) {
             final Object o =
@@ -556,6 +590,28 @@ public class GerritRepositoryAdapter extends AbstractStandaloneRepository
             error = true;
         }
 
+        if (GerritConfig.TRANSPORT_REST.equals(buildConfiguration
+            .getString(REPOSITORY_GERRIT_TRANSPORT))
+            && !StringUtils.isNotBlank(buildConfiguration
+                .getString(REPOSITORY_GERRIT_FRONT_END_URL))) {
+            errorCollection
+                .addError(
+                    REPOSITORY_GERRIT_FRONT_END_URL,
+                    textProvider
+                        .getText("repository.gerrit.messages.error.frontEndUrl.missing"));
+            error = true;
+        }
+
+        try {
+            GerritEndpoint.parseList(
+                buildConfiguration.getString(REPOSITORY_GERRIT_REPLICAS), 29418);
+        } catch (IllegalArgumentException e) {
+            errorCollection.addError(REPOSITORY_GERRIT_REPLICAS, textProvider
+                .getText("repository.gerrit.messages.error.replicas.invalid",
+                    Arrays.asList(e.getMessage())));
+            error = true;
+        }
+
         if (buildConfiguration.getBoolean(TEMPORARY_GERRIT_SSH_KEY_CHANGE)) {
             final Object o =
                 buildConfiguration
@@ -636,7 +692,8 @@ public class GerritRepositoryAdapter extends AbstractStandaloneRepository
             encryptionService.decrypt(config
                 .getString(REPOSITORY_GERRIT_SSH_PASSPHRASE));
         port = config.getInt(REPOSITORY_GERRIT_REPOSITORY_PORT, 29418);
-        project = config.getString(REPOSITORY_GERRIT_PROJECT);
+        project =
+            StringUtils.trimToEmpty(config.getString(REPOSITORY_GERRIT_PROJECT));
 
         String strDefBranch =
             config.getString(REPOSITORY_GERRIT_DEFAULT_BRANCH, "");
@@ -657,6 +714,21 @@ public class GerritRepositoryAdapter extends AbstractStandaloneRepository
             config.getInt(REPOSITORY_GERRIT_COMMAND_TIMEOUT,
                 DEFAULT_COMMAND_TIMEOUT_IN_MINUTES);
         verboseLogs = config.getBoolean(REPOSITORY_GERRIT_VERBOSE_LOGS, false);
+        transport =
+            config.getString(REPOSITORY_GERRIT_TRANSPORT,
+                GerritConfig.TRANSPORT_SSH);
+        frontEndUrl =
+            StringUtils.trimToEmpty(config
+                .getString(REPOSITORY_GERRIT_FRONT_END_URL));
+        httpUsername =
+            StringUtils.trimToEmpty(config
+                .getString(REPOSITORY_GERRIT_HTTP_USERNAME));
+        httpPassword =
+            encryptionService.decrypt(config
+                .getString(REPOSITORY_GERRIT_HTTP_PASSWORD));
+        replicas =
+            StringUtils.trimToEmpty(config
+                .getString(REPOSITORY_GERRIT_REPLICAS));
 
         String gitRepoUrl =
             "ssh://" + username + "@" + hostname + ":" + port + "/" + project;
@@ -700,6 +772,11 @@ public class GerritRepositoryAdapter extends AbstractStandaloneRepository
         gc.setUseSubmodules(useSubmodules);
         gc.setVerboseLogs(verboseLogs);
         gc.setCommandTimeout(commandTimeout);
+        gc.setTransport(transport);
+        gc.setFrontEndUrl(frontEndUrl);
+        gc.setHttpUsername(httpUsername);
+        gc.setHttpPassword(httpPassword);
+        gc.setReplicas(replicas);
 
         try {
             initializeGerritService();
@@ -756,6 +833,13 @@ public class GerritRepositoryAdapter extends AbstractStandaloneRepository
         configuration.setProperty(REPOSITORY_GERRIT_COMMAND_TIMEOUT,
             commandTimeout);
         configuration.setProperty(REPOSITORY_GERRIT_VERBOSE_LOGS, verboseLogs);
+        configuration.setProperty(REPOSITORY_GERRIT_TRANSPORT, transport);
+        configuration.setProperty(REPOSITORY_GERRIT_FRONT_END_URL, frontEndUrl);
+        configuration
+            .setProperty(REPOSITORY_GERRIT_HTTP_USERNAME, httpUsername);
+        configuration.setProperty(REPOSITORY_GERRIT_HTTP_PASSWORD,
+            encryptionService.encrypt(httpPassword));
+        configuration.setProperty(REPOSITORY_GERRIT_REPLICAS, replicas);
 
         return configuration;
     }
@@ -1059,6 +1143,8 @@ public class GerritRepositoryAdapter extends AbstractStandaloneRepository
         buildConfiguration.setProperty(REPOSITORY_GERRIT_USE_SHALLOW_CLONES,
             true);
         buildConfiguration.clearTree(REPOSITORY_GERRIT_USE_SUBMODULES);
+        buildConfiguration.setProperty(REPOSITORY_GERRIT_TRANSPORT,
+            GerritConfig.TRANSPORT_SSH);
     }
 
     @Override
@@ -1141,6 +1227,8 @@ public class GerritRepositoryAdapter extends AbstractStandaloneRepository
 
             lastGerritChange = change;
 
+            checkNotFailed(buildContext, change);
+
             vcsRevisionKey = change.getCurrentPatchSet().getRef();
         } else {
             throw new RepositoryException(
@@ -1170,6 +1258,39 @@ public class GerritRepositoryAdapter extends AbstractStandaloneRepository
         return originalVcsRevisionKey;
     }
 
+    /**
+     * Fail the job before checkout if another job has already failed the
+     * patch set and the plan asks not to build it any further. Remote agents
+     * don't share the server's vote coordinator, so they go by the vote on
+     * the change.
+     */
+    private void checkNotFailed(BuildContext buildContext,
+                                GerritChangeVO change) throws RepositoryException {
+        Map<String, String> custom =
+            buildContext.getBuildDefinition().getCustomConfiguration();
+
+        if (!Boolean.parseBoolean(custom.get(GERRIT_RUN))
+            || !Boolean.parseBoolean(custom.get(GERRIT_FAIL_FAST_STOP)))
+            return;
+
+        int patchSet = change.getCurrentPatchSet().getNumber();
+        String failedBy;
+
+        // remote agents go by what the server's coordinator knew at queue time
+        if (isOnLocalAgent())
+            failedBy =
+                getGerritDAO().getFailedPlan(change.getNumber(), patchSet);
+        else
+            failedBy =
+                buildContext.getCurrentResult().getCustomBuildData()
+                    .get(GERRIT_FAILED_BY + change.getNumber() + "," + patchSet);
+
+        if (failedBy != null)
+            throw new RepositoryException(textProvider.getText(
+                "repository.gerrit.messages.error.failed", Arrays.asList(
+                    change.getId(), failedBy)));
+    }
+
     @Override
     public boolean isMergingSupported() {
         return true;
@@ -1234,7 +1355,7 @@ public class GerritRepositoryAdapter extends AbstractStandaloneRepository
 
     @Override
     public int getWatchdogTimeoutSeconds() {
-        return 0;
+        return GerritMonitor.getWatchdogTimeoutSeconds();
     }
 
     @Override
@@ -1405,40 +1526,20 @@ public class GerritRepositoryAdapter extends AbstractStandaloneRepository
      * @return
      */
     private PlanKey findFirstPlanKey(boolean isRemoteTriggeredBy) {
-        Collection<TopLevelPlan> plans = null;
-        PlanKey planKey = null;
-        Map<Project, Collection<TopLevelPlan>> projectBuilds =
-            planManager.getProjectPlanMap(TopLevelPlan.class, false);
-
-        Iterator<Project> it = projectBuilds.keySet().iterator();
-
-        while (it.hasNext()) {
-            Project p = it.next();
-
-            plans = projectBuilds.get(p);
-
-            for (TopLevelPlan pl : plans) {
-                if (pl.isSuspendedFromBuilding())
-                    continue;
-
-                if (isRepoTriggerFor(pl, isRemoteTriggeredBy))
-                    return pl.getPlanKey();
-
-                int branchCount = chainBranchManager.getBranchCount(pl);
-
-                if (branchCount > 0) {
-                    List<ChainBranch> chains =
-                        chainBranchManager.getBranchesForChain(pl);
-
-                    for (ChainBranch c : chains) {
-                        if (isRepoTriggerFor(c, isRemoteTriggeredBy))
-                            return c.getPlanKey();
-                    }
-                }
-            }
+        for (GerritPlanIndex.Route r : getPlanRoutes()) {
+            if (r.isFor(getName())
+                && (!isRemoteTriggeredBy || r.isRemoteTriggered()))
+                return r.getPlanKey();
         }
 
-        return planKey;
+        return null;
+    }
+
+    // plans using this repository's project and branch on its server
+    private List<GerritPlanIndex.Route> getPlanRoutes() {
+        return GerritPlanIndex.getInstance(planManager, chainBranchManager,
+            repositoryDefinitionManager, eventPublisher, getKey()).getRoutes(
+            hostname, port, project, getVcsBranch().getName());
     }
 
     /**
@@ -1456,164 +1557,73 @@ public class GerritRepositoryAdapter extends AbstractStandaloneRepository
         return planManager.getPlanByKey(planKey, Chain.class);
     }
 
-    /**
-     * Determine if plan uses this repository
-     * 
-     * @param chain
-     * @param isRemoteTrigger
-     *            , dertmined if plan uses repository for remote use
-     * @return
-     */
-    private boolean isRepoTriggerFor(ImmutableChain chain,
-                                     boolean isRemoteTrigger) {
-        List<BuildStrategy> strats = chain.getTriggers();
-        List<RepositoryDefinition> cRepos =
-            new ArrayList<RepositoryDefinition>();
-
-        cRepos = chain.getEffectiveRepositoryDefinitions();
-
-        for (RepositoryDefinition rd : cRepos) {
-            if (rd.getName().toLowerCase().equals(this.getName().toLowerCase())
-                && rd.getPluginKey().equals(this.getKey())) {
-                HierarchicalConfiguration hconfig = rd.getConfiguration();
-                String strDefBranch =
-                    hconfig.getString(REPOSITORY_GERRIT_DEFAULT_BRANCH, "");
-                String strCustBranch =
-                    hconfig.getString(REPOSITORY_GERRIT_CUSTOM_BRANCH, "");
-
-                if (this.getVcsBranch().isEqualToBranchWith(strDefBranch)
-                    || this.getVcsBranch().isEqualToBranchWith(strCustBranch)) {
-
-                    if (isRemoteTrigger) {
-                        for (BuildStrategy s : strats) {
-                            if (s instanceof TriggeredBuildStrategy) {
-                                TriggeredBuildStrategy tbs =
-                                    Narrow.downTo(s,
-                                        TriggeredBuildStrategy.class);
-
-                                Set<Long> repos =
-                                    tbs.getTriggeringRepositories();
-
-                                if (repos.contains(rd.getId())) {
-                                    return true;
-                                } else {
-                                    for (Long rID : repos) {
-                                        RepositoryDataEntity rde =
-                                            repositoryDefinitionManager
-                                                .getRepositoryDataEntity(rID);
-                                        if (rde.getName()
-                                            .equals(this.getName())
-                                            && rde.getPluginKey().equals(
-                                                this.getKey())) {
-                                            return true;
-                                        }
-                                    }
-                                }
-                            } else {
-                                return false;
-                            }
-                        }
-                    } else {
-                        return true;
-                    }
-                }
-
-            }
-        }
-
-        return false;
-    }
-
     private boolean isRemoteTriggeringReop() {
         ImmutableChain c = this.findFirstPlan(true);
 
         return (c != null);
     }
 
-    private void publishChangeDetectionEvent(ImmutableChain c,
-                                             GerritEvent e) {
-        if (c != null) {
-            VcsBranch triggerBranch = this.getVcsBranch();
-
-            System.out.println("");
-            if (e instanceof PatchsetCreated) {
-                PatchsetCreated ps = (PatchsetCreated) e;
-                triggerBranch = new VcsBranchImpl(ps.getChange().getBranch());
-                project = ps.getChange().getProject();
-
-                log.debug("GerritRepository processing PatchsetCreated: "
-                    + ps.getChange().getUrl());
-            }
-
-            BuildDefinition buildDefinition = c.getBuildDefinition();
-
-			// 5.8+
-			if (this.getProject().equals(project)) {
-				for (TriggerDefinition td : c.getTriggerDefinitions()) {
-					if (this.getVcsBranch().equals(triggerBranch)) {
-						eventPublisher
-								.publish(new ChangeDetectionRequiredEvent(this,
-										c.getKey(), td, false));
-					}
-				}
-            }
-        }
-    }
-
     @Override
     public void processGerritEvent(GerritEvent e) {
         log.debug("GerritRepository processing event: "
             + e.getEventType().toString());
 
-        Collection<TopLevelPlan> plans = null;
-        Map<Project, Collection<TopLevelPlan>> projectBuilds =
-            planManager.getProjectPlanMap(TopLevelPlan.class, false);
+        if (e instanceof PatchsetCreated) {
+            PatchsetCreated ps = (PatchsetCreated) e;
 
-        Iterator<Project> it = projectBuilds.keySet().iterator();
+            log.debug("GerritRepository processing PatchsetCreated: "
+                + ps.getChange().getUrl());
 
-        while (it.hasNext()) {
-            Project p = it.next();
+            if (!this.getProject().equals(ps.getChange().getProject())
+                || !this.getVcsBranch().isEqualToBranchWith(
+                    ps.getChange().getBranch()))
+                return;
+        } else if (e instanceof RefUpdated) {
+            RefUpdated ru = (RefUpdated) e;
 
-            plans = projectBuilds.get(p);
+            if (!this.getProject().equals(ru.getRefUpdate().getProject()))
+                return;
+        }
 
-            for (TopLevelPlan pl : plans) {
-                if (pl.isSuspendedFromBuilding())
-                    continue;
+        for (GerritPlanIndex.Route r : getPlanRoutes()) {
+            if (!r.isFor(getName()) || !r.isRemoteTriggered())
+                continue;
 
-                if (isRepoTriggerFor(pl, true)) {
-                    publishChangeDetectionEvent(pl, e);
-                }
+            for (final TriggerDefinition td : r.getTriggers()) {
+                final String planKey = r.getPlanKey().getKey();
 
-                int branchCount = chainBranchManager.getBranchCount(pl);
-                if (branchCount > 0) {
-                    List<ChainBranch> chains =
-                        chainBranchManager.getBranchesForChain(pl);
+                // a pushed series asks once per plan and trigger
+                GerritDebouncer.getInstance().submit(
+                    planKey + " " + td.getId(), new Runnable() {
 
-                    for (ChainBranch c : chains) {
-                        if (isRepoTriggerFor(c, true)) {
-                            publishChangeDetectionEvent(c, e);
+                        @Override
+                        public void run() {
+                            eventPublisher
+                                .publish(new ChangeDetectionRequiredEvent(
+                                    GerritRepositoryAdapter.this, planKey, td,
+                                    false));
                         }
-                    }
-                }
+                    });
             }
         }
     }
 
 	@Override
 	public String getGerritFrontEndUrl() {
-		// TODO Auto-generated method stub
-		return null;
+		return StringUtils.isBlank(frontEndUrl) ? null : frontEndUrl;
 	}
 
 	@Override
 	public Credentials getHttpCredentials() {
-		// TODO Auto-generated method stub
-		return null;
+		if (StringUtils.isBlank(httpUsername))
+			return null;
+
+		return new UsernamePasswordCredentials(httpUsername, httpPassword);
 	}
 
 	@Override
 	public int getWatchdogTimeoutMinutes() {
-		// TODO Auto-generated method stub
-		return 0;
+		return (int) TimeUnit.SECONDS.toMinutes(GerritMonitor
+			.getWatchdogTimeoutSeconds());
 	}
 }
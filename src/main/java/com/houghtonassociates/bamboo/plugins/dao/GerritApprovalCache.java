@@ -0,0 +1,199 @@
+/*
+ * Houghton Associates Framework
+ * http://www.houghtonassociates.com
+ *
+ * Copyright 2014 Houghton Associates, Inc.
+ */
+package com.houghtonassociates.bamboo.plugins.dao;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.houghtonassociates.bamboo.plugins.dao.GerritChangeVO.Approval;
+import com.houghtonassociates.bamboo.plugins.dao.GerritChangeVO.PatchSet;
+
+/**
+ * The Verified vote an account last had on each change's current patch set,
+ * as seen in query results or posted by the plugin, so a vote that wouldn't
+ * change the label can be left out.
+ *
+ * An entry is trusted for <code>gerrit.review.dedupTtlMillis</code>
+ * (default 600000), after which the vote is posted again in case someone
+ * removed it. While a vote the plugin posted is trusted, query results for
+ * the same patch set don't replace it, since they may have been read
+ * before the vote landed. At most <code>gerrit.review.dedupMaxChanges</code> (default
+ * 10000) changes are remembered per server and account.
+ */
+public class GerritApprovalCache {
+
+    public static final String PROP_TTL = "gerrit.review.dedupTtlMillis";
+    public static final String PROP_MAX_CHANGES =
+        "gerrit.review.dedupMaxChanges";
+
+    private static final long DEFAULT_TTL = 600000;
+    private static final int DEFAULT_MAX_CHANGES = 10000;
+
+    private static final String[] VERIFIED = { "Verified", "VRIF" };
+
+    private static final ConcurrentMap<String, GerritApprovalCache> caches =
+        new ConcurrentHashMap<String, GerritApprovalCache>();
+
+    private static class Vote {
+
+        final int patchSet;
+        // null if the account hasn't voted on the patch set
+        final Integer value;
+        // posted by the plugin rather than seen in a query result
+        final boolean posted;
+        final long seenAt = System.currentTimeMillis();
+
+        Vote(int patchSet, Integer value, boolean posted) {
+            this.patchSet = patchSet;
+            this.value = value;
+            this.posted = posted;
+        }
+
+        boolean isFresh() {
+            return System.currentTimeMillis() - seenAt <= getTtl();
+        }
+    }
+
+    private final int maxChanges = Math.max(1, Integer.getInteger(
+        PROP_MAX_CHANGES, DEFAULT_MAX_CHANGES));
+
+    // least recently used first
+    private final Map<Integer, Vote> votes = new LinkedHashMap<Integer, Vote>(
+        16, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Vote> eldest) {
+            return size() > maxChanges;
+        }
+    };
+
+    private final AtomicLong suppressed = new AtomicLong(0);
+
+    private GerritApprovalCache() {
+    }
+
+    /**
+     * @param key
+     *            server and account
+     * @return
+     */
+    public static GerritApprovalCache forServer(String key) {
+        GerritApprovalCache c = caches.get(key);
+
+        if (c == null) {
+            GerritApprovalCache created = new GerritApprovalCache();
+
+            c = caches.putIfAbsent(key, created);
+            if (c == null)
+                c = created;
+        }
+
+        return c;
+    }
+
+    /**
+     * Remember the account's Verified vote on the change's current patch
+     * set.
+     *
+     * @param change
+     * @param email
+     *            of the account
+     */
+    public void observe(GerritChangeVO change, String email) {
+        PatchSet current = change.getCurrentPatchSet();
+
+        if (current == null || email == null)
+            return;
+
+        Integer value = null;
+
+        for (Approval a : current.getApprovals())
+            if (isVerified(a.getType()) && email.equalsIgnoreCase(a.getByEmail()))
+                value = a.getValue();
+
+        remember(change.getNumber(), current.getNumber(), value, false);
+    }
+
+    /**
+     * Remember a vote the account has just posted.
+     *
+     * @param change
+     * @param patchSet
+     * @param value
+     */
+    public void record(int change, int patchSet, Integer value) {
+        remember(change, patchSet, value, true);
+    }
+
+    private void remember(int change, int patchSet, Integer value,
+                          boolean posted) {
+        synchronized (votes) {
+            Vote known = votes.get(change);
+
+            if (known != null) {
+                // an older query result doesn't replace a newer patch set
+                if (known.patchSet > patchSet)
+                    return;
+
+                // nor a vote posted since the query was read
+                if (!posted && known.posted && known.patchSet == patchSet
+                    && known.isFresh())
+                    return;
+            }
+
+            votes.put(change, new Vote(patchSet, value, posted));
+        }
+    }
+
+    /**
+     * @param change
+     * @param patchSet
+     * @return the account's Verified vote on the patch set, or null if it
+     *         hasn't voted or isn't known to have
+     */
+    public Integer getVote(int change, int patchSet) {
+        Vote v;
+
+        synchronized (votes) {
+            v = votes.get(change);
+        }
+
+        if (v == null || v.patchSet != patchSet || !v.isFresh())
+            return null;
+
+        return v.value;
+    }
+
+    void suppressed() {
+        suppressed.incrementAndGet();
+    }
+
+    /**
+     * @return how many reviews were left out or sent without a vote because
+     *         the vote was already there
+     */
+    public long getSuppressedCount() {
+        return suppressed.get();
+    }
+
+    private static long getTtl() {
+        return Long.getLong(PROP_TTL, DEFAULT_TTL);
+    }
+
+    private static boolean isVerified(String type) {
+        for (String t : VERIFIED)
+            if (t.equals(type))
+                return true;
+
+        return false;
+    }
+}
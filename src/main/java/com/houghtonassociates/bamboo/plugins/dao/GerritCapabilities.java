@@ -0,0 +1,165 @@
+/*
+ * Houghton Associates Framework
+ * http://www.houghtonassociates.com
+ *
+ * Copyright 2014 Houghton Associates, Inc.
+ */
+package com.houghtonassociates.bamboo.plugins.dao;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * What a Gerrit server supports, worked out once per server from its version
+ * and a few cheap probes, see {@link GerritService#getCapabilities()}.
+ *
+ * Version defaults:
+ * <ul>
+ * <li>query --files: 2.5 and later</li>
+ * <li>label: query predicates: 2.4 and later</li>
+ * <li>after: and before: query predicates: 2.9 and later</li>
+ * <li>patch set author: 2.6 and later, unless a probe query says otherwise</li>
+ * <li>gsql with the account tables: before 2.15, if the gsql probe succeeds</li>
+ * <li>REST API: 2.8 and later, if a front end URL is configured and answers</li>
+ * </ul>
+ * An unrecognised version is treated as current.
+ */
+public class GerritCapabilities {
+
+    private static final Pattern VERSION = Pattern
+        .compile("(\\d+)\\.(\\d+)");
+
+    private static final ConcurrentMap<String, GerritCapabilities> capabilities =
+        new ConcurrentHashMap<String, GerritCapabilities>();
+
+    private final String version;
+    private final int major;
+    private final int minor;
+
+    private boolean authorSupported;
+    private boolean gsqlAvailable;
+    private boolean restAvailable;
+
+    /**
+     * @param server
+     * @return the server's capabilities, or null if not probed yet
+     */
+    public static GerritCapabilities forServer(String server) {
+        return capabilities.get(server);
+    }
+
+    /**
+     * @param server
+     * @param c
+     * @return the capabilities now cached for the server
+     */
+    public static GerritCapabilities
+                    register(String server, GerritCapabilities c) {
+        GerritCapabilities existing = capabilities.putIfAbsent(server, c);
+        return (existing == null) ? c : existing;
+    }
+
+    /**
+     * Forget a server's capabilities, e.g. after its configuration changed.
+     *
+     * @param server
+     */
+    public static void invalidate(String server) {
+        capabilities.remove(server);
+    }
+
+    /**
+     * @param version
+     *            as reported by <code>gerrit version</code> or the REST API,
+     *            may be null
+     */
+    public GerritCapabilities(String version) {
+        this.version = (version == null) ? "" : version.trim();
+
+        Matcher m = VERSION.matcher(this.version);
+
+        if (m.find()) {
+            major = Integer.parseInt(m.group(1));
+            minor = Integer.parseInt(m.group(2));
+        } else {
+            major = Integer.MAX_VALUE;
+            minor = 0;
+        }
+
+        authorSupported = isAtLeast(2, 6);
+        gsqlAvailable = isGsqlSupported();
+        restAvailable = false;
+    }
+
+    public boolean isAtLeast(int major, int minor) {
+        return (this.major > major)
+            || (this.major == major && this.minor >= minor);
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public boolean isKnownVersion() {
+        return major != Integer.MAX_VALUE;
+    }
+
+    /**
+     * @return true if the version still has gsql and the account tables;
+     *         whether this account may use them takes a probe
+     */
+    public boolean isGsqlSupported() {
+        return isKnownVersion() && !isAtLeast(2, 15);
+    }
+
+    public boolean isFilesSupported() {
+        return isAtLeast(2, 5);
+    }
+
+    public boolean isLabelPredicateSupported() {
+        return isAtLeast(2, 4);
+    }
+
+    public boolean isAfterPredicateSupported() {
+        return isAtLeast(2, 9);
+    }
+
+    public boolean isRestSupported() {
+        return isAtLeast(2, 8);
+    }
+
+    public boolean isAuthorSupported() {
+        return authorSupported;
+    }
+
+    void setAuthorSupported(boolean authorSupported) {
+        this.authorSupported = authorSupported;
+    }
+
+    public boolean isGsqlAvailable() {
+        return gsqlAvailable;
+    }
+
+    void setGsqlAvailable(boolean gsqlAvailable) {
+        this.gsqlAvailable = gsqlAvailable;
+    }
+
+    public boolean isRestAvailable() {
+        return restAvailable;
+    }
+
+    void setRestAvailable(boolean restAvailable) {
+        this.restAvailable = restAvailable;
+    }
+
+    @Override
+    public String toString() {
+        return "GerritCapabilities [version=" + version + ", author="
+            + authorSupported + ", files=" + isFilesSupported() + ", labels="
+            + isLabelPredicateSupported() + ", after="
+            + isAfterPredicateSupported() + ", gsql=" + gsqlAvailable
+            + ", rest=" + restAvailable + "]";
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Houghton Associates Framework
+ * http://www.houghtonassociates.com
+ *
+ * Copyright 2014 Houghton Associates, Inc.
+ */
+package com.houghtonassociates.bamboo.plugins.dao;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Circuit breaker shared by every caller talking to one Gerrit server.
+ *
+ * While CLOSED, the outcome of the last <code>window</code> calls is
+ * recorded. Once at least <code>minCalls</code> have been seen and the share
+ * of I/O failures reaches <code>failureRate</code>, the breaker OPENs and
+ * calls fail immediately. After <code>openMillis</code> it goes HALF_OPEN and
+ * lets a few probe calls through; if <code>probes</code> of them succeed it
+ * closes again, a single failure re-opens it.
+ *
+ * Only I/O failures (connection refused, timeouts, SSH errors) count; a
+ * query Gerrit rejects is a working server.
+ *
+ * Tunables (system properties):
+ * <ul>
+ * <li>gerrit.breaker.window - calls in the sliding window, default 20</li>
+ * <li>gerrit.breaker.minCalls - calls needed before tripping, default 5</li>
+ * <li>gerrit.breaker.failureRate - failure share that trips, default 0.5</li>
+ * <li>gerrit.breaker.openMillis - time spent open, default 30000</li>
+ * <li>gerrit.breaker.probes - successful probes needed to close, default 2</li>
+ * </ul>
+ */
+public class GerritCircuitBreaker {
+
+    public static final String PROP_WINDOW = "gerrit.breaker.window";
+    public static final String PROP_MIN_CALLS = "gerrit.breaker.minCalls";
+    public static final String PROP_FAILURE_RATE = "gerrit.breaker.failureRate";
+    public static final String PROP_OPEN_MILLIS = "gerrit.breaker.openMillis";
+    public static final String PROP_PROBES = "gerrit.breaker.probes";
+
+    private static final int DEFAULT_WINDOW = 20;
+    private static final int DEFAULT_MIN_CALLS = 5;
+    private static final double DEFAULT_FAILURE_RATE = 0.5;
+    private static final long DEFAULT_OPEN_MILLIS = 30000;
+    private static final int DEFAULT_PROBES = 2;
+
+    private static final Logger log = Logger
+        .getLogger(GerritCircuitBreaker.class);
+
+    private static final ConcurrentMap<String, GerritCircuitBreaker> breakers =
+        new ConcurrentHashMap<String, GerritCircuitBreaker>();
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * Thrown instead of calling Gerrit while the breaker is open.
+     */
+    public static class CircuitOpenException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public CircuitOpenException(String message) {
+            super(message);
+        }
+    }
+
+    private final String server;
+    private final int minCalls;
+    private final double failureRate;
+    private final long openMillis;
+    private final int probes;
+
+    // ring buffer of recent outcomes, true = failure
+    private final boolean[] outcomes;
+    private int next = 0;
+    private int recorded = 0;
+    private int failures = 0;
+
+    private State state = State.CLOSED;
+    private long openedAt = 0;
+    private int probesInFlight = 0;
+    private int probeSuccesses = 0;
+
+    private final AtomicLong rejected = new AtomicLong(0);
+    private final AtomicLong trips = new AtomicLong(0);
+
+    public static GerritCircuitBreaker forServer(String server) {
+        GerritCircuitBreaker b = breakers.get(server);
+
+        if (b == null) {
+            GerritCircuitBreaker created =
+                new GerritCircuitBreaker(server, Integer.getInteger(
+                    PROP_WINDOW, DEFAULT_WINDOW), Integer.getInteger(
+                    PROP_MIN_CALLS, DEFAULT_MIN_CALLS), getDouble(
+                    PROP_FAILURE_RATE, DEFAULT_FAILURE_RATE), Long.getLong(
+                    PROP_OPEN_MILLIS, DEFAULT_OPEN_MILLIS), Integer.getInteger(
+                    PROP_PROBES, DEFAULT_PROBES));
+
+            b = breakers.putIfAbsent(server, created);
+            if (b == null)
+                b = created;
+        }
+
+        return b;
+    }
+
+    public static Map<String, GerritCircuitBreaker> getBreakers() {
+        return Collections
+            .<String, GerritCircuitBreaker> unmodifiableMap(breakers);
+    }
+
+    private static double getDouble(String property, double def) {
+        String value = System.getProperty(property);
+
+        if (value == null)
+            return def;
+
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            log.warn(String.format("Invalid %s=%s, using %s", property, value,
+                def));
+            return def;
+        }
+    }
+
+    GerritCircuitBreaker(String server, int window, int minCalls,
+                         double failureRate, long openMillis, int probes) {
+        this.server = server;
+        this.outcomes = new boolean[Math.max(1, window)];
+        this.minCalls = Math.max(1, Math.min(minCalls, outcomes.length));
+        this.failureRate = failureRate;
+        this.openMillis = Math.max(0, openMillis);
+        this.probes = Math.max(1, probes);
+    }
+
+    /**
+     * Run a Gerrit call through the breaker.
+     *
+     * @param task
+     * @return
+     * @throws CircuitOpenException
+     *             the breaker is open
+     * @throws Exception
+     *             the exception thrown by the task
+     */
+    public <T> T call(Callable<T> task) throws Exception {
+        boolean probe = acquire();
+        boolean failed = false;
+
+        try {
+            return task.call();
+        } catch (IOException e) {
+            failed = true;
+            throw e;
+        } finally {
+            record(probe, failed);
+        }
+    }
+
+    /**
+     * @return true if a call would currently be let through
+     */
+    public synchronized boolean isAvailable() {
+        switch (state) {
+            case OPEN:
+                return expired();
+            case HALF_OPEN:
+                return probesInFlight < probes;
+            default:
+                return true;
+        }
+    }
+
+    private synchronized boolean acquire() throws CircuitOpenException {
+        if (state == State.OPEN && expired()) {
+            log.info(server + ": circuit half-open, probing Gerrit.");
+            state = State.HALF_OPEN;
+            probesInFlight = 0;
+            probeSuccesses = 0;
+        }
+
+        if (state == State.OPEN
+            || (state == State.HALF_OPEN && probesInFlight >= probes)) {
+            rejected.incrementAndGet();
+            throw new CircuitOpenException(String.format(
+                "Gerrit %s is unavailable, not retrying for %ds.", server,
+                remainingOpenMillis() / 1000));
+        }
+
+        if (state == State.HALF_OPEN) {
+            probesInFlight++;
+            return true;
+        }
+
+        return false;
+    }
+
+    private synchronized void record(boolean probe, boolean failed) {
+        if (probe) {
+            probesInFlight--;
+
+            if (state != State.HALF_OPEN)
+                return;
+
+            if (failed) {
+                open();
+            } else if (++probeSuccesses >= probes) {
+                log.info(server + ": circuit closed, Gerrit recovered.");
+                state = State.CLOSED;
+                reset();
+            }
+
+            return;
+        }
+
+        // late results from calls started before the breaker opened
+        if (state != State.CLOSED)
+            return;
+
+        if (recorded == outcomes.length) {
+            if (outcomes[next])
+                failures--;
+        } else {
+            recorded++;
+        }
+
+        outcomes[next] = failed;
+        if (failed)
+            failures++;
+        next = (next + 1) % outcomes.length;
+
+        if (recorded >= minCalls && failures >= recorded * failureRate)
+            open();
+    }
+
+    private void open() {
+        log.warn(String.format(
+            "%s: circuit open after %d/%d failed calls, failing fast for %dms.",
+            server, failures, recorded, openMillis));
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+        trips.incrementAndGet();
+        reset();
+    }
+
+    private void reset() {
+        next = 0;
+        recorded = 0;
+        failures = 0;
+    }
+
+    private boolean expired() {
+        return remainingOpenMillis() <= 0;
+    }
+
+    private long remainingOpenMillis() {
+        return Math.max(0, openedAt + openMillis - System.currentTimeMillis());
+    }
+
+    public String getServer() {
+        return server;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized double getFailureRate() {
+        return (recorded == 0) ? 0 : (double) failures / recorded;
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public long getTripCount() {
+        return trips.get();
+    }
+
+    @Override
+    public String toString() {
+        return "GerritCircuitBreaker [server=" + server + ", state="
+            + getState() + ", failureRate=" + getFailureRate()
+            + ", rejected=" + getRejectedCount() + ", trips="
+            + getTripCount() + "]";
+    }
+}
@@ -0,0 +1,449 @@
+/*
+ * Houghton Associates Framework
+ * http://www.houghtonassociates.com
+ *
+ * Copyright 2014 Houghton Associates, Inc.
+ */
+package com.houghtonassociates.bamboo.plugins.dao;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Adaptive (AIMD) limit on the number of SSH commands in flight against one
+ * Gerrit server.
+ *
+ * Every command's round-trip time is compared against the lowest recently
+ * observed round-trip time of the same {@link GerritOperation}, so a large
+ * query isn't judged against <code>gerrit version</code>. Only the time the
+ * command itself runs counts; a {@link Stopwatch} leaves out waiting for an
+ * executor permit. While latency stays within <code>tolerance</code> times
+ * the baseline and the limit is actually being used, the limit grows by one.
+ * When latency climbs past it, or a command fails with an I/O error, the
+ * limit is cut by <code>backoff</code>. Callers over the limit wait in FIFO
+ * order.
+ *
+ * Tunables (system properties):
+ * <ul>
+ * <li>gerrit.limiter.initial - starting limit, default 4</li>
+ * <li>gerrit.limiter.min - lowest limit, default 1</li>
+ * <li>gerrit.limiter.max - highest limit, default
+ * gerrit.executor.serverPermits</li>
+ * <li>gerrit.limiter.tolerance - latency multiple treated as overload,
+ * default 2.0</li>
+ * <li>gerrit.limiter.backoff - multiplier applied on overload, default 0.9</li>
+ * </ul>
+ */
+public class GerritConcurrencyLimiter {
+
+    public static final String PROP_INITIAL = "gerrit.limiter.initial";
+    public static final String PROP_MIN = "gerrit.limiter.min";
+    public static final String PROP_MAX = "gerrit.limiter.max";
+    public static final String PROP_TOLERANCE = "gerrit.limiter.tolerance";
+    public static final String PROP_BACKOFF = "gerrit.limiter.backoff";
+
+    private static final int DEFAULT_INITIAL = 4;
+    private static final int DEFAULT_MIN = 1;
+    private static final int DEFAULT_MAX = 16;
+    private static final double DEFAULT_TOLERANCE = 2.0;
+    private static final double DEFAULT_BACKOFF = 0.9;
+
+    // the RTT baseline is re-learned after this many samples so it can
+    // follow the server when it gets permanently slower
+    private static final int BASELINE_WINDOW = 500;
+
+    private static final Logger log = Logger
+        .getLogger(GerritConcurrencyLimiter.class);
+
+    private static final ConcurrentMap<String, GerritConcurrencyLimiter> limiters =
+        new ConcurrentHashMap<String, GerritConcurrencyLimiter>();
+
+    /**
+     * Times the part of a task that is the command itself.
+     */
+    public static class Stopwatch {
+
+        private volatile long started = 0;
+        private volatile long finished = 0;
+
+        /**
+         * @param task
+         * @return the task, timed while it runs
+         */
+        public <T> Callable<T> time(final Callable<T> task) {
+            return new Callable<T>() {
+
+                @Override
+                public T call() throws Exception {
+                    started = System.nanoTime();
+
+                    try {
+                        return task.call();
+                    } finally {
+                        finished = System.nanoTime();
+                    }
+                }
+            };
+        }
+
+        /**
+         * @return how long the command ran, or has been running, -1 if it
+         *         never started
+         */
+        long getElapsedNanos() {
+            long s = started;
+            long f = finished;
+
+            if (s == 0)
+                return -1;
+
+            return ((f == 0) ? System.nanoTime() : f) - s;
+        }
+    }
+
+    // lowest RTT of an operation
+    private static class Baseline {
+
+        private long minRtt = Long.MAX_VALUE;
+        private long nextMinRtt = Long.MAX_VALUE;
+        private int samples = 0;
+    }
+
+    private final String server;
+    private final int minLimit;
+    private final int maxLimit;
+    private final double tolerance;
+    private final double backoff;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private final LinkedList<Thread> waiters = new LinkedList<Thread>();
+
+    private double limit;
+    private int inFlight = 0;
+    private final Map<GerritOperation, Baseline> baselines =
+        new HashMap<GerritOperation, Baseline>();
+    private double avgRtt = 0;
+
+    private final AtomicLong completed = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+    private final AtomicLong timedOut = new AtomicLong(0);
+    private final AtomicLong waitNanos = new AtomicLong(0);
+
+    public static GerritConcurrencyLimiter forServer(String server) {
+        GerritConcurrencyLimiter l = limiters.get(server);
+
+        if (l == null) {
+            int max =
+                Integer.getInteger(PROP_MAX, Integer.getInteger(
+                    GerritExecutor.PROP_SERVER_PERMITS, DEFAULT_MAX));
+            GerritConcurrencyLimiter created =
+                new GerritConcurrencyLimiter(server, Integer.getInteger(
+                    PROP_INITIAL, DEFAULT_INITIAL), Integer.getInteger(
+                    PROP_MIN, DEFAULT_MIN), max, getDouble(PROP_TOLERANCE,
+                    DEFAULT_TOLERANCE), getDouble(PROP_BACKOFF,
+                    DEFAULT_BACKOFF));
+
+            l = limiters.putIfAbsent(server, created);
+            if (l == null)
+                l = created;
+        }
+
+        return l;
+    }
+
+    public static Map<String, GerritConcurrencyLimiter> getLimiters() {
+        return Collections
+            .<String, GerritConcurrencyLimiter> unmodifiableMap(limiters);
+    }
+
+    private static double getDouble(String property, double def) {
+        String value = System.getProperty(property);
+
+        if (value == null)
+            return def;
+
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            log.warn(String.format("Invalid %s=%s, using %s", property, value,
+                def));
+            return def;
+        }
+    }
+
+    GerritConcurrencyLimiter(String server, int initial, int min, int max,
+                             double tolerance, double backoff) {
+        this.server = server;
+        this.minLimit = Math.max(1, min);
+        this.maxLimit = Math.max(this.minLimit, max);
+        this.tolerance = tolerance;
+        this.backoff = backoff;
+        this.limit =
+            Math.min(this.maxLimit, Math.max(this.minLimit, initial));
+    }
+
+    /**
+     * Run an SSH command within the limit, feeding its latency back into the
+     * limit.
+     *
+     * @param op
+     * @param task
+     * @return
+     * @throws Exception
+     */
+    public <T> T call(GerritOperation op, Callable<T> task) throws Exception {
+        Stopwatch watch = new Stopwatch();
+
+        return call(op, watch.time(task), watch);
+    }
+
+    /**
+     * Run a task within the limit, feeding the latency of the command it
+     * runs back into the limit.
+     *
+     * @param op
+     * @param task
+     * @param watch
+     *            timing the command within the task
+     * @return
+     * @throws Exception
+     */
+    public <T> T call(GerritOperation op, Callable<T> task, Stopwatch watch) throws Exception {
+        acquire();
+
+        boolean drop = false;
+
+        try {
+            return task.call();
+        } catch (IOException e) {
+            drop = true;
+            throw e;
+        } finally {
+            release(op, watch.getElapsedNanos(), drop);
+        }
+    }
+
+    public void acquire() throws InterruptedException {
+        tryAcquire(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Wait in line for a slot.
+     *
+     * @param timeout
+     * @param unit
+     * @return false if the timeout elapsed first
+     * @throws InterruptedException
+     */
+    public boolean tryAcquire(long timeout, TimeUnit unit) throws InterruptedException {
+        long start = System.nanoTime();
+        long remaining = unit.toNanos(timeout);
+        Thread me = Thread.currentThread();
+
+        lock.lock();
+        try {
+            waiters.addLast(me);
+
+            try {
+                while (waiters.getFirst() != me || inFlight >= (int) limit) {
+                    if (remaining <= 0) {
+                        waiters.remove(me);
+                        available.signalAll();
+                        timedOut.incrementAndGet();
+                        return false;
+                    }
+                    remaining = available.awaitNanos(remaining);
+                }
+            } catch (InterruptedException e) {
+                waiters.remove(me);
+                available.signalAll();
+                throw e;
+            }
+
+            waiters.removeFirst();
+            inFlight++;
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        waitNanos.addAndGet(System.nanoTime() - start);
+
+        return true;
+    }
+
+    /**
+     * Return a slot.
+     *
+     * @param op
+     * @param rttNanos
+     *            round-trip time of the command, negative if it never ran
+     * @param drop
+     *            the command failed in a way that suggests overload
+     */
+    public void release(GerritOperation op, long rttNanos, boolean drop) {
+        lock.lock();
+        try {
+            int used = inFlight;
+            inFlight--;
+
+            if (drop) {
+                dropped.incrementAndGet();
+                decrease();
+            } else if (rttNanos >= 0) {
+                completed.incrementAndGet();
+
+                if (rttNanos > sample(op, rttNanos) * tolerance)
+                    decrease();
+                else if (used * 2 >= (int) limit)
+                    limit = Math.min(maxLimit, limit + 1);
+            }
+
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void decrease() {
+        double previous = limit;
+
+        limit = Math.max(minLimit, limit * backoff);
+
+        if ((int) previous != (int) limit)
+            log.debug(String.format("%s: concurrency limit lowered to %d",
+                server, (int) limit));
+    }
+
+    // the operation's baseline, this sample included
+    private long sample(GerritOperation op, long rttNanos) {
+        Baseline b = baselines.get(op);
+
+        if (b == null) {
+            b = new Baseline();
+            baselines.put(op, b);
+        }
+
+        avgRtt = (avgRtt == 0) ? rttNanos : (avgRtt * 0.9 + rttNanos * 0.1);
+        b.nextMinRtt = Math.min(b.nextMinRtt, rttNanos);
+        b.minRtt = Math.min(b.minRtt, rttNanos);
+
+        long min = b.minRtt;
+
+        if (++b.samples >= BASELINE_WINDOW) {
+            b.minRtt = b.nextMinRtt;
+            b.nextMinRtt = Long.MAX_VALUE;
+            b.samples = 0;
+        }
+
+        return min;
+    }
+
+    public String getServer() {
+        return server;
+    }
+
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getQueueLength() {
+        lock.lock();
+        try {
+            return waiters.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the lowest baseline of any operation
+     */
+    public long getMinRttMillis() {
+        lock.lock();
+        try {
+            long min = Long.MAX_VALUE;
+
+            for (Baseline b : baselines.values())
+                min = Math.min(min, b.minRtt);
+
+            return (min == Long.MAX_VALUE) ? 0 : TimeUnit.NANOSECONDS
+                .toMillis(min);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getMinRttMillis(GerritOperation op) {
+        lock.lock();
+        try {
+            Baseline b = baselines.get(op);
+
+            return (b == null || b.minRtt == Long.MAX_VALUE) ? 0
+                : TimeUnit.NANOSECONDS.toMillis(b.minRtt);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getAverageRttMillis() {
+        lock.lock();
+        try {
+            return TimeUnit.NANOSECONDS.toMillis((long) avgRtt);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public long getTimedOutCount() {
+        return timedOut.get();
+    }
+
+    public long getTotalWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos.get());
+    }
+
+    @Override
+    public String toString() {
+        return "GerritConcurrencyLimiter [server=" + server + ", limit="
+            + getLimit() + ", inFlight=" + getInFlight() + ", queued="
+            + getQueueLength() + ", minRtt=" + getMinRttMillis()
+            + "ms, avgRtt=" + getAverageRttMillis() + "ms, completed="
+            + getCompletedCount() + ", dropped=" + getDroppedCount() + "]";
+    }
+}
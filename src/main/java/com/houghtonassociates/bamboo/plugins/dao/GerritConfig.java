@@ -1,11 +1,17 @@
 package com.houghtonassociates.bamboo.plugins.dao;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import com.sonymobile.tools.gerrit.gerritevents.ssh.Authentication;
 
 public class GerritConfig {
 
+    public static final String TRANSPORT_SSH = "ssh";
+    public static final String TRANSPORT_REST = "rest";
+
     private String repositoryUrl = "";
     private String host = "";
     private int port = 29418;
@@ -21,6 +27,11 @@ public class GerritConfig {
     private boolean useSubmodules = false;
     private int commandTimeout = 0;
     private boolean verboseLogs = false;
+    private String transport = TRANSPORT_SSH;
+    private String frontEndUrl = "";
+    private String httpUsername = "";
+    private String httpPassword = "";
+    private String replicas = "";
 
     public String getRepositoryUrl() {
         return repositoryUrl;
@@ -134,6 +145,108 @@ public class GerritConfig {
         this.commandTimeout = commandTimeout;
     }
 
+    /**
+     * Deadline for an operation, never longer than the command timeout.
+     * 
+     * @param op
+     * @return deadline in milliseconds, 0 if unbounded
+     */
+    public long getTimeoutMillis(GerritOperation op) {
+        long commandMillis =
+            (commandTimeout > 0) ? TimeUnit.MINUTES.toMillis(commandTimeout)
+                : 0;
+        long seconds =
+            Long.getLong(op.getPropertyName(), op.getDefaultSeconds());
+        long timeout =
+            (seconds > 0) ? TimeUnit.SECONDS.toMillis(seconds) : commandMillis;
+
+        if (commandMillis > 0 && (timeout == 0 || timeout > commandMillis))
+            timeout = commandMillis;
+
+        return timeout;
+    }
+
+    public String getTransport() {
+        return transport;
+    }
+
+    public void setTransport(String transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * @return true if queries and reviews go over Gerrit's REST API instead
+     *         of SSH commands
+     */
+    public boolean isRestTransport() {
+        return TRANSPORT_REST.equalsIgnoreCase(transport)
+            && frontEndUrl != null && !frontEndUrl.isEmpty();
+    }
+
+    public String getFrontEndUrl() {
+        return frontEndUrl;
+    }
+
+    public void setFrontEndUrl(String frontEndUrl) {
+        this.frontEndUrl = frontEndUrl;
+    }
+
+    public String getHttpUsername() {
+        return httpUsername;
+    }
+
+    public void setHttpUsername(String httpUsername) {
+        this.httpUsername = httpUsername;
+    }
+
+    public String getHttpPassword() {
+        return httpPassword;
+    }
+
+    public void setHttpPassword(String httpPassword) {
+        this.httpPassword = httpPassword;
+    }
+
+    public String getReplicas() {
+        return replicas;
+    }
+
+    /**
+     * @param replicas
+     *            read replicas, separated by commas or whitespace, see
+     *            {@link GerritEndpoint#parse(String, int)}
+     */
+    public void setReplicas(String replicas) {
+        this.replicas = (replicas == null) ? "" : replicas;
+    }
+
+    /**
+     * Replicas that serve reads over the selected transport: SSH replicas
+     * for SSH, URLs for the REST API. Unparseable entries are skipped.
+     * 
+     * @return
+     */
+    public List<GerritEndpoint> getReadReplicas() {
+        List<GerritEndpoint> result = new ArrayList<GerritEndpoint>();
+        boolean rest = isRestTransport();
+
+        for (String spec : replicas.split("[,\\s]+")) {
+            if (spec.isEmpty())
+                continue;
+
+            try {
+                GerritEndpoint e = GerritEndpoint.parse(spec, port);
+
+                if (e.isRest() == rest)
+                    result.add(e);
+            } catch (IllegalArgumentException e) {
+                // rejected when the repository is saved
+            }
+        }
+
+        return result;
+    }
+
     public boolean isVerboseLogs() {
         return verboseLogs;
     }
@@ -142,6 +255,16 @@ public class GerritConfig {
         this.verboseLogs = verboseLogs;
     }
 
+    /**
+     * Key identifying the Gerrit server, shared by every repository
+     * configured against the same host and port.
+     * 
+     * @return
+     */
+    public String getServerKey() {
+        return host + ":" + port;
+    }
+
     public Authentication getAuth() {
         return new Authentication(sshKeyFile, username, sshPassphrase);
     }
@@ -0,0 +1,178 @@
+/*
+ * Houghton Associates Framework
+ * http://www.houghtonassociates.com
+ *
+ * Copyright 2014 Houghton Associates, Inc.
+ */
+package com.houghtonassociates.bamboo.plugins.dao;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Coalesces bursts of requests for the same key, e.g. the change detection
+ * requests a pushed series of patch sets causes for a plan.
+ *
+ * A request for a key runs once no other request for the key has arrived
+ * for <code>gerrit.events.quietMillis</code> (default 2000). Requests
+ * arriving meanwhile are folded into the waiting one, counted as
+ * suppressed, and start the quiet window over. A key that keeps being
+ * requested still runs <code>gerrit.events.maxWaitMillis</code> (default
+ * 10000) after its first request. A window of 0 runs every request at once.
+ */
+public class GerritDebouncer {
+
+    public static final String PROP_QUIET = "gerrit.events.quietMillis";
+
+    public static final String PROP_MAX_WAIT = "gerrit.events.maxWaitMillis";
+
+    private static final long DEFAULT_QUIET = 2000;
+    private static final long DEFAULT_MAX_WAIT = 10000;
+
+    private static final Logger log = Logger.getLogger(GerritDebouncer.class);
+
+    private static final GerritDebouncer instance = new GerritDebouncer();
+
+    private static final ScheduledExecutorService timer = Executors
+        .newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "gerrit-debounce");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    /**
+     * A request waiting for its key to go quiet.
+     */
+    private class Pending implements Runnable {
+
+        final String key;
+        final Runnable action;
+        // nanoTime it runs by at the latest
+        final long deadline;
+        long due;
+        int folded = 0;
+        ScheduledFuture<?> future = null;
+
+        Pending(String key, Runnable action, long deadline) {
+            this.key = key;
+            this.action = action;
+            this.deadline = deadline;
+        }
+
+        // called holding the pending lock
+        void arm(long at) {
+            if (future != null)
+                future.cancel(false);
+
+            due = Math.min(at, deadline);
+            future =
+                timer.schedule(this, due - System.nanoTime(),
+                    TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public void run() {
+            synchronized (pending) {
+                // re-armed after this run was scheduled
+                if (pending.get(key) != this || System.nanoTime() < due)
+                    return;
+
+                pending.remove(key);
+            }
+
+            if (folded > 0)
+                log.info(String.format("%s: %d requests coalesced.", key,
+                    folded));
+
+            try {
+                action.run();
+            } catch (RuntimeException e) {
+                log.error(String.format("%s failed: %s", key, e.getMessage()),
+                    e);
+            }
+        }
+    }
+
+    private final Map<String, Pending> pending = new HashMap<String, Pending>();
+    private final AtomicLong suppressed = new AtomicLong(0);
+
+    GerritDebouncer() {
+    }
+
+    /**
+     * @return the debouncer shared by all repositories
+     */
+    public static GerritDebouncer getInstance() {
+        return instance;
+    }
+
+    /**
+     * Run the action once the key has been quiet for the window. If a
+     * request for the key is already waiting, fold this one into it and
+     * start the window over.
+     *
+     * @param key
+     * @param action
+     * @return false if the request was folded into a waiting one
+     */
+    public boolean submit(String key, Runnable action) {
+        long quiet =
+            TimeUnit.MILLISECONDS.toNanos(Long.getLong(PROP_QUIET,
+                DEFAULT_QUIET));
+        long maxWait =
+            TimeUnit.MILLISECONDS.toNanos(Long.getLong(PROP_MAX_WAIT,
+                DEFAULT_MAX_WAIT));
+
+        if (quiet <= 0) {
+            action.run();
+            return true;
+        }
+
+        long now = System.nanoTime();
+
+        synchronized (pending) {
+            Pending p = pending.get(key);
+
+            if (p != null) {
+                p.folded++;
+                suppressed.incrementAndGet();
+                p.arm(now + quiet);
+                return false;
+            }
+
+            p = new Pending(key, action, now + Math.max(quiet, maxWait));
+            pending.put(key, p);
+            p.arm(now + quiet);
+        }
+
+        return true;
+    }
+
+    /**
+     * @return requests folded into another so far
+     */
+    public long getSuppressedCount() {
+        return suppressed.get();
+    }
+
+    /**
+     * @return keys waiting for their window to close
+     */
+    public int getPendingCount() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+}
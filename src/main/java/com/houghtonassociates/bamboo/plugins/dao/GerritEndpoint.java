@@ -0,0 +1,139 @@
+/*
+ * Houghton Associates Framework
+ * http://www.houghtonassociates.com
+ *
+ * Copyright 2014 Houghton Associates, Inc.
+ */
+package com.houghtonassociates.bamboo.plugins.dao;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A Gerrit server reads can be sent to: an SSH <code>host[:port]</code> or,
+ * for the REST API, a front end URL.
+ */
+public class GerritEndpoint {
+
+    private final String host;
+    private final int port;
+    private final String url;
+
+    private GerritEndpoint(String host, int port, String url) {
+        this.host = host;
+        this.port = port;
+        this.url = url;
+    }
+
+    public static GerritEndpoint ssh(String host, int port) {
+        return new GerritEndpoint(host, port, null);
+    }
+
+    public static GerritEndpoint rest(String url) {
+        return new GerritEndpoint(null, 0, url);
+    }
+
+    /**
+     * @param spec
+     *            <code>host</code>, <code>host:port</code> or an http(s) URL
+     * @param defaultPort
+     *            SSH port used when the spec has none
+     * @return
+     * @throws IllegalArgumentException
+     *             the spec can't be parsed
+     */
+    public static GerritEndpoint parse(String spec, int defaultPort) {
+        String s = (spec == null) ? "" : spec.trim();
+
+        if (s.isEmpty())
+            throw new IllegalArgumentException("Empty Gerrit endpoint.");
+
+        String lower = s.toLowerCase();
+        if (lower.startsWith("http://") || lower.startsWith("https://"))
+            return rest(s);
+
+        int colon = s.lastIndexOf(':');
+        if (colon < 0)
+            return ssh(s, defaultPort);
+
+        try {
+            int port = Integer.parseInt(s.substring(colon + 1));
+
+            if (colon == 0 || port <= 0 || port > 65535)
+                throw new IllegalArgumentException("Invalid Gerrit endpoint: "
+                    + s);
+
+            return ssh(s.substring(0, colon), port);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid Gerrit endpoint: " + s);
+        }
+    }
+
+    /**
+     * @param specs
+     *            endpoints separated by commas or whitespace
+     * @param defaultPort
+     * @return
+     * @throws IllegalArgumentException
+     *             an endpoint can't be parsed
+     */
+    public static List<GerritEndpoint> parseList(String specs, int defaultPort) {
+        List<GerritEndpoint> endpoints = new ArrayList<GerritEndpoint>();
+
+        if (specs == null)
+            return endpoints;
+
+        for (String s : specs.split("[,\\s]+")) {
+            if (!s.isEmpty())
+                endpoints.add(parse(s, defaultPort));
+        }
+
+        return endpoints;
+    }
+
+    public boolean isRest() {
+        return url != null;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Identifies the server for its circuit breaker, concurrency limit and
+     * executor permits, like {@link GerritConfig#getServerKey()}.
+     *
+     * @return
+     */
+    public String getKey() {
+        return isRest() ? url : host + ":" + port;
+    }
+
+    @Override
+    public int hashCode() {
+        return getKey().hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (!(obj instanceof GerritEndpoint))
+            return false;
+
+        return getKey().equals(((GerritEndpoint) obj).getKey());
+    }
+
+    @Override
+    public String toString() {
+        return getKey();
+    }
+}
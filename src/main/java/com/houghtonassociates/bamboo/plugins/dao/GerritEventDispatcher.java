@@ -0,0 +1,283 @@
+/*
+ * Houghton Associates Framework
+ * http://www.houghtonassociates.com
+ *
+ * Copyright 2014 Houghton Associates, Inc.
+ */
+package com.houghtonassociates.bamboo.plugins.dao;
+
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.sonymobile.tools.gerrit.gerritevents.dto.GerritEvent;
+import com.sonymobile.tools.gerrit.gerritevents.dto.attr.Change;
+import com.sonymobile.tools.gerrit.gerritevents.dto.attr.RefUpdate;
+import com.sonymobile.tools.gerrit.gerritevents.dto.events.ChangeBasedEvent;
+import com.sonymobile.tools.gerrit.gerritevents.dto.events.RefUpdated;
+
+/**
+ * Hands Gerrit events to the listeners on several worker threads.
+ *
+ * Events are spread over the workers by change, or by project for events
+ * without a change, so the events of one change reach the listeners in the
+ * order Gerrit sent them while a slow listener only holds up the changes
+ * sharing its worker. Each worker has a bounded queue. An event for a
+ * worker whose queue is full is dropped and counted; the repository's
+ * regular poll still finds the change.
+ *
+ * Tunables (system properties):
+ * <ul>
+ * <li>gerrit.events.workers - worker threads, default 4</li>
+ * <li>gerrit.events.queueSize - events waiting per worker, default 1000</li>
+ * </ul>
+ */
+public class GerritEventDispatcher {
+
+    public static final String PROP_WORKERS = "gerrit.events.workers";
+    public static final String PROP_QUEUE_SIZE = "gerrit.events.queueSize";
+
+    private static final int DEFAULT_WORKERS = 4;
+    private static final int DEFAULT_QUEUE_SIZE = 1000;
+
+    // a full queue is logged once per this many drops
+    private static final int DROP_LOG_INTERVAL = 100;
+
+    private static final Logger log = Logger
+        .getLogger(GerritEventDispatcher.class);
+
+    private static final AtomicInteger count = new AtomicInteger(0);
+
+    /**
+     * How long a listener takes for an event.
+     */
+    public static class Latency {
+
+        private final AtomicLong events = new AtomicLong(0);
+        private final AtomicLong failures = new AtomicLong(0);
+        private final AtomicLong totalNanos = new AtomicLong(0);
+        private final AtomicLong maxNanos = new AtomicLong(0);
+
+        private void record(long nanos, boolean failed) {
+            events.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+
+            if (failed)
+                failures.incrementAndGet();
+
+            long max = maxNanos.get();
+
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos))
+                max = maxNanos.get();
+        }
+
+        public long getEventCount() {
+            return events.get();
+        }
+
+        public long getFailureCount() {
+            return failures.get();
+        }
+
+        public double getAverageMillis() {
+            long n = events.get();
+
+            return (n == 0) ? 0 : totalNanos.get() / 1e6 / n;
+        }
+
+        public double getMaxMillis() {
+            return maxNanos.get() / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d events, avg %.1fms, max %.1fms, %d failed",
+                getEventCount(), getAverageMillis(), getMaxMillis(),
+                getFailureCount());
+        }
+    }
+
+    private final String name;
+    private final ThreadPoolExecutor[] workers;
+    private final ConcurrentMap<GerritProcessListener, Latency> latencies =
+        new ConcurrentHashMap<GerritProcessListener, Latency>();
+    private final AtomicLong dropped = new AtomicLong(0);
+
+    /**
+     * @param name
+     *            of the server, for logs
+     */
+    public GerritEventDispatcher(String name) {
+        this.name = name;
+
+        int threads = Math.max(1, Integer.getInteger(PROP_WORKERS,
+            DEFAULT_WORKERS));
+        int queueSize = Math.max(1, Integer.getInteger(PROP_QUEUE_SIZE,
+            DEFAULT_QUEUE_SIZE));
+        final int id = count.incrementAndGet();
+
+        workers = new ThreadPoolExecutor[threads];
+
+        for (int i = 0; i < threads; i++) {
+            final String thread =
+                String.format("gerrit-events-dispatch-%d-%d", id, i + 1);
+
+            workers[i] =
+                new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueSize),
+                    new ThreadFactory() {
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, thread);
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Queue an event for the listeners.
+     *
+     * @param e
+     * @param listeners
+     * @return false if the event was dropped
+     */
+    public boolean dispatch(GerritEvent e,
+                            Collection<GerritProcessListener> listeners) {
+        return dispatch(keyOf(e), e, listeners);
+    }
+
+    /**
+     * @param key
+     *            events with equal keys are handled in order
+     * @param e
+     * @param listeners
+     * @return false if the event was dropped
+     */
+    boolean dispatch(Object key, final GerritEvent e,
+                     final Collection<GerritProcessListener> listeners) {
+        int h = (key == null) ? 0 : key.hashCode();
+        ThreadPoolExecutor worker =
+            workers[(h & Integer.MAX_VALUE) % workers.length];
+
+        try {
+            worker.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    deliver(e, listeners);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            long n = dropped.incrementAndGet();
+
+            if (n % DROP_LOG_INTERVAL == 1)
+                log.warn(String.format(
+                    "Gerrit event queue of %s is full, %d events dropped "
+                        + "so far, left to polling.", name, n));
+
+            return false;
+        }
+
+        return true;
+    }
+
+    private void deliver(GerritEvent e,
+                         Collection<GerritProcessListener> listeners) {
+        for (GerritProcessListener l : listeners) {
+            long start = System.nanoTime();
+            boolean failed = false;
+
+            try {
+                l.processGerritEvent(e);
+            } catch (RuntimeException ex) {
+                failed = true;
+                log.error(String.format("%s failed on %s: %s", l,
+                    e.getEventType(), ex.getMessage()), ex);
+            }
+
+            getLatency(l).record(System.nanoTime() - start, failed);
+        }
+    }
+
+    /**
+     * @param e
+     * @return what orders the event: its change, else its project
+     */
+    static Object keyOf(GerritEvent e) {
+        if (e instanceof ChangeBasedEvent) {
+            Change c = ((ChangeBasedEvent) e).getChange();
+
+            if (c != null)
+                return c.getNumber();
+        } else if (e instanceof RefUpdated) {
+            RefUpdate r = ((RefUpdated) e).getRefUpdate();
+
+            if (r != null)
+                return r.getProject();
+        }
+
+        return null;
+    }
+
+    /**
+     * @param l
+     * @return the listener's timings, kept until {@link #forget}
+     */
+    public Latency getLatency(GerritProcessListener l) {
+        Latency t = latencies.get(l);
+
+        if (t == null) {
+            Latency created = new Latency();
+
+            t = latencies.putIfAbsent(l, created);
+            if (t == null)
+                t = created;
+        }
+
+        return t;
+    }
+
+    public void forget(GerritProcessListener l) {
+        latencies.remove(l);
+    }
+
+    /**
+     * @return events waiting in all workers
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+
+        for (ThreadPoolExecutor w : workers)
+            depth += w.getQueue().size();
+
+        return depth;
+    }
+
+    /**
+     * @return events waiting in the fullest worker
+     */
+    public int getMaxQueueDepth() {
+        int max = 0;
+
+        for (ThreadPoolExecutor w : workers)
+            max = Math.max(max, w.getQueue().size());
+
+        return max;
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+}
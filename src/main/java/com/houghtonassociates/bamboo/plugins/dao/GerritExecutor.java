@@ -0,0 +1,356 @@
+/*
+ * Houghton Associates Framework
+ * http://www.houghtonassociates.com
+ *
+ * Copyright 2014 Houghton Associates, Inc.
+ */
+package com.houghtonassociates.bamboo.plugins.dao;
+
+import java.lang.reflect.Method;
+import java.net.SocketTimeoutException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs the blocking Gerrit SSH and JGit transport operations.
+ *
+ * Virtual threads are used when the running JVM provides them, otherwise a
+ * bounded platform thread pool. Either way the number of operations in flight
+ * against a single Gerrit server is bounded by a per-server semaphore.
+ * Operations may be given a deadline, after which the caller is released, the
+ * worker interrupted and an optional abort hook run to close the channel.
+ *
+ * {@link #call(String, Callable)} blocks its caller until the operation is
+ * done, so the mode only changes the threads doing the I/O: on virtual
+ * threads, operations waiting for a server's permit don't each hold a
+ * platform thread. The calling threads are held either way; callers that
+ * shouldn't wait use {@link #submit(String, Callable)}.
+ *
+ * Tunables (system properties):
+ * <ul>
+ * <li>gerrit.executor.mode - auto (default), virtual or platform</li>
+ * <li>gerrit.executor.poolSize - platform pool size, default 32</li>
+ * <li>gerrit.executor.serverPermits - concurrent operations per server,
+ * default 16</li>
+ * </ul>
+ */
+public class GerritExecutor {
+
+    public static final String PROP_MODE = "gerrit.executor.mode";
+    public static final String PROP_POOL_SIZE = "gerrit.executor.poolSize";
+    public static final String PROP_SERVER_PERMITS =
+        "gerrit.executor.serverPermits";
+
+    public static final String MODE_AUTO = "auto";
+    public static final String MODE_VIRTUAL = "virtual";
+    public static final String MODE_PLATFORM = "platform";
+
+    private static final int DEFAULT_POOL_SIZE = 32;
+    private static final int DEFAULT_SERVER_PERMITS = 16;
+
+    private static final Logger log = Logger.getLogger(GerritExecutor.class);
+
+    private static GerritExecutor instance = null;
+
+    private final ExecutorService executor;
+    private final ScheduledExecutorService watchdog;
+    private final boolean virtual;
+    private final int serverPermits;
+
+    private final ConcurrentMap<String, Semaphore> permits =
+        new ConcurrentHashMap<String, Semaphore>();
+
+    // servers whose permit is held by the current thread, so nested calls
+    // for the same server don't wait on themselves
+    private final ThreadLocal<Set<String>> held =
+        new ThreadLocal<Set<String>>() {
+
+            @Override
+            protected Set<String> initialValue() {
+                return new HashSet<String>();
+            }
+        };
+
+    private final AtomicInteger active = new AtomicInteger(0);
+    private final AtomicLong completed = new AtomicLong(0);
+
+    public static synchronized GerritExecutor getInstance() {
+        if (instance == null) {
+            instance =
+                new GerritExecutor(System.getProperty(PROP_MODE, MODE_AUTO),
+                    Integer.getInteger(PROP_POOL_SIZE, DEFAULT_POOL_SIZE),
+                    Integer.getInteger(PROP_SERVER_PERMITS,
+                        DEFAULT_SERVER_PERMITS));
+        }
+
+        return instance;
+    }
+
+    GerritExecutor(String mode, int poolSize, int serverPermits) {
+        ExecutorService vExecutor = null;
+
+        if (!MODE_PLATFORM.equalsIgnoreCase(mode))
+            vExecutor = newVirtualThreadExecutor();
+
+        if (vExecutor != null) {
+            this.executor = vExecutor;
+            this.virtual = true;
+        } else {
+            if (MODE_VIRTUAL.equalsIgnoreCase(mode))
+                log.warn("Virtual threads unavailable, using platform pool.");
+
+            this.executor = newPlatformExecutor(Math.max(1, poolSize));
+            this.virtual = false;
+        }
+
+        this.serverPermits = Math.max(1, serverPermits);
+
+        this.watchdog =
+            new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "gerrit-watchdog");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+        log.info(String.format(
+            "Gerrit I/O executor started: virtual=%s, serverPermits=%d",
+            virtual, this.serverPermits));
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method m =
+                java.util.concurrent.Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (Exception e) {
+            log.debug("Virtual threads not supported: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static ExecutorService newPlatformExecutor(int poolSize) {
+        ThreadPoolExecutor pool =
+            new ThreadPoolExecutor(poolSize, poolSize, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+                    private final AtomicInteger count = new AtomicInteger(0);
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t =
+                            new Thread(r, "gerrit-io-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+
+        pool.allowCoreThreadTimeOut(true);
+
+        return pool;
+    }
+
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * Submit a blocking operation against the given server.
+     *
+     * @param server
+     *            server key, see {@link GerritConfig#getServerKey()}
+     * @param task
+     * @return
+     */
+    public <T> Future<T> submit(final String server, final Callable<T> task) {
+        return executor.submit(new Callable<T>() {
+
+            @Override
+            public T call() throws Exception {
+                return runWithPermit(server, task);
+            }
+        });
+    }
+
+    /**
+     * Run a blocking operation against the given server and wait for the
+     * result. Calls nested inside another operation run inline on the
+     * current thread.
+     *
+     * @param server
+     * @param task
+     * @return
+     * @throws Exception
+     *             the exception thrown by the task
+     */
+    public <T> T call(String server, Callable<T> task) throws Exception {
+        return call(server, task, 0, null);
+    }
+
+    /**
+     * Run a blocking operation and wait for it at most until its deadline.
+     * 
+     * @param server
+     *            server key, or null for local work that needs no permit
+     * @param task
+     * @param timeoutMillis
+     *            deadline, 0 for none
+     * @param onTimeout
+     *            run when the deadline expires, typically closes the channel
+     *            the task is blocked on; may be null
+     * @return
+     * @throws SocketTimeoutException
+     *             the deadline expired
+     * @throws Exception
+     *             the exception thrown by the task
+     */
+    public <T> T call(String server, Callable<T> task, long timeoutMillis,
+                      Runnable onTimeout) throws Exception {
+        if (server != null && held.get().contains(server))
+            return task.call();
+
+        if (!held.get().isEmpty())
+            return runWithPermit(server, task);
+
+        Future<T> f = submit(server, task);
+
+        try {
+            if (timeoutMillis > 0)
+                return f.get(timeoutMillis, TimeUnit.MILLISECONDS);
+
+            return f.get();
+        } catch (TimeoutException e) {
+            log.warn(String.format("Gerrit operation on %s exceeded %dms.",
+                server, timeoutMillis));
+
+            if (onTimeout != null) {
+                try {
+                    onTimeout.run();
+                } catch (RuntimeException re) {
+                    log.debug("Abort failed: " + re.getMessage());
+                }
+            }
+
+            f.cancel(true);
+
+            throw new SocketTimeoutException(String.format(
+                "Gerrit operation exceeded deadline of %dms", timeoutMillis));
+        } catch (InterruptedException e) {
+            f.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    /**
+     * Run a watchdog action after a delay, e.g. to close a channel whose
+     * deadline expired.
+     * 
+     * @param action
+     * @param delayMillis
+     * @return
+     */
+    public ScheduledFuture<?> schedule(Runnable action, long delayMillis) {
+        return watchdog.schedule(action, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Run a short housekeeping action periodically, e.g. session keep-alive.
+     * Blocking work must be handed on to {@link #submit(String, Callable)}.
+     * 
+     * @param action
+     * @param delayMillis
+     * @return
+     */
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable action,
+                                                     long delayMillis) {
+        return watchdog.scheduleWithFixedDelay(action, delayMillis,
+            delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    static Exception unwrap(ExecutionException e) {
+        Throwable cause = e.getCause();
+
+        if (cause instanceof Exception)
+            return (Exception) cause;
+        if (cause instanceof Error)
+            throw (Error) cause;
+
+        return e;
+    }
+
+    private <T> T runWithPermit(String server, Callable<T> task) throws Exception {
+        if (server == null)
+            return task.call();
+
+        Semaphore s = getPermits(server);
+
+        s.acquire();
+        held.get().add(server);
+        active.incrementAndGet();
+
+        try {
+            return task.call();
+        } finally {
+            active.decrementAndGet();
+            completed.incrementAndGet();
+            held.get().remove(server);
+            s.release();
+        }
+    }
+
+    private Semaphore getPermits(String server) {
+        Semaphore s = permits.get(server);
+
+        if (s == null) {
+            Semaphore created = new Semaphore(serverPermits, true);
+            s = permits.putIfAbsent(server, created);
+            if (s == null)
+                s = created;
+        }
+
+        return s;
+    }
+
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    public int getQueueLength(String server) {
+        Semaphore s = permits.get(server);
+        return (s == null) ? 0 : s.getQueueLength();
+    }
+
+    public int getAvailablePermits(String server) {
+        Semaphore s = permits.get(server);
+        return (s == null) ? serverPermits : s.availablePermits();
+    }
+}
@@ -0,0 +1,361 @@
+/*
+ * Houghton Associates Framework
+ * http://www.houghtonassociates.com
+ *
+ * Copyright 2014 Houghton Associates, Inc.
+ */
+package com.houghtonassociates.bamboo.plugins.dao;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Hedges slow reads against one Gerrit server.
+ *
+ * The latency of recent reads is tracked per operation. A read that hasn't
+ * answered after the <code>percentile</code> latency is issued a second
+ * time, to another replica or over a new channel, and whichever answers
+ * first wins; the other is cancelled. Each read earns <code>maxRate</code>
+ * of a hedge, and at most a handful can be saved up, so a slow server is
+ * never sent much more than <code>1 + maxRate</code> times the load. Until <code>minSamples</code> reads have been seen nothing is
+ * hedged.
+ *
+ * A read that fails with an I/O error before its hedge was sent is retried
+ * once on the backup straight away.
+ *
+ * Tunables (system properties):
+ * <ul>
+ * <li>gerrit.hedge.enabled - hedge reads, default false</li>
+ * <li>gerrit.hedge.percentile - latency percentile to wait for, default 95</li>
+ * <li>gerrit.hedge.maxRate - share of reads that may be hedged, default
+ * 0.05</li>
+ * <li>gerrit.hedge.minDelayMillis - never hedge sooner, default 20</li>
+ * <li>gerrit.hedge.window - latencies kept per operation, default 200</li>
+ * <li>gerrit.hedge.minSamples - latencies needed before hedging, default
+ * 20</li>
+ * </ul>
+ */
+public class GerritHedger {
+
+    public static final String PROP_ENABLED = "gerrit.hedge.enabled";
+    public static final String PROP_PERCENTILE = "gerrit.hedge.percentile";
+    public static final String PROP_MAX_RATE = "gerrit.hedge.maxRate";
+    public static final String PROP_MIN_DELAY = "gerrit.hedge.minDelayMillis";
+    public static final String PROP_WINDOW = "gerrit.hedge.window";
+    public static final String PROP_MIN_SAMPLES = "gerrit.hedge.minSamples";
+
+    private static final int DEFAULT_PERCENTILE = 95;
+    private static final double DEFAULT_MAX_RATE = 0.05;
+    private static final long DEFAULT_MIN_DELAY = 20;
+    private static final int DEFAULT_WINDOW = 200;
+    private static final int DEFAULT_MIN_SAMPLES = 20;
+
+    // hedges that may be saved up while reads are fast
+    private static final double MAX_BUDGET = 10;
+
+    private static final Logger log = Logger.getLogger(GerritHedger.class);
+
+    private static final ConcurrentMap<String, GerritHedger> hedgers =
+        new ConcurrentHashMap<String, GerritHedger>();
+
+    // only waits on the I/O executor, so it never competes with it for threads
+    private static final ExecutorService pool = Executors
+        .newCachedThreadPool(new ThreadFactory() {
+
+            private final AtomicInteger count = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t =
+                    new Thread(r, "gerrit-hedge-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    /**
+     * Recent latencies of one operation.
+     */
+    private static class LatencyWindow {
+
+        private final long[] samples;
+        private int next = 0;
+        private int size = 0;
+
+        LatencyWindow(int window) {
+            samples = new long[window];
+        }
+
+        synchronized void add(long millis) {
+            samples[next] = millis;
+            next = (next + 1) % samples.length;
+            if (size < samples.length)
+                size++;
+        }
+
+        synchronized long percentile(int p, int minSamples) {
+            if (size < minSamples || size == 0)
+                return -1;
+
+            long[] sorted = Arrays.copyOf(samples, size);
+            Arrays.sort(sorted);
+
+            int i = (int) Math.ceil(p / 100.0 * size) - 1;
+            return sorted[Math.max(0, Math.min(size - 1, i))];
+        }
+    }
+
+    private final boolean enabled;
+    private final int percentile;
+    private final double maxRate;
+    private final long minDelay;
+    private final int window;
+    private final int minSamples;
+
+    private double budget = 0;
+
+    private final ConcurrentMap<GerritOperation, LatencyWindow> latencies =
+        new ConcurrentHashMap<GerritOperation, LatencyWindow>();
+
+    private final AtomicLong reads = new AtomicLong(0);
+    private final AtomicLong hedges = new AtomicLong(0);
+    private final AtomicLong wins = new AtomicLong(0);
+    private final AtomicLong capped = new AtomicLong(0);
+    private final AtomicLong retries = new AtomicLong(0);
+
+    public static GerritHedger forServer(String server) {
+        GerritHedger h = hedgers.get(server);
+
+        if (h == null) {
+            GerritHedger created =
+                new GerritHedger(Boolean.getBoolean(PROP_ENABLED),
+                    Integer.getInteger(PROP_PERCENTILE, DEFAULT_PERCENTILE),
+                    getDouble(PROP_MAX_RATE, DEFAULT_MAX_RATE), Long.getLong(
+                        PROP_MIN_DELAY, DEFAULT_MIN_DELAY), Integer.getInteger(
+                        PROP_WINDOW, DEFAULT_WINDOW), Integer.getInteger(
+                        PROP_MIN_SAMPLES, DEFAULT_MIN_SAMPLES));
+
+            h = hedgers.putIfAbsent(server, created);
+            if (h == null)
+                h = created;
+        }
+
+        return h;
+    }
+
+    private static double getDouble(String property, double def) {
+        String value = System.getProperty(property);
+
+        if (value == null)
+            return def;
+
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            log.warn(String.format("Invalid %s=%s, using %s", property, value,
+                def));
+            return def;
+        }
+    }
+
+    GerritHedger(boolean enabled, int percentile, double maxRate,
+                 long minDelay, int window, int minSamples) {
+        this.enabled = enabled;
+        this.percentile = Math.max(1, Math.min(100, percentile));
+        this.maxRate = Math.max(0, maxRate);
+        this.minDelay = Math.max(0, minDelay);
+        this.window = Math.max(1, window);
+        this.minSamples = Math.max(1, minSamples);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Run a read, hedging it with the backup if it is slow.
+     *
+     * @param op
+     * @param first
+     * @param backup
+     *            the same read against another replica or channel
+     * @return the first successful result
+     * @throws Exception
+     *             the exception of the read that failed first, if both
+     *             failed
+     */
+    public <T> T call(GerritOperation op, Callable<T> first,
+                      Callable<T> backup) throws Exception {
+        reads.incrementAndGet();
+        earn();
+
+        long delay = getDelayMillis(op);
+
+        if (delay < 0)
+            return callUnhedged(op, first, backup);
+
+        CompletionService<T> cs = new ExecutorCompletionService<T>(pool);
+        Future<T> f1 = cs.submit(timed(op, first));
+        Future<T> f2 = null;
+
+        try {
+            Future<T> done = cs.poll(delay, TimeUnit.MILLISECONDS);
+
+            if (done == null) {
+                if (allowHedge()) {
+                    log.debug(String.format(
+                        "%s read slower than %dms, hedging.", op, delay));
+                    f2 = cs.submit(timed(op, backup));
+                    hedges.incrementAndGet();
+                } else {
+                    capped.incrementAndGet();
+                }
+
+                done = cs.take();
+            }
+
+            try {
+                T result = done.get();
+
+                if (done == f2)
+                    wins.incrementAndGet();
+
+                return result;
+            } catch (ExecutionException e) {
+                Exception cause = GerritExecutor.unwrap(e);
+
+                // Gerrit rejected the read, asking again won't help
+                if (!(cause instanceof IOException))
+                    throw cause;
+
+                if (f2 == null) {
+                    retries.incrementAndGet();
+                    return backup.call();
+                }
+
+                try {
+                    return cs.take().get();
+                } catch (ExecutionException e2) {
+                    throw cause;
+                }
+            }
+        } finally {
+            f1.cancel(true);
+            if (f2 != null)
+                f2.cancel(true);
+        }
+    }
+
+    private <T> T
+                    callUnhedged(GerritOperation op, Callable<T> first,
+                                 Callable<T> backup) throws Exception {
+        try {
+            return timed(op, first).call();
+        } catch (IOException e) {
+            retries.incrementAndGet();
+            return backup.call();
+        }
+    }
+
+    private <T> Callable<T> timed(final GerritOperation op,
+                                  final Callable<T> task) {
+        return new Callable<T>() {
+
+            @Override
+            public T call() throws Exception {
+                long start = System.currentTimeMillis();
+                T result = task.call();
+
+                getLatencies(op).add(System.currentTimeMillis() - start);
+
+                return result;
+            }
+        };
+    }
+
+    private synchronized void earn() {
+        budget = Math.min(MAX_BUDGET, budget + maxRate);
+    }
+
+    private synchronized boolean allowHedge() {
+        if (budget < 1)
+            return false;
+
+        budget -= 1;
+        return true;
+    }
+
+    /**
+     * @param op
+     * @return how long a read may take before it's hedged, -1 if there is
+     *         not enough history yet
+     */
+    public long getDelayMillis(GerritOperation op) {
+        long p = getLatencies(op).percentile(percentile, minSamples);
+        return (p < 0) ? -1 : Math.max(minDelay, p);
+    }
+
+    private LatencyWindow getLatencies(GerritOperation op) {
+        LatencyWindow w = latencies.get(op);
+
+        if (w == null) {
+            LatencyWindow created = new LatencyWindow(window);
+            w = latencies.putIfAbsent(op, created);
+            if (w == null)
+                w = created;
+        }
+
+        return w;
+    }
+
+    public long getReadCount() {
+        return reads.get();
+    }
+
+    public long getHedgeCount() {
+        return hedges.get();
+    }
+
+    /**
+     * @return share of reads that were hedged
+     */
+    public double getHedgeRate() {
+        long r = reads.get();
+        return (r == 0) ? 0 : (double) hedges.get() / r;
+    }
+
+    public long getHedgeWinCount() {
+        return wins.get();
+    }
+
+    public long getCappedCount() {
+        return capped.get();
+    }
+
+    public long getRetryCount() {
+        return retries.get();
+    }
+
+    @Override
+    public String toString() {
+        return "GerritHedger [enabled=" + enabled + ", reads="
+            + getReadCount() + ", hedges=" + getHedgeCount() + ", hedgeRate="
+            + getHedgeRate() + ", wins=" + getHedgeWinCount() + ", capped="
+            + getCappedCount() + ", retries=" + getRetryCount() + "]";
+    }
+}
@@ -1,41 +1,230 @@
 /*
  * Houghton Associates Framework
  * http://www.houghtonassociates.com
- * 
+ *
  * Copyright 2014 Houghton Associates, Inc.
  */
 package com.houghtonassociates.bamboo.plugins.dao;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.log4j.Logger;
 
+import com.atlassian.bamboo.repository.RepositoryException;
 import com.sonymobile.tools.gerrit.gerritevents.GerritEventListener;
 import com.sonymobile.tools.gerrit.gerritevents.GerritHandler;
 import com.sonymobile.tools.gerrit.gerritevents.dto.GerritEvent;
 import com.sonymobile.tools.gerrit.gerritevents.dto.GerritEventType;
 import com.sonymobile.tools.gerrit.gerritevents.dto.events.PatchsetCreated;
+import com.sonymobile.tools.gerrit.gerritevents.ssh.SshConnection;
+import com.sonymobile.tools.gerrit.gerritevents.ssh.SshConnectionFactory;
 
 /**
+ * Follows <code>gerrit stream-events</code> of a server and account while
+ * listeners are registered, and hands the events to them.
+ *
+ * The stream has an SSH connection of its own. When it is lost, it is
+ * opened again after an exponentially growing delay with random jitter,
+ * so agents don't all reconnect at the same moment after a Gerrit restart.
+ * A watchdog reconnects a stream that has been quiet for too long, as a
+ * half-open connection delivers nothing without failing. The listeners are
+ * called through a {@link GerritEventDispatcher}.
+ *
+ * The time of the last event is saved in the working directory, in the
+ * server's clock as the event's eventCreatedOn gives it, together with how
+ * far that clock is off from ours. Once the stream is open again, after a
+ * reconnect or a restart, the open changes updated since then are queried
+ * and a patchset-created event is made up for each new patch set, so none
+ * uploaded while the stream was down goes unbuilt. Patch sets already seen
+ * on the stream or in an earlier catch-up are skipped, as are stream events
+ * for patch sets a catch-up has sent.
+ *
+ * Tunables (system properties):
+ * <ul>
+ * <li>gerrit.events.retryMillis - first reconnect delay, doubled on each
+ * further failure, default 1000</li>
+ * <li>gerrit.events.maxRetryMillis - longest reconnect delay, default 60000</li>
+ * <li>gerrit.events.watchdogSeconds - reconnect after this long without an
+ * event, default 3600, 0 disables the watchdog</li>
+ * <li>gerrit.events.catchUpMaxSeconds - longest gap caught up on, default
+ * 86400; polling finds what is older</li>
+ * </ul>
+ *
  * @author jhuntley
  *
  */
 public class GerritMonitor {
 
+    public static final String PROP_RETRY = "gerrit.events.retryMillis";
+    public static final String PROP_MAX_RETRY = "gerrit.events.maxRetryMillis";
+    public static final String PROP_WATCHDOG = "gerrit.events.watchdogSeconds";
+    public static final String PROP_CATCH_UP_MAX =
+        "gerrit.events.catchUpMaxSeconds";
+
+    private static final long DEFAULT_RETRY = 1000;
+    private static final long DEFAULT_MAX_RETRY = 60000;
+    private static final int DEFAULT_WATCHDOG = 3600;
+    private static final int DEFAULT_CATCH_UP_MAX = 86400;
+
+    // most changes a catch-up asks for
+    private static final int CATCH_UP_LIMIT = 500;
+
+    // queried before the last event, for clock skew and an unsaved position
+    private static final long CATCH_UP_OVERLAP = 60000;
+
+    // the position is saved at most this often while events arrive
+    private static final long SAVE_INTERVAL = 10000;
+
+    // patch sets remembered for skipping duplicates
+    private static final int SEEN_SIZE = 2000;
+
+    private static final String STREAM_COMMAND = "gerrit stream-events";
+
+    private static final Pattern EVENT_CREATED_ON = Pattern
+        .compile("\"eventCreatedOn\"\\s*:\\s*(\\d+)");
+
+    // parses in stream order, the dispatcher runs the listeners in parallel
     private static final int NUM_WORKER_THREADS = 1;
 
     private static final Logger log = Logger.getLogger(GerritMonitor.class);
+
+    private static final ConcurrentMap<String, GerritMonitor> monitors =
+        new ConcurrentHashMap<String, GerritMonitor>();
+
+    private static final AtomicInteger streams = new AtomicInteger(0);
+
+    private static final ScheduledExecutorService watchdogs = Executors
+        .newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "gerrit-events-watchdog");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    private static final ExecutorService catchUps = Executors
+        .newSingleThreadExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "gerrit-events-catchup");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    private static final Random jitter = new Random();
+
+    public enum State {
+        STOPPED, CONNECTING, CONNECTED, WAITING
+    }
+
     private GerritHandler gHandler = null;
-    private List<GerritProcessListener> gerritListeners = null;
-    private GerritService service = null;
+    private final CopyOnWriteArrayList<GerritProcessListener> gerritListeners =
+        new CopyOnWriteArrayList<GerritProcessListener>();
+    private volatile GerritService service = null;
+    private GerritEventDispatcher dispatcher = null;
+
+    private volatile Thread stream = null;
+    private ScheduledFuture<?> watchdog = null;
+    private volatile boolean running = false;
+    private volatile SshConnection connection = null;
+
+    private volatile State state = State.STOPPED;
+    private volatile long connectedSince = 0;
+    private volatile long lastEventAt = 0;
+    private volatile String lastError = null;
+    private final AtomicLong reconnects = new AtomicLong(0);
+
+    // server time of the last event handled, 0 if unknown
+    private volatile long position = 0;
+    // the server's clock minus ours, as of the last event stamped by it
+    private volatile long clockOffset = 0;
+    private volatile long savedAt = 0;
+    private boolean positionLoaded = false;
+    private final AtomicLong caughtUp = new AtomicLong(0);
+
+    // change and patch set numbers of the patch sets sent lately
+    private final Map<String, Boolean> seen =
+        new LinkedHashMap<String, Boolean>() {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> e) {
+                return size() > SEEN_SIZE;
+            }
+        };
+
+    private GerritMonitor() {
+    }
+
+    /**
+     * @param s
+     * @return the monitor of the service's server and account
+     */
+    public static GerritMonitor forServer(GerritService s) {
+        String key = s.getCapabilitiesKey();
+        GerritMonitor m = monitors.get(key);
+
+        if (m == null) {
+            synchronized (monitors) {
+                m = monitors.get(key);
+
+                // initialized before others can see it
+                if (m == null) {
+                    m = new GerritMonitor();
+                    m.initialize(s);
+                    monitors.put(key, m);
+                }
+            }
+        }
+
+        // the latest configuration connects
+        m.service = s;
+
+        return m;
+    }
+
+    /**
+     * @return seconds without an event before the stream is reopened, 0 if
+     *         never
+     */
+    public static int getWatchdogTimeoutSeconds() {
+        return Math.max(0, Integer.getInteger(PROP_WATCHDOG, DEFAULT_WATCHDOG));
+    }
 
     public GerritHandler initialize(GerritService s) {
         if (gHandler == null) {
             this.service = s;
 
-            GerritConfig gc = s.getConfig();
+            dispatcher =
+                new GerritEventDispatcher(s.getConfig().getServerKey());
 
             gHandler =
                 new GerritHandler(NUM_WORKER_THREADS);
@@ -53,7 +242,7 @@ public class GerritMonitor {
                 @Override
                 public void gerritEvent(GerritEvent event) {
                     log.debug("Processing GerritEvent...");
-                    
+
                     if (event.getEventType().equals(GerritEventType.PATCHSET_CREATED) ||
                     		event.getEventType().equals(GerritEventType.REF_UPDATED)) {
                     	log.debug(String.format("Processing %s...", event.toString()));
@@ -63,18 +252,15 @@ public class GerritMonitor {
             });
         }
 
-        //if (!gHandler.isAlive())
-        //    gHandler.start();
-
         return gHandler;
     }
 
     public void processGerritEvent(GerritEvent e) {
-        if (gerritListeners != null) {
-            for (GerritProcessListener l : gerritListeners) {
-                l.processGerritEvent(e);
-            }
-        }
+        // a catch-up may have sent it already
+        if (e instanceof PatchsetCreated && !markSeen(keyOf((PatchsetCreated) e)))
+            return;
+
+        dispatcher.dispatch(e, gerritListeners);
     }
 
     public void sendCurrentOpenChanges(GerritProcessListener l) {
@@ -82,33 +268,519 @@ public class GerritMonitor {
             Set<GerritChangeVO> changes = service.getLastUnverifiedChanges();
 
             for (GerritChangeVO c : changes) {
-                PatchsetCreated p = new PatchsetCreated();
-
-                p.setAccount(c.toChange().getOwner());
-                p.setChange(c.toChange());
-                p.setPatchset(c.getCurrentPatchSet().toPatchSet());
-                p.setProvider(service.getProvider());
-
-                processGerritEvent(p);
+                markSeen(keyOf(c));
+                dispatcher.dispatch(toEvent(c), gerritListeners);
             }
         } catch (Exception e) {
             log.error(e.getMessage());
         }
     }
 
-    public void addGerritListener(GerritProcessListener l) {
-        if (gerritListeners == null)
-            gerritListeners = new ArrayList<GerritProcessListener>();
+    /**
+     * Send the patch sets uploaded since a point in time that weren't sent
+     * yet.
+     *
+     * @param since
+     * @return events sent
+     * @throws RepositoryException
+     */
+    int catchUp(long since) throws RepositoryException {
+        int sent = 0;
+        Set<GerritChangeVO> changes =
+            service.getChangesUpdatedSince(new Date(since), CATCH_UP_LIMIT);
+
+        for (GerritChangeVO c : changes) {
+            GerritChangeVO.PatchSet ps = c.getCurrentPatchSet();
+
+            // updated by a review or comment only
+            if (ps == null || ps.getCreatedOn() != null
+                && ps.getCreatedOn().getTime() < since)
+                continue;
+
+            if (markSeen(keyOf(c))) {
+                dispatcher.dispatch(toEvent(c), gerritListeners);
+                sent++;
+            }
+        }
+
+        caughtUp.addAndGet(sent);
+
+        if (changes.size() >= CATCH_UP_LIMIT)
+            log.warn(String.format(
+                "Gerrit catch-up of %s stopped at %d changes, left to polling.",
+                service.getConfig().getServerKey(), CATCH_UP_LIMIT));
+
+        return sent;
+    }
+
+    private PatchsetCreated toEvent(GerritChangeVO c) {
+        PatchsetCreated p = new PatchsetCreated();
+
+        p.setAccount(c.toChange().getOwner());
+        p.setChange(c.toChange());
+        p.setPatchset(c.getCurrentPatchSet().toPatchSet());
+        p.setProvider(service.getProvider());
+
+        return p;
+    }
+
+    private static String keyOf(GerritChangeVO c) {
+        return c.getNumber() + "/" + c.getCurrentPatchSet().getNumber();
+    }
+
+    private static String keyOf(PatchsetCreated e) {
+        if (e.getChange() == null || e.getPatchSet() == null)
+            return null;
+
+        return e.getChange().getNumber() + "/" + e.getPatchSet().getNumber();
+    }
+
+    // false if the patch set was sent before
+    private boolean markSeen(String key) {
+        if (key == null)
+            return true;
 
-        if (!gerritListeners.contains(l)) {
-            gerritListeners.add(l);
+        synchronized (seen) {
+            return seen.put(key, Boolean.TRUE) == null;
+        }
+    }
+
+    public void addGerritListener(GerritProcessListener l) {
+        if (gerritListeners.addIfAbsent(l)) {
             sendCurrentOpenChanges(l);
+            start();
         }
     }
 
     public void removeGerritListener(GerritProcessListener l) {
-        if (gerritListeners != null) {
-            gerritListeners.remove(l);
+        if (gerritListeners.remove(l)) {
+            dispatcher.forget(l);
+
+            if (gerritListeners.isEmpty())
+                stop();
+        }
+    }
+
+    public GerritEventDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return when the current connection was opened, 0 if none is
+     */
+    public long getConnectedSince() {
+        return (state == State.CONNECTED) ? connectedSince : 0;
+    }
+
+    /**
+     * @return when the last event or the connection arrived
+     */
+    public long getLastEventAt() {
+        return lastEventAt;
+    }
+
+    public long getReconnectCount() {
+        return reconnects.get();
+    }
+
+    /**
+     * @return when the last event was handled in the server's time, as
+     *         saved for catching up, 0 if unknown
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * @return events made up by catch-up queries so far
+     */
+    public long getCaughtUpCount() {
+        return caughtUp.get();
+    }
+
+    /**
+     * @return why the stream was last lost, null if it never was
+     */
+    public String getLastError() {
+        return lastError;
+    }
+
+    /**
+     * @return a line on the state of the stream for logs and status pages
+     */
+    public String getHealth() {
+        long now = System.currentTimeMillis();
+        StringBuilder h = new StringBuilder(state.toString());
+
+        if (state == State.CONNECTED)
+            h.append(String.format(" for %ds, last event %ds ago",
+                (now - connectedSince) / 1000, (now - lastEventAt) / 1000));
+
+        h.append(String.format(
+            ", %d reconnects, %d events queued, %d dropped, %d caught up",
+            reconnects.get(), dispatcher.getQueueDepth(), dispatcher
+                .getDroppedCount(), caughtUp.get()));
+
+        if (lastError != null)
+            h.append(", last error: ").append(lastError);
+
+        return h.toString();
+    }
+
+    private synchronized void start() {
+        if (running)
+            return;
+
+        running = true;
+
+        if (!positionLoaded) {
+            positionLoaded = true;
+            position = Math.max(position, loadPosition());
+        }
+
+        stream = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                follow();
+            }
+        }, "gerrit-events-" + streams.incrementAndGet());
+        stream.setDaemon(true);
+        stream.start();
+
+        long timeout = TimeUnit.SECONDS.toMillis(getWatchdogTimeoutSeconds());
+
+        if (timeout > 0) {
+            long period = Math.max(1000, timeout / 4);
+
+            watchdog = watchdogs.scheduleWithFixedDelay(new Runnable() {
+
+                @Override
+                public void run() {
+                    checkQuiet();
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
         }
     }
+
+    private synchronized void stop() {
+        if (!running)
+            return;
+
+        running = false;
+
+        if (watchdog != null)
+            watchdog.cancel(false);
+
+        watchdog = null;
+
+        Thread t = stream;
+
+        // cleared first, so the thread sees it was stopped
+        stream = null;
+        disconnect();
+        t.interrupt();
+
+        savePosition();
+    }
+
+    // false once the stream was stopped, or stopped and started again
+    private boolean isCurrent() {
+        return running && stream == Thread.currentThread();
+    }
+
+    private void follow() {
+        int failures = 0;
+
+        while (isCurrent()) {
+            long opened = System.currentTimeMillis();
+            SshConnection ssh = null;
+
+            setState(State.CONNECTING);
+
+            try {
+                ssh = open();
+
+                if (ssh != null)
+                    read(ssh);
+
+                lastError = "stream closed by the server";
+            } catch (IOException e) {
+                lastError = e.getMessage();
+            } catch (RuntimeException e) {
+                lastError = e.toString();
+            } finally {
+                if (ssh != null) {
+                    if (connection == ssh)
+                        connection = null;
+
+                    ssh.disconnect();
+                }
+            }
+
+            if (!isCurrent())
+                break;
+
+            // a connection that held up a while starts over
+            if (System.currentTimeMillis() - opened > getMaxRetry())
+                failures = 0;
+
+            long delay = getRetryDelay(++failures);
+
+            reconnects.incrementAndGet();
+            setState(State.WAITING);
+
+            log.warn(String.format(
+                "Gerrit event stream of %s lost (%s), reconnecting in %dms.",
+                service.getConfig().getServerKey(), lastError, delay));
+
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+
+        if (stream == null)
+            setState(State.STOPPED);
+    }
+
+    private SshConnection open() throws IOException {
+        GerritConfig gc = service.getConfig();
+        SshConnection ssh =
+            SshConnectionFactory.getConnection(gc.getHost(), gc.getPort(),
+                gc.getProxy(), gc.getAuth());
+
+        synchronized (this) {
+            if (!isCurrent()) {
+                ssh.disconnect();
+                return null;
+            }
+
+            connection = ssh;
+        }
+
+        return ssh;
+    }
+
+    private void read(SshConnection ssh) throws IOException {
+        BufferedReader events =
+            new BufferedReader(ssh.executeCommandReader(STREAM_COMMAND));
+
+        connectedSince = lastEventAt = System.currentTimeMillis();
+        setState(State.CONNECTED);
+        scheduleCatchUp(connectedSince + clockOffset);
+
+        String line;
+
+        while (isCurrent() && (line = events.readLine()) != null) {
+            lastEventAt = System.currentTimeMillis();
+
+            if (!line.trim().isEmpty()) {
+                gHandler.post(line);
+                position = stampOf(line, lastEventAt);
+
+                if (position - savedAt >= SAVE_INTERVAL)
+                    savePosition();
+            }
+        }
+    }
+
+    /**
+     * @param line
+     *            an event
+     * @param received
+     *            our time
+     * @return the event's time on the server, estimated from ours if the
+     *         server doesn't stamp its events
+     */
+    long stampOf(String line, long received) {
+        Matcher m = EVENT_CREATED_ON.matcher(line);
+
+        if (!m.find())
+            return received + clockOffset;
+
+        long at = TimeUnit.SECONDS.toMillis(Long.parseLong(m.group(1)));
+
+        clockOffset = at - received;
+
+        return at;
+    }
+
+    // the stream is open, so anything after the query is on it; connected
+    // is in the server's time
+    private void scheduleCatchUp(final long connected) {
+        final long from = position;
+
+        // first start, the open changes were sent when listening began
+        if (from <= 0) {
+            position = connected;
+            return;
+        }
+
+        catchUps.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                long max = TimeUnit.SECONDS.toMillis(Math.max(0, Integer
+                    .getInteger(PROP_CATCH_UP_MAX, DEFAULT_CATCH_UP_MAX)));
+                long since = from - CATCH_UP_OVERLAP;
+
+                if (since < connected - max) {
+                    log.warn(String.format(
+                        "Gerrit event stream of %s was down for %ds, "
+                            + "catching up on the last %ds only.", service
+                            .getConfig().getServerKey(),
+                        (connected - from) / 1000, max / 1000));
+                    since = connected - max;
+                }
+
+                try {
+                    int sent = catchUp(since);
+
+                    log.info(String.format(
+                        "Gerrit event stream of %s caught up on %ds, %d "
+                            + "patch sets missed.", service.getConfig()
+                            .getServerKey(), (connected - since) / 1000, sent));
+
+                    // nothing before the connection is missing any more
+                    if (position < connected) {
+                        position = connected;
+                        savePosition();
+                    }
+                } catch (Exception e) {
+                    log.error(String.format("Gerrit catch-up of %s failed: %s",
+                        service.getConfig().getServerKey(), e.getMessage()));
+                }
+            }
+        });
+    }
+
+    private File getPositionFile() {
+        String dir = service.getConfig().getWorkingDirectoryPath();
+
+        if (dir == null)
+            return null;
+
+        String name =
+            service.getCapabilitiesKey().replaceAll("[^\\w.-]", "_");
+
+        return new File(new File(dir, GerritService.EVENTS_DIRECTORY), name
+            + ".properties");
+    }
+
+    private long loadPosition() {
+        File f = getPositionFile();
+
+        if (f == null || !f.exists())
+            return 0;
+
+        Properties p = new Properties();
+
+        try {
+            FileInputStream in = new FileInputStream(f);
+
+            try {
+                p.load(in);
+            } finally {
+                in.close();
+            }
+
+            clockOffset =
+                Long.parseLong(p.getProperty("clockOffset", "0"));
+
+            return Long.parseLong(p.getProperty("eventCreatedOn", "0"));
+        } catch (IOException e) {
+            log.warn(String.format("Could not read %s: %s", f, e.getMessage()));
+        } catch (NumberFormatException e) {
+            log.warn(String.format("Could not read %s: %s", f, e.getMessage()));
+        }
+
+        return 0;
+    }
+
+    private synchronized void savePosition() {
+        long at = position;
+        File f = getPositionFile();
+
+        if (f == null || at <= 0 || at == savedAt)
+            return;
+
+        Properties p = new Properties();
+
+        p.setProperty("eventCreatedOn", String.valueOf(at));
+        p.setProperty("clockOffset", String.valueOf(clockOffset));
+
+        try {
+            f.getParentFile().mkdirs();
+
+            FileOutputStream out = new FileOutputStream(f);
+
+            try {
+                p.store(out, null);
+            } finally {
+                out.close();
+            }
+
+            savedAt = at;
+        } catch (IOException e) {
+            log.warn(String.format("Could not save %s: %s", f, e.getMessage()));
+        }
+    }
+
+    private void checkQuiet() {
+        long timeout = TimeUnit.SECONDS.toMillis(getWatchdogTimeoutSeconds());
+        long quiet = System.currentTimeMillis() - lastEventAt;
+
+        if (state != State.CONNECTED || timeout <= 0 || quiet < timeout)
+            return;
+
+        log.warn(String.format(
+            "No Gerrit events from %s for %ds, reconnecting.", service
+                .getConfig().getServerKey(), quiet / 1000));
+
+        disconnect();
+    }
+
+    private void disconnect() {
+        SshConnection c = connection;
+
+        connection = null;
+
+        if (c != null)
+            c.disconnect();
+    }
+
+    private void setState(State s) {
+        if (s != State.STOPPED && !isCurrent())
+            return;
+
+        if (state != s)
+            log.info(String.format("Gerrit event stream of %s: %s",
+                service.getConfig().getServerKey(), s));
+
+        state = s;
+    }
+
+    private static long getMaxRetry() {
+        return Long.getLong(PROP_MAX_RETRY, DEFAULT_MAX_RETRY);
+    }
+
+    // half the delay fixed, half random
+    private static long getRetryDelay(int failures) {
+        long delay =
+            Math.min(getMaxRetry(), Long.getLong(PROP_RETRY, DEFAULT_RETRY)
+                << Math.min(failures - 1, 20));
+        double r;
+
+        synchronized (jitter) {
+            r = jitter.nextDouble();
+        }
+
+        return delay / 2 + (long) (r * (delay / 2));
+    }
 }
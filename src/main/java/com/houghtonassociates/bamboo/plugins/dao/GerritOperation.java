@@ -0,0 +1,40 @@
+/*
+ * Houghton Associates Framework
+ * http://www.houghtonassociates.com
+ *
+ * Copyright 2014 Houghton Associates, Inc.
+ */
+package com.houghtonassociates.bamboo.plugins.dao;
+
+/**
+ * Kinds of blocking Gerrit operations, each with its own default deadline.
+ *
+ * A default of 0 means the operation is bounded only by the repository's
+ * command timeout. Defaults can be overridden with the system property
+ * <code>gerrit.timeout.&lt;operation&gt;</code>, in seconds, e.g.
+ * <code>gerrit.timeout.query=60</code>.
+ */
+public enum GerritOperation {
+
+    QUERY(120),
+    GSQL(120),
+    REVIEW(60),
+    COMMAND(60),
+    LS_REMOTE(120),
+    FETCH(0),
+    CHECKOUT(0);
+
+    private final long defaultSeconds;
+
+    private GerritOperation(long defaultSeconds) {
+        this.defaultSeconds = defaultSeconds;
+    }
+
+    public long getDefaultSeconds() {
+        return defaultSeconds;
+    }
+
+    public String getPropertyName() {
+        return "gerrit.timeout." + name().toLowerCase().replace('_', '-');
+    }
+}
@@ -0,0 +1,414 @@
+/*
+ * Houghton Associates Framework
+ * http://www.houghtonassociates.com
+ *
+ * Copyright 2014 Houghton Associates, Inc.
+ */
+package com.houghtonassociates.bamboo.plugins.dao;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.json.JSONObject;
+
+import org.apache.log4j.Logger;
+
+import com.atlassian.bamboo.repository.RepositoryException;
+
+/**
+ * Batches the open change polls of many plans into combined Gerrit queries.
+ *
+ * The first poll to arrive opens a batch and waits up to
+ * <code>windowMillis</code> for others; polls arriving meanwhile add their
+ * project/branch predicate to it. The batch then runs as a single
+ * <code>is:open ((project:A branch:x) OR (project:B branch:y) ...)</code>
+ * query and each change is handed back to the polls whose predicate it
+ * matches. A batch is closed early once it holds
+ * <code>maxPredicates</code> predicates, and a poll made while no other poll
+ * is in flight runs straight away rather than waiting for company.
+ *
+ * If Gerrit reports it truncated the combined result, the batch is split in
+ * halves and each half is retried, down to a single predicate. If the
+ * combined query fails, its predicates are queried one at a time instead.
+ *
+ * Tunables (system properties):
+ * <ul>
+ * <li>gerrit.poll.batchWindowMillis - time to gather polls, default 200, 0
+ * disables batching</li>
+ * <li>gerrit.poll.batchMaxPredicates - predicates per query, default 20</li>
+ * </ul>
+ */
+public class GerritPollAggregator {
+
+    public static final String PROP_WINDOW = "gerrit.poll.batchWindowMillis";
+    public static final String PROP_MAX_PREDICATES =
+        "gerrit.poll.batchMaxPredicates";
+
+    private static final long DEFAULT_WINDOW = 200;
+    private static final int DEFAULT_MAX_PREDICATES = 20;
+
+    private static final String JSON_KEY_BRANCH = "branch";
+    private static final String JSON_KEY_MORE_CHANGES = "moreChanges";
+    private static final String R_HEADS = "refs/heads/";
+
+    private static final Logger log = Logger
+        .getLogger(GerritPollAggregator.class);
+
+    private static final ConcurrentMap<String, GerritPollAggregator> aggregators =
+        new ConcurrentHashMap<String, GerritPollAggregator>();
+
+    /**
+     * Runs a query on behalf of a batch.
+     */
+    public interface QueryRunner {
+
+        List<JSONObject> runQuery(String query) throws RepositoryException;
+    }
+
+    private static class Batch {
+
+        // predicate key -> {project, branch}
+        final Map<String, String[]> predicates =
+            new LinkedHashMap<String, String[]>();
+        final Map<String, List<JSONObject>> results =
+            new HashMap<String, List<JSONObject>>();
+        final Map<String, RepositoryException> errors =
+            new HashMap<String, RepositoryException>();
+        final CountDownLatch done = new CountDownLatch(1);
+        boolean closed = false;
+    }
+
+    private final long windowMillis;
+    private final int maxPredicates;
+
+    private Batch current = null;
+    private int inFlight = 0;
+
+    private final AtomicLong polls = new AtomicLong(0);
+    private final AtomicLong queries = new AtomicLong(0);
+    private final AtomicLong fallbacks = new AtomicLong(0);
+    private final AtomicLong splits = new AtomicLong(0);
+
+    /**
+     * @param key
+     *            server and account; batches never mix accounts since they
+     *            may see different changes
+     * @return
+     */
+    public static GerritPollAggregator forKey(String key) {
+        GerritPollAggregator a = aggregators.get(key);
+
+        if (a == null) {
+            GerritPollAggregator created =
+                new GerritPollAggregator(Long.getLong(PROP_WINDOW,
+                    DEFAULT_WINDOW), Integer.getInteger(PROP_MAX_PREDICATES,
+                    DEFAULT_MAX_PREDICATES));
+
+            a = aggregators.putIfAbsent(key, created);
+            if (a == null)
+                a = created;
+        }
+
+        return a;
+    }
+
+    GerritPollAggregator(long windowMillis, int maxPredicates) {
+        this.windowMillis = Math.max(0, windowMillis);
+        this.maxPredicates = Math.max(1, maxPredicates);
+    }
+
+    /**
+     * Open changes for a project, optionally restricted to a branch.
+     *
+     * @param project
+     * @param branch
+     *            may be null for all branches
+     * @param runner
+     * @return matching change rows, without the statistics row
+     * @throws RepositoryException
+     */
+    public List<JSONObject>
+                    queryOpen(String project, String branch, QueryRunner runner) throws RepositoryException {
+        String shortBranch = shortBranch(branch);
+        String key = predicateKey(project, shortBranch);
+
+        polls.incrementAndGet();
+
+        if (windowMillis == 0 || maxPredicates == 1)
+            return runSingle(project, shortBranch, runner);
+
+        Batch batch;
+        boolean leader = false;
+
+        synchronized (this) {
+            inFlight++;
+
+            if (current == null) {
+                current = new Batch();
+                leader = true;
+            }
+
+            batch = current;
+            batch.predicates.put(key, new String[] { project, shortBranch });
+
+            // nobody else is polling, so nobody is likely to join
+            if (batch.predicates.size() >= maxPredicates || inFlight == 1) {
+                close(batch);
+                notifyAll();
+            }
+        }
+
+        try {
+            if (leader) {
+                gather(batch);
+                run(batch, runner);
+            } else {
+                try {
+                    batch.done.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RepositoryException(
+                        "Interrupted waiting for Gerrit poll.");
+                }
+            }
+        } finally {
+            synchronized (this) {
+                inFlight--;
+            }
+        }
+
+        RepositoryException error = batch.errors.get(key);
+        if (error != null)
+            throw error;
+
+        List<JSONObject> result = batch.results.get(key);
+        return (result == null) ? new ArrayList<JSONObject>(0)
+            : new ArrayList<JSONObject>(result);
+    }
+
+    private synchronized void gather(Batch batch) {
+        long deadline = System.currentTimeMillis() + windowMillis;
+        long remaining = windowMillis;
+
+        try {
+            while (!batch.closed && remaining > 0) {
+                wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+        } catch (InterruptedException e) {
+            // still run the batch, others are waiting on it
+            Thread.currentThread().interrupt();
+        }
+
+        close(batch);
+    }
+
+    private void close(Batch batch) {
+        batch.closed = true;
+
+        if (current == batch)
+            current = null;
+    }
+
+    private void run(Batch batch, QueryRunner runner) {
+        try {
+            run(batch, new ArrayList<String>(batch.predicates.keySet()),
+                runner);
+        } finally {
+            // never let a waiter mistake a failed batch for "no changes"
+            for (String key : batch.predicates.keySet()) {
+                if (!batch.results.containsKey(key)
+                    && !batch.errors.containsKey(key))
+                    batch.errors.put(key, new RepositoryException(
+                        "Gerrit poll batch failed."));
+            }
+
+            batch.done.countDown();
+        }
+    }
+
+    /**
+     * Query a subset of the batch's predicates, splitting it while Gerrit
+     * truncates the combined result.
+     */
+    private void run(Batch batch, List<String> keys, QueryRunner runner) {
+        if (keys.size() > 1) {
+            List<JSONObject> rows = runCombined(batch, keys, runner);
+
+            if (rows != null && isTruncated(rows)) {
+                log.info(String.format(
+                    "Combined poll of %d predicates truncated by Gerrit, "
+                        + "splitting it.", keys.size()));
+                splits.incrementAndGet();
+
+                int half = keys.size() / 2;
+
+                run(batch, keys.subList(0, half), runner);
+                run(batch, keys.subList(half, keys.size()), runner);
+                return;
+            }
+
+            if (rows != null) {
+                distribute(batch, keys, rows);
+                return;
+            }
+        }
+
+        for (String key : keys) {
+            String[] p = batch.predicates.get(key);
+
+            try {
+                batch.results.put(key, runSingle(p[0], p[1], runner));
+            } catch (RepositoryException re) {
+                batch.errors.put(key, re);
+            }
+        }
+    }
+
+    /**
+     * @return the rows, or null if the predicates need to be queried one at
+     *         a time
+     */
+    private List<JSONObject>
+                    runCombined(Batch batch, List<String> keys, QueryRunner runner) {
+        StringBuilder query = new StringBuilder("is:open (");
+        boolean first = true;
+
+        for (String key : keys) {
+            String[] p = batch.predicates.get(key);
+
+            if (!first)
+                query.append(" OR ");
+
+            query.append("(").append(predicate(p[0], p[1])).append(")");
+            first = false;
+        }
+
+        query.append(")");
+
+        List<JSONObject> rows;
+
+        try {
+            queries.incrementAndGet();
+            rows = runner.runQuery(query.toString());
+        } catch (Exception e) {
+            log.warn("Combined poll failed, querying individually: "
+                + e.getMessage());
+            fallbacks.incrementAndGet();
+            return null;
+        }
+
+        return (rows == null) ? new ArrayList<JSONObject>(0) : rows;
+    }
+
+    private static boolean isTruncated(List<JSONObject> rows) {
+        for (JSONObject j : rows) {
+            if (j.optBoolean(JSON_KEY_MORE_CHANGES, false))
+                return true;
+        }
+
+        return false;
+    }
+
+    private void
+                    distribute(Batch batch, List<String> keys, List<JSONObject> rows) {
+        Set<String> wanted = new HashSet<String>(keys);
+
+        for (String key : keys)
+            batch.results.put(key, new ArrayList<JSONObject>());
+
+        for (JSONObject j : rows) {
+            if (!j.containsKey(GerritChangeVO.JSON_KEY_PROJECT))
+                continue;
+
+            String project = j.getString(GerritChangeVO.JSON_KEY_PROJECT);
+            String branch = shortBranch(j.optString(JSON_KEY_BRANCH, null));
+
+            add(batch, wanted, predicateKey(project, branch), j);
+            add(batch, wanted, predicateKey(project, null), j);
+        }
+
+        log.debug(String.format("Combined poll of %d predicates returned %d rows.",
+            keys.size(), rows.size()));
+    }
+
+    private void
+                    add(Batch batch, Set<String> wanted, String key, JSONObject j) {
+        if (!wanted.contains(key))
+            return;
+
+        batch.results.get(key).add(j);
+    }
+
+    private List<JSONObject>
+                    runSingle(String project, String branch, QueryRunner runner) throws RepositoryException {
+        queries.incrementAndGet();
+
+        List<JSONObject> rows =
+            runner.runQuery("is:open " + predicate(project, branch));
+        List<JSONObject> changes = new ArrayList<JSONObject>();
+
+        if (rows != null) {
+            for (JSONObject j : rows) {
+                if (j.containsKey(GerritChangeVO.JSON_KEY_PROJECT))
+                    changes.add(j);
+            }
+        }
+
+        return changes;
+    }
+
+    private static String predicate(String project, String branch) {
+        if (branch == null)
+            return String.format("project:%s", project);
+
+        return String.format("project:%s branch:%s", project, branch);
+    }
+
+    private static String predicateKey(String project, String branch) {
+        return project + "\n" + ((branch == null) ? "*" : branch);
+    }
+
+    private static String shortBranch(String branch) {
+        if (branch == null || branch.isEmpty())
+            return null;
+
+        if (branch.startsWith(R_HEADS))
+            return branch.substring(R_HEADS.length());
+
+        return branch;
+    }
+
+    public long getPollCount() {
+        return polls.get();
+    }
+
+    public long getQueryCount() {
+        return queries.get();
+    }
+
+    public long getFallbackCount() {
+        return fallbacks.get();
+    }
+
+    public long getSplitCount() {
+        return splits.get();
+    }
+
+    @Override
+    public String toString() {
+        return "GerritPollAggregator [windowMillis=" + windowMillis
+            + ", maxPredicates=" + maxPredicates + ", polls=" + getPollCount()
+            + ", queries=" + getQueryCount() + ", fallbacks="
+            + getFallbackCount() + ", splits=" + getSplitCount() + "]";
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Houghton Associates Framework
+ * http://www.houghtonassociates.com
+ *
+ * Copyright 2014 Houghton Associates, Inc.
+ */
+package com.houghtonassociates.bamboo.plugins.dao;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Spreads the reads of one Gerrit server over its replicas.
+ *
+ * Replicas are taken round robin, skipping any whose circuit breaker is
+ * currently failing calls fast. When none is available the caller reads from
+ * the primary.
+ */
+public class GerritReplicaRouter {
+
+    private static final ConcurrentMap<String, GerritReplicaRouter> routers =
+        new ConcurrentHashMap<String, GerritReplicaRouter>();
+
+    private final AtomicInteger next = new AtomicInteger(0);
+
+    private final ConcurrentMap<String, AtomicLong> routed =
+        new ConcurrentHashMap<String, AtomicLong>();
+    private final AtomicLong primaryReads = new AtomicLong(0);
+    private final AtomicLong fallbacks = new AtomicLong(0);
+
+    /**
+     * @param server
+     *            the primary's server key
+     * @return
+     */
+    public static GerritReplicaRouter forServer(String server) {
+        GerritReplicaRouter r = routers.get(server);
+
+        if (r == null) {
+            GerritReplicaRouter created = new GerritReplicaRouter();
+            r = routers.putIfAbsent(server, created);
+            if (r == null)
+                r = created;
+        }
+
+        return r;
+    }
+
+    /**
+     * Pick the replica for the next read.
+     *
+     * @param replicas
+     * @return the replica, or null to read from the primary
+     */
+    public GerritEndpoint select(List<GerritEndpoint> replicas) {
+        return select(replicas, null);
+    }
+
+    /**
+     * Pick a replica other than the one a read is already running on.
+     *
+     * @param replicas
+     * @param exclude
+     *            may be null
+     * @return the replica, or null to read from the primary
+     */
+    public GerritEndpoint select(List<GerritEndpoint> replicas,
+                                 GerritEndpoint exclude) {
+        int size = (replicas == null) ? 0 : replicas.size();
+
+        if (size > 0) {
+            int start = (next.getAndIncrement() & Integer.MAX_VALUE) % size;
+
+            for (int i = 0; i < size; i++) {
+                GerritEndpoint e = replicas.get((start + i) % size);
+
+                if (e.equals(exclude))
+                    continue;
+
+                if (GerritCircuitBreaker.forServer(e.getKey()).isAvailable()) {
+                    count(e.getKey());
+                    return e;
+                }
+            }
+        }
+
+        primaryReads.incrementAndGet();
+
+        return null;
+    }
+
+    /**
+     * A read failed on a replica and is being retried on the primary.
+     */
+    public void fallback() {
+        fallbacks.incrementAndGet();
+        primaryReads.incrementAndGet();
+    }
+
+    private void count(String key) {
+        AtomicLong c = routed.get(key);
+
+        if (c == null) {
+            AtomicLong created = new AtomicLong(0);
+            c = routed.putIfAbsent(key, created);
+            if (c == null)
+                c = created;
+        }
+
+        c.incrementAndGet();
+    }
+
+    public long getReadCount(String replica) {
+        AtomicLong c = routed.get(replica);
+        return (c == null) ? 0 : c.get();
+    }
+
+    public long getPrimaryReadCount() {
+        return primaryReads.get();
+    }
+
+    public long getFallbackCount() {
+        return fallbacks.get();
+    }
+
+    @Override
+    public String toString() {
+        return "GerritReplicaRouter [replicaReads=" + routed
+            + ", primaryReads=" + getPrimaryReadCount() + ", fallbacks="
+            + getFallbackCount() + "]";
+    }
+}
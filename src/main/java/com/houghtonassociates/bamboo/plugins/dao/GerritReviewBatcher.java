@@ -0,0 +1,346 @@
+/*
+ * Houghton Associates Framework
+ * http://www.houghtonassociates.com
+ *
+ * Copyright 2014 Houghton Associates, Inc.
+ */
+package com.houghtonassociates.bamboo.plugins.dao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Collects the Verified votes for a server and account over a short window
+ * and submits them in as few <code>gerrit review</code> invocations as
+ * possible.
+ *
+ * Votes with the same score and message are sent as one invocation naming
+ * all their patch sets. If an invocation fails, its votes are sent again
+ * one at a time, so every vote gets a result of its own.
+ *
+ * Tunables (system properties):
+ * <ul>
+ * <li>gerrit.review.batch.windowMillis - how long a vote waits for others,
+ * default 200, 0 sends every vote at once on the caller's thread</li>
+ * <li>gerrit.review.batch.size - patch sets per invocation, default 25</li>
+ * </ul>
+ */
+public class GerritReviewBatcher {
+
+    public static final String PROP_WINDOW = "gerrit.review.batch.windowMillis";
+    public static final String PROP_SIZE = "gerrit.review.batch.size";
+
+    private static final long DEFAULT_WINDOW = 200;
+    private static final int DEFAULT_SIZE = 25;
+
+    private static final Logger log = Logger
+        .getLogger(GerritReviewBatcher.class);
+
+    private static final ConcurrentMap<String, GerritReviewBatcher> batchers =
+        new ConcurrentHashMap<String, GerritReviewBatcher>();
+
+    private static final ScheduledExecutorService timer = Executors
+        .newSingleThreadScheduledExecutor(newThreadFactory("gerrit-review-batch"));
+
+    private static final ExecutorService senders = Executors
+        .newCachedThreadPool(newThreadFactory("gerrit-review"));
+
+    /**
+     * Sends one invocation's votes, all with the same score and message.
+     */
+    interface Sender {
+
+        /**
+         * @param score
+         *            the Verified vote, null to only post the message
+         * @param message
+         * @param votes
+         * @throws Exception
+         */
+        void review(Integer score, String message, List<Vote> votes) throws Exception;
+    }
+
+    /**
+     * Told once a vote was sent or given up on, on the sending thread.
+     */
+    interface Listener {
+
+        /**
+         * @param sent
+         *            false if sending failed
+         */
+        void done(boolean sent);
+    }
+
+    /**
+     * A vote waiting to be sent.
+     */
+    static class Vote {
+
+        private final Sender sender;
+        private final Integer score;
+        private final int change;
+        private final int patchSet;
+        private final String message;
+        private final Result result;
+
+        Vote(Sender sender, Integer score, int change, int patchSet,
+             String message, Listener listener) {
+            this.sender = sender;
+            this.score = score;
+            this.change = change;
+            this.patchSet = patchSet;
+            this.message = message;
+            this.result = new Result(listener);
+        }
+
+        int getChange() {
+            return change;
+        }
+
+        int getPatchSet() {
+            return patchSet;
+        }
+
+        /**
+         * @return the patch set as <code>gerrit review</code> takes it
+         */
+        String getTarget() {
+            return change + "," + patchSet;
+        }
+
+        private String getGroup() {
+            return score + " " + message;
+        }
+    }
+
+    private static class Result extends FutureTask<Boolean> {
+
+        private final Listener listener;
+
+        Result(Listener listener) {
+            super(new Callable<Boolean>() {
+
+                @Override
+                public Boolean call() {
+                    throw new IllegalStateException("set by the batcher");
+                }
+            });
+            this.listener = listener;
+        }
+
+        void complete(boolean sent) {
+            set(sent);
+
+            if (listener == null)
+                return;
+
+            try {
+                listener.done(sent);
+            } catch (RuntimeException e) {
+                log.error("Review listener failed", e);
+            }
+        }
+    }
+
+    /**
+     * @param sent
+     * @return a result that is already known
+     */
+    static Future<Boolean> completed(boolean sent) {
+        Result r = new Result(null);
+
+        r.complete(sent);
+
+        return r;
+    }
+
+    private final String key;
+    private final List<Vote> pending = new ArrayList<Vote>();
+    private boolean flushScheduled = false;
+
+    private GerritReviewBatcher(String key) {
+        this.key = key;
+    }
+
+    /**
+     * @param key
+     *            server and account
+     * @return
+     */
+    public static GerritReviewBatcher forServer(String key) {
+        GerritReviewBatcher b = batchers.get(key);
+
+        if (b == null) {
+            GerritReviewBatcher created = new GerritReviewBatcher(key);
+
+            b = batchers.putIfAbsent(key, created);
+            if (b == null)
+                b = created;
+        }
+
+        return b;
+    }
+
+    private static ThreadFactory newThreadFactory(final String name) {
+        return new ThreadFactory() {
+
+            private final AtomicInteger count = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    private static long getWindow() {
+        return Long.getLong(PROP_WINDOW, DEFAULT_WINDOW);
+    }
+
+    private static int getBatchSize() {
+        return Math.max(1, Integer.getInteger(PROP_SIZE, DEFAULT_SIZE));
+    }
+
+    /**
+     * Queue a Verified vote.
+     *
+     * @param sender
+     * @param score
+     *            null to only post the message
+     * @param change
+     * @param patchSet
+     * @param message
+     * @return true once the vote was sent, false if sending failed
+     */
+    Future<Boolean> submit(Sender sender, Integer score, int change,
+                           int patchSet, String message) {
+        return submit(sender, score, change, patchSet, message, null);
+    }
+
+    /**
+     * Queue a Verified vote, telling a listener how it went.
+     *
+     * @param sender
+     * @param score
+     *            null to only post the message
+     * @param change
+     * @param patchSet
+     * @param message
+     * @param listener
+     *            null if none
+     * @return true once the vote was sent, false if sending failed
+     */
+    Future<Boolean> submit(Sender sender, Integer score, int change,
+                           int patchSet, String message, Listener listener) {
+        Vote v = new Vote(sender, score, change, patchSet, message, listener);
+        long window = getWindow();
+
+        if (window <= 0) {
+            send(Collections.singletonList(v));
+            return v.result;
+        }
+
+        synchronized (this) {
+            pending.add(v);
+
+            if (!flushScheduled) {
+                flushScheduled = true;
+                timer.schedule(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                }, window, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        return v.result;
+    }
+
+    private void flush() {
+        List<Vote> votes;
+
+        synchronized (this) {
+            votes = new ArrayList<Vote>(pending);
+            pending.clear();
+            flushScheduled = false;
+        }
+
+        Map<String, List<Vote>> groups = new LinkedHashMap<String, List<Vote>>();
+
+        for (Vote v : votes) {
+            List<Vote> group = groups.get(v.getGroup());
+
+            if (group == null) {
+                group = new ArrayList<Vote>();
+                groups.put(v.getGroup(), group);
+            }
+
+            group.add(v);
+        }
+
+        int size = getBatchSize();
+
+        log.debug(String.format("Sending %d votes to %s in %d groups.", votes
+            .size(), key, groups.size()));
+
+        for (List<Vote> group : groups.values()) {
+            for (int i = 0; i < group.size(); i += size) {
+                final List<Vote> batch =
+                    group.subList(i, Math.min(group.size(), i + size));
+
+                senders.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        send(batch);
+                    }
+                });
+            }
+        }
+    }
+
+    private void send(List<Vote> votes) {
+        Vote first = votes.get(0);
+
+        try {
+            first.sender.review(first.score, first.message, votes);
+
+            for (Vote v : votes)
+                v.result.complete(true);
+
+            return;
+        } catch (Exception e) {
+            log.warn(String.format("Review of %d patch sets on %s failed: %s",
+                votes.size(), key, e.getMessage()));
+        }
+
+        if (votes.size() == 1) {
+            first.result.complete(false);
+            return;
+        }
+
+        for (Vote v : votes)
+            send(Collections.singletonList(v));
+    }
+}
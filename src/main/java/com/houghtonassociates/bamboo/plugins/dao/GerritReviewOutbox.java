@@ -0,0 +1,413 @@
+/*
+ * Houghton Associates Framework
+ * http://www.houghtonassociates.com
+ *
+ * Copyright 2014 Houghton Associates, Inc.
+ */
+package com.houghtonassociates.bamboo.plugins.dao;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Verified votes waiting to be posted, kept on disk until Gerrit has them.
+ *
+ * A vote is written to its own file in the outbox directory before
+ * {@link #enqueue} returns, and deleted once it was posted. A background
+ * worker posts due votes through the poster registered for their server and
+ * account, and retries failures with exponential backoff. Votes are keyed
+ * by server, account, change and patch set: a newer vote for the same patch
+ * set replaces one that is still waiting. Votes left over from a previous
+ * run are posted once a service for their server registers.
+ *
+ * Tunables (system properties):
+ * <ul>
+ * <li>gerrit.outbox.retryMillis - first retry delay, doubled on each
+ * further failure, default 5000</li>
+ * <li>gerrit.outbox.maxRetryMillis - longest retry delay, default 600000</li>
+ * <li>gerrit.outbox.maxAgeHours - a vote still failing after this long is
+ * dropped, default 168</li>
+ * </ul>
+ */
+public class GerritReviewOutbox {
+
+    public static final String PROP_RETRY = "gerrit.outbox.retryMillis";
+    public static final String PROP_MAX_RETRY = "gerrit.outbox.maxRetryMillis";
+    public static final String PROP_MAX_AGE = "gerrit.outbox.maxAgeHours";
+
+    private static final long DEFAULT_RETRY = 5000;
+    private static final long DEFAULT_MAX_RETRY = 600000;
+    private static final long DEFAULT_MAX_AGE = 168;
+
+    // how often waiting votes are checked for being due
+    private static final long TICK_MILLIS = 1000;
+
+    private static final String SUFFIX = ".vote";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final Logger log = Logger
+        .getLogger(GerritReviewOutbox.class);
+
+    private static final ConcurrentMap<String, GerritReviewOutbox> outboxes =
+        new ConcurrentHashMap<String, GerritReviewOutbox>();
+
+    private static final AtomicInteger workers = new AtomicInteger(0);
+
+    /**
+     * Posts a vote, e.g. through {@link GerritReviewBatcher}.
+     */
+    public interface Poster {
+
+        /**
+         * @return true once the vote was posted
+         */
+        Future<Boolean> post(boolean pass, int change, int patchSet,
+                             String message);
+    }
+
+    private static class Vote {
+
+        final File file;
+        final String key;
+        final boolean pass;
+        final int change;
+        final int patchSet;
+        final String message;
+        final long created;
+        int attempts = 0;
+        long nextAttempt = 0;
+
+        Vote(File file, String key, boolean pass, int change, int patchSet,
+             String message, long created) {
+            this.file = file;
+            this.key = key;
+            this.pass = pass;
+            this.change = change;
+            this.patchSet = patchSet;
+            this.message = message;
+            this.created = created;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s,%s (%s) on %s", change, patchSet,
+                pass ? "+1" : "-1", key);
+        }
+    }
+
+    private final File directory;
+    private final ConcurrentMap<String, Vote> pending =
+        new ConcurrentHashMap<String, Vote>();
+    private final ConcurrentMap<String, Poster> posters =
+        new ConcurrentHashMap<String, Poster>();
+    private final ScheduledExecutorService worker;
+
+    private GerritReviewOutbox(File directory) {
+        this.directory = directory;
+
+        recover();
+
+        worker =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t =
+                        new Thread(r, "gerrit-outbox-"
+                            + workers.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        worker.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                drain();
+            }
+        }, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param directory
+     * @return the outbox kept in the directory, loading the votes it holds
+     *         on first use
+     */
+    public static GerritReviewOutbox forDirectory(File directory) {
+        String path = directory.getAbsolutePath();
+        GerritReviewOutbox o = outboxes.get(path);
+
+        if (o == null) {
+            synchronized (outboxes) {
+                o = outboxes.get(path);
+
+                if (o == null) {
+                    o = new GerritReviewOutbox(directory.getAbsoluteFile());
+                    outboxes.put(path, o);
+                }
+            }
+        }
+
+        return o;
+    }
+
+    /**
+     * Post the votes of a server and account through the poster, including
+     * any left over from a previous run.
+     *
+     * @param key
+     *            server and account
+     * @param poster
+     */
+    public void register(String key, Poster poster) {
+        if (posters.put(key, poster) == null && hasVotesFor(key))
+            wake();
+    }
+
+    /**
+     * Store a vote, replacing any vote for the same patch set that hasn't
+     * been posted yet.
+     *
+     * @param key
+     *            server and account
+     * @param pass
+     * @param change
+     * @param patchSet
+     * @param message
+     * @throws IOException
+     *             the vote couldn't be stored
+     */
+    public void enqueue(String key, boolean pass, int change, int patchSet,
+                        String message) throws IOException {
+        String name =
+            String.format("%s-%d-%d%s", key.replaceAll("[^\\w.-]", "_"),
+                change, patchSet, SUFFIX);
+        Vote v =
+            new Vote(new File(directory, name), key, pass, change, patchSet,
+                message, System.currentTimeMillis());
+
+        synchronized (this) {
+            if (!directory.isDirectory() && !directory.mkdirs())
+                throw new IOException("Could not create " + directory);
+
+            write(v);
+            pending.put(name, v);
+        }
+
+        wake();
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    private boolean hasVotesFor(String key) {
+        for (Vote v : pending.values())
+            if (v.key.equals(key))
+                return true;
+
+        return false;
+    }
+
+    private void wake() {
+        worker.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                drain();
+            }
+        });
+    }
+
+    private void recover() {
+        File[] files = directory.listFiles();
+
+        if (files == null)
+            return;
+
+        for (File f : files) {
+            if (f.getName().endsWith(TMP_SUFFIX)) {
+                // never renamed into place, so never acknowledged
+                f.delete();
+            } else if (f.getName().endsWith(SUFFIX)) {
+                try {
+                    pending.put(f.getName(), read(f));
+                } catch (IOException e) {
+                    log.error(String.format("Unreadable Gerrit vote %s: %s",
+                        f, e.getMessage()));
+                } catch (RuntimeException e) {
+                    log.error(String.format("Unreadable Gerrit vote %s: %s",
+                        f, e.getMessage()));
+                }
+            }
+        }
+
+        if (!pending.isEmpty())
+            log.info(String.format("%d Gerrit votes waiting in %s.", pending
+                .size(), directory));
+    }
+
+    // runs with a fixed delay, an exception would cancel it for good
+    private void drain() {
+        try {
+            drainPending();
+        } catch (RuntimeException e) {
+            log.error("Draining Gerrit votes failed: " + e.getMessage(), e);
+        }
+    }
+
+    private void drainPending() {
+        long now = System.currentTimeMillis();
+        List<Vote> sent = new ArrayList<Vote>();
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+
+        for (Vote v : pending.values()) {
+            Poster poster = posters.get(v.key);
+
+            if (poster == null || v.nextAttempt > now)
+                continue;
+
+            // posted together, so the batcher can combine them
+            try {
+                results.add(poster.post(v.pass, v.change, v.patchSet,
+                    v.message));
+                sent.add(v);
+            } catch (RuntimeException e) {
+                log.warn(String.format("Posting vote %s failed: %s", v, e
+                    .getMessage()));
+                retry(v);
+            }
+        }
+
+        for (int i = 0; i < sent.size(); i++) {
+            Vote v = sent.get(i);
+            boolean posted = false;
+
+            try {
+                posted = results.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                log.warn(String.format("Posting vote %s failed: %s", v, e
+                    .getMessage()));
+            }
+
+            if (posted)
+                remove(v);
+            else
+                retry(v);
+        }
+    }
+
+    private synchronized void remove(Vote v) {
+        // a newer vote for the patch set arrived meanwhile, keep it
+        if (pending.remove(v.file.getName(), v) && !v.file.delete())
+            log.warn("Could not delete posted vote " + v.file);
+    }
+
+    private synchronized void retry(Vote v) {
+        if (pending.get(v.file.getName()) != v)
+            return;
+
+        long now = System.currentTimeMillis();
+        long maxAge =
+            TimeUnit.HOURS.toMillis(Long.getLong(PROP_MAX_AGE, DEFAULT_MAX_AGE));
+
+        v.attempts++;
+
+        if (now - v.created > maxAge) {
+            log.error(String.format("Dropping vote %s after %d attempts.", v,
+                v.attempts));
+            remove(v);
+            return;
+        }
+
+        long delay =
+            Math.min(Long.getLong(PROP_MAX_RETRY, DEFAULT_MAX_RETRY), Long
+                .getLong(PROP_RETRY, DEFAULT_RETRY)
+                << Math.min(v.attempts - 1, 20));
+
+        v.nextAttempt = now + delay;
+
+        log.warn(String.format("Vote %s not posted, attempt %d, retrying in %dms.",
+            v, v.attempts, delay));
+
+        try {
+            write(v);
+        } catch (IOException e) {
+            // still on disk from the previous attempt
+            log.warn(String.format("Could not update vote %s: %s", v, e
+                .getMessage()));
+        }
+    }
+
+    private static void write(Vote v) throws IOException {
+        Properties p = new Properties();
+
+        p.setProperty("key", v.key);
+        p.setProperty("pass", String.valueOf(v.pass));
+        p.setProperty("change", String.valueOf(v.change));
+        p.setProperty("patchSet", String.valueOf(v.patchSet));
+        p.setProperty("message", v.message);
+        p.setProperty("created", String.valueOf(v.created));
+        p.setProperty("attempts", String.valueOf(v.attempts));
+        p.setProperty("nextAttempt", String.valueOf(v.nextAttempt));
+
+        File tmp = new File(v.file.getPath() + TMP_SUFFIX);
+        FileOutputStream out = new FileOutputStream(tmp);
+
+        try {
+            p.store(out, null);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        // renameTo doesn't replace an existing file everywhere
+        if (!tmp.renameTo(v.file) && !(v.file.delete() && tmp.renameTo(v.file)))
+            throw new IOException("Could not write " + v.file);
+    }
+
+    private static Vote read(File f) throws IOException {
+        Properties p = new Properties();
+        FileInputStream in = new FileInputStream(f);
+
+        try {
+            p.load(in);
+        } finally {
+            in.close();
+        }
+
+        Vote v =
+            new Vote(f, p.getProperty("key"), Boolean.parseBoolean(p
+                .getProperty("pass")), Integer.parseInt(p
+                .getProperty("change")), Integer.parseInt(p
+                .getProperty("patchSet")), p.getProperty("message", ""), Long
+                .parseLong(p.getProperty("created")));
+
+        v.attempts = Integer.parseInt(p.getProperty("attempts", "0"));
+        v.nextAttempt = Long.parseLong(p.getProperty("nextAttempt", "0"));
+
+        if (v.key == null)
+            throw new IOException("no server");
+
+        return v;
+    }
+}
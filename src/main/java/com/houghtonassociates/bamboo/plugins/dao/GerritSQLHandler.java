@@ -8,8 +8,12 @@ package com.houghtonassociates.bamboo.plugins.dao;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.SocketTimeoutException;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ScheduledFuture;
 
 import net.sf.json.JSONObject;
 import net.sf.json.JSONSerializer;
@@ -17,27 +21,32 @@ import net.sf.json.JSONSerializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.JSchException;
 import com.sonymobile.tools.gerrit.gerritevents.GerritConnectionConfig;
 import com.sonymobile.tools.gerrit.gerritevents.GerritConnectionConfig2;
 import com.sonymobile.tools.gerrit.gerritevents.GerritDefaultValues;
 import com.sonymobile.tools.gerrit.gerritevents.GerritQueryException;
-import com.sonymobile.tools.gerrit.gerritevents.GerritQueryHandler;
 import com.sonymobile.tools.gerrit.gerritevents.ssh.Authentication;
 import com.sonymobile.tools.gerrit.gerritevents.ssh.SshConnection;
-import com.sonymobile.tools.gerrit.gerritevents.ssh.SshConnectionFactory;
 import com.sonymobile.tools.gerrit.gerritevents.ssh.SshException;
 
+/**
+ * Runs Gerrit SSH commands (query, gsql, review, ...) as channels over the
+ * server's shared session. A command that outlives its deadline has its
+ * channel closed, leaving the session to the other commands.
+ */
 public class GerritSQLHandler {
 
     private static final Logger logger = LoggerFactory
         .getLogger(GerritSQLHandler.class);
 
     public static final String QUERY_SQL_COMMAND = "gerrit gsql";
+    public static final String QUERY_COMMAND = "gerrit query";
     private String gerritHostName;
     private int gerritSshPort;
     private String gerritProxy;
     private Authentication authentication;
-    private GerritQueryHandler queryHandler;
 
     public GerritSQLHandler(String gerritHostName, int gerritSshPort,
                             String gerritProxy, Authentication authentication) {
@@ -45,9 +54,6 @@ public class GerritSQLHandler {
         this.gerritSshPort = gerritSshPort;
         this.gerritProxy = gerritProxy;
         this.authentication = authentication;
-        this.queryHandler =
-            new GerritQueryHandler(gerritHostName, gerritSshPort, gerritProxy,
-                authentication);
     }
 
     public GerritSQLHandler(GerritConnectionConfig config) {
@@ -64,7 +70,7 @@ public class GerritSQLHandler {
     public List<JSONObject> queryJava(String queryString) throws SshException,
                     IOException,
                     GerritQueryException {
-        return queryHandler.queryJava(queryString, true, true, false);
+        return queryJava(queryString, true, true, false, 0);
     }
 
     public List<JSONObject> queryJava(String queryString, boolean getPatchSets,
@@ -72,23 +78,99 @@ public class GerritSQLHandler {
                                       boolean getFiles) throws SshException,
                     IOException,
                     GerritQueryException {
-        return queryHandler.queryJava(queryString, getPatchSets,
-            getCurrentPatchSet, getFiles);
+        return queryJava(queryString, getPatchSets, getCurrentPatchSet,
+            getFiles, 0);
+    }
+
+    public List<JSONObject>
+                    queryJava(String queryString, boolean getPatchSets,
+                              boolean getCurrentPatchSet, boolean getFiles,
+                              long timeoutMillis) throws SshException,
+                                  IOException,
+                                  GerritQueryException {
+        StringBuilder str = new StringBuilder(QUERY_COMMAND);
+
+        str.append(" --format=JSON");
+
+        if (getPatchSets)
+            str.append(" --patch-sets");
+
+        if (getCurrentPatchSet)
+            str.append(" --current-patch-set");
+
+        if (getFiles)
+            str.append(" --files");
+
+        str.append(" ").append(queryString);
+
+        return runJSON(str.toString(), timeoutMillis);
     }
 
     public List<JSONObject> queryFiles(String queryString) throws SshException,
                     IOException,
                     GerritQueryException {
-        return queryHandler.queryJava(queryString, false, true, true);
+        return queryJava(queryString, false, true, true, 0);
     }
 
     public List<JSONObject> querySQL(String queryString) throws SshException,
                     IOException,
                     GerritQueryException {
+        return querySQL(queryString, 0);
+    }
+
+    public List<JSONObject>
+                    querySQL(String queryString, long timeoutMillis) throws SshException,
+                                    IOException,
+                                    GerritQueryException {
+        StringBuilder str = new StringBuilder(QUERY_SQL_COMMAND);
+
+        queryString = queryString.replace("*", "\\*");
+
+        str.append(" --format=JSON");
+        str.append(" -c");
+        str.append(" \"");
+        str.append(queryString.replace((CharSequence) "\"",
+            (CharSequence) "\\\""));
+        str.append("\"");
+
+        return runJSON(str.toString(), timeoutMillis);
+    }
 
+    /**
+     * Run a command and return its standard output.
+     * 
+     * @param command
+     * @param timeoutMillis
+     *            deadline, 0 for none
+     * @return
+     * @throws GerritQueryException
+     * @throws SshException
+     * @throws IOException
+     */
+    public String
+                    executeCommand(String command, long timeoutMillis) throws GerritQueryException,
+                                    SshException,
+                                    IOException {
+        final StringBuilder out = new StringBuilder();
+
+        runCommand(command, new LineVisitor() {
+
+            @Override
+            public void visit(String line) {
+                out.append(line).append("\n");
+            }
+        }, timeoutMillis);
+
+        return out.toString();
+    }
+
+    private List<JSONObject>
+                    runJSON(String command, long timeoutMillis) throws GerritQueryException,
+                                    SshException,
+                                    IOException {
         final List<JSONObject> list = new LinkedList<JSONObject>();
 
-        runSQL(queryString, new LineVisitor() {
+        runCommand(command, new LineVisitor() {
 
             @Override
             public void visit(String line) throws GerritQueryException {
@@ -100,44 +182,186 @@ public class GerritSQLHandler {
                 }
                 list.add(json);
             }
-        });
+        }, timeoutMillis);
+
         return list;
     }
 
     private void
-                    runSQL(String queryString, LineVisitor visitor) throws GerritQueryException,
+                    runCommand(String command, LineVisitor visitor,
+                               long timeoutMillis) throws GerritQueryException,
                                     SshException,
                                     IOException {
-        StringBuilder str = new StringBuilder(QUERY_SQL_COMMAND);
+        GerritSshSessions sessions = getSessions();
+        Deadline deadline = new Deadline();
+        ScheduledFuture<?> watchdog = null;
+        SshConnection ssh = null;
+        ChannelExec channel = null;
+        BufferedReader reader = null;
 
-        queryString = queryString.replace("*", "\\*");
+        if (timeoutMillis > 0)
+            watchdog =
+                GerritExecutor.getInstance().schedule(deadline, timeoutMillis);
 
-        str.append(" --format=JSON");
-        str.append(" -c");
-        str.append(" \"");
-        str.append(queryString.replace((CharSequence) "\"",
-            (CharSequence) "\\\""));
-        str.append("\"");
-
-        SshConnection ssh = null;
         try {
-            ssh =
-                SshConnectionFactory.getConnection(gerritHostName,
-                    gerritSshPort, gerritProxy, authentication);
-            BufferedReader reader =
-                new BufferedReader(ssh.executeCommandReader(str.toString()));
+            ssh = sessions.acquire();
+
+            InputStream in;
+
+            try {
+                channel = ssh.executeCommandChannel(command, false);
+                in = open(channel, deadline);
+            } catch (IOException e) {
+                if (deadline.isExpired())
+                    throw e;
+
+                // a shared session may have gone stale while idle
+                logger.debug("Retrying on a new session: {}", e.getMessage());
+
+                if (channel != null)
+                    channel.disconnect();
+
+                sessions.invalidate(ssh);
+                ssh = sessions.acquire();
+                channel = ssh.executeCommandChannel(command, false);
+                in = open(channel, deadline);
+            }
+
+            reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+
             String incomingLine = null;
             while ((incomingLine = reader.readLine()) != null) {
                 logger.trace("Incoming line: {}", incomingLine);
                 visitor.visit(incomingLine);
             }
-            logger.trace("Closing reader.");
-            reader.close();
+        } catch (IOException e) {
+            if (deadline.isExpired())
+                throw timeout(timeoutMillis);
+
+            if (ssh != null && !ssh.isConnected()) {
+                sessions.invalidate(ssh);
+                ssh = null;
+            }
+
+            throw e;
         } finally {
+            if (watchdog != null) {
+                watchdog.cancel(false);
+            }
+
+            // clears a late interrupt, so it can't hit the worker's next task
+            if (deadline.finish())
+                Thread.interrupted();
+
+            if (reader != null) {
+                logger.trace("Closing reader.");
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    logger.debug("Close failed: {}", e.getMessage());
+                }
+            }
+
+            // frees the channel on the shared session, finished or not
+            if (channel != null)
+                channel.disconnect();
+
             if (ssh != null) {
-                ssh.disconnect();
+                sessions.release(ssh);
             }
         }
+
+        // an interrupted read may look like a clean end of stream
+        if (deadline.isExpired())
+            throw timeout(timeoutMillis);
+    }
+
+    // the output is attached before the command runs, so none of it is lost
+    private static InputStream open(ChannelExec channel, Deadline deadline) throws IOException {
+        InputStream in = channel.getInputStream();
+
+        deadline.watch(channel);
+
+        // deliberately without a timeout: given one, JSch also waits for the
+        // exec request's reply, and output arriving ahead of that reply can
+        // fill the channel's pipe and stall the shared session. The caller
+        // is released at the deadline instead, see GerritService.
+        try {
+            channel.connect();
+        } catch (JSchException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+
+        return in;
+    }
+
+    private GerritSshSessions getSessions() {
+        return GerritSshSessions.forServer(gerritHostName, gerritSshPort,
+            gerritProxy, authentication);
+    }
+
+    /**
+     * Opens the shared SSH session ahead of the first command.
+     * 
+     * @throws IOException
+     */
+    public void warmUp() throws IOException {
+        getSessions().warmUp();
+    }
+
+    private SocketTimeoutException timeout(long timeoutMillis) {
+        return new SocketTimeoutException(String.format(
+            "Gerrit command exceeded deadline of %dms", timeoutMillis));
+    }
+
+    /**
+     * Closes the command's channel and interrupts its thread once its
+     * deadline has passed. The session is shared with other commands, so
+     * it stays open.
+     */
+    private static class Deadline implements Runnable {
+
+        private final Thread worker = Thread.currentThread();
+        private ChannelExec channel = null;
+        private boolean done = false;
+        private boolean expired = false;
+
+        @Override
+        public synchronized void run() {
+            if (done)
+                return;
+
+            expired = true;
+            logger.warn("Closing expired Gerrit channel.");
+
+            if (channel != null)
+                channel.disconnect();
+
+            worker.interrupt();
+        }
+
+        /**
+         * @param c
+         *            closed at the deadline, at once if it has passed
+         */
+        synchronized void watch(ChannelExec c) {
+            channel = c;
+
+            if (expired)
+                c.disconnect();
+        }
+
+        /**
+         * @return true if the deadline expired
+         */
+        synchronized boolean finish() {
+            done = true;
+            return expired;
+        }
+
+        synchronized boolean isExpired() {
+            return expired;
+        }
     }
 
     interface LineVisitor {
@@ -23,23 +23,31 @@ import java.io.StringReader;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.TimeZone;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
-import net.sf.json.JSONException;
 import net.sf.json.JSONObject;
 
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.lang3.ArrayUtils;
-import org.apache.http.auth.Credentials;
 import org.apache.log4j.Logger;
 import org.eclipse.jgit.transport.PushResult;
 
@@ -48,16 +56,12 @@ import com.houghtonassociates.bamboo.plugins.dao.GerritChangeVO.Approval;
 import com.houghtonassociates.bamboo.plugins.dao.GerritChangeVO.FileSet;
 import com.houghtonassociates.bamboo.plugins.dao.GerritChangeVO.PatchSet;
 import com.houghtonassociates.bamboo.plugins.dao.jgit.JGitRepository;
-import com.sonymobile.tools.gerrit.gerritevents.GerritConnectionConfig2;
+import com.houghtonassociates.bamboo.plugins.dao.rest.GerritRestClient;
 import com.sonymobile.tools.gerrit.gerritevents.GerritQueryException;
 import com.sonymobile.tools.gerrit.gerritevents.dto.attr.Provider;
-import com.sonymobile.tools.gerrit.gerritevents.ssh.Authentication;
 import com.sonymobile.tools.gerrit.gerritevents.ssh.SshConnection;
 import com.sonymobile.tools.gerrit.gerritevents.ssh.SshConnectionFactory;
 import com.sonymobile.tools.gerrit.gerritevents.ssh.SshException;
-import com.sonymobile.tools.gerrit.gerritevents.watchdog.WatchTimeExceptionData;
-import com.sonymobile.tools.gerrit.gerritevents.watchdog.WatchTimeExceptionData.TimeSpan;
-import com.sonymobile.tools.gerrit.gerritevents.workers.cmd.AbstractSendCommandJob;
 
  /* 
   * Facade for working with ssh, gerrit-events, parsing JSON results, and 
@@ -67,32 +71,131 @@ public class GerritService {
 
     public static final String SYSTEM_DIRECTORY = "gerrit";
     public static final String CONFIG_DIRECTORY = "config";
+    public static final String OUTBOX_DIRECTORY = "outbox";
+    public static final String ROUNDS_DIRECTORY = "rounds";
+    public static final String EVENTS_DIRECTORY = "events";
     private static final Logger log = Logger.getLogger(GerritService.class);
 
+    // slack given to a command that enforces its own deadline; opening a
+    // channel doesn't heed it, so this bounds how long a caller waits past it
+    private static final long GRACE_MILLIS = 250;
+
+    // added to an age: query, for the server's clock differing from ours
+    private static final long AGE_SLACK_SECONDS = 300;
+
     private GerritConfig gc = new GerritConfig();
     private GerritUserVO gerritSystemUser = null;
     // private GerritHandler gHandler = null;
     private GerritSQLHandler gQueryHandler = null;
-    private GerritCmdProcessor cmdProcessor = null;
+    private GerritRestClient restClient = null;
+    private final Map<String, GerritSQLHandler> replicaHandlers =
+        new HashMap<String, GerritSQLHandler>();
+    private final Map<String, GerritRestClient> replicaRestClients =
+        new HashMap<String, GerritRestClient>();
 
     // private int watchdogTimeoutMinutes;
     // private WatchTimeExceptionData watchTimeExceptionData;
-    private static boolean authorSupported = true;
-    private static boolean dbAccessGranted = false;
-    private static boolean verifiedLabelAdded = false;
+    // servers whose All-Projects config has already been updated
+    private static final Set<String> dbAccessGranted = Collections
+        .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private static final Set<String> verifiedLabelAdded = Collections
+        .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private static final int MAX_POSTED_ONCE = 10000;
+    // messages already posted, least recently used first
+    private static final Map<String, Boolean> postedOnce =
+        new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean
+                            removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > MAX_POSTED_ONCE;
+            }
+        };
     private boolean isInitialized = false;
 
-    private static GerritMonitor monitor = null;
-
     private String version = null;
 
+    // per server, a Gerrit version doesn't change without a restart
+    private static final ConcurrentMap<String, String> versions =
+        new ConcurrentHashMap<String, String>();
+
+    public static final String PROP_PROJECTS_TTL = "gerrit.projects.ttlMillis";
+
+    // "message" posts a repeated vote's message without the vote
+    public static final String PROP_DUPLICATE_REVIEWS =
+        "gerrit.review.duplicates";
+    private static final long DEFAULT_PROJECTS_TTL = 300000;
+
+    private static class ProjectCatalog {
+
+        final List<String> projects;
+        final long listedAt = System.currentTimeMillis();
+
+        ProjectCatalog(List<String> projects) {
+            this.projects = new ArrayList<String>(projects);
+        }
+    }
+
+    // per server and account
+    private static final ConcurrentMap<String, ProjectCatalog> projectCatalogs =
+        new ConcurrentHashMap<String, ProjectCatalog>();
+
+    private final GerritPollAggregator.QueryRunner queryRunner =
+        new GerritPollAggregator.QueryRunner() {
+
+            @Override
+            public List<JSONObject> runQuery(String query) throws RepositoryException {
+                return runGerritQuery(query);
+            }
+        };
+
+    private final GerritReviewBatcher.Sender reviewSender =
+        new GerritReviewBatcher.Sender() {
+
+            @Override
+            public void review(Integer score, String message,
+                               List<GerritReviewBatcher.Vote> votes) throws Exception {
+                sendReview(score, message, votes);
+            }
+        };
+
+    private final GerritReviewOutbox.Poster votePoster =
+        new GerritReviewOutbox.Poster() {
+
+            @Override
+            public Future<Boolean> post(boolean pass, int change,
+                                        int patchSet, String message) {
+                return submitVerification(pass, change, patchSet, message);
+            }
+        };
+
+    /**
+     * A read that the primary or any of its replicas can serve.
+     */
+    private interface ReadTask<T> {
+
+        /**
+         * @param replica
+         *            replica to read from, null for the primary
+         */
+        T call(GerritEndpoint replica) throws Exception;
+    }
+
     public GerritService(GerritConfig gc) {
         this.gc = gc;
     }
 
     public void initialize() throws RepositoryException {
         installVerificationLabel();
-        grantDatabaseAccess();
+
+        if (new GerritCapabilities(getGerritVersion()).isGsqlSupported())
+            grantDatabaseAccess();
+
+        // probed after the grant, so gsql is seen as available
+        getCapabilities();
 
         if ((gc.getUserEmail() == null) || gc.getUserEmail().isEmpty()) {
             GerritUserVO user = getGerritSystemUser();
@@ -101,10 +204,15 @@ public class GerritService {
                 gc.setUserEmail(user.getEmail());
         }
 
-        if (monitor == null) {
-            monitor = new GerritMonitor();
-            monitor.initialize(this);
-        }
+        GerritMonitor.forServer(this);
+
+        GerritWarmup.schedule(this);
+
+        // posts votes left over from a previous run
+        getOutbox();
+
+        // resumes vote rounds left over from a previous run
+        getVoteCoordinator();
 
         isInitialized = true;
     }
@@ -126,12 +234,26 @@ public class GerritService {
         return p;
     }
 
+    /**
+     * Hand the server's events to the listener, following its
+     * <code>stream-events</code> from now on.
+     * 
+     * @param l
+     */
     public void addListener(GerritProcessListener l) {
-        monitor.addGerritListener(l);
+        GerritMonitor.forServer(this).addGerritListener(l);
     }
 
     public void removeListener(GerritProcessListener l) {
-        monitor.removeGerritListener(l);
+        GerritMonitor.forServer(this).removeGerritListener(l);
+    }
+
+    /**
+     * @return the state of the server's event stream, see
+     *         {@link GerritMonitor#getHealth()}
+     */
+    public String getEventStreamHealth() {
+        return GerritMonitor.forServer(this).getHealth();
     }
 
     public void testGerritConnection() throws RepositoryException {
@@ -157,18 +279,6 @@ public class GerritService {
         }
     }
 
-    private class GerritCmdProcessor extends AbstractSendCommandJob {
-
-        protected GerritCmdProcessor(GerritConnectionConfig2 config) {
-            super(config);
-        }
-
-        @Override
-        public void run() {
-
-        }
-    }
-
     private void grantDatabaseAccess() throws RepositoryException {
         final String targetRevision = "refs/meta/config";
         String filePath =
@@ -183,7 +293,7 @@ public class GerritService {
         Scanner scanner = null;
         JGitRepository jgitRepo = new JGitRepository();
 
-        if (dbAccessGranted)
+        if (dbAccessGranted.contains(gc.getServerKey()))
             return;
 
         synchronized (GerritService.class) {
@@ -220,7 +330,7 @@ public class GerritService {
                 scanner.close();
 
                 if (accessDBFound) {
-                    dbAccessGranted = true;
+                    dbAccessGranted.add(gc.getServerKey());
                     return;
                 }
 
@@ -238,7 +348,8 @@ public class GerritService {
                     throw new RepositoryException(r.getMessages());
                 }
 
-                dbAccessGranted = true;
+                dbAccessGranted.add(gc.getServerKey());
+                GerritCapabilities.invalidate(getCapabilitiesKey());
             } catch (org.eclipse.jgit.errors.TransportException e) {
                 throw new RepositoryException(e);
             } catch (FileNotFoundException e) {
@@ -268,7 +379,7 @@ public class GerritService {
         Scanner scanner = null;
         JGitRepository jgitRepo = new JGitRepository();
 
-        if (verifiedLabelAdded)
+        if (verifiedLabelAdded.contains(gc.getServerKey()))
             return;
 
         synchronized (GerritService.class) {
@@ -305,7 +416,7 @@ public class GerritService {
                 scanner.close();
 
                 if (verifiedSectionFound) {
-                    verifiedLabelAdded = true;
+                    verifiedLabelAdded.add(gc.getServerKey());
                     return;
                 }
 
@@ -329,7 +440,7 @@ public class GerritService {
                     throw new RepositoryException(r.getMessages());
                 }
 
-                verifiedLabelAdded = true;
+                verifiedLabelAdded.add(gc.getServerKey());
             } catch (org.eclipse.jgit.errors.TransportException e) {
                 throw new RepositoryException(e);
             } catch (FileNotFoundException e) {
@@ -349,114 +460,486 @@ public class GerritService {
         return isInitialized;
     }
 
-    public boolean verifyChange(Boolean pass, Integer changeNumber,
-                                Integer patchNumber, String message) {
-        String command = "";
+    /**
+     * Vote Verified on a patch set. Votes cast on the same server within a
+     * short window are sent together, see {@link GerritReviewBatcher}.
+     * 
+     * @param pass
+     * @param changeNumber
+     * @param patchNumber
+     * @param message
+     * @return true if the vote was sent
+     */
+    public boolean verifyChange(final Boolean pass,
+                                final Integer changeNumber,
+                                final Integer patchNumber, final String message) {
+        Future<Boolean> sent =
+            submitVerification(pass.booleanValue(), changeNumber.intValue(),
+                patchNumber.intValue(), message);
 
-        if (pass.booleanValue()) {
-            command =
-                String.format(
-                    "gerrit review --message '%s' --verified +1 %s,%s",
-                    message, changeNumber.intValue(), patchNumber.intValue());
-        } else {
-            command =
-                String.format(
-                    "gerrit review --message '%s' --verified -1 %s,%s",
-                    message, changeNumber.intValue(), patchNumber.intValue());
+        try {
+            return sent.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            log.error(e.getMessage());
+            return false;
         }
+    }
+
+    private Future<Boolean> submitVerification(boolean pass, int change,
+                                               int patchSet, String message) {
+        GerritApprovalCache approvals = getApprovalCache();
+        Integer score = pass ? 1 : -1;
 
-        log.debug("Sending Command: " + command);
+        // a rebuild or another plan voting the same again
+        if (score.equals(approvals.getVote(change, patchSet))) {
+            approvals.suppressed();
 
-        return getGerritCmdProcessor().sendCommand(command);
+            if (!"message".equals(System.getProperty(PROP_DUPLICATE_REVIEWS))) {
+                log.debug(String.format("%s,%s already has Verified %+d.",
+                    change, patchSet, score));
+                return GerritReviewBatcher.completed(true);
+            }
+
+            score = null;
+        }
+
+        return GerritReviewBatcher.forServer(getCapabilitiesKey()).submit(
+            reviewSender, score, change, patchSet, message);
     }
 
-    private GerritCmdProcessor getGerritCmdProcessor() {
-        if (cmdProcessor == null) {
-            cmdProcessor =
-                new GerritCmdProcessor(new GerritConnectionConfig2() {
+    private GerritApprovalCache getApprovalCache() {
+        return GerritApprovalCache.forServer(getCapabilitiesKey());
+    }
 
-                    @Override
-                    public File getGerritAuthKeyFile() {
-                        return gc.getAuth().getPrivateKeyFile();
-                    }
+    /**
+     * @return reviews on this server left out or sent without a vote
+     *         because the account's vote was already there
+     */
+    public long getSuppressedReviewCount() {
+        return getApprovalCache().getSuppressedCount();
+    }
 
-                    @Override
-                    public String getGerritAuthKeyFilePassword() {
-                        return gc.getAuth().getPrivateKeyFilePassword();
-                    }
+    /**
+     * Post a message on a patch set without voting. It is sent in the
+     * background with the other reviews, failures are only logged.
+     * 
+     * @param changeNumber
+     * @param patchNumber
+     * @param message
+     */
+    public void postMessage(Integer changeNumber, Integer patchNumber,
+                            String message) {
+        GerritReviewBatcher.forServer(getCapabilitiesKey()).submit(
+            reviewSender, null, changeNumber.intValue(),
+            patchNumber.intValue(), message);
+    }
 
-                    @Override
-                    public Authentication getGerritAuthentication() {
-                        return gc.getAuth();
-                    }
+    /**
+     * Post a message on a patch set without voting, unless one with the
+     * same key has already been posted on it from this server. The last
+     * 10000 are remembered. A message that fails to post is forgotten, so
+     * the next call tries again.
+     * 
+     * @param changeNumber
+     * @param patchNumber
+     * @param key
+     *            what the message is about, such as a build result
+     * @param message
+     * @return true if the message was queued, false if it was already
+     */
+    public boolean postMessageOnce(Integer changeNumber, Integer patchNumber,
+                                   String key, String message) {
+        final String id =
+            String.format("%s %s,%s %s", getCapabilitiesKey(), changeNumber,
+                patchNumber, key);
+
+        synchronized (postedOnce) {
+            if (postedOnce.put(id, Boolean.TRUE) != null)
+                return false;
+        }
 
-                    @Override
-                    public String getGerritHostName() {
-                        return gc.getHost();
+        GerritReviewBatcher.forServer(getCapabilitiesKey()).submit(
+            reviewSender, null, changeNumber.intValue(),
+            patchNumber.intValue(), message,
+            new GerritReviewBatcher.Listener() {
+
+                @Override
+                public void done(boolean sent) {
+                    if (!sent) {
+                        synchronized (postedOnce) {
+                            postedOnce.remove(id);
+                        }
                     }
+                }
+            });
 
-                    @Override
-                    public int getGerritSshPort() {
-                        return gc.getPort();
-                    }
+        return true;
+    }
 
-                    @Override
-                    public String getGerritUserName() {
-                        return gc.getUsername();
-                    }
+    /**
+     * Queue a Verified vote to be posted in the background, see
+     * {@link GerritReviewOutbox}. If the vote can't be stored it is posted
+     * at once.
+     * 
+     * @param pass
+     * @param changeNumber
+     * @param patchNumber
+     * @param message
+     * @return true if the vote was queued or posted
+     */
+    public boolean queueVerification(Boolean pass, Integer changeNumber,
+                                     Integer patchNumber, String message) {
+        GerritReviewOutbox outbox = getOutbox();
 
-                    @Override
-                    public String getGerritEMail() {
-                        return gc.getUserEmail();
-                    }
+        if (outbox != null) {
+            try {
+                outbox.enqueue(getCapabilitiesKey(), pass.booleanValue(),
+                    changeNumber.intValue(), patchNumber.intValue(), message);
+                return true;
+            } catch (IOException e) {
+                log.warn("Could not queue vote, posting it now: "
+                    + e.getMessage());
+            }
+        }
 
-                    @Override
-                    public int getWatchdogTimeoutSeconds() {
-                        // return
-                        // (int)TimeUnit.MINUTES.toSeconds(watchdogTimeoutMinutes);
-                        return 0;
-                    }
+        return verifyChange(pass, changeNumber, patchNumber, message);
+    }
 
-                    @Override
-                    public WatchTimeExceptionData getExceptionData() {
-                        List<Integer> days = new LinkedList<Integer>();
-                        List<TimeSpan> exceptionTimes =
-                            new LinkedList<TimeSpan>();
-                        int[] daysAsInt = new int[] {};
-                        daysAsInt =
-                            ArrayUtils.toPrimitive(days
-                                .toArray(new Integer[days.size()]));
-
-                        return new WatchTimeExceptionData(daysAsInt,
-                            exceptionTimes);
-                    }
+    /**
+     * Report a plan's result for a patch set that several plans verify
+     * together, see {@link GerritVoteCoordinator}. Without other required
+     * plans the vote is queued at once, unless it should fail fast: then a
+     * failure decides the vote at once, while a pass waits for the others.
+     * To fail fast, <code>required</code> names every job building the
+     * patch set; a pass of the only job named is voted +1 right away.
+     * 
+     * @param plan
+     * @param required
+     *            plans whose results make up the vote
+     * @param failFast
+     *            coordinate the result even without other required plans
+     * @param pass
+     * @param changeNumber
+     * @param patchNumber
+     * @param message
+     * @return true if the result was taken
+     */
+    public boolean reportVerification(String plan,
+                                      Collection<String> required,
+                                      boolean failFast, Boolean pass,
+                                      Integer changeNumber,
+                                      Integer patchNumber, String message) {
+        if (!failFast
+            && (required.isEmpty() || (required.size() == 1 && required
+                .contains(plan))))
+            return queueVerification(pass, changeNumber, patchNumber, message);
+
+        return getVoteCoordinator().report(this, changeNumber.intValue(),
+            patchNumber.intValue(), plan, required, pass.booleanValue(),
+            message);
+    }
 
-                    @Override
-                    public String getGerritProxy() {
-                        return gc.getProxy();
-                    }
+    /**
+     * @param changeNumber
+     * @param patchNumber
+     * @return the plan whose failure already decided the patch set's vote,
+     *         or null
+     */
+    public String getFailedPlan(Integer changeNumber, Integer patchNumber) {
+        return getVoteCoordinator().getFailedPlan(changeNumber.intValue(),
+            patchNumber.intValue());
+    }
 
-					@Override
-					public String getGerritFrontEndUrl() {
-						// TODO Auto-generated method stub
-						return null;
-					}
-
-					@Override
-					public Credentials getHttpCredentials() {
-						// TODO Auto-generated method stub
-						return null;
-					}
-
-					@Override
-					public int getWatchdogTimeoutMinutes() {
-						// TODO Auto-generated method stub
-						return 0;
-					}
-                });
+    /**
+     * @return where vote rounds are kept, or null if there's no working
+     *         directory
+     */
+    File getRoundsDirectory() {
+        if (gc.getWorkingDirectoryPath() == null)
+            return null;
+
+        return new File(gc.getWorkingDirectoryPath(), ROUNDS_DIRECTORY);
+    }
+
+    private GerritVoteCoordinator getVoteCoordinator() {
+        GerritVoteCoordinator coordinator =
+            GerritVoteCoordinator.forServer(getCapabilitiesKey());
+        File directory = getRoundsDirectory();
+
+        if (directory != null)
+            coordinator.restore(this, directory);
+
+        return coordinator;
+    }
+
+    private GerritReviewOutbox getOutbox() {
+        if (gc.getWorkingDirectoryPath() == null)
+            return null;
+
+        GerritReviewOutbox outbox =
+            GerritReviewOutbox.forDirectory(new File(
+                gc.getWorkingDirectoryPath(), OUTBOX_DIRECTORY));
+
+        outbox.register(getCapabilitiesKey(), votePoster);
+
+        return outbox;
+    }
+
+    private void sendReview(final Integer score, final String message,
+                            final List<GerritReviewBatcher.Vote> votes) throws Exception {
+        StringBuilder targets = new StringBuilder();
+
+        for (GerritReviewBatcher.Vote v : votes)
+            targets.append(' ').append(v.getTarget());
+
+        final String reviewCommand =
+            String.format("gerrit review --message '%s'%s%s", message,
+                (score == null) ? "" : String.format(" --verified %+d", score),
+                targets);
+
+        log.debug("Sending Command: " + reviewCommand);
+
+        callGerrit(GerritOperation.REVIEW, new Callable<Boolean>() {
+
+            @Override
+            public Boolean call() throws Exception {
+                long timeout = gc.getTimeoutMillis(GerritOperation.REVIEW);
+
+                if (gc.isRestTransport()) {
+                    // REST reviews one revision per request
+                    for (GerritReviewBatcher.Vote v : votes)
+                        getRestClient().review(v.getChange(), v.getPatchSet(),
+                            message, (score == null) ? null : "Verified",
+                            (score == null) ? 0 : score, timeout);
+                } else {
+                    getGerritQueryHandler().executeCommand(reviewCommand,
+                        timeout);
+                }
+
+                return true;
+            }
+        });
+
+        if (score != null)
+            for (GerritReviewBatcher.Vote v : votes)
+                getApprovalCache().record(v.getChange(), v.getPatchSet(), score);
+    }
+
+    /**
+     * Run a blocking SSH operation against this server on the shared Gerrit
+     * I/O executor, guarded by the server's circuit breaker and within its
+     * adaptive concurrency limit and the operation's deadline.
+     * 
+     * @param op
+     * @param task
+     * @return
+     * @throws Exception
+     */
+    private <T> T callGerrit(GerritOperation op, final Callable<T> task) throws Exception {
+        return callGerrit(gc.getServerKey(), op, task);
+    }
+
+    private <T> T callGerrit(final String server, final GerritOperation op,
+                             final Callable<T> task) throws Exception {
+        final long timeout = gc.getTimeoutMillis(op);
+
+        return GerritCircuitBreaker.forServer(server).call(new Callable<T>() {
+
+            @Override
+            public T call() throws Exception {
+                // the wait for an executor permit isn't the server's latency
+                final GerritConcurrencyLimiter.Stopwatch watch =
+                    new GerritConcurrencyLimiter.Stopwatch();
+
+                return GerritConcurrencyLimiter.forServer(server).call(op,
+                    new Callable<T>() {
+
+                        @Override
+                        public T call() throws Exception {
+                            // the handler closes its own channel at the
+                            // deadline, this only guards against a hung
+                            // connect
+                            return GerritExecutor.getInstance().call(server,
+                                watch.time(task), (timeout > 0) ? timeout
+                                    + GRACE_MILLIS : 0, null);
+                        }
+                    }, watch);
+            }
+        });
+    }
+
+    /**
+     * Run a read on the next available replica, or on the primary if there
+     * is none. A read that fails on a replica with an I/O error is retried
+     * once on the primary.
+     * 
+     * @param op
+     * @param task
+     * @param primaryOnly
+     *            skip the replicas, e.g. for data that may not have been
+     *            replicated yet
+     * @return
+     * @throws Exception
+     */
+    private <T> T callRead(GerritOperation op, ReadTask<T> task,
+                           boolean primaryOnly) throws Exception {
+        if (getHedger().isEnabled())
+            return callHedged(op, task, primaryOnly);
+
+        if (!primaryOnly) {
+            GerritEndpoint replica =
+                getReplicaRouter().select(gc.getReadReplicas());
+
+            if (replica != null) {
+                try {
+                    return callGerrit(replica.getKey(), op,
+                        bind(task, replica));
+                } catch (IOException e) {
+                    log.warn(String.format(
+                        "Read from replica %s failed, using primary: %s",
+                        replica, e.getMessage()));
+                    getReplicaRouter().fallback();
+                }
+            }
         }
 
-        return cmdProcessor;
+        return callGerrit(op, bind(task, null));
+    }
+
+    /**
+     * Run a read that is sent a second time if it is slow: to another
+     * replica, or to the primary, or over a second channel to the primary if
+     * there are no replicas.
+     * 
+     * @param op
+     * @param task
+     * @param primaryOnly
+     * @return
+     * @throws Exception
+     */
+    private <T> T callHedged(final GerritOperation op,
+                             final ReadTask<T> task, boolean primaryOnly) throws Exception {
+        final List<GerritEndpoint> replicas =
+            primaryOnly ? new ArrayList<GerritEndpoint>(0) : gc
+                .getReadReplicas();
+        final GerritEndpoint first = getReplicaRouter().select(replicas);
+
+        Callable<T> backup = new Callable<T>() {
+
+            @Override
+            public T call() throws Exception {
+                GerritEndpoint second =
+                    (first == null) ? null : getReplicaRouter().select(
+                        replicas, first);
+
+                return callEndpoint(second, op, task);
+            }
+        };
+
+        return getHedger().call(op, new Callable<T>() {
+
+            @Override
+            public T call() throws Exception {
+                return callEndpoint(first, op, task);
+            }
+        }, backup);
+    }
+
+    private <T> T callEndpoint(GerritEndpoint replica, GerritOperation op,
+                               ReadTask<T> task) throws Exception {
+        if (replica == null)
+            return callGerrit(op, bind(task, null));
+
+        return callGerrit(replica.getKey(), op, bind(task, replica));
+    }
+
+    public GerritHedger getHedger() {
+        return GerritHedger.forServer(gc.getServerKey());
+    }
+
+    private static <T> Callable<T> bind(final ReadTask<T> task,
+                                        final GerritEndpoint replica) {
+        return new Callable<T>() {
+
+            @Override
+            public T call() throws Exception {
+                return task.call(replica);
+            }
+        };
+    }
+
+    /**
+     * Like {@link #callRead(GerritOperation, ReadTask, boolean)}, but
+     * concurrent calls with the same key share a single execution. Each
+     * caller gets its own copy of the result list.
+     * 
+     * @param key
+     *            everything the result depends on, including the account,
+     *            since visibility differs between users
+     * @param op
+     * @param task
+     * @param primaryOnly
+     * @return
+     * @throws Exception
+     */
+    private List<JSONObject>
+                    callShared(String key, final GerritOperation op,
+                               final ReadTask<List<JSONObject>> task,
+                               final boolean primaryOnly) throws Exception {
+        if (primaryOnly)
+            key += " primary";
+
+        List<JSONObject> result =
+            getSingleFlight().execute(key, new Callable<List<JSONObject>>() {
+
+                @Override
+                public List<JSONObject> call() throws Exception {
+                    return callRead(op, task, primaryOnly);
+                }
+            });
+
+        return (result == null) ? null : new ArrayList<JSONObject>(result);
+    }
+
+    public GerritReplicaRouter getReplicaRouter() {
+        return GerritReplicaRouter.forServer(gc.getServerKey());
+    }
+
+    public GerritSingleFlight getSingleFlight() {
+        return GerritSingleFlight.forServer(gc.getServerKey());
+    }
+
+    public GerritConcurrencyLimiter getConcurrencyLimiter() {
+        return GerritConcurrencyLimiter.forServer(gc.getServerKey());
+    }
+
+    public GerritCircuitBreaker getCircuitBreaker() {
+        return GerritCircuitBreaker.forServer(gc.getServerKey());
+    }
+
+    /**
+     * @return false while the server's circuit breaker is failing calls fast
+     */
+    public boolean isAvailable() {
+        return getCircuitBreaker().isAvailable();
+    }
+
+    private String sendCommandStr(final String command) throws RepositoryException {
+        try {
+            return callGerrit(GerritOperation.COMMAND, new Callable<String>() {
+
+                @Override
+                public String call() throws Exception {
+                    return getGerritQueryHandler().executeCommand(command,
+                        gc.getTimeoutMillis(GerritOperation.COMMAND));
+                }
+            });
+        } catch (Exception e) {
+            throw new RepositoryException(e);
+        }
     }
 
     private synchronized GerritSQLHandler getGerritQueryHandler() {
@@ -469,10 +952,171 @@ public class GerritService {
         return gQueryHandler;
     }
 
+    private GerritSQLHandler getGerritQueryHandler(GerritEndpoint replica) {
+        if (replica == null)
+            return getGerritQueryHandler();
+
+        synchronized (replicaHandlers) {
+            GerritSQLHandler h = replicaHandlers.get(replica.getKey());
+
+            if (h == null) {
+                h =
+                    new GerritSQLHandler(replica.getHost(), replica.getPort(),
+                        gc.getProxy(), gc.getAuth());
+                replicaHandlers.put(replica.getKey(), h);
+            }
+
+            return h;
+        }
+    }
+
+    private synchronized GerritRestClient getRestClient() {
+        if (restClient == null) {
+            restClient =
+                new GerritRestClient(gc.getFrontEndUrl(),
+                    gc.getHttpUsername(), gc.getHttpPassword());
+        }
+
+        return restClient;
+    }
+
+    private GerritRestClient getRestClient(GerritEndpoint replica) {
+        if (replica == null)
+            return getRestClient();
+
+        synchronized (replicaRestClients) {
+            GerritRestClient c = replicaRestClients.get(replica.getKey());
+
+            if (c == null) {
+                c =
+                    new GerritRestClient(replica.getUrl(),
+                        gc.getHttpUsername(), gc.getHttpPassword());
+                replicaRestClients.put(replica.getKey(), c);
+            }
+
+            return c;
+        }
+    }
+
+    /**
+     * Run a REST call under the same guards as an SSH command.
+     * 
+     * @param op
+     * @param task
+     * @return
+     * @throws RepositoryException
+     */
+    private <T> T callRest(GerritOperation op, Callable<T> task) throws RepositoryException {
+        try {
+            return callGerrit(op, task);
+        } catch (RepositoryException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RepositoryException(e.getMessage(), e);
+        }
+    }
+
+    private <T> T readRest(GerritOperation op, ReadTask<T> task) throws RepositoryException {
+        try {
+            return callRead(op, task, false);
+        } catch (RepositoryException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RepositoryException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Open the sessions, resolve the version and load the project catalog so
+     * later calls don't pay for them. Runs in the background, see
+     * {@link GerritWarmup}.
+     * 
+     * @throws Exception
+     */
+    public void warmUp() throws Exception {
+        if (!gc.isRestTransport()) {
+            getGerritQueryHandler().warmUp();
+
+            for (GerritEndpoint replica : gc.getReadReplicas())
+                getGerritQueryHandler(replica).warmUp();
+        }
+
+        getCapabilities();
+        listProjects();
+    }
+
+    /**
+     * Projects visible to the account. The list is cached per server; once
+     * it is older than <code>gerrit.projects.ttlMillis</code> the cached
+     * list is returned while a fresh one is fetched in the background.
+     * 
+     * @return
+     * @throws RepositoryException
+     */
     public List<String> getProjects() throws RepositoryException {
+        ProjectCatalog catalog = projectCatalogs.get(getCatalogKey());
+
+        if (catalog == null)
+            return listProjects();
+
+        long age = System.currentTimeMillis() - catalog.listedAt;
+
+        if (age > Long.getLong(PROP_PROJECTS_TTL, DEFAULT_PROJECTS_TTL)) {
+            GerritWarmup.submit(this, "projects", new Callable<List<String>>() {
+
+                @Override
+                public List<String> call() throws Exception {
+                    return listProjects();
+                }
+            });
+        }
+
+        return new ArrayList<String>(catalog.projects);
+    }
+
+    private String getCatalogKey() {
+        return gc.getServerKey() + " " + gc.getUsername() + " "
+            + gc.getTransport();
+    }
+
+    private List<String> listProjects() throws RepositoryException {
+        List<String> projects = fetchProjects();
+
+        projectCatalogs.put(getCatalogKey(), new ProjectCatalog(projects));
+
+        return projects;
+    }
+
+    private List<String> fetchProjects() throws RepositoryException {
+        if (gc.isRestTransport()) {
+            return readRest(GerritOperation.COMMAND,
+                new ReadTask<List<String>>() {
+
+                    @Override
+                    public List<String> call(GerritEndpoint replica) throws Exception {
+                        return getRestClient(replica).listProjects(
+                            gc.getTimeoutMillis(GerritOperation.COMMAND));
+                    }
+                });
+        }
+
         List<String> listProjects = new ArrayList<String>();
-        String projects =
-            getGerritCmdProcessor().sendCommandStr("gerrit ls-projects");
+        String projects;
+
+        try {
+            projects =
+                callRead(GerritOperation.COMMAND, new ReadTask<String>() {
+
+                    @Override
+                    public String call(GerritEndpoint replica) throws Exception {
+                        return getGerritQueryHandler(replica).executeCommand(
+                            "gerrit ls-projects",
+                            gc.getTimeoutMillis(GerritOperation.COMMAND));
+                    }
+                }, false);
+        } catch (Exception e) {
+            throw new RepositoryException(e);
+        }
 
         BufferedReader bufReader =
             new BufferedReader(new StringReader(projects));
@@ -491,8 +1135,15 @@ public class GerritService {
     }
 
     public Boolean isGerritProject(String project) throws RepositoryException {
-        List<String> projects = getProjects();
+        if (containsProject(getProjects(), project))
+            return true;
 
+        // the cached catalog may predate the project
+        return containsProject(listProjects(), project);
+    }
+
+    private static boolean containsProject(List<String> projects,
+                                           String project) {
         for (String p : projects) {
             if (p.contains(project)) {
                 return true;
@@ -504,11 +1155,156 @@ public class GerritService {
 
     public String getGerritVersion() {
         if (version == null)
-            version = getGerritCmdProcessor().sendCommandStr("gerrit version");
+            version = versions.get(gc.getServerKey());
+
+        if (version == null) {
+            try {
+                if (gc.isRestTransport()) {
+                    version =
+                        callRest(GerritOperation.COMMAND,
+                            new Callable<String>() {
+
+                                @Override
+                                public String call() throws Exception {
+                                    return getRestClient().getVersion(
+                                        gc.getTimeoutMillis(GerritOperation.COMMAND));
+                                }
+                            });
+                } else {
+                    version = sendCommandStr("gerrit version");
+                }
+
+                if (version != null)
+                    versions.put(gc.getServerKey(), version);
+            } catch (RepositoryException e) {
+                log.error(e.getMessage());
+            }
+        }
 
         return version;
     }
 
+    /**
+     * What the server supports, probed once per server and account and then
+     * cached, see {@link GerritCapabilities}.
+     * 
+     * @return
+     */
+    public GerritCapabilities getCapabilities() {
+        final String key = getCapabilitiesKey();
+        GerritCapabilities c = GerritCapabilities.forServer(key);
+
+        if (c != null)
+            return c;
+
+        try {
+            return getSingleFlight().execute("capabilities " + key,
+                new Callable<GerritCapabilities>() {
+
+                    @Override
+                    public GerritCapabilities call() throws Exception {
+                        GerritCapabilities probed = probeCapabilities();
+
+                        log.info(String.format("Gerrit %s: %s",
+                            gc.getServerKey(), probed));
+
+                        return GerritCapabilities.register(key, probed);
+                    }
+                });
+        } catch (Exception e) {
+            // not cached, the next call probes again
+            log.warn("Gerrit capability probe failed: " + e.getMessage());
+            return new GerritCapabilities(getGerritVersion());
+        }
+    }
+
+    // gsql access is granted per account
+    String getCapabilitiesKey() {
+        return gc.getServerKey() + " " + gc.getUsername();
+    }
+
+    private GerritCapabilities probeCapabilities() {
+        final GerritCapabilities c =
+            new GerritCapabilities(getGerritVersion());
+
+        if (gc.isRestTransport()) {
+            // the REST mapping always fills in the author
+            c.setAuthorSupported(true);
+            c.setRestAvailable(true);
+        } else {
+            probeAuthor(c);
+        }
+
+        if (c.isGsqlSupported()) {
+            try {
+                callGerrit(GerritOperation.GSQL, new Callable<Object>() {
+
+                    @Override
+                    public Object call() throws Exception {
+                        return getGerritQueryHandler().querySQL(
+                            "select * from schema_version",
+                            gc.getTimeoutMillis(GerritOperation.GSQL));
+                    }
+                });
+            } catch (Exception e) {
+                log.info("gsql unavailable: " + e.getMessage());
+                c.setGsqlAvailable(false);
+            }
+        }
+
+        if (!gc.isRestTransport() && c.isRestSupported()
+            && gc.getFrontEndUrl() != null && !gc.getFrontEndUrl().isEmpty()) {
+            try {
+                callRest(GerritOperation.COMMAND, new Callable<String>() {
+
+                    @Override
+                    public String call() throws Exception {
+                        return getRestClient().getVersion(
+                            gc.getTimeoutMillis(GerritOperation.COMMAND));
+                    }
+                });
+                c.setRestAvailable(true);
+            } catch (RepositoryException e) {
+                log.info("REST API unavailable: " + e.getMessage());
+            }
+        }
+
+        return c;
+    }
+
+    // older servers leave the author out of patch sets
+    private void probeAuthor(GerritCapabilities c) {
+        List<JSONObject> rows;
+
+        try {
+            rows =
+                callGerrit(GerritOperation.QUERY,
+                    new Callable<List<JSONObject>>() {
+
+                        @Override
+                        public List<JSONObject> call() throws Exception {
+                            return getGerritQueryHandler().queryJava(
+                                "limit:1", false, true, false,
+                                gc.getTimeoutMillis(GerritOperation.QUERY));
+                        }
+                    });
+        } catch (Exception e) {
+            log.info("Author probe failed: " + e.getMessage());
+            return;
+        }
+
+        for (JSONObject row : rows) {
+            JSONObject ps =
+                row.optJSONObject(GerritChangeVO.JSON_KEY_CURRENT_PATCH_SET);
+
+            if (ps != null) {
+                c.setAuthorSupported(ps
+                    .has(GerritChangeVO.JSON_KEY_PATCH_SET_AUTHOR));
+                return;
+            }
+        }
+    }
+
     /**
      * Must have "Access Database" granted under Global Capabilities in Gerrit
      * 
@@ -518,6 +1314,24 @@ public class GerritService {
      */
     public GerritUserVO
                     getUserVOByName(String userName) throws RepositoryException {
+        if (gc.isRestTransport())
+            return getRestUserVO(gc.getUsername());
+
+        GerritCapabilities caps = getCapabilities();
+
+        if (!caps.isGsqlAvailable()) {
+            if (caps.isRestAvailable())
+                return getRestUserVO(gc.getUsername());
+
+            // nothing to look the account up with
+            GerritUserVO user = new GerritUserVO();
+
+            user.setUserName(gc.getUsername());
+            user.setEmail(gc.getUserEmail());
+
+            return user;
+        }
+
         GerritUserVO gerritUserVO = null;
 
         List<JSONObject> jsonObjects =
@@ -556,6 +1370,32 @@ public class GerritService {
         return gerritUserVO;
     }
 
+    private GerritUserVO
+                    getRestUserVO(final String userName) throws RepositoryException {
+        ReadTask<JSONObject> task = new ReadTask<JSONObject>() {
+
+            @Override
+            public JSONObject call(GerritEndpoint replica) throws Exception {
+                return getRestClient(replica).getAccount(userName,
+                    gc.getTimeoutMillis(GerritOperation.COMMAND));
+            }
+        };
+
+        // the replicas are SSH endpoints unless REST is the transport
+        JSONObject account =
+            gc.isRestTransport() ? readRest(GerritOperation.COMMAND, task)
+                : callRest(GerritOperation.COMMAND, bind(task, null));
+
+        GerritUserVO user = new GerritUserVO();
+
+        user.setId(account.optString("_account_id", ""));
+        user.setUserName(account.optString("username", userName));
+        user.setFullName(account.optString("name", ""));
+        user.setEmail(account.optString("email", ""));
+
+        return user;
+    }
+
     /**
      * Must have "Access Database" granted under Global Capabilities in Gerrit
      * 
@@ -584,19 +1424,38 @@ public class GerritService {
      * @throws RepositoryException
      */
     public List<JSONObject>
-                    runGerritSQL(String query) throws RepositoryException {
+                    runGerritSQL(final String query) throws RepositoryException {
         List<JSONObject> jsonObjects = null;
 
         log.debug("Gerrit query: " + query);
 
+        if (!getCapabilities().isGsqlAvailable()) {
+            throw new RepositoryException(String.format(
+                "gsql is not available to %s on Gerrit %s.", gc.getUsername(),
+                getGerritVersion()));
+        }
+
         try {
-            jsonObjects = getGerritQueryHandler().querySQL(query);
+            jsonObjects =
+                callShared(gc.getUsername() + " gsql:" + query,
+                    GerritOperation.GSQL, new ReadTask<List<JSONObject>>() {
+
+                        @Override
+                        public List<JSONObject>
+                                        call(GerritEndpoint replica) throws Exception {
+                            return getGerritQueryHandler(replica).querySQL(
+                                query,
+                                gc.getTimeoutMillis(GerritOperation.GSQL));
+                        }
+                    }, false);
         } catch (SshException e) {
             throw new RepositoryException("SSH connection error", e);
         } catch (IOException e) {
             throw new RepositoryException(e.getMessage());
         } catch (GerritQueryException e) {
             throw new RepositoryException(e.getMessage());
+        } catch (Exception e) {
+            throw new RepositoryException(e);
         }
 
         if (jsonObjects == null || jsonObjects.isEmpty()) {
@@ -623,20 +1482,52 @@ public class GerritService {
     }
 
     public List<JSONObject>
-                    runGerritQuery(String query) throws RepositoryException {
+                    runGerritQuery(final String query) throws RepositoryException {
+        return runGerritQuery(query, false);
+    }
+
+    /**
+     * @param query
+     * @param primaryOnly
+     *            don't read from replicas
+     * @return
+     * @throws RepositoryException
+     */
+    private List<JSONObject>
+                    runGerritQuery(final String query, boolean primaryOnly) throws RepositoryException {
         List<JSONObject> jsonObjects = null;
 
         log.debug("Gerrit query: " + query);
 
+        final boolean files = getCapabilities().isFilesSupported();
+
         try {
             jsonObjects =
-                getGerritQueryHandler().queryJava(query, true, true, true);
+                callShared(gc.getUsername() + " query:" + query,
+                    GerritOperation.QUERY, new ReadTask<List<JSONObject>>() {
+
+                        @Override
+                        public List<JSONObject>
+                                        call(GerritEndpoint replica) throws Exception {
+                            long timeout =
+                                gc.getTimeoutMillis(GerritOperation.QUERY);
+
+                            if (gc.isRestTransport())
+                                return getRestClient(replica).queryChanges(
+                                    query, true, true, true, timeout);
+
+                            return getGerritQueryHandler(replica).queryJava(
+                                query, true, true, files, timeout);
+                        }
+                    }, primaryOnly);
         } catch (SshException e) {
             throw new RepositoryException("SSH connection error", e);
         } catch (IOException e) {
             throw new RepositoryException(e.getMessage());
         } catch (GerritQueryException e) {
             throw new RepositoryException(e.getMessage());
+        } catch (Exception e) {
+            throw new RepositoryException(e);
         }
 
         if (jsonObjects == null || jsonObjects.isEmpty()) {
@@ -695,6 +1586,7 @@ public class GerritService {
                     getLastUnverifiedChanges() throws RepositoryException {
         log.debug("getLastUnverifiedChange()...");
 
+        // not -label:Verified=1, which also drops a +1 outweighed by a -1
         Set<GerritChangeVO> changes = getGerritChangeInfo();
 
         ConcurrentSkipListSet<GerritChangeVO> filtedChanges =
@@ -787,7 +1679,13 @@ public class GerritService {
 
         List<JSONObject> jsonObjects = null;
 
-        jsonObjects = runGerritQuery(String.format("change:%s", changeID));
+        String query = String.format("change:%s", changeID);
+
+        jsonObjects = runGerritQuery(query);
+
+        // a replica may not have caught up with a change just uploaded
+        if (jsonObjects == null && !gc.getReadReplicas().isEmpty())
+            jsonObjects = runGerritQuery(query, true);
 
         if (jsonObjects == null) {
             return null;
@@ -802,7 +1700,13 @@ public class GerritService {
 
         List<JSONObject> jsonObjects = null;
 
-        jsonObjects = runGerritQuery(String.format("commit:%s", rev));
+        String query = String.format("commit:%s", rev);
+
+        jsonObjects = runGerritQuery(query);
+
+        // a replica may not have caught up with a change just uploaded
+        if (jsonObjects == null && !gc.getReadReplicas().isEmpty())
+            jsonObjects = runGerritQuery(query, true);
 
         if (jsonObjects == null) {
             return null;
@@ -814,7 +1718,59 @@ public class GerritService {
     public Set<GerritChangeVO> getGerritChangeInfo() throws RepositoryException {
         log.debug("getGerritChangeInfo()...");
 
-        List<JSONObject> jsonObjects = runGerritQuery("is:open");
+        return getGerritChangeInfoByQuery("is:open");
+    }
+
+    /**
+     * Retrieve the open changes updated since a point in time, newest first.
+     * Servers before 2.9 have no <code>after:</code>, so they are asked by
+     * <code>-age:</code> with some slack for clock skew, and the changes
+     * updated before the time are dropped here.
+     *
+     * @param since
+     *            in the server's time
+     * @param limit
+     *            most changes returned
+     * @return
+     * @throws RepositoryException
+     */
+    public Set<GerritChangeVO>
+                    getChangesUpdatedSince(Date since, int limit) throws RepositoryException {
+        String window;
+
+        log.debug(String.format("getChangesUpdatedSince(since=%s)...", since));
+
+        if (getCapabilities().isAfterPredicateSupported()) {
+            SimpleDateFormat df =
+                new SimpleDateFormat("yyyy-MM-dd HH:mm:ss Z", Locale.ENGLISH);
+
+            df.setTimeZone(TimeZone.getTimeZone("UTC"));
+            window = String.format("after:\"%s\"", df.format(since));
+        } else {
+            long age =
+                (System.currentTimeMillis() - since.getTime()) / 1000
+                    + AGE_SLACK_SECONDS;
+
+            window = String.format("-age:%ds", Math.max(1, age));
+        }
+
+        Set<GerritChangeVO> changes =
+            getGerritChangeInfoByQuery(String.format("is:open %s limit:%d",
+                window, limit));
+
+        for (Iterator<GerritChangeVO> i = changes.iterator(); i.hasNext();) {
+            Date updated = i.next().getLastUpdate();
+
+            if (updated != null && updated.before(since))
+                i.remove();
+        }
+
+        return changes;
+    }
+
+    private Set<GerritChangeVO>
+                    getGerritChangeInfoByQuery(String query) throws RepositoryException {
+        List<JSONObject> jsonObjects = runGerritQuery(query);
         Set<GerritChangeVO> results = new HashSet<GerritChangeVO>(0);
 
         if (jsonObjects == null) {
@@ -835,17 +1791,12 @@ public class GerritService {
 
     public Set<GerritChangeVO>
                     getGerritChangeInfo(String project) throws RepositoryException {
-        String strQuery = String.format("is:open project:%s", project);
-
         log.debug(String.format("getGerritChangeInfo(project=%s)...", project));
 
-        List<JSONObject> jsonObjects = runGerritQuery(strQuery);
+        List<JSONObject> jsonObjects =
+            getPollAggregator().queryOpen(project, null, queryRunner);
         Set<GerritChangeVO> results = new HashSet<GerritChangeVO>(0);
 
-        if (jsonObjects == null) {
-            return results;
-        }
-
         log.info("Query result count: " + jsonObjects.size());
 
         for (JSONObject j : jsonObjects) {
@@ -869,9 +1820,6 @@ public class GerritService {
      */
     public Set<GerritChangeVO>
                     getGerritChangeInfo(String project, String branch) throws RepositoryException {
-        String strQuery =
-            String.format("is:open project:%s branch:%s", project, branch);
-
         log.debug(String.format(
             "getGerritChangeInfo(project=%s, branch:%s)...", project, branch));
 
@@ -880,13 +1828,11 @@ public class GerritService {
                 "Invalid branch setting. Please provide a valid branch configuration setting!");
         }
 
-        List<JSONObject> jsonObjects = runGerritQuery(strQuery);
+        // batched with the polls of other plans on this server
+        List<JSONObject> jsonObjects =
+            getPollAggregator().queryOpen(project, branch, queryRunner);
         Set<GerritChangeVO> results = new HashSet<GerritChangeVO>(0);
 
-        if (jsonObjects == null) {
-            return results;
-        }
-
         log.info("Query result count: " + jsonObjects.size());
 
         for (JSONObject j : jsonObjects) {
@@ -899,6 +1845,11 @@ public class GerritService {
         return results;
     }
 
+    public GerritPollAggregator getPollAggregator() {
+        return GerritPollAggregator.forKey(gc.getServerKey() + " "
+            + gc.getUsername());
+    }
+
     private class SortByUnVerifiedLastUpdate extends SortByLastUpdate {
 
         public int compare(GerritChangeVO c1, GerritChangeVO c2) {
@@ -1045,6 +1996,8 @@ public class GerritService {
 
         log.debug(String.format("Object Transformed change=%s", info.toString()));
 
+        getApprovalCache().observe(info, gc.getUserEmail());
+
         return info;
     }
 
@@ -1069,24 +2022,19 @@ public class GerritService {
         	patch.setUploaderEmail(patchSetUploader
         			.getString(GerritChangeVO.JSON_KEY_EMAIL));
 
-        try {
-            if (authorSupported) {
-                JSONObject author =
-                    p.getJSONObject(GerritChangeVO.JSON_KEY_PATCH_SET_AUTHOR);
-                if (author != null) {
-                    patch.setAuthorEmail(author
-                        .getString(GerritChangeVO.JSON_KEY_EMAIL));
-                    patch.setAuthorUserName(author
-                        .getString(GerritChangeVO.JSON_KEY_USERNAME));
-                    patch.setAuthorName(author
-                        .getString(GerritChangeVO.JSON_KEY_NAME));
-                }
+        if (getCapabilities().isAuthorSupported()) {
+            JSONObject author =
+                p.optJSONObject(GerritChangeVO.JSON_KEY_PATCH_SET_AUTHOR);
+
+            // accounts without a username or email leave those keys out
+            if (author != null) {
+                patch.setAuthorEmail(author.optString(
+                    GerritChangeVO.JSON_KEY_EMAIL, null));
+                patch.setAuthorUserName(author.optString(
+                    GerritChangeVO.JSON_KEY_USERNAME, null));
+                patch.setAuthorName(author.optString(
+                    GerritChangeVO.JSON_KEY_NAME, null));
             }
-        } catch (JSONException e) {
-            authorSupported = false;
-            log.error(String.format("Author not supported in release %s: %s",
-                getGerritVersion(), e.getMessage()));
-            log.error("Disabling author lookup.");
         }
 
         Integer patchSetCreatedOn =
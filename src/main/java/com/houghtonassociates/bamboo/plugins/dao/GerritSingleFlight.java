@@ -0,0 +1,102 @@
+/*
+ * Houghton Associates Framework
+ * http://www.houghtonassociates.com
+ *
+ * Copyright 2014 Houghton Associates, Inc.
+ */
+package com.houghtonassociates.bamboo.plugins.dao;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces identical Gerrit requests that are in flight at the same time.
+ *
+ * The first caller for a key runs the request, callers arriving while it is
+ * running wait for and share its result (or exception). Nothing is kept once
+ * the request completes, so a result is never older than the request that
+ * produced it.
+ */
+public class GerritSingleFlight {
+
+    private static final ConcurrentMap<String, GerritSingleFlight> flights =
+        new ConcurrentHashMap<String, GerritSingleFlight>();
+
+    private final ConcurrentMap<String, FutureTask<?>> inFlight =
+        new ConcurrentHashMap<String, FutureTask<?>>();
+
+    private final AtomicLong executed = new AtomicLong(0);
+    private final AtomicLong shared = new AtomicLong(0);
+
+    public static GerritSingleFlight forServer(String server) {
+        GerritSingleFlight f = flights.get(server);
+
+        if (f == null) {
+            GerritSingleFlight created = new GerritSingleFlight();
+            f = flights.putIfAbsent(server, created);
+            if (f == null)
+                f = created;
+        }
+
+        return f;
+    }
+
+    /**
+     * Run the request unless an identical one is already running, in which
+     * case wait for that one instead.
+     *
+     * @param key
+     *            identifies identical requests
+     * @param task
+     * @return the shared result; callers must not modify it
+     * @throws Exception
+     *             the exception thrown by the request
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String key, Callable<T> task) throws Exception {
+        FutureTask<T> created = new FutureTask<T>(task);
+        FutureTask<T> f = (FutureTask<T>) inFlight.putIfAbsent(key, created);
+
+        if (f == null) {
+            f = created;
+            executed.incrementAndGet();
+
+            try {
+                f.run();
+            } finally {
+                inFlight.remove(key, f);
+            }
+        } else {
+            shared.incrementAndGet();
+        }
+
+        try {
+            return f.get();
+        } catch (ExecutionException e) {
+            throw GerritExecutor.unwrap(e);
+        }
+    }
+
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    public long getExecutedCount() {
+        return executed.get();
+    }
+
+    public long getSharedCount() {
+        return shared.get();
+    }
+
+    @Override
+    public String toString() {
+        return "GerritSingleFlight [inFlight=" + getInFlightCount()
+            + ", executed=" + getExecutedCount() + ", shared="
+            + getSharedCount() + "]";
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Houghton Associates Framework
+ * http://www.houghtonassociates.com
+ *
+ * Copyright 2014 Houghton Associates, Inc.
+ */
+package com.houghtonassociates.bamboo.plugins.dao;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.sonymobile.tools.gerrit.gerritevents.ssh.Authentication;
+import com.sonymobile.tools.gerrit.gerritevents.ssh.SshConnection;
+import com.sonymobile.tools.gerrit.gerritevents.ssh.SshConnectionFactory;
+
+/**
+ * Keeps one authenticated SSH session open per Gerrit server and account.
+ *
+ * Commands run as separate channels over the shared session, so only the
+ * first command pays for the handshake. Each command closes its own
+ * channel, also when it runs past its deadline, so a hung command doesn't
+ * leave a channel behind on the session the others share. Sessions idle for
+ * <code>keepAliveMillis</code> are pinged with <code>gerrit version</code>;
+ * a session that fails the ping is dropped and reopened in the background.
+ *
+ * Tunables (system properties):
+ * <ul>
+ * <li>gerrit.ssh.pooled - share sessions between commands, default true</li>
+ * <li>gerrit.ssh.keepAliveMillis - idle time before a ping, default 60000,
+ * 0 disables pings</li>
+ * </ul>
+ */
+public class GerritSshSessions {
+
+    public static final String PROP_POOLED = "gerrit.ssh.pooled";
+    public static final String PROP_KEEP_ALIVE = "gerrit.ssh.keepAliveMillis";
+
+    private static final long DEFAULT_KEEP_ALIVE = 60000;
+
+    private static final String PING_COMMAND = "gerrit version";
+    private static final long PING_TIMEOUT = 30000;
+
+    private static final Logger log = Logger.getLogger(GerritSshSessions.class);
+
+    private static final ConcurrentMap<String, GerritSshSessions> sessions =
+        new ConcurrentHashMap<String, GerritSshSessions>();
+
+    private static final boolean pooled = Boolean.parseBoolean(System
+        .getProperty(PROP_POOLED, "true"));
+    private static final long keepAliveMillis = Long.getLong(PROP_KEEP_ALIVE,
+        DEFAULT_KEEP_ALIVE);
+    private static final AtomicBoolean keepAliveStarted = new AtomicBoolean(
+        false);
+
+    private final String key;
+    private final String host;
+    private final int port;
+    private final String proxy;
+    private final Authentication auth;
+
+    private SshConnection connection = null;
+    private long lastUsed = 0;
+    private final AtomicBoolean pinging = new AtomicBoolean(false);
+
+    private final AtomicLong connects = new AtomicLong(0);
+    private final AtomicLong reuses = new AtomicLong(0);
+    private final AtomicLong pings = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+
+    public static GerritSshSessions forServer(String host, int port,
+                                              String proxy, Authentication auth) {
+        String key = auth.getUsername() + "@" + host + ":" + port;
+        GerritSshSessions s = sessions.get(key);
+
+        if (s == null) {
+            GerritSshSessions created =
+                new GerritSshSessions(key, host, port, proxy, auth);
+
+            s = sessions.putIfAbsent(key, created);
+            if (s == null) {
+                s = created;
+                startKeepAlive();
+            }
+        }
+
+        return s;
+    }
+
+    private static void startKeepAlive() {
+        if (!pooled || keepAliveMillis <= 0
+            || !keepAliveStarted.compareAndSet(false, true))
+            return;
+
+        GerritExecutor.getInstance().scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                for (GerritSshSessions s : sessions.values())
+                    s.keepAlive();
+            }
+        }, keepAliveMillis);
+    }
+
+    private GerritSshSessions(String key, String host, int port, String proxy,
+                              Authentication auth) {
+        this.key = key;
+        this.host = host;
+        this.port = port;
+        this.proxy = proxy;
+        this.auth = auth;
+    }
+
+    /**
+     * @return a connected session; pass it back to {@link #release} or
+     *         {@link #invalidate} when done
+     * @throws IOException
+     *             the session couldn't be opened
+     */
+    public SshConnection acquire() throws IOException {
+        if (!pooled)
+            return connect();
+
+        synchronized (this) {
+            lastUsed = System.currentTimeMillis();
+
+            if (connection != null && !connection.isConnected()) {
+                log.info(key + ": SSH session lost, reconnecting.");
+                connection = null;
+                dropped.incrementAndGet();
+            }
+
+            if (connection != null) {
+                reuses.incrementAndGet();
+                return connection;
+            }
+
+            // serialized, so concurrent first commands share one handshake
+            connection = connect();
+
+            return connection;
+        }
+    }
+
+    private SshConnection connect() throws IOException {
+        SshConnection c =
+            SshConnectionFactory.getConnection(host, port, proxy, auth);
+
+        connects.incrementAndGet();
+
+        return c;
+    }
+
+    /**
+     * The command is done with the session.
+     *
+     * @param c
+     */
+    public void release(SshConnection c) {
+        if (!pooled && c != null)
+            c.disconnect();
+    }
+
+    /**
+     * The session is broken; close it so the next command reconnects.
+     *
+     * @param c
+     */
+    public void invalidate(SshConnection c) {
+        if (c == null)
+            return;
+
+        synchronized (this) {
+            if (connection == c) {
+                connection = null;
+                dropped.incrementAndGet();
+            }
+        }
+
+        c.disconnect();
+    }
+
+    /**
+     * Open the session ahead of the first command.
+     *
+     * @throws IOException
+     */
+    public void warmUp() throws IOException {
+        release(acquire());
+    }
+
+    private void keepAlive() {
+        final SshConnection c;
+
+        synchronized (this) {
+            if (connection == null
+                || System.currentTimeMillis() - lastUsed < keepAliveMillis)
+                return;
+
+            c = connection;
+        }
+
+        if (!pinging.compareAndSet(false, true))
+            return;
+
+        // pings block, keep them off the watchdog thread
+        GerritExecutor.getInstance().submit(null, new Callable<Void>() {
+
+            @Override
+            public Void call() throws Exception {
+                ScheduledFuture<?> abort =
+                    GerritExecutor.getInstance().schedule(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            c.disconnect();
+                        }
+                    }, PING_TIMEOUT);
+
+                try {
+                    pings.incrementAndGet();
+                    c.executeCommand(PING_COMMAND);
+
+                    synchronized (GerritSshSessions.this) {
+                        lastUsed = System.currentTimeMillis();
+                    }
+                } catch (Exception e) {
+                    log.info(String.format(
+                        "%s: keep-alive failed, reopening SSH session: %s",
+                        key, e.getMessage()));
+                    invalidate(c);
+
+                    try {
+                        warmUp();
+                    } catch (IOException ie) {
+                        log.warn(key + ": reconnect failed: "
+                            + ie.getMessage());
+                    }
+                } finally {
+                    abort.cancel(false);
+                    pinging.set(false);
+                }
+
+                return null;
+            }
+        });
+    }
+
+    public static boolean isPooled() {
+        return pooled;
+    }
+
+    public synchronized boolean isConnected() {
+        return connection != null && connection.isConnected();
+    }
+
+    public long getConnectCount() {
+        return connects.get();
+    }
+
+    public long getReuseCount() {
+        return reuses.get();
+    }
+
+    public long getPingCount() {
+        return pings.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    @Override
+    public String toString() {
+        return "GerritSshSessions [key=" + key + ", connected="
+            + isConnected() + ", connects=" + getConnectCount() + ", reuses="
+            + getReuseCount() + ", pings=" + getPingCount() + ", dropped="
+            + getDroppedCount() + "]";
+    }
+}
@@ -0,0 +1,555 @@
+/*
+ * Houghton Associates Framework
+ * http://www.houghtonassociates.com
+ *
+ * Copyright 2014 Houghton Associates, Inc.
+ */
+package com.houghtonassociates.bamboo.plugins.dao;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Combines the results of several plans building the same patch set into
+ * one Verified vote.
+ *
+ * Each plan reports its result together with the plans that must report
+ * for the patch set. The vote is posted once:
+ * <ul>
+ * <li>a plan fails: Verified -1 right away, later results are ignored</li>
+ * <li>all required plans passed: Verified +1</li>
+ * <li>a required plan hasn't reported within
+ * <code>gerrit.verify.reportTimeoutMillis</code> (default 7200000) of the
+ * first report: Verified -1 naming the missing plans. If they still pass
+ * later, +1 is posted after all.</li>
+ * </ul>
+ * The message lists each plan's own message. Results are reported by the
+ * server-side build processor, so the jobs of every agent meet in the
+ * server's coordinator.
+ *
+ * Each round is also kept in a file in the reporting service's rounds
+ * directory, next to its outbox, so a restart neither loses the results
+ * reported so far nor forgets a decided vote. Rounds left over from a
+ * previous run are picked up once a service for their server restores
+ * them, and their timeouts run from the original first report.
+ */
+public class GerritVoteCoordinator {
+
+    public static final String PROP_TIMEOUT =
+        "gerrit.verify.reportTimeoutMillis";
+
+    private static final long DEFAULT_TIMEOUT = 7200000;
+
+    private static final String SUFFIX = ".round";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final String RESULT = "result.";
+
+    private static final Logger log = Logger
+        .getLogger(GerritVoteCoordinator.class);
+
+    private static final ConcurrentMap<String, GerritVoteCoordinator> coordinators =
+        new ConcurrentHashMap<String, GerritVoteCoordinator>();
+
+    private static final ScheduledExecutorService timer = Executors
+        .newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "gerrit-vote-coordinator");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    private static class Result {
+
+        final boolean passed;
+        final String message;
+
+        Result(boolean passed, String message) {
+            this.passed = passed;
+            this.message = message;
+        }
+    }
+
+    /**
+     * The reports for one patch set.
+     */
+    private static class Round {
+
+        final Set<String> required = new LinkedHashSet<String>();
+        final Map<String, Result> reported =
+            new LinkedHashMap<String, Result>();
+        int change;
+        int patchSet;
+        GerritService service;
+        ScheduledFuture<?> timeout = null;
+        // the vote posted so far, null if none
+        Integer posted = null;
+        boolean failed = false;
+        // the plan whose failure decided the vote
+        String failedBy = null;
+        long started = System.currentTimeMillis();
+        long decided = 0;
+        // null if the round isn't kept on disk
+        File file = null;
+
+        Set<String> getMissing() {
+            Set<String> missing = new LinkedHashSet<String>(required);
+
+            missing.removeAll(reported.keySet());
+
+            return missing;
+        }
+    }
+
+    private final String key;
+    private final Map<String, Round> rounds = new LinkedHashMap<String, Round>();
+    // rounds directories already read
+    private final Set<String> restored = new HashSet<String>();
+
+    private GerritVoteCoordinator(String key) {
+        this.key = key;
+    }
+
+    /**
+     * @param key
+     *            server and account
+     * @return
+     */
+    public static GerritVoteCoordinator forServer(String key) {
+        GerritVoteCoordinator c = coordinators.get(key);
+
+        if (c == null) {
+            GerritVoteCoordinator created = new GerritVoteCoordinator(key);
+
+            c = coordinators.putIfAbsent(key, created);
+            if (c == null)
+                c = created;
+        }
+
+        return c;
+    }
+
+    static long getTimeout() {
+        return Long.getLong(PROP_TIMEOUT, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Drop a coordinator's rounds from memory, as a restart would.
+     *
+     * @param key
+     */
+    static void forget(String key) {
+        GerritVoteCoordinator c = coordinators.remove(key);
+
+        if (c != null) {
+            synchronized (c) {
+                for (Round r : c.rounds.values())
+                    if (r.timeout != null)
+                        r.timeout.cancel(false);
+
+                c.rounds.clear();
+            }
+        }
+    }
+
+    /**
+     * Pick up the rounds of this server and account left in a directory by
+     * a previous run. Undecided rounds expire a timeout after their first
+     * report, decided ones are kept as long as they would have been.
+     *
+     * @param service
+     *            posts the votes of the rounds found
+     * @param directory
+     */
+    public synchronized void restore(GerritService service, File directory) {
+        if (!restored.add(directory.getAbsolutePath()))
+            return;
+
+        File[] files = directory.listFiles();
+
+        if (files == null)
+            return;
+
+        String prefix = getFilePrefix();
+        long now = System.currentTimeMillis();
+        int count = 0;
+
+        for (File f : files) {
+            if (f.getName().endsWith(TMP_SUFFIX)) {
+                f.delete();
+                continue;
+            }
+
+            if (!f.getName().startsWith(prefix)
+                || !f.getName().endsWith(SUFFIX))
+                continue;
+
+            Properties p;
+
+            try {
+                p = load(f);
+            } catch (IOException e) {
+                log.error(String.format("Unreadable vote round %s: %s", f,
+                    e.getMessage()));
+                continue;
+            }
+
+            Round r;
+
+            try {
+                r = read(p);
+            } catch (NumberFormatException e) {
+                log.error(String.format("Unreadable vote round %s: %s", f,
+                    e.getMessage()));
+                continue;
+            }
+
+            final String id = r.change + "," + r.patchSet;
+
+            if (rounds.containsKey(id))
+                continue;
+
+            r.service = service;
+            r.file = f;
+            rounds.put(id, r);
+            count++;
+
+            if (r.posted != null)
+                retire(id, r.decided + getTimeout() - now);
+            else
+                r.timeout = timer.schedule(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        expire(id);
+                    }
+                }, Math.max(0, r.started + getTimeout() - now),
+                    TimeUnit.MILLISECONDS);
+        }
+
+        if (count > 0)
+            log.info(String.format("%d vote rounds restored from %s.", count,
+                directory));
+    }
+
+    /**
+     * Report a plan's result for a patch set.
+     *
+     * @param service
+     *            posts the combined vote
+     * @param change
+     * @param patchSet
+     * @param plan
+     * @param required
+     *            plans that must report, the reporting plan is added
+     * @param passed
+     * @param message
+     * @return true if the report was taken, false if the patch set's vote
+     *         was already decided
+     */
+    public boolean report(GerritService service, int change, int patchSet,
+                          String plan, Collection<String> required,
+                          boolean passed, String message) {
+        final String id = change + "," + patchSet;
+        Integer vote = null;
+        String summary = null;
+
+        synchronized (this) {
+            Round r = rounds.get(id);
+
+            if (r == null) {
+                r = new Round();
+                r.change = change;
+                r.patchSet = patchSet;
+
+                File directory = service.getRoundsDirectory();
+
+                if (directory != null)
+                    r.file = new File(directory, fileName(change, patchSet));
+
+                rounds.put(id, r);
+            }
+
+            if (r.failed) {
+                log.debug(String.format("%s already failed, ignoring %s.", id,
+                    plan));
+                return false;
+            }
+
+            r.service = service;
+            r.required.addAll(required);
+            r.required.add(plan);
+            r.reported.put(plan, new Result(passed, message));
+
+            if (!passed) {
+                r.failed = true;
+                r.failedBy = plan;
+                vote = -1;
+            } else if (r.getMissing().isEmpty()) {
+                vote = 1;
+            } else if (r.timeout == null) {
+                r.timeout = timer.schedule(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        expire(id);
+                    }
+                }, getTimeout(), TimeUnit.MILLISECONDS);
+            }
+
+            if (vote != null) {
+                if (r.timeout != null)
+                    r.timeout.cancel(false);
+
+                r.posted = vote;
+                r.decided = System.currentTimeMillis();
+                summary = summarize(r);
+                retire(id, getTimeout());
+            }
+
+            save(r);
+        }
+
+        if (vote != null)
+            post(service, change, patchSet, vote, summary);
+
+        return true;
+    }
+
+    /**
+     * @param change
+     * @param patchSet
+     * @return the plan that failed the patch set, or null if none has
+     */
+    public synchronized String getFailedPlan(int change, int patchSet) {
+        Round r = rounds.get(change + "," + patchSet);
+
+        return (r == null) ? null : r.failedBy;
+    }
+
+    private void expire(String id) {
+        GerritService service;
+        String summary;
+
+        synchronized (this) {
+            Round r = rounds.get(id);
+
+            if (r == null || r.posted != null)
+                return;
+
+            r.posted = -1;
+            r.decided = System.currentTimeMillis();
+            service = r.service;
+            summary = summarize(r);
+            save(r);
+            retire(id, getTimeout());
+        }
+
+        String[] target = id.split(",");
+
+        post(service, Integer.parseInt(target[0]),
+            Integer.parseInt(target[1]), -1, summary);
+    }
+
+    // kept a while, so late reports don't start a new round
+    private void retire(final String id, long delayMillis) {
+        timer.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                synchronized (GerritVoteCoordinator.this) {
+                    Round r = rounds.remove(id);
+
+                    if (r != null && r.file != null && r.file.exists()
+                        && !r.file.delete())
+                        log.warn("Could not delete vote round " + r.file);
+                }
+            }
+        }, Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+    }
+
+    private String getFilePrefix() {
+        return key.replaceAll("[^\\w.-]", "_") + "-";
+    }
+
+    private String fileName(int change, int patchSet) {
+        return getFilePrefix() + change + "-" + patchSet + SUFFIX;
+    }
+
+    // a round that can't be saved still goes on in memory
+    private void save(Round r) {
+        if (r.file == null)
+            return;
+
+        Properties p = new Properties();
+
+        p.setProperty("change", String.valueOf(r.change));
+        p.setProperty("patchSet", String.valueOf(r.patchSet));
+        p.setProperty("required", join(r.required));
+        p.setProperty("reported", join(r.reported.keySet()));
+        p.setProperty("started", String.valueOf(r.started));
+        p.setProperty("failed", String.valueOf(r.failed));
+
+        if (r.failedBy != null)
+            p.setProperty("failedBy", r.failedBy);
+
+        if (r.posted != null) {
+            p.setProperty("posted", String.valueOf(r.posted));
+            p.setProperty("decided", String.valueOf(r.decided));
+        }
+
+        for (Map.Entry<String, Result> e : r.reported.entrySet()) {
+            p.setProperty(RESULT + e.getKey() + ".passed",
+                String.valueOf(e.getValue().passed));
+            p.setProperty(RESULT + e.getKey() + ".message",
+                e.getValue().message);
+        }
+
+        try {
+            File directory = r.file.getParentFile();
+
+            if (!directory.isDirectory() && !directory.mkdirs())
+                throw new IOException("Could not create " + directory);
+
+            File tmp = new File(r.file.getPath() + TMP_SUFFIX);
+            FileOutputStream out = new FileOutputStream(tmp);
+
+            try {
+                p.store(out, null);
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+
+            // renameTo doesn't replace an existing file everywhere
+            if (!tmp.renameTo(r.file)
+                && !(r.file.delete() && tmp.renameTo(r.file)))
+                throw new IOException("Could not write " + r.file);
+        } catch (IOException e) {
+            log.warn(String.format("Could not save vote round %s: %s",
+                r.file, e.getMessage()));
+        }
+    }
+
+    private static Properties load(File f) throws IOException {
+        Properties p = new Properties();
+        FileInputStream in = new FileInputStream(f);
+
+        try {
+            p.load(in);
+        } finally {
+            in.close();
+        }
+
+        return p;
+    }
+
+    private static Round read(Properties p) {
+        Round r = new Round();
+
+        r.change = Integer.parseInt(p.getProperty("change"));
+        r.patchSet = Integer.parseInt(p.getProperty("patchSet"));
+
+        r.required.addAll(split(p.getProperty("required")));
+
+        for (String plan : split(p.getProperty("reported")))
+            r.reported.put(plan, new Result(Boolean.parseBoolean(p
+                .getProperty(RESULT + plan + ".passed")), p.getProperty(
+                RESULT + plan + ".message", "")));
+
+        r.started =
+            Long.parseLong(p.getProperty("started",
+                String.valueOf(System.currentTimeMillis())));
+        r.failed = Boolean.parseBoolean(p.getProperty("failed"));
+        r.failedBy = p.getProperty("failedBy");
+
+        if (p.getProperty("posted") != null) {
+            r.posted = Integer.valueOf(p.getProperty("posted"));
+            r.decided = Long.parseLong(p.getProperty("decided", "0"));
+        }
+
+        return r;
+    }
+
+    private static String join(Collection<String> plans) {
+        StringBuilder s = new StringBuilder();
+
+        for (String plan : plans) {
+            if (s.length() > 0)
+                s.append(',');
+
+            s.append(plan);
+        }
+
+        return s.toString();
+    }
+
+    private static List<String> split(String plans) {
+        List<String> list = new ArrayList<String>();
+
+        if (plans != null)
+            for (String plan : plans.split(","))
+                if (!plan.isEmpty())
+                    list.add(plan);
+
+        return list;
+    }
+
+    private String summarize(Round r) {
+        List<String> lines = new ArrayList<String>();
+
+        for (Map.Entry<String, Result> e : r.reported.entrySet())
+            lines.add(String.format("%s %s: %s", e.getKey(),
+                e.getValue().passed ? "passed" : "failed",
+                e.getValue().message));
+
+        Set<String> missing = r.getMissing();
+
+        if (!r.failed && !missing.isEmpty())
+            lines.add(String.format("No result from %s within %d minutes.",
+                missing, TimeUnit.MILLISECONDS.toMinutes(getTimeout())));
+
+        StringBuilder summary = new StringBuilder();
+
+        for (String line : lines) {
+            if (summary.length() > 0)
+                summary.append("\n\n");
+
+            summary.append(line);
+        }
+
+        return summary.toString();
+    }
+
+    private void post(GerritService service, int change, int patchSet,
+                      int vote, String summary) {
+        log.info(String.format("Combined Verified %+d for %s,%s.", vote,
+            change, patchSet));
+
+        if (!service.queueVerification(vote > 0, change, patchSet, summary))
+            log.error(String.format("Could not post combined vote for %s,%s.",
+                change, patchSet));
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Houghton Associates Framework
+ * http://www.houghtonassociates.com
+ *
+ * Copyright 2014 Houghton Associates, Inc.
+ */
+package com.houghtonassociates.bamboo.plugins.dao;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Background warm-up of Gerrit servers, so the first poll, page view or
+ * validation runs at steady-state latency.
+ *
+ * A warm-up opens the SSH sessions, resolves the server version and loads
+ * the project catalog, see {@link GerritService#warmUp()}. At most one
+ * warm-up per server and account is pending at a time and at most
+ * <code>parallelism</code> run at once.
+ *
+ * Tunables (system properties):
+ * <ul>
+ * <li>gerrit.warmup.enabled - warm servers up in the background, default
+ * true</li>
+ * <li>gerrit.warmup.parallelism - concurrent warm-ups, default 4</li>
+ * </ul>
+ */
+public class GerritWarmup {
+
+    public static final String PROP_ENABLED = "gerrit.warmup.enabled";
+    public static final String PROP_PARALLELISM = "gerrit.warmup.parallelism";
+
+    private static final int DEFAULT_PARALLELISM = 4;
+
+    private static final Logger log = Logger.getLogger(GerritWarmup.class);
+
+    private static final boolean enabled = Boolean.parseBoolean(System
+        .getProperty(PROP_ENABLED, "true"));
+
+    private static final ExecutorService pool = newPool(Math.max(1,
+        Integer.getInteger(PROP_PARALLELISM, DEFAULT_PARALLELISM)));
+
+    private static final ConcurrentMap<String, Future<?>> pending =
+        new ConcurrentHashMap<String, Future<?>>();
+
+    private static final AtomicLong completed = new AtomicLong(0);
+    private static final AtomicLong failed = new AtomicLong(0);
+
+    private GerritWarmup() {
+    }
+
+    private static ExecutorService newPool(int threads) {
+        ThreadPoolExecutor p =
+            new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+                    private final AtomicInteger count = new AtomicInteger(0);
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t =
+                            new Thread(r, "gerrit-warmup-"
+                                + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+
+        p.allowCoreThreadTimeOut(true);
+
+        return p;
+    }
+
+    /**
+     * Warm up the service's server in the background.
+     *
+     * @param service
+     * @return the pending warm-up, or null if warm-ups are disabled
+     */
+    public static Future<?> schedule(final GerritService service) {
+        return submit(service, "warmup", new Callable<Void>() {
+
+            @Override
+            public Void call() throws Exception {
+                long start = System.currentTimeMillis();
+
+                service.warmUp();
+
+                log.info(String.format("Gerrit %s warmed up in %dms.", service
+                    .getConfig().getServerKey(), System.currentTimeMillis()
+                    - start));
+
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Run a background refresh for the service's server, unless the same
+     * one is already pending.
+     *
+     * @param service
+     * @param name
+     *            identifies the refresh
+     * @param task
+     * @return the pending refresh, or null if warm-ups are disabled
+     */
+    public static Future<?> submit(GerritService service, String name,
+                                   Callable<?> task) {
+        if (!enabled)
+            return null;
+
+        GerritConfig gc = service.getConfig();
+        final String key =
+            gc.getServerKey() + " " + gc.getUsername() + " " + name;
+
+        final FutureTask<Object> created = newTask(key, task);
+        Future<?> f = pending.putIfAbsent(key, created);
+
+        if (f != null)
+            return f;
+
+        pool.execute(created);
+
+        return created;
+    }
+
+    private static FutureTask<Object> newTask(final String key,
+                                              final Callable<?> task) {
+        return new FutureTask<Object>(new Callable<Object>() {
+
+            @Override
+            public Object call() throws Exception {
+                try {
+                    Object result = task.call();
+                    completed.incrementAndGet();
+                    return result;
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                    log.warn(String.format("Gerrit %s failed: %s", key,
+                        e.getMessage()));
+                    throw e;
+                }
+            }
+        }) {
+
+            @Override
+            protected void done() {
+                pending.remove(key, this);
+            }
+        };
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static int getPendingCount() {
+        return pending.size();
+    }
+
+    public static long getCompletedCount() {
+        return completed.get();
+    }
+
+    public static long getFailedCount() {
+        return failed.get();
+    }
+}
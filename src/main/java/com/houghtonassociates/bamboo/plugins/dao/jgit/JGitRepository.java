@@ -14,6 +14,8 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.StringUtils;
@@ -69,7 +71,10 @@ import org.eclipse.jgit.transport.Transport;
 import org.eclipse.jgit.util.FS;
 
 import com.atlassian.bamboo.repository.RepositoryException;
+import com.houghtonassociates.bamboo.plugins.dao.GerritCircuitBreaker;
 import com.houghtonassociates.bamboo.plugins.dao.GerritConfig;
+import com.houghtonassociates.bamboo.plugins.dao.GerritExecutor;
+import com.houghtonassociates.bamboo.plugins.dao.GerritOperation;
 import com.jcraft.jsch.JSch;
 import com.jcraft.jsch.JSchException;
 import com.jcraft.jsch.Session;
@@ -192,6 +197,14 @@ public class JGitRepository {
             transport = Transport.open(git.getRepository(), url);
 
             ((SshTransport) transport).setSshSessionFactory(factory);
+
+            // read timeout, so a stalled server fails the transfer instead
+            // of blocking it until the overall deadline
+            int timeout =
+                (int) TimeUnit.MILLISECONDS.toSeconds(accessData
+                    .getTimeoutMillis(GerritOperation.LS_REMOTE));
+            if (timeout > 0)
+                transport.setTimeout(timeout);
         } catch (NotSupportedException e) {
             throw new RepositoryException(e);
         } catch (TransportException e) {
@@ -353,24 +366,29 @@ public class JGitRepository {
     public Collection<Ref> lsRemoteBranches() throws RepositoryException {
         Collection<Ref> call = new ArrayList<Ref>();
 
-        FetchConnection c;
+        Collection<Ref> refs =
+            callTransport(GerritOperation.LS_REMOTE,
+                new Callable<Collection<Ref>>() {
 
-        try {
-            c = transport.openFetch();
+                    @Override
+                    public Collection<Ref> call() throws Exception {
+                        FetchConnection c = transport.openFetch();
 
-            for (final Ref r : c.getRefs()) {
-                final String n = r.getName();
+                        try {
+                            return c.getRefs();
+                        } finally {
+                            c.close();
+                        }
+                    }
+                });
 
-                if (!n.startsWith(Constants.R_HEADS))
-                    continue;
+        for (final Ref r : refs) {
+            final String n = r.getName();
 
-                call.add(r);
-            }
+            if (!n.startsWith(Constants.R_HEADS))
+                continue;
 
-        } catch (NotSupportedException e) {
-            throw new RepositoryException(e);
-        } catch (TransportException e) {
-            throw new RepositoryException(e);
+            call.add(r);
         }
 
         return call;
@@ -408,20 +426,65 @@ public class JGitRepository {
 
     public FetchResult
                     fetch(String targetRevision, int depth) throws RepositoryException {
-        FetchResult result = null;
-        RefSpec refSpec =
+        final RefSpec refSpec =
             new RefSpec().setForceUpdate(true).setSourceDestination(
                 targetRevision, targetRevision);
 
+        return callTransport(GerritOperation.FETCH, new Callable<FetchResult>() {
+
+            @Override
+            public FetchResult call() throws Exception {
+                return transport.fetch(monitor, Arrays.asList(refSpec));
+            }
+        });
+    }
+
+    /**
+     * Run a transport operation on the Gerrit I/O executor, through the
+     * server's circuit breaker and under the operation's deadline, closing
+     * the transport if it expires.
+     * 
+     * @param op
+     * @param task
+     * @return
+     * @throws RepositoryException
+     */
+    private <T> T
+                    callTransport(GerritOperation op, Callable<T> task) throws RepositoryException {
+        return callDeadline(accessData.getServerKey(), op, task,
+            new Runnable() {
+
+                @Override
+                public void run() {
+                    closeTransport();
+                }
+            });
+    }
+
+    private <T> T callDeadline(final String server, GerritOperation op,
+                               final Callable<T> task,
+                               final Runnable onTimeout) throws RepositoryException {
+        final long timeout = accessData.getTimeoutMillis(op);
+
         try {
-            result = transport.fetch(monitor, Arrays.asList(refSpec));
-        } catch (NotSupportedException e) {
-            throw new RepositoryException(e);
-        } catch (TransportException e) {
+            if (server == null)
+                return GerritExecutor.getInstance().call(null, task, timeout,
+                    onTimeout);
+
+            return GerritCircuitBreaker.forServer(server).call(
+                new Callable<T>() {
+
+                    @Override
+                    public T call() throws Exception {
+                        return GerritExecutor.getInstance().call(server, task,
+                            timeout, onTimeout);
+                    }
+                });
+        } catch (RepositoryException e) {
+            throw e;
+        } catch (Exception e) {
             throw new RepositoryException(e);
         }
-
-        return result;
     }
 
     public MergeResult merge(String commit) throws RepositoryException {
@@ -556,24 +619,34 @@ public class JGitRepository {
     }
 
     public void checkout(String targetRevision) throws RepositoryException {
-        CheckoutCommand co = git.checkout();
+        final CheckoutCommand co = git.checkout();
         co.setName(targetRevision);
-        try {
-            co.call();
 
-            if (accessData.isUseSubmodules())
-                cloneSubmodules(git.getRepository());
-        } catch (RefAlreadyExistsException e) {
-            throw new RepositoryException(e);
-        } catch (RefNotFoundException e) {
-            throw new RepositoryException(e);
-        } catch (InvalidRefNameException e) {
-            throw new RepositoryException(e);
-        } catch (CheckoutConflictException e) {
-            throw new RepositoryException(e);
-        } catch (GitAPIException e) {
-            throw new RepositoryException(e);
-        }
+        // local work, so no server permit, but still bounded by a deadline
+        callDeadline(null, GerritOperation.CHECKOUT, new Callable<Void>() {
+
+            @Override
+            public Void call() throws Exception {
+                try {
+                    co.call();
+
+                    if (accessData.isUseSubmodules())
+                        cloneSubmodules(git.getRepository());
+                } catch (RefAlreadyExistsException e) {
+                    throw new RepositoryException(e);
+                } catch (RefNotFoundException e) {
+                    throw new RepositoryException(e);
+                } catch (InvalidRefNameException e) {
+                    throw new RepositoryException(e);
+                } catch (CheckoutConflictException e) {
+                    throw new RepositoryException(e);
+                } catch (GitAPIException e) {
+                    throw new RepositoryException(e);
+                }
+
+                return null;
+            }
+        }, null);
     }
 
     private void
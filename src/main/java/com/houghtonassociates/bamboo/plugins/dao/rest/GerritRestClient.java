@@ -0,0 +1,522 @@
+/*
+ * Houghton Associates Framework
+ * http://www.houghtonassociates.com
+ *
+ * Copyright 2014 Houghton Associates, Inc.
+ */
+package com.houghtonassociates.bamboo.plugins.dao.rest;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.TimeZone;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import net.sf.json.JSONSerializer;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.AuthCache;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.BasicAuthCache;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.apache.log4j.Logger;
+
+import com.houghtonassociates.bamboo.plugins.dao.GerritChangeVO;
+import com.sonymobile.tools.gerrit.gerritevents.GerritQueryException;
+
+/**
+ * Talks to Gerrit's REST API as a cheaper alternative to SSH commands.
+ *
+ * All clients share one pooled HTTP client, so connections to a server are
+ * kept alive and reused between requests; responses are requested gzip
+ * compressed. Authenticated requests go to the <code>/a/</code> endpoints
+ * using the account's HTTP password (basic or digest, whichever the server
+ * asks for).
+ *
+ * Change queries are returned in the same JSON shape as
+ * <code>gerrit query --format=JSON</code> so callers don't care which
+ * transport produced them.
+ *
+ * Tunables (system properties):
+ * <ul>
+ * <li>gerrit.rest.maxConnections - pooled connections in total, default 40</li>
+ * <li>gerrit.rest.maxConnectionsPerRoute - pooled connections per server,
+ * default 10</li>
+ * </ul>
+ */
+public class GerritRestClient {
+
+    public static final String PROP_MAX_CONNECTIONS =
+        "gerrit.rest.maxConnections";
+    public static final String PROP_MAX_PER_ROUTE =
+        "gerrit.rest.maxConnectionsPerRoute";
+
+    private static final int DEFAULT_MAX_CONNECTIONS = 40;
+    private static final int DEFAULT_MAX_PER_ROUTE = 10;
+
+    // Gerrit prefixes JSON responses to defeat XSSI
+    private static final String XSSI_PREFIX = ")]}'";
+    private static final String TIMESTAMP_FORMAT = "yyyy-MM-dd HH:mm:ss";
+    private static final String CHARSET = "UTF-8";
+
+    private static final Logger log = Logger.getLogger(GerritRestClient.class);
+
+    private static CloseableHttpClient httpClient = null;
+
+    private final String baseUrl;
+    private final String apiUrl;
+    private final CredentialsProvider credentials;
+    private final AuthCache authCache = new BasicAuthCache();
+
+    /**
+     * @param frontEndUrl
+     *            e.g. https://review.example.com/
+     * @param username
+     *            HTTP user, null or empty for anonymous access
+     * @param password
+     *            HTTP password
+     */
+    public GerritRestClient(String frontEndUrl, String username,
+                            String password) {
+        String url = frontEndUrl.trim();
+
+        while (url.endsWith("/"))
+            url = url.substring(0, url.length() - 1);
+
+        this.baseUrl = url;
+
+        if (username == null || username.isEmpty()) {
+            this.apiUrl = url;
+            this.credentials = null;
+        } else {
+            URI uri = URI.create(url);
+
+            this.apiUrl = url + "/a";
+            this.credentials = new BasicCredentialsProvider();
+            this.credentials.setCredentials(
+                new AuthScope(uri.getHost(), AuthScope.ANY_PORT),
+                new UsernamePasswordCredentials(username, password));
+        }
+    }
+
+    private static synchronized CloseableHttpClient getHttpClient() {
+        if (httpClient == null) {
+            PoolingHttpClientConnectionManager cm =
+                new PoolingHttpClientConnectionManager();
+
+            cm.setMaxTotal(Integer.getInteger(PROP_MAX_CONNECTIONS,
+                DEFAULT_MAX_CONNECTIONS));
+            cm.setDefaultMaxPerRoute(Integer.getInteger(PROP_MAX_PER_ROUTE,
+                DEFAULT_MAX_PER_ROUTE));
+
+            // content compression (gzip/deflate) is on by default
+            httpClient =
+                HttpClients.custom().setConnectionManager(cm)
+                    .setUserAgent("gReview").build();
+        }
+
+        return httpClient;
+    }
+
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    /**
+     * Query changes, like <code>gerrit query --format=JSON</code>.
+     *
+     * @param query
+     * @param getPatchSets
+     * @param getCurrentPatchSet
+     * @param getFiles
+     * @param timeoutMillis
+     *            0 for none
+     * @return changes followed by a statistics row
+     * @throws IOException
+     * @throws GerritQueryException
+     */
+    public List<JSONObject>
+                    queryChanges(String query, boolean getPatchSets,
+                                 boolean getCurrentPatchSet, boolean getFiles,
+                                 long timeoutMillis) throws IOException,
+                                     GerritQueryException {
+        StringBuilder url = new StringBuilder(apiUrl);
+
+        url.append("/changes/?q=").append(URLEncoder.encode(query, CHARSET));
+        url.append("&o=DETAILED_ACCOUNTS&o=DETAILED_LABELS");
+
+        if (getPatchSets)
+            url.append("&o=ALL_REVISIONS&o=ALL_COMMITS");
+        else
+            url.append("&o=CURRENT_REVISION&o=CURRENT_COMMIT");
+
+        if (getFiles)
+            url.append(getPatchSets ? "&o=ALL_FILES" : "&o=CURRENT_FILES");
+
+        JSONArray changes =
+            (JSONArray) parse(execute(new HttpGet(url.toString()),
+                timeoutMillis));
+        List<JSONObject> results = new LinkedList<JSONObject>();
+        boolean moreChanges = false;
+
+        for (int i = 0; i < changes.size(); i++) {
+            JSONObject c = changes.getJSONObject(i);
+
+            results.add(toChange(c));
+
+            if (c.optBoolean("_more_changes", false))
+                moreChanges = true;
+        }
+
+        JSONObject stats = new JSONObject();
+        stats.put("type", "stats");
+        stats.put(GerritChangeVO.JSON_KEY_ROWCOUNT, changes.size());
+        if (moreChanges)
+            stats.put("moreChanges", true);
+        results.add(stats);
+
+        return results;
+    }
+
+    /**
+     * Post a review with a message and a label vote.
+     *
+     * @param changeNumber
+     * @param patchSetNumber
+     * @param message
+     * @param label
+     *            e.g. Verified, null to post only the message
+     * @param value
+     * @param timeoutMillis
+     * @throws IOException
+     * @throws GerritQueryException
+     */
+    public void review(int changeNumber, int patchSetNumber, String message,
+                       String label, int value, long timeoutMillis) throws IOException,
+                                       GerritQueryException {
+        JSONObject input = new JSONObject();
+        input.put("message", message);
+
+        if (label != null) {
+            JSONObject labels = new JSONObject();
+            labels.put(label, value);
+            input.put("labels", labels);
+        }
+
+        HttpPost post =
+            new HttpPost(String.format("%s/changes/%d/revisions/%d/review",
+                apiUrl, changeNumber, patchSetNumber));
+        post.setEntity(new StringEntity(input.toString(),
+            ContentType.APPLICATION_JSON));
+
+        execute(post, timeoutMillis);
+    }
+
+    public List<String> listProjects(long timeoutMillis) throws IOException,
+                    GerritQueryException {
+        JSONObject projects =
+            (JSONObject) parse(execute(new HttpGet(apiUrl + "/projects/"),
+                timeoutMillis));
+        List<String> names = new ArrayList<String>(projects.size());
+
+        for (Iterator<?> i = projects.keys(); i.hasNext();)
+            names.add((String) i.next());
+
+        return names;
+    }
+
+    public String getVersion(long timeoutMillis) throws IOException,
+                    GerritQueryException {
+        String version =
+            execute(new HttpGet(apiUrl + "/config/server/version"),
+                timeoutMillis).trim();
+
+        // a bare JSON string
+        if (version.startsWith("\"") && version.endsWith("\""))
+            version = version.substring(1, version.length() - 1);
+
+        return version;
+    }
+
+    /**
+     * @param account
+     *            user name, email or account id
+     * @param timeoutMillis
+     * @return Gerrit's AccountInfo: _account_id, name, email, username
+     * @throws IOException
+     * @throws GerritQueryException
+     */
+    public JSONObject getAccount(String account, long timeoutMillis) throws IOException,
+                    GerritQueryException {
+        return (JSONObject) parse(execute(new HttpGet(apiUrl + "/accounts/"
+            + URLEncoder.encode(account, CHARSET)), timeoutMillis));
+    }
+
+    private String
+                    execute(HttpRequestBase request, long timeoutMillis) throws IOException,
+                                    GerritQueryException {
+        int timeout = (int) Math.min(timeoutMillis, Integer.MAX_VALUE);
+
+        request.setConfig(RequestConfig.custom().setConnectTimeout(timeout)
+            .setSocketTimeout(timeout).setConnectionRequestTimeout(timeout)
+            .build());
+        request.setHeader("Accept", "application/json");
+
+        HttpClientContext context = HttpClientContext.create();
+
+        if (credentials != null) {
+            context.setCredentialsProvider(credentials);
+            context.setAuthCache(authCache);
+        }
+
+        log.debug(request.getMethod() + " " + request.getURI());
+
+        CloseableHttpResponse response =
+            getHttpClient().execute(request, context);
+
+        try {
+            int status = response.getStatusLine().getStatusCode();
+            HttpEntity entity = response.getEntity();
+
+            // always consume the body so the connection can be reused
+            String body =
+                (entity == null) ? "" : EntityUtils.toString(entity, CHARSET);
+
+            if (status >= 500)
+                throw new IOException(String.format(
+                    "Gerrit REST %s failed: %s", request.getURI().getPath(),
+                    response.getStatusLine()));
+
+            // the server is up, it just didn't like the request
+            if (status >= 400)
+                throw new GerritQueryException(String.format(
+                    "Gerrit REST %s rejected: %s %s", request.getURI()
+                        .getPath(), response.getStatusLine(), body.trim()));
+
+            if (body.startsWith(XSSI_PREFIX))
+                body = body.substring(XSSI_PREFIX.length());
+
+            return body;
+        } finally {
+            response.close();
+        }
+    }
+
+    private static Object parse(String body) {
+        return JSONSerializer.toJSON(body.trim());
+    }
+
+    private JSONObject toChange(JSONObject c) {
+        JSONObject j = new JSONObject();
+        int number = c.getInt("_number");
+        String status = c.optString("status", "NEW");
+
+        j.put(GerritChangeVO.JSON_KEY_PROJECT, c.getString("project"));
+        j.put(GerritChangeVO.JSON_KEY_BRANCH, c.getString("branch"));
+        j.put(GerritChangeVO.JSON_KEY_ID, c.getString("change_id"));
+        j.put(GerritChangeVO.JSON_KEY_NUMBER, number);
+        j.put(GerritChangeVO.JSON_KEY_SUBJECT, c.optString("subject", ""));
+        j.put(GerritChangeVO.JSON_KEY_OWNER,
+            toAccount(c.optJSONObject("owner")));
+        j.put(GerritChangeVO.JSON_KEY_URL, baseUrl + "/" + number);
+        j.put(GerritChangeVO.JSON_KEY_CREATED_ON,
+            toSeconds(c.optString("created")));
+        j.put(GerritChangeVO.JSON_KEY_LAST_UPDATE,
+            toSeconds(c.optString("updated")));
+        j.put(GerritChangeVO.JSON_KEY_OPEN, "NEW".equals(status)
+            || "DRAFT".equals(status) || "SUBMITTED".equals(status));
+        j.put(GerritChangeVO.JSON_KEY_STATUS, status);
+
+        JSONObject revisions = c.optJSONObject("revisions");
+        String current = c.optString("current_revision", null);
+        JSONArray patchSets = new JSONArray();
+
+        if (revisions != null) {
+            List<String> shas = new ArrayList<String>();
+
+            for (Iterator<?> i = revisions.keys(); i.hasNext();)
+                shas.add((String) i.next());
+
+            final JSONObject revs = revisions;
+            Collections.sort(shas, new Comparator<String>() {
+
+                @Override
+                public int compare(String a, String b) {
+                    return revs.getJSONObject(a).getInt("_number")
+                        - revs.getJSONObject(b).getInt("_number");
+                }
+            });
+
+            // labels are only reported for the current revision
+            JSONObject labels = c.optJSONObject("labels");
+
+            for (String sha : shas) {
+                JSONObject ps =
+                    toPatchSet(sha, revisions.getJSONObject(sha),
+                        sha.equals(current) ? labels : null);
+
+                patchSets.add(ps);
+
+                if (sha.equals(current))
+                    j.put(GerritChangeVO.JSON_KEY_CURRENT_PATCH_SET, ps);
+            }
+        }
+
+        j.put(GerritChangeVO.JSON_KEY_PATCH_SET, patchSets);
+
+        return j;
+    }
+
+    private JSONObject toPatchSet(String sha, JSONObject r, JSONObject labels) {
+        JSONObject p = new JSONObject();
+        JSONObject uploader = toAccount(r.optJSONObject("uploader"));
+
+        p.put(GerritChangeVO.JSON_KEY_PATCH_SET_NUM, r.getInt("_number"));
+        p.put(GerritChangeVO.JSON_KEY_PATCH_SET_REV, sha);
+        p.put(GerritChangeVO.JSON_KEY_PATCH_SET_REF, r.optString("ref", ""));
+        p.put(GerritChangeVO.JSON_KEY_PATCH_SET_UPDLOADER, uploader);
+        p.put(GerritChangeVO.JSON_KEY_PATCH_SET_CREATED_ON,
+            toSeconds(r.optString("created")));
+
+        // the commit author has no account, fall back to the uploader
+        JSONObject commit = r.optJSONObject("commit");
+        JSONObject author =
+            (commit == null) ? null : commit.optJSONObject("author");
+        p.put(GerritChangeVO.JSON_KEY_PATCH_SET_AUTHOR,
+            (author == null) ? uploader : toAccount(author));
+
+        if (labels != null) {
+            JSONArray approvals = new JSONArray();
+
+            for (Iterator<?> i = labels.keys(); i.hasNext();) {
+                String label = (String) i.next();
+                JSONArray all = labels.getJSONObject(label).optJSONArray("all");
+
+                if (all == null)
+                    continue;
+
+                for (int k = 0; k < all.size(); k++) {
+                    JSONObject a = all.getJSONObject(k);
+                    int value = a.optInt("value", 0);
+
+                    if (value == 0)
+                        continue;
+
+                    JSONObject apprv = new JSONObject();
+                    apprv.put(GerritChangeVO.JSON_KEY_PATCH_SET_APPRVS_TYPE,
+                        label);
+                    apprv.put(GerritChangeVO.JSON_KEY_PATCH_SET_APPRVS_DESC,
+                        label);
+                    apprv.put(GerritChangeVO.JSON_KEY_PATCH_SET_APPRVS_VALUE,
+                        value);
+                    apprv.put(
+                        GerritChangeVO.JSON_KEY_PATCH_SET_APPRVS_GRANTED_ON,
+                        toSeconds(a.optString("date")));
+                    apprv.put(GerritChangeVO.JSON_KEY_PATCH_SET_APPRVS_BY,
+                        toAccount(a));
+                    approvals.add(apprv);
+                }
+            }
+
+            p.put(GerritChangeVO.JSON_KEY_PATCH_SET_APPRVS, approvals);
+        }
+
+        JSONObject files = r.optJSONObject("files");
+
+        if (files != null) {
+            JSONArray fileSets = new JSONArray();
+
+            for (Iterator<?> i = files.keys(); i.hasNext();) {
+                String name = (String) i.next();
+                JSONObject f = files.getJSONObject(name);
+                JSONObject fs = new JSONObject();
+
+                fs.put(GerritChangeVO.JSON_KEY_PATCH_SET_FILES_FILE, name);
+                fs.put(GerritChangeVO.JSON_KEY_PATCH_SET_FILES_TYPE,
+                    toFileType(f.optString("status", "M")));
+                fs.put(GerritChangeVO.JSON_KEY_PATCH_SET_FILES_INSRT,
+                    f.optInt("lines_inserted", 0));
+                fs.put(GerritChangeVO.JSON_KEY_PATCH_SET_FILES_DELT,
+                    f.optInt("lines_deleted", 0));
+                fileSets.add(fs);
+            }
+
+            p.put(GerritChangeVO.JSON_KEY_PATCH_SET_FILES, fileSets);
+        }
+
+        return p;
+    }
+
+    private static JSONObject toAccount(JSONObject a) {
+        JSONObject account = new JSONObject();
+
+        account.put(GerritChangeVO.JSON_KEY_NAME,
+            (a == null) ? "" : a.optString("name", ""));
+        account.put(GerritChangeVO.JSON_KEY_EMAIL,
+            (a == null) ? "" : a.optString("email", ""));
+        account.put(GerritChangeVO.JSON_KEY_USERNAME,
+            (a == null) ? "" : a.optString("username", ""));
+
+        return account;
+    }
+
+    private static String toFileType(String status) {
+        switch (status.charAt(0)) {
+            case 'A':
+                return "ADDED";
+            case 'D':
+                return "DELETED";
+            case 'R':
+                return "RENAMED";
+            case 'C':
+                return "COPIED";
+            case 'W':
+                return "REWRITE";
+            default:
+                return "MODIFIED";
+        }
+    }
+
+    /**
+     * Gerrit timestamps are UTC, "yyyy-MM-dd HH:mm:ss.SSSSSSSSS".
+     */
+    static long toSeconds(String timestamp) {
+        if (timestamp == null || timestamp.length() < TIMESTAMP_FORMAT.length())
+            return 0;
+
+        SimpleDateFormat df = new SimpleDateFormat(TIMESTAMP_FORMAT);
+        df.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        try {
+            return df.parse(timestamp.substring(0, TIMESTAMP_FORMAT.length()))
+                .getTime() / 1000;
+        } catch (ParseException e) {
+            log.debug("Unparseable timestamp: " + timestamp);
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright 2012 Houghton Associates
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.houghtonassociates.bamboo.plugins.processor;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.atlassian.bamboo.build.CustomPreBuildQueuedAction;
+import com.atlassian.bamboo.configuration.AdministrationConfigurationAccessor;
+import com.atlassian.bamboo.plan.PlanKeys;
+import com.atlassian.bamboo.plan.PlanResultKey;
+import com.atlassian.bamboo.repository.RepositoryDefinition;
+import com.atlassian.bamboo.repository.RepositoryException;
+import com.atlassian.bamboo.v2.build.BuildContext;
+import com.houghtonassociates.bamboo.plugins.GerritRepositoryAdapter;
+import com.houghtonassociates.bamboo.plugins.dao.GerritChangeVO;
+import com.houghtonassociates.bamboo.plugins.dao.GerritService;
+import com.opensymphony.xwork2.TextProvider;
+
+/**
+ * Lets a change know its build has started, if the plan's verification
+ * processor asks for it. Runs on the server as each job is queued; the
+ * message links the plan's build result and is posted once per patch set
+ * and result, however many jobs, reruns or agents there are.
+ *
+ * With fail fast stop on, it also hands the job the plan that has already
+ * failed the patch set, if the server's vote coordinator knows of one, so
+ * checkout on a remote agent can stop without seeing the coordinator.
+ */
+public class GerritBuildStartedAction implements CustomPreBuildQueuedAction {
+
+    private final Logger logger = Logger
+        .getLogger(GerritBuildStartedAction.class);
+
+    private static final String GERRIT_RUN = "custom.gerrit.run";
+    private static final String GERRIT_PROGRESS = "custom.gerrit.progress";
+    private static final String GERRIT_FAIL_FAST_STOP =
+        "custom.gerrit.failFast.stop";
+
+    // dependencies
+    private TextProvider textProvider = null;
+    private AdministrationConfigurationAccessor administrationConfigurationAccessor =
+        null;
+
+    private BuildContext buildContext = null;
+
+    @Override
+    public void init(BuildContext buildContext) {
+        this.buildContext = buildContext;
+    }
+
+    public void setTextProvider(TextProvider textProvider) {
+        this.textProvider = textProvider;
+    }
+
+    public void
+                    setAdministrationConfigurationAccessor(AdministrationConfigurationAccessor administrationConfigurationAccessor) {
+        this.administrationConfigurationAccessor =
+            administrationConfigurationAccessor;
+    }
+
+    @Override
+    public BuildContext call() throws InterruptedException, Exception {
+        Map<String, String> custom =
+            buildContext.getBuildDefinition().getCustomConfiguration();
+
+        boolean progress = Boolean.parseBoolean(custom.get(GERRIT_PROGRESS));
+        boolean failFast =
+            Boolean.parseBoolean(custom.get(GERRIT_FAIL_FAST_STOP));
+
+        if (!Boolean.parseBoolean(custom.get(GERRIT_RUN))
+            || (!progress && !failFast))
+            return buildContext;
+
+        PlanResultKey jobResult = buildContext.getPlanResultKey();
+        PlanResultKey chainResult =
+            PlanKeys.getPlanResultKey(
+                PlanKeys.getChainKeyFromJobKey(jobResult.getPlanKey()),
+                jobResult.getBuildNumber());
+
+        String resultsUrl = chainResult.toString();
+
+        if (administrationConfigurationAccessor != null)
+            resultsUrl =
+                administrationConfigurationAccessor
+                    .getAdministrationConfiguration().getBaseUrl()
+                    + "/browse/" + resultsUrl;
+
+        String message =
+            textProvider.getText("processor.gerrit.messages.build.started",
+                Arrays.asList(resultsUrl));
+
+        for (RepositoryDefinition rd : buildContext.getRepositoryDefinitions()) {
+            if (!(rd.getRepository() instanceof GerritRepositoryAdapter))
+                continue;
+
+            GerritService service =
+                ((GerritRepositoryAdapter) rd.getRepository()).getGerritDAO();
+            String vcsRevision =
+                buildContext.getBuildChanges().getVcsRevisionKey(rd.getId());
+
+            try {
+                GerritChangeVO change =
+                    (vcsRevision == null) ? null : service
+                        .getChangeByRevision(vcsRevision);
+
+                if (change == null || change.isMerged())
+                    continue;
+
+                int patchSet = change.getCurrentPatchSet().getNumber();
+
+                if (failFast) {
+                    String failedBy =
+                        service.getFailedPlan(change.getNumber(), patchSet);
+
+                    if (failedBy != null)
+                        buildContext
+                            .getCurrentResult()
+                            .getCustomBuildData()
+                            .put(
+                                GerritRepositoryAdapter.GERRIT_FAILED_BY
+                                    + change.getNumber() + "," + patchSet,
+                                failedBy);
+                }
+
+                if (progress)
+                    service.postMessageOnce(change.getNumber(), patchSet,
+                        chainResult.toString(), message);
+            } catch (RepositoryException e) {
+                logger.error(e.getMessage());
+            }
+        }
+
+        return buildContext;
+    }
+}
@@ -15,10 +15,23 @@
  */
 package com.houghtonassociates.bamboo.plugins.processor;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 
@@ -58,6 +71,35 @@ public class GerritProcessor extends BaseConfigurableBuildPlugin implements
 
     private Map<String, String> customConfiguration = null;
     private static final String GERRIT_RUN = "custom.gerrit.run";
+    private static final String GERRIT_REQUIRED_PLANS =
+        "custom.gerrit.requiredPlans";
+    private static final String GERRIT_FAIL_FAST = "custom.gerrit.failFast";
+
+    private static final String PROP_PARALLELISM = "gerrit.verify.parallelism";
+    private static final String PROP_TIMEOUT =
+        "gerrit.verify.repositoryTimeoutMillis";
+    private static final int DEFAULT_PARALLELISM = 4;
+    private static final long DEFAULT_TIMEOUT = 120000;
+
+    // shared by all builds, so a burst of them can't flood Gerrit
+    private static final ExecutorService verifiers = newPool(Math.max(1,
+        Integer.getInteger(PROP_PARALLELISM, DEFAULT_PARALLELISM)));
+
+    /**
+     * One repository's verification, timed from when it starts running
+     * rather than from when it was queued behind other builds.
+     */
+    private static class Verification {
+
+        final CountDownLatch started = new CountDownLatch(1);
+        volatile long startedAt = 0;
+        Future<?> future = null;
+
+        void start() {
+            startedAt = System.currentTimeMillis();
+            started.countDown();
+        }
+    }
 
     @Override
     public void init(BuildContext buildContext) {
@@ -172,21 +214,156 @@ public class GerritProcessor extends BaseConfigurableBuildPlugin implements
 
         logger.info("Run verification: " + runVerification);
 
-        if (runVerification) {
+        if (runVerification && (isCoordinated() != isServerSide())) {
+            logger.debug(String.format(
+                "Verification of %s is posted by the %s processor.",
+                buildPlanKey, isServerSide() ? "agent" : "server"));
+        } else if (runVerification) {
             final List<RepositoryDefinition> repositories =
                 buildContext.getRepositoryDefinitions();
+            List<RepositoryDefinition> gerritRepositories =
+                new ArrayList<RepositoryDefinition>();
 
             for (RepositoryDefinition rd : repositories) {
                 if (rd.getRepository() instanceof GerritRepositoryAdapter) {
-                    logger.info("Updating Change Verification...");
-                    updateChangeVerification(rd, buildPlanKey, results);
+                    gerritRepositories.add(rd);
                 }
             }
+
+            logger.info("Updating Change Verification...");
+
+            if (gerritRepositories.size() == 1) {
+                updateChangeVerification(gerritRepositories.get(0),
+                    buildPlanKey, results);
+            } else if (!gerritRepositories.isEmpty()) {
+                updateChangeVerifications(gerritRepositories, buildPlanKey,
+                    results);
+            }
         }
 
         return buildContext;
     }
 
+    private static ExecutorService newPool(int threads) {
+        ThreadPoolExecutor p =
+            new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+                    private final AtomicInteger count = new AtomicInteger(0);
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t =
+                            new Thread(r, "gerrit-verify-"
+                                + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+
+        p.allowCoreThreadTimeOut(true);
+
+        return p;
+    }
+
+    /**
+     * Look up and vote on the changes of several repositories at once, with
+     * up to <code>gerrit.verify.parallelism</code> (default 4) running at a
+     * time across all builds. Repositories not done within
+     * <code>gerrit.verify.repositoryTimeoutMillis</code> (default 120000)
+     * of starting are given up on; time spent queued behind other builds
+     * doesn't count.
+     */
+    private void
+                    updateChangeVerifications(List<RepositoryDefinition> repositories,
+                                              final String buildPlanKey,
+                                              final CurrentBuildResult results) throws InterruptedException {
+        long timeout = Long.getLong(PROP_TIMEOUT, DEFAULT_TIMEOUT);
+        Map<RepositoryDefinition, Verification> updates =
+            new LinkedHashMap<RepositoryDefinition, Verification>();
+
+        for (final RepositoryDefinition rd : repositories) {
+            final Verification v = new Verification();
+
+            v.future = verifiers.submit(new Callable<Void>() {
+
+                @Override
+                public Void call() throws RepositoryException {
+                    v.start();
+                    updateChangeVerification(rd, buildPlanKey, results);
+                    return null;
+                }
+            });
+            updates.put(rd, v);
+        }
+
+        List<String> failed = new ArrayList<String>();
+        List<String> timedOut = new ArrayList<String>();
+
+        for (Map.Entry<RepositoryDefinition, Verification> e : updates
+            .entrySet()) {
+            String name = e.getKey().getName();
+            Verification v = e.getValue();
+
+            // running tasks are bounded by the timeout, so a slot frees up
+            v.started.await();
+
+            try {
+                v.future.get(
+                    Math.max(0, v.startedAt + timeout
+                        - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (ExecutionException ex) {
+                failed.add(name);
+                logger.error(String.format("%s: %s", name, ex.getCause()
+                    .getMessage()));
+            } catch (TimeoutException ex) {
+                v.future.cancel(true);
+                timedOut.add(name);
+            }
+        }
+
+        logger.info(String.format(
+            "Change verification of %d repositories: %d updated, "
+                + "failed %s, timed out after %dms %s.", updates.size(),
+            updates.size() - failed.size() - timedOut.size(), failed,
+            timeout, timedOut));
+    }
+
+    /**
+     * @return true if this processor runs on the server after each job.
+     *         Results combined across plans are reported there, where every
+     *         agent's jobs meet; the agent only votes for jobs of their own.
+     */
+    protected boolean isServerSide() {
+        return false;
+    }
+
+    private boolean isCoordinated() {
+        return !getRequiredPlans().isEmpty()
+            || Boolean.parseBoolean(customConfiguration.get(GERRIT_FAIL_FAST));
+    }
+
+    /**
+     * @return the keys of the jobs the plan runs for this build, empty if
+     *         they can't be looked up here
+     */
+    protected List<String> getChainJobs() {
+        return new ArrayList<String>();
+    }
+
+    // plans that must all pass before the change is verified
+    private List<String> getRequiredPlans() {
+        List<String> plans = new ArrayList<String>();
+        String value = customConfiguration.get(GERRIT_REQUIRED_PLANS);
+
+        if (value != null)
+            for (String plan : value.split("[,\\s]+"))
+                if (!plan.isEmpty())
+                    plans.add(plan);
+
+        return plans;
+    }
+
     private void
                     updateChangeVerification(RepositoryDefinition rd,
                                              String buildPlanKey,
@@ -220,10 +397,20 @@ public class GerritProcessor extends BaseConfigurableBuildPlugin implements
             return;
         }
 
+        List<String> requiredPlans = getRequiredPlans();
+        boolean failFast =
+            Boolean.parseBoolean(customConfiguration.get(GERRIT_FAIL_FAST));
+
+        // a pass waits for the rest of the plan, only a failure votes early
+        if (failFast && requiredPlans.isEmpty())
+            requiredPlans = getChainJobs();
+
+        // posted in the background, so the build isn't held up by Gerrit
         if ((results.getBuildReturnCode() == 0)
             && results.getBuildState().equals(BuildState.SUCCESS)) {
-            if (service.verifyChange(true, change.getNumber(), change
-                .getCurrentPatchSet().getNumber(), buildStatusString(results))) {
+            if (service.reportVerification(buildPlanKey, requiredPlans,
+                failFast, true, change.getNumber(), change.getCurrentPatchSet().getNumber(),
+                buildStatusString(results))) {
 
                 logger.info(textProvider
                     .getText("processor.gerrit.messages.build.verified.pos"));
@@ -232,8 +419,9 @@ public class GerritProcessor extends BaseConfigurableBuildPlugin implements
                     "processor.gerrit.messages.build.verified.failed",
                     Arrays.asList(change.getId())));
             }
-        } else if (service.verifyChange(false, change.getNumber(), change
-            .getCurrentPatchSet().getNumber(), buildStatusString(results))) {
+        } else if (service.reportVerification(buildPlanKey, requiredPlans,
+            failFast, false, change.getNumber(), change.getCurrentPatchSet()
+                .getNumber(), buildStatusString(results))) {
             logger.info(textProvider
                 .getText("processor.gerrit.messages.build.verified.neg"));
         } else {
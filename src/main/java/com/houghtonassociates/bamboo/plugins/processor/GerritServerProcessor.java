@@ -0,0 +1,78 @@
+/**
+ * Copyright 2012 Houghton Associates
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.houghtonassociates.bamboo.plugins.processor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.atlassian.bamboo.build.CustomBuildProcessorServer;
+import com.atlassian.bamboo.chains.Chain;
+import com.atlassian.bamboo.plan.PlanKey;
+import com.atlassian.bamboo.plan.PlanKeys;
+import com.atlassian.bamboo.plan.PlanManager;
+import com.atlassian.bamboo.plan.cache.ImmutableChain;
+import com.atlassian.bamboo.plan.cache.ImmutableChainStage;
+import com.atlassian.bamboo.plan.cache.ImmutableJob;
+
+/**
+ * Post processor which reports a job's result to Gerrit from the server, for
+ * plans whose vote combines several jobs
+ */
+public class GerritServerProcessor extends GerritProcessor implements
+    CustomBuildProcessorServer {
+
+    private PlanManager planManager = null;
+
+    public void setPlanManager(PlanManager planManager) {
+        this.planManager = planManager;
+    }
+
+    @Override
+    protected boolean isServerSide() {
+        return true;
+    }
+
+    /**
+     * The enabled jobs of the plan's stages, up to the first manual stage
+     * after the first one: the chain stops there until someone runs it.
+     */
+    @Override
+    protected List<String> getChainJobs() {
+        List<String> jobs = new ArrayList<String>();
+
+        if (planManager == null)
+            return jobs;
+
+        PlanKey chainKey =
+            PlanKeys.getChainKeyFromJobKey(PlanKeys.getPlanKey(buildContext
+                .getPlanKey()));
+        ImmutableChain chain = planManager.getPlanByKey(chainKey, Chain.class);
+
+        if (chain == null)
+            return jobs;
+
+        for (ImmutableChainStage stage : chain.getAllStages()) {
+            if (stage.isManual() && !jobs.isEmpty())
+                break;
+
+            for (ImmutableJob job : stage.getJobs())
+                if (!job.isSuspendedFromBuilding())
+                    jobs.add(job.getKey());
+        }
+
+        return jobs;
+    }
+}
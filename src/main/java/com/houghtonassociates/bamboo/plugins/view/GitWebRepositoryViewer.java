@@ -86,8 +86,6 @@ public class GitWebRepositoryViewer extends AbstractWebRepositoryViewer
     private final Logger logger = Logger
         .getLogger(GitWebRepositoryViewer.class);
 
-    private boolean gerritOnline = true;
-
     // For speeding up consecutive searches in a session
     private Map<String, String> changeIDtoRev = new HashMap<String, String>();
 
@@ -170,7 +168,9 @@ public class GitWebRepositoryViewer extends AbstractWebRepositoryViewer
             GerritChangeVO change = null;
 
             if (isChangeID(id)) {
-                if (gerritOnline) {
+                // shares the server's circuit breaker, so an outage fails
+                // fast here and recovers on its own
+                if (gra.getGerritDAO().isAvailable()) {
                     try {
                         // For speeding up consecutive searches in a session
                         newRevision = changeIDtoRev.get(id);
@@ -186,7 +186,6 @@ public class GitWebRepositoryViewer extends AbstractWebRepositoryViewer
                     } catch (RepositoryException e) {
                         logger.error("Failed to load change ID!");
                         logger.error(e.getMessage());
-                        gerritOnline = false;
                         return null;
                     }
                 } else {
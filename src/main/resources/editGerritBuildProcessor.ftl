@@ -16,4 +16,12 @@
 
 [@ui.bambooSection titleKey='gerrit.build.processor.section.title' ]
 	[@ww.checkbox labelKey='gerrit.build.processor.run' name='custom.gerrit.run' toggle='true' descriptionKey="gerrit.product.description" /]
+	[@ui.bambooSection dependsOn='custom.gerrit.run' showOn='true']
+		[@ww.checkbox labelKey='gerrit.build.processor.progress' name='custom.gerrit.progress' /]
+		[@ww.textfield labelKey='gerrit.build.processor.requiredPlans' name='custom.gerrit.requiredPlans' /]
+		[@ww.checkbox labelKey='gerrit.build.processor.failFast' name='custom.gerrit.failFast' toggle='true' /]
+		[@ui.bambooSection dependsOn='custom.gerrit.failFast' showOn='true']
+			[@ww.checkbox labelKey='gerrit.build.processor.failFast.stop' name='custom.gerrit.failFast.stop' /]
+		[/@ui.bambooSection]
+	[/@ui.bambooSection]
 [/@ui.bambooSection]
\ No newline at end of file
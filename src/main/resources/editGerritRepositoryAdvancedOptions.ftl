@@ -49,3 +49,15 @@
 [@ww.checkbox labelKey='repository.gerrit.useSubmodules' name='repository.gerrit.useSubmodules' /]
 [@ww.textfield labelKey='repository.gerrit.commandTimeout' name='repository.gerrit.commandTimeout' /]
 [@ww.checkbox labelKey='repository.gerrit.verbose.logs' name='repository.gerrit.verbose.logs' /]
+
+[@ww.select labelKey='repository.gerrit.transport' name='repository.gerrit.transport' list="{'ssh','rest'}" /]
+[@ui.bambooSection dependsOn='repository.gerrit.transport' showOn='rest']
+    [@ww.textfield labelKey='repository.gerrit.frontEndUrl' name='repository.gerrit.frontEndUrl' /]
+    [@ww.textfield labelKey='repository.gerrit.http.username' name='repository.gerrit.http.username' /]
+    [@ww.checkbox labelKey='repository.gerrit.http.password.change' toggle='true' name='temporary.gerrit.http.password.change' /]
+    [@ui.bambooSection dependsOn='temporary.gerrit.http.password.change' showOn='true']
+        [@ww.password labelKey='repository.gerrit.http.password' name='temporary.gerrit.http.password' /]
+    [/@ui.bambooSection]
+[/@ui.bambooSection]
+
+[@ww.textarea labelKey='repository.gerrit.replicas' name='repository.gerrit.replicas' rows='3' /]
@@ -0,0 +1,187 @@
+/*
+ * Houghton Associates Framework
+ * http://www.houghtonassociates.com
+ *
+ * Copyright 2014 Houghton Associates, Inc.
+ */
+package com.houghtonassociates.bamboo.plugins.dao;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks how the limit follows latency and how callers queue for it.
+ */
+public class GerritConcurrencyLimiterTest extends TestCase {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private GerritConcurrencyLimiter newLimiter(int initial) {
+        return new GerritConcurrencyLimiter("test", initial, 1, 8, 2.0, 0.5);
+    }
+
+    public void testIncrease() throws Exception {
+        GerritConcurrencyLimiter limiter = newLimiter(2);
+
+        // a busy limit with steady latency grows
+        for (int i = 0; i < 4; i++) {
+            limiter.acquire();
+            limiter.acquire();
+            limiter.release(GerritOperation.QUERY, 10 * MS, false);
+            limiter.release(GerritOperation.QUERY, 10 * MS, false);
+        }
+
+        assertEquals(5, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+
+        // an idle one doesn't
+        GerritConcurrencyLimiter idle = newLimiter(4);
+
+        for (int i = 0; i < 4; i++) {
+            idle.acquire();
+            idle.release(GerritOperation.QUERY, 10 * MS, false);
+        }
+
+        assertEquals(4, idle.getLimit());
+    }
+
+    public void testDecrease() throws Exception {
+        GerritConcurrencyLimiter limiter = newLimiter(8);
+
+        limiter.acquire();
+        limiter.release(GerritOperation.QUERY, 10 * MS, false);
+        assertEquals(10, limiter.getMinRttMillis(GerritOperation.QUERY));
+
+        // latency past the tolerance
+        limiter.acquire();
+        limiter.release(GerritOperation.QUERY, 50 * MS, false);
+        assertEquals(4, limiter.getLimit());
+
+        // an I/O error
+        limiter.acquire();
+        limiter.release(GerritOperation.QUERY, -1, true);
+        assertEquals(2, limiter.getLimit());
+        assertEquals(1, limiter.getDroppedCount());
+
+        // never below the minimum
+        for (int i = 0; i < 4; i++) {
+            limiter.acquire();
+            limiter.release(GerritOperation.QUERY, -1, true);
+        }
+
+        assertEquals(1, limiter.getLimit());
+    }
+
+    public void testBaselinePerOperation() throws Exception {
+        GerritConcurrencyLimiter limiter = newLimiter(4);
+
+        // cheap commands don't make every query look slow
+        for (int i = 0; i < 10; i++) {
+            limiter.acquire();
+            limiter.release(GerritOperation.COMMAND, 1 * MS, false);
+            limiter.acquire();
+            limiter.release(GerritOperation.QUERY, 100 * MS, false);
+        }
+
+        assertEquals(4, limiter.getLimit());
+        assertEquals(1, limiter.getMinRttMillis(GerritOperation.COMMAND));
+        assertEquals(100, limiter.getMinRttMillis(GerritOperation.QUERY));
+        assertEquals(1, limiter.getMinRttMillis());
+    }
+
+    public void testOnlyCommandTimed() throws Exception {
+        GerritConcurrencyLimiter limiter = newLimiter(4);
+        final GerritConcurrencyLimiter.Stopwatch watch =
+            new GerritConcurrencyLimiter.Stopwatch();
+
+        limiter.call(GerritOperation.QUERY, new Callable<Object>() {
+
+            @Override
+            public Object call() throws Exception {
+                // e.g. waiting for an executor permit
+                Thread.sleep(200);
+
+                return watch.time(new Callable<Object>() {
+
+                    @Override
+                    public Object call() throws Exception {
+                        return null;
+                    }
+                }).call();
+            }
+        }, watch);
+
+        assertTrue(limiter.getMinRttMillis(GerritOperation.QUERY) < 100);
+
+        try {
+            limiter.call(GerritOperation.QUERY, new Callable<Object>() {
+
+                @Override
+                public Object call() throws Exception {
+                    throw new IOException("reset");
+                }
+            });
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+
+        assertEquals(2, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    public void testFairQueueing() throws Exception {
+        final GerritConcurrencyLimiter limiter =
+            new GerritConcurrencyLimiter("test", 1, 1, 1, 2.0, 0.5);
+        final List<Integer> order =
+            Collections.synchronizedList(new ArrayList<Integer>());
+        List<Thread> threads = new ArrayList<Thread>();
+
+        limiter.acquire();
+
+        for (int i = 0; i < 5; i++) {
+            final int id = i;
+            Thread t = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        limiter.acquire();
+                        order.add(id);
+                        limiter.release(GerritOperation.QUERY, MS, false);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+
+            t.start();
+            threads.add(t);
+
+            // queued in the order started
+            for (int j = 0; j < 100 && limiter.getQueueLength() <= i; j++)
+                Thread.sleep(10);
+            assertEquals(i + 1, limiter.getQueueLength());
+        }
+
+        // a caller giving up leaves the others in line
+        assertFalse(limiter.tryAcquire(10, TimeUnit.MILLISECONDS));
+        assertEquals(1, limiter.getTimedOutCount());
+
+        limiter.release(GerritOperation.QUERY, MS, false);
+
+        for (Thread t : threads)
+            t.join(5000);
+
+        assertEquals(5, order.size());
+        for (int i = 0; i < 5; i++)
+            assertEquals(Integer.valueOf(i), order.get(i));
+        assertEquals(0, limiter.getQueueLength());
+    }
+}
@@ -0,0 +1,415 @@
+/*
+ * Houghton Associates Framework
+ * http://www.houghtonassociates.com
+ *
+ * Copyright 2014 Houghton Associates, Inc.
+ */
+package com.houghtonassociates.bamboo.plugins.dao;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+import net.sf.json.JSONObject;
+
+import com.atlassian.bamboo.repository.RepositoryException;
+import com.houghtonassociates.bamboo.plugins.dao.fixture.GerritDataSet;
+import com.houghtonassociates.bamboo.plugins.dao.fixture.GerritDataSet.PatchSet;
+import com.houghtonassociates.bamboo.plugins.dao.fixture.GerritFaultProxy;
+import com.houghtonassociates.bamboo.plugins.dao.fixture.GerritQuery;
+import com.houghtonassociates.bamboo.plugins.dao.fixture.GerritSshServer;
+import com.houghtonassociates.bamboo.plugins.dao.jgit.JGitRepository;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.KeyPair;
+
+/**
+ * Measures the service over a slow or lossy link to a stand-in Gerrit.
+ *
+ * Each scenario prints poll latency percentiles, trigger latency (a patch
+ * set upload until a poll reports it), the time to fetch the patch set and
+ * how many Gerrit I/O threads were busy.
+ */
+public class GerritFaultBenchmarkTest extends TestCase {
+
+    private static final String USER = "bamboo";
+    private static final String EMAIL = "bamboo@example.com";
+    private static final String PROJECT = "project-000";
+    private static final int PROJECTS = 3;
+    private static final int CHANGES = 50;
+    private static final int POLLS = 60;
+
+    private static final Logger log = Logger
+        .getLogger(GerritFaultBenchmarkTest.class);
+    private static final int THREADS = 4;
+    private static final int LOOKUPS = 1000;
+
+    private File dir;
+    private GerritDataSet data;
+    private GerritSshServer server;
+    private GerritFaultProxy proxy;
+    private GerritConfig gc;
+    private GerritService service;
+
+    /**
+     * What a scenario measured.
+     */
+    private static class Report {
+
+        final List<Long> polls = Collections
+            .synchronizedList(new ArrayList<Long>());
+        final AtomicLong failures = new AtomicLong(0);
+        long trigger = -1;
+        long fetch = -1;
+        double busyThreads = 0;
+        int maxBusyThreads = 0;
+
+        long percentile(int p) {
+            Long[] sorted = polls.toArray(new Long[0]);
+
+            if (sorted.length == 0)
+                return -1;
+
+            Arrays.sort(sorted);
+
+            return sorted[Math.min(sorted.length - 1,
+                (int) Math.ceil(p / 100.0 * sorted.length) - 1)];
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("gerrit-faults", "");
+        dir.delete();
+        dir.mkdirs();
+
+        data =
+            GerritDataSet.generate(new File(dir, "git"), USER, EMAIL,
+                PROJECTS, CHANGES, 1);
+        server = new GerritSshServer(data);
+        server.start();
+
+        proxy = new GerritFaultProxy("127.0.0.1", server.getPort());
+        proxy.start();
+
+        gc = newConfig("127.0.0.1", proxy.getPort());
+        service = new GerritService(gc);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        System.clearProperty(GerritOperation.QUERY.getPropertyName());
+        proxy.stop();
+        server.stop();
+        data.close();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private GerritConfig newConfig(String host, int port) throws Exception {
+        File key = new File(dir, "id_rsa");
+        KeyPair kp = KeyPair.genKeyPair(new JSch(), KeyPair.RSA, 2048);
+
+        kp.writePrivateKey(key.getAbsolutePath());
+        kp.dispose();
+
+        GerritConfig c = new GerritConfig();
+
+        c.setHost(host);
+        c.setPort(port);
+        c.setUsername(USER);
+        c.setUserEmail(EMAIL);
+        c.setSshKeyFile(key);
+        c.setSshKey(FileUtils.readFileToString(key));
+        c.setSshPassphrase("");
+        c.setWorkingDirectory(new File(dir, "work").getAbsolutePath());
+        c.setRepositoryUrl(String.format("ssh://%s@%s:%d/%s", USER, host,
+            port, PROJECT));
+
+        return c;
+    }
+
+    public void testCleanLink() throws Exception {
+        Report r = run("clean");
+
+        assertEquals(0, r.failures.get());
+        assertTrue(r.trigger >= 0);
+    }
+
+    public void testLatencyAndJitter() throws Exception {
+        proxy.setLatency(40, 20);
+
+        Report r = run("latency 40ms, jitter 20ms");
+
+        assertEquals(0, r.failures.get());
+        assertTrue(r.percentile(50) >= 40);
+    }
+
+    public void testBandwidthCap() throws Exception {
+        proxy.setBandwidth(64 * 1024);
+
+        Report r = run("64KB/s");
+
+        assertEquals(0, r.failures.get());
+    }
+
+    public void testStallWithinDeadline() throws Exception {
+        System.setProperty(GerritOperation.QUERY.getPropertyName(), "2");
+
+        // opens the session before the link goes quiet
+        service.runGerritQuery("change:1");
+        proxy.stall(8000);
+
+        long start = System.currentTimeMillis();
+
+        try {
+            service.runGerritQuery("project:" + PROJECT);
+            fail("query answered through a stalled link");
+        } catch (RepositoryException e) {
+            long elapsed = System.currentTimeMillis() - start;
+
+            report("stall 8s, 2s query deadline", String.format(
+                "query gave up after %dms", elapsed));
+
+            // a stalled channel open releases the caller a short grace
+            // period after the deadline
+            assertTrue("gave up after " + elapsed + "ms", elapsed < 3000);
+        }
+    }
+
+    /**
+     * 1,000 lookups submitted at once, on virtual threads (where the JVM has
+     * them) and on the platform pool. Only the I/O threads differ between
+     * the modes: the per-server permits bound the work in flight either way.
+     */
+    public void testConcurrentLookups() throws Exception {
+        proxy.setLatency(20, 0);
+
+        for (String mode : new String[] { GerritExecutor.MODE_VIRTUAL,
+            GerritExecutor.MODE_PLATFORM }) {
+            GerritExecutor executor = new GerritExecutor(mode, 32, 16);
+            final GerritSQLHandler handler =
+                new GerritSQLHandler(gc.getHost(), gc.getPort(),
+                    gc.getProxy(), gc.getAuth());
+            final List<Long> lookups =
+                Collections.synchronizedList(new ArrayList<Long>());
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            List<Future<Integer>> done = new ArrayList<Future<Integer>>();
+            int failures = 0;
+
+            threads.resetPeakThreadCount();
+
+            long start = System.currentTimeMillis();
+
+            for (int i = 0; i < LOOKUPS; i++) {
+                final String query =
+                    String.format("change:%d", 1 + i % (PROJECTS * CHANGES));
+                final long submitted = System.currentTimeMillis();
+
+                done.add(executor.submit(gc.getServerKey(),
+                    new Callable<Integer>() {
+
+                        @Override
+                        public Integer call() throws Exception {
+                            List<JSONObject> rows = handler.queryJava(query);
+
+                            lookups.add(System.currentTimeMillis() - submitted);
+
+                            return rows.size();
+                        }
+                    }));
+            }
+
+            for (Future<Integer> f : done) {
+                try {
+                    // a change and the statistics row
+                    assertEquals(2, f.get().intValue());
+                } catch (Exception e) {
+                    failures++;
+                }
+            }
+
+            long elapsed = Math.max(1, System.currentTimeMillis() - start);
+            Long[] sorted = lookups.toArray(new Long[0]);
+
+            Arrays.sort(sorted);
+
+            report(String.format("%d lookups, %s mode", LOOKUPS, mode),
+                String.format("virtual=%s, %dms: %.0f lookups/s, "
+                    + "p50=%dms p99=%dms failed=%d, peak platform threads=%d",
+                    executor.isVirtual(), elapsed, LOOKUPS * 1000.0 / elapsed,
+                    sorted[sorted.length / 2],
+                    sorted[(int) Math.ceil(0.99 * sorted.length) - 1],
+                    failures, threads.getPeakThreadCount()));
+
+            assertEquals(0, failures);
+        }
+    }
+
+    public void testResets() throws Exception {
+        service.runGerritQuery("change:1");
+        proxy.resetAll();
+
+        // the reset session is dropped and the query retried on a new one
+        assertNotNull(service.runGerritQuery("project:" + PROJECT));
+        assertTrue(proxy.getResetCount() > 0);
+
+        proxy.setResets(0.01);
+
+        Report r = run("1% resets per chunk");
+
+        assertTrue(r.polls.size() > 0);
+    }
+
+    public void testHttpConnectProxy() throws Exception {
+        GerritFaultProxy connect =
+            new GerritFaultProxy(null, 0, true);
+
+        connect.start();
+
+        try {
+            connect.setLatency(20, 10);
+
+            gc = newConfig("127.0.0.1", server.getPort());
+            gc.setProxy(connect.getProxyUrl());
+            service = new GerritService(gc);
+
+            List<String> projects = service.getProjects();
+
+            assertTrue(projects.contains(PROJECT));
+            assertTrue(connect.getConnectionCount() > 0);
+        } finally {
+            connect.stop();
+        }
+    }
+
+    private Report run(String scenario) throws Exception {
+        final Report r = new Report();
+        final GerritExecutor executor = GerritExecutor.getInstance();
+        final AtomicLong samples = new AtomicLong(0);
+        final AtomicLong busy = new AtomicLong(0);
+
+        ScheduledExecutorService sampler =
+            Executors.newSingleThreadScheduledExecutor();
+
+        sampler.scheduleAtFixedRate(new Runnable() {
+
+            @Override
+            public void run() {
+                int active = executor.getActiveCount();
+
+                samples.incrementAndGet();
+                busy.addAndGet(active);
+                r.maxBusyThreads = Math.max(r.maxBusyThreads, active);
+            }
+        }, 0, 5, TimeUnit.MILLISECONDS);
+
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> done = new ArrayList<Future<?>>();
+
+        for (int i = 0; i < POLLS; i++) {
+            final String project = String.format("project-%03d", i % PROJECTS);
+
+            done.add(pool.submit(new Callable<Void>() {
+
+                @Override
+                public Void call() {
+                    long start = System.currentTimeMillis();
+
+                    try {
+                        service.getGerritChangeInfo(project);
+                        r.polls.add(System.currentTimeMillis() - start);
+                    } catch (RepositoryException e) {
+                        r.failures.incrementAndGet();
+                    }
+
+                    return null;
+                }
+            }));
+        }
+
+        for (Future<?> f : done)
+            f.get();
+
+        pool.shutdown();
+
+        r.trigger = measureTrigger();
+        r.fetch = measureFetch();
+
+        sampler.shutdownNow();
+        r.busyThreads =
+            (samples.get() == 0) ? 0 : (double) busy.get() / samples.get();
+
+        report(scenario, String.format(
+            "polls p50=%dms p95=%dms p99=%dms failed=%d, trigger=%dms, "
+                + "fetch=%dms, busy I/O threads avg=%.1f max=%d, "
+                + "proxy resets=%d", r.percentile(50), r.percentile(95),
+            r.percentile(99), r.failures.get(), r.trigger, r.fetch,
+            r.busyThreads, r.maxBusyThreads, proxy.getResetCount()));
+
+        return r;
+    }
+
+    // upload until the project's poll reports the new patch set
+    private long measureTrigger() throws Exception {
+        int change =
+            data.query(new GerritQuery("project:" + PROJECT), 1).get(0)
+                .getNumber();
+        long start = System.currentTimeMillis();
+        PatchSet p = server.uploadPatchSet(change);
+
+        for (int i = 0; i < 200; i++) {
+            try {
+                GerritChangeVO last = service.getLastUnverifiedChange(PROJECT);
+
+                if (last != null
+                    && p.getRevision().equals(
+                        last.getCurrentPatchSet().getRevision()))
+                    return System.currentTimeMillis() - start;
+            } catch (RepositoryException e) {
+                // polled again below
+            }
+
+            Thread.sleep(50);
+        }
+
+        return -1;
+    }
+
+    private long measureFetch() {
+        PatchSet p = data.getChange(1).getCurrentPatchSet();
+        JGitRepository repo = new JGitRepository();
+        long start = System.currentTimeMillis();
+
+        try {
+            repo.setAccessData(gc);
+            repo.open(new File(dir, "clone"), true);
+            repo.openSSHTransport();
+            repo.fetch(p.getRef());
+
+            return System.currentTimeMillis() - start;
+        } catch (RepositoryException e) {
+            return -1;
+        } finally {
+            repo.close();
+        }
+    }
+
+    private static void report(String scenario, String result) {
+        log.info(String.format("[%s] %s", scenario, result));
+    }
+}
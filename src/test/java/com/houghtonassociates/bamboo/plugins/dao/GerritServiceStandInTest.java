@@ -0,0 +1,868 @@
+/*
+ * Houghton Associates Framework
+ * http://www.houghtonassociates.com
+ *
+ * Copyright 2014 Houghton Associates, Inc.
+ */
+package com.houghtonassociates.bamboo.plugins.dao;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import net.sf.json.JSONObject;
+import net.sf.json.JSONSerializer;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+
+import com.houghtonassociates.bamboo.plugins.dao.fixture.GerritDataSet;
+import com.houghtonassociates.bamboo.plugins.dao.fixture.GerritDataSet.Change;
+import com.houghtonassociates.bamboo.plugins.dao.fixture.GerritDataSet.PatchSet;
+import com.houghtonassociates.bamboo.plugins.dao.fixture.GerritSshServer;
+import com.houghtonassociates.bamboo.plugins.dao.jgit.JGitRepository;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.KeyPair;
+import com.sonymobile.tools.gerrit.gerritevents.dto.GerritEvent;
+import com.sonymobile.tools.gerrit.gerritevents.dto.events.PatchsetCreated;
+import com.sonymobile.tools.gerrit.gerritevents.ssh.SshConnection;
+import com.sonymobile.tools.gerrit.gerritevents.ssh.SshConnectionFactory;
+
+/**
+ * Runs the service against a local stand-in Gerrit over SSH.
+ *
+ * The poll throughput test reads its size from
+ * <code>gerrit.standin.changes</code> (default 1000) and
+ * <code>gerrit.standin.polls</code> (default 200).
+ */
+public class GerritServiceStandInTest extends TestCase {
+
+    private static final String USER = "bamboo";
+    private static final String EMAIL = "bamboo@example.com";
+    private static final int PROJECTS = 3;
+    private static final int CHANGES = 20;
+
+    private static final Logger log = Logger
+        .getLogger(GerritServiceStandInTest.class);
+
+    private File dir;
+    private GerritDataSet data;
+    private GerritSshServer server;
+    private GerritConfig gc;
+    private GerritService service;
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("gerrit-standin", "");
+        dir.delete();
+        dir.mkdirs();
+
+        start(GerritDataSet.generate(new File(dir, "git"), USER, EMAIL,
+            PROJECTS, CHANGES, 2));
+    }
+
+    private void start(GerritDataSet data) throws Exception {
+        this.data = data;
+
+        server = new GerritSshServer(data);
+        server.start();
+
+        gc = newConfig(server.getPort());
+        service = new GerritService(gc);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.stop();
+        data.close();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private GerritConfig newConfig(int port) throws Exception {
+        File key = new File(dir, "id_rsa");
+        KeyPair kp = KeyPair.genKeyPair(new JSch(), KeyPair.RSA, 2048);
+
+        kp.writePrivateKey(key.getAbsolutePath());
+        kp.dispose();
+
+        GerritConfig c = new GerritConfig();
+
+        c.setHost("127.0.0.1");
+        c.setPort(port);
+        c.setUsername(USER);
+        c.setSshKeyFile(key);
+        c.setSshKey(FileUtils.readFileToString(key));
+        c.setSshPassphrase("");
+        c.setWorkingDirectory(new File(dir, "work").getAbsolutePath());
+        c.setRepositoryUrl(String.format("ssh://%s@127.0.0.1:%d/project-000",
+            USER, port));
+
+        return c;
+    }
+
+    public void testVersion() throws Exception {
+        assertTrue(service.getGerritVersion().contains(
+            GerritSshServer.DEFAULT_VERSION));
+        assertEquals(1, server.getCommandCount("gerrit version"));
+
+        // cached per server
+        assertTrue(new GerritService(gc).getGerritVersion().contains(
+            GerritSshServer.DEFAULT_VERSION));
+        assertEquals(1, server.getCommandCount("gerrit version"));
+    }
+
+    public void testCapabilities() throws Exception {
+        GerritCapabilities caps = service.getCapabilities();
+
+        assertTrue(caps.isAuthorSupported());
+        assertTrue(caps.isFilesSupported());
+        assertTrue(caps.isGsqlAvailable());
+        assertFalse(caps.isRestAvailable());
+        assertSame(caps, service.getCapabilities());
+    }
+
+    public void testCapabilitiesOfOldServer() throws Exception {
+        server.setVersion("2.5.2");
+        server.setAuthorInPatchSets(false);
+
+        GerritCapabilities caps = service.getCapabilities();
+
+        assertFalse(caps.isAuthorSupported());
+        assertTrue(caps.isGsqlAvailable());
+
+        GerritChangeVO change = service.getChangeByID("1");
+
+        assertNull(change.getCurrentPatchSet().getAuthorEmail());
+    }
+
+    public void testCapabilitiesWithoutGsql() throws Exception {
+        server.setVersion("2.16.7");
+        server.setGsqlEnabled(false);
+
+        GerritCapabilities caps = service.getCapabilities();
+
+        assertFalse(caps.isGsqlSupported());
+        assertFalse(caps.isGsqlAvailable());
+
+        // falls back to the configured account instead of querying gsql
+        gc.setUserEmail(EMAIL);
+        assertEquals(EMAIL, service.getUserVOByName(USER).getEmail());
+        assertEquals(0, server.getCommandCount("gerrit gsql"));
+    }
+
+    public void testProjects() throws Exception {
+        List<String> projects = service.getProjects();
+
+        assertTrue(projects.contains("project-000"));
+        assertTrue(projects.contains(GerritDataSet.ALL_PROJECTS));
+        assertTrue(service.isGerritProject("project-002"));
+        assertFalse(service.isGerritProject("no-such-project"));
+    }
+
+    public void testQuerySQL() throws Exception {
+        GerritSQLHandler handler =
+            new GerritSQLHandler(gc.getHost(), gc.getPort(), gc.getProxy(),
+                gc.getAuth());
+        List<JSONObject> rows = handler.querySQL("select * from accounts");
+
+        assertEquals(data.getAccounts().size() + 1, rows.size());
+        assertEquals("row", rows.get(0).getString("type"));
+        assertEquals("query-stats", rows.get(rows.size() - 1).getString(
+            "type"));
+    }
+
+    public void testExpiredCommandClosed() throws Exception {
+        GerritSQLHandler handler =
+            new GerritSQLHandler(gc.getHost(), gc.getPort(), gc.getProxy(),
+                gc.getAuth());
+        GerritSshSessions sessions =
+            GerritSshSessions.forServer(gc.getHost(), gc.getPort(), gc
+                .getProxy(), gc.getAuth());
+
+        handler.warmUp();
+
+        long connects = sessions.getConnectCount();
+
+        // never ends by itself
+        try {
+            handler.executeCommand("gerrit stream-events", 300);
+            fail();
+        } catch (SocketTimeoutException e) {
+            // expected
+        }
+
+        // the channel is closed, the shared session isn't
+        for (int i = 0; i < 500 && server.getStreamCount() > 0; i++)
+            Thread.sleep(20);
+        assertEquals(0, server.getStreamCount());
+        assertTrue(handler.executeCommand("gerrit version", 5000).contains(
+            GerritSshServer.DEFAULT_VERSION));
+        assertEquals(connects, sessions.getConnectCount());
+    }
+
+    public void testSystemUser() throws Exception {
+        GerritUserVO user = service.getGerritSystemUser();
+
+        assertEquals(USER, user.getUserName());
+        assertEquals(EMAIL, user.getEmail());
+    }
+
+    public void testQueryChanges() throws Exception {
+        assertEquals(PROJECTS * CHANGES, service.getGerritChangeInfo().size());
+        assertEquals(CHANGES, service.getGerritChangeInfo("project-001")
+            .size());
+
+        Change c = data.getChange(5);
+        GerritChangeVO byId = service.getChangeByID(c.getId());
+
+        assertEquals(5, byId.getNumber().intValue());
+        assertEquals(2, byId.getCurrentPatchSet().getNumber().intValue());
+        assertEquals(c.getCurrentPatchSet().getRevision(), byId
+            .getCurrentPatchSet().getRevision());
+        assertEquals(c.getOwner().getEmail(), byId.getCurrentPatchSet()
+            .getAuthorEmail());
+
+        GerritChangeVO byRev =
+            service.getChangeByRevision(c.getPatchSet(1).getRevision());
+
+        assertEquals(5, byRev.getNumber().intValue());
+    }
+
+    public void testQueryLimit() throws Exception {
+        server.setQueryLimit(25);
+
+        List<JSONObject> rows = service.runGerritQuery("is:open");
+        JSONObject stats = rows.get(rows.size() - 1);
+
+        assertEquals(26, rows.size());
+        assertEquals(25, stats.getInt(GerritChangeVO.JSON_KEY_ROWCOUNT));
+        assertTrue(stats.getBoolean("moreChanges"));
+    }
+
+    public void testVerifyChange() throws Exception {
+        assertTrue(service.verifyChange(true, 3, 2, "Build passed"));
+        assertEquals(1, data.getChange(3).getCurrentPatchSet().getVote(
+            "Verified"));
+
+        Set<GerritChangeVO> unverified = service.getLastUnverifiedChanges();
+
+        assertEquals(PROJECTS * CHANGES - 1, unverified.size());
+        for (GerritChangeVO c : unverified)
+            assertFalse(c.getNumber().intValue() == 3);
+
+        // a +1 outweighed by a -1 still counts as unverified
+        data.review(4, 2, "Verified", 1, data.getAccount(USER));
+        data.review(4, 2, "Verified", -1, data.getAccount("developer"));
+
+        unverified = service.getLastUnverifiedChanges();
+
+        assertEquals(PROJECTS * CHANGES - 1, unverified.size());
+        for (GerritChangeVO c : unverified)
+            assertFalse(c.getNumber().intValue() == 3);
+    }
+
+    public void testBatchedVotes() throws Exception {
+        final int votes = 12;
+        ExecutorService pool = Executors.newFixedThreadPool(votes);
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+
+        for (int i = 1; i <= votes; i++) {
+            final int change = i;
+
+            results.add(pool.submit(new Callable<Boolean>() {
+
+                @Override
+                public Boolean call() {
+                    // odd changes fail, their message is shared
+                    boolean pass = change % 2 == 0;
+
+                    return service.verifyChange(pass, change, 2,
+                        pass ? "Passed " + change : "Failed");
+                }
+            }));
+        }
+
+        for (Future<Boolean> f : results)
+            assertTrue(f.get());
+
+        pool.shutdown();
+
+        for (int i = 1; i <= votes; i++)
+            assertEquals((i % 2 == 0) ? 1 : -1, data.getChange(i)
+                .getCurrentPatchSet().getVote("Verified"));
+
+        // one invocation for all failures, one per distinct message
+        assertEquals(votes / 2 + 1, server.getCommandCount("gerrit review"));
+    }
+
+    public void testMessagePostedOnce() throws Exception {
+        int patchSet = data.getChange(5).getCurrentPatchSet().getNumber();
+
+        assertTrue(service.postMessageOnce(5, patchSet, "P-1",
+            "Build P-1 started"));
+        // another job of the result, or a rerun
+        assertFalse(service.postMessageOnce(5, patchSet, "P-1",
+            "Build P-1 started"));
+        assertTrue(service.postMessageOnce(5, patchSet, "P-2",
+            "Build P-2 started"));
+
+        for (int i = 0; i < 100 && server.getCommandCount("gerrit review") < 2; i++)
+            Thread.sleep(50);
+        Thread.sleep(200);
+
+        assertEquals(2, server.getCommandCount("gerrit review"));
+
+        // a message that couldn't be posted is tried again
+        server.stop();
+        assertTrue(service.postMessageOnce(5, patchSet, "P-3",
+            "Build P-3 started"));
+        boolean retried = false;
+
+        for (int i = 0; i < 100 && !retried; i++) {
+            Thread.sleep(50);
+            retried =
+                service.postMessageOnce(5, patchSet, "P-3",
+                    "Build P-3 started");
+        }
+
+        assertTrue(retried);
+    }
+
+    public void testRepeatedVotesSuppressed() throws Exception {
+        gc.setUserEmail(EMAIL);
+
+        assertTrue(service.verifyChange(true, 3, 2, "Build 1 passed"));
+        assertTrue(service.verifyChange(true, 3, 2, "Build 2 passed"));
+        assertEquals(1, server.getCommandCount("gerrit review"));
+        assertEquals(1, service.getSuppressedReviewCount());
+
+        // a query read before the vote landed doesn't replace it
+        data.review(3, 2, "Verified", 0, data.getAccount(USER));
+        service.getChangeByID("3");
+        assertTrue(service.verifyChange(true, 3, 2, "Build 3 passed"));
+        assertEquals(1, server.getCommandCount("gerrit review"));
+
+        // a vote seen in a query counts too
+        data.review(6, 2, "Verified", -1, data.getAccount(USER));
+        assertEquals(-1, service.getChangeByID("6").getVerificationScore()
+            .intValue());
+        assertTrue(service.verifyChange(false, 6, 2, "Still failing"));
+        assertEquals(1, server.getCommandCount("gerrit review"));
+
+        // a changed vote is posted
+        assertTrue(service.verifyChange(true, 6, 2, "Fixed"));
+        assertEquals(2, server.getCommandCount("gerrit review"));
+        assertEquals(3, service.getSuppressedReviewCount());
+    }
+
+    public void testCombinedVote() throws Exception {
+        List<String> plans = Arrays.asList("P-UNIT", "P-IT", "P-LINT");
+
+        assertTrue(service.reportVerification("P-UNIT", plans, false, true, 8, 2,
+            "unit passed"));
+        assertTrue(service.reportVerification("P-LINT", plans, false, true, 8, 2,
+            "lint passed"));
+        assertEquals(0, data.getChange(8).getCurrentPatchSet().getVote(
+            "Verified"));
+
+        assertTrue(service.reportVerification("P-IT", plans, false, true, 8, 2,
+            "it passed"));
+        awaitVote(8, 1);
+
+        // the first failure decides
+        assertTrue(service.reportVerification("P-IT", plans, false, false, 9, 2,
+            "it failed"));
+        awaitVote(9, -1);
+        assertFalse(service.reportVerification("P-UNIT", plans, false, true, 9, 2,
+            "unit passed"));
+
+        System.setProperty(GerritVoteCoordinator.PROP_TIMEOUT, "200");
+
+        try {
+            assertTrue(service.reportVerification("P-UNIT", plans, false, true, 10,
+                2, "unit passed"));
+            awaitVote(10, -1);
+        } finally {
+            System.clearProperty(GerritVoteCoordinator.PROP_TIMEOUT);
+        }
+    }
+
+    public void testFailFastVote() throws Exception {
+        List<String> jobs = Arrays.asList("P-J1", "P-J2", "P-J3");
+
+        gc.setUserEmail(EMAIL);
+
+        // a pass waits for the other jobs
+        assertTrue(service.reportVerification("P-J1", jobs, true, true, 11,
+            2, "job 1 passed"));
+        Thread.sleep(500);
+        assertEquals(0, data.getChange(11).getCurrentPatchSet().getVote(
+            "Verified"));
+        assertNull(service.getFailedPlan(11, 2));
+
+        // a failure doesn't
+        assertTrue(service.reportVerification("P-J2", jobs, true, false, 11,
+            2, "job 2 failed"));
+        awaitVote(11, -1);
+        assertEquals("P-J2", service.getFailedPlan(11, 2));
+
+        // a job finishing later doesn't turn the vote back
+        assertFalse(service.reportVerification("P-J3", jobs, true, true, 11,
+            2, "job 3 passed"));
+        Thread.sleep(500);
+        assertEquals(-1, data.getChange(11).getCurrentPatchSet().getVote(
+            "Verified"));
+
+        // +1 once every job has passed
+        int patchSet = data.getChange(12).getCurrentPatchSet().getNumber();
+
+        for (String job : jobs)
+            assertTrue(service.reportVerification(job, jobs, true, true, 12,
+                patchSet, job + " passed"));
+        awaitVote(12, 1);
+    }
+
+    public void testRoundsSurviveRestart() throws Exception {
+        List<String> plans = Arrays.asList("P-A", "P-B");
+        File rounds =
+            new File(gc.getWorkingDirectoryPath(),
+                GerritService.ROUNDS_DIRECTORY);
+
+        assertTrue(service.reportVerification("P-A", plans, false, true, 15,
+            2, "a passed"));
+        assertEquals(1, rounds.list().length);
+
+        GerritVoteCoordinator.forget(service.getCapabilitiesKey());
+
+        // the other half of the round arrives after the restart
+        assertTrue(service.reportVerification("P-B", plans, false, true, 15,
+            2, "b passed"));
+        awaitVote(15, 1);
+
+        // so does a decided failure
+        assertTrue(service.reportVerification("P-A", plans, true, false, 16,
+            2, "a failed"));
+        awaitVote(16, -1);
+
+        GerritVoteCoordinator.forget(service.getCapabilitiesKey());
+
+        assertEquals("P-A", service.getFailedPlan(16, 2));
+        assertFalse(service.reportVerification("P-B", plans, true, true, 16,
+            2, "b passed"));
+    }
+
+    private void awaitVote(int change, int vote) throws InterruptedException {
+        for (int i = 0; i < 100
+            && data.getChange(change).getCurrentPatchSet().getVote("Verified") != vote; i++)
+            Thread.sleep(50);
+
+        assertEquals(vote, data.getChange(change).getCurrentPatchSet()
+            .getVote("Verified"));
+    }
+
+    public void testQueuedVotes() throws Exception {
+        File outbox =
+            new File(gc.getWorkingDirectoryPath(),
+                GerritService.OUTBOX_DIRECTORY);
+
+        assertTrue(service.queueVerification(true, 4, 1, "Superseded"));
+        assertTrue(service.queueVerification(false, 4, 2, "Failed"));
+        assertTrue(service.queueVerification(true, 4, 2, "Passed"));
+
+        for (int i = 0; i < 100 && outbox.list().length > 0; i++)
+            Thread.sleep(50);
+
+        assertEquals(0, outbox.list().length);
+        assertEquals(1, data.getChange(4).getCurrentPatchSet().getVote(
+            "Verified"));
+    }
+
+    public void testStreamEvents() throws Exception {
+        SshConnection ssh =
+            SshConnectionFactory.getConnection(gc.getHost(), gc.getPort(),
+                gc.getAuth());
+
+        try {
+            BufferedReader events =
+                new BufferedReader(ssh
+                    .executeCommandReader("gerrit stream-events"));
+
+            for (int i = 0; i < 100 && server.getStreamCount() == 0; i++)
+                Thread.sleep(50);
+
+            PatchSet p = server.uploadPatchSet(7);
+            JSONObject created =
+                (JSONObject) JSONSerializer.toJSON(events.readLine());
+
+            assertEquals("patchset-created", created.getString("type"));
+            assertEquals("7", created.getJSONObject("change").getString(
+                "number"));
+            assertEquals(p.getRevision(), created.getJSONObject("patchSet")
+                .getString("revision"));
+
+            assertTrue(service.verifyChange(true, 7, p.getNumber(), "Passed"));
+
+            JSONObject added =
+                (JSONObject) JSONSerializer.toJSON(events.readLine());
+
+            assertEquals("comment-added", added.getString("type"));
+            assertEquals("Verified", added.getJSONArray("approvals")
+                .getJSONObject(0).getString("type"));
+        } finally {
+            ssh.disconnect();
+        }
+    }
+
+    public void testEventStreamSupervised() throws Exception {
+        GerritProcessListener listener = new GerritProcessListener() {
+
+            @Override
+            public void processGerritEvent(GerritEvent e) {
+            }
+        };
+
+        System.setProperty(GerritMonitor.PROP_WATCHDOG, "1");
+        System.setProperty(GerritMonitor.PROP_RETRY, "100");
+
+        try {
+            GerritMonitor monitor = GerritMonitor.forServer(service);
+
+            service.addListener(listener);
+            awaitState(monitor, GerritMonitor.State.CONNECTED);
+            assertEquals(1, server.getStreamCount());
+
+            long seen = monitor.getLastEventAt();
+
+            Thread.sleep(10);
+            server.uploadPatchSet(5);
+            for (int i = 0; i < 100 && monitor.getLastEventAt() == seen; i++)
+                Thread.sleep(50);
+            assertTrue(monitor.getLastEventAt() > seen);
+
+            // the watchdog reopens a quiet stream
+            for (int i = 0; i < 100 && monitor.getReconnectCount() == 0; i++)
+                Thread.sleep(50);
+            assertTrue(monitor.getReconnectCount() > 0);
+            awaitState(monitor, GerritMonitor.State.CONNECTED);
+            assertTrue(service.getEventStreamHealth().startsWith("CONNECTED"));
+
+            service.removeListener(listener);
+            awaitState(monitor, GerritMonitor.State.STOPPED);
+            for (int i = 0; i < 100 && server.getStreamCount() > 0; i++)
+                Thread.sleep(50);
+            assertEquals(0, server.getStreamCount());
+        } finally {
+            System.clearProperty(GerritMonitor.PROP_WATCHDOG);
+            System.clearProperty(GerritMonitor.PROP_RETRY);
+            service.removeListener(listener);
+        }
+    }
+
+    public void testChangesUpdatedSinceWithoutAfter() throws Exception {
+        server.setVersion("2.8.6");
+        server.uploadPatchSet(3);
+        server.uploadPatchSet(4);
+
+        long before = data.getChange(3).getLastUpdated() * 1000;
+
+        assertFalse(service.getCapabilities().isAfterPredicateSupported());
+        assertEquals(2, service.getChangesUpdatedSince(new Date(before), 100)
+            .size());
+        assertTrue(service.getChangesUpdatedSince(new Date(before + 60000),
+            100).isEmpty());
+    }
+
+    public void testEventStreamCatchUp() throws Exception {
+        GerritProcessListener listener = new GerritProcessListener() {
+
+            @Override
+            public void processGerritEvent(GerritEvent e) {
+            }
+        };
+        server.uploadPatchSet(3);
+        server.uploadPatchSet(4);
+
+        // the stand-in's clock
+        long before = data.getChange(3).getLastUpdated() * 1000;
+
+        Set<GerritChangeVO> changes =
+            service.getChangesUpdatedSince(new Date(before), 100);
+
+        assertEquals(2, changes.size());
+        assertTrue(service.getChangesUpdatedSince(
+            new Date(before + 60000), 100).isEmpty());
+
+        GerritMonitor monitor = GerritMonitor.forServer(service);
+
+        // each missed patch set once, however often it is caught up on
+        assertEquals(2, monitor.catchUp(before));
+        assertEquals(0, monitor.catchUp(before));
+        assertEquals(2, monitor.getCaughtUpCount());
+
+        // the position is kept in the working directory
+        try {
+            service.addListener(listener);
+            awaitState(monitor, GerritMonitor.State.CONNECTED);
+            server.uploadPatchSet(5);
+            for (int i = 0; i < 100 && monitor.getPosition() > data.getClock() * 1000; i++)
+                Thread.sleep(50);
+
+            // in the server's time, which is a day behind ours
+            assertTrue(monitor.getPosition() > before);
+            assertTrue(monitor.getPosition() <= data.getClock() * 1000);
+        } finally {
+            service.removeListener(listener);
+        }
+
+        File events = new File(gc.getWorkingDirectoryPath(),
+            GerritService.EVENTS_DIRECTORY);
+
+        assertEquals(1, events.list().length);
+        assertTrue(FileUtils.readFileToString(events.listFiles()[0]).contains(
+            "eventCreatedOn=" + monitor.getPosition()));
+    }
+
+    private void awaitState(GerritMonitor monitor, GerritMonitor.State state) throws InterruptedException {
+        for (int i = 0; i < 100 && monitor.getState() != state; i++)
+            Thread.sleep(50);
+
+        assertEquals(state, monitor.getState());
+    }
+
+    public void testEventDispatch() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<GerritEvent> handled =
+            Collections.synchronizedList(new ArrayList<GerritEvent>());
+        final GerritEvent slow = new PatchsetCreated();
+        GerritProcessListener listener = new GerritProcessListener() {
+
+            @Override
+            public void processGerritEvent(GerritEvent e) {
+                if (e == slow) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+
+                handled.add(e);
+            }
+        };
+        List<GerritProcessListener> listeners =
+            Collections.singletonList(listener);
+
+        System.setProperty(GerritEventDispatcher.PROP_WORKERS, "2");
+        System.setProperty(GerritEventDispatcher.PROP_QUEUE_SIZE, "10");
+
+        try {
+            GerritEventDispatcher dispatcher =
+                new GerritEventDispatcher("standin");
+            List<GerritEvent> ordered = new ArrayList<GerritEvent>();
+
+            // "1" and "2" hash to different workers
+            assertTrue(dispatcher.dispatch("1", slow, listeners));
+
+            for (int i = 0; i < 10; i++) {
+                GerritEvent e = new PatchsetCreated();
+
+                ordered.add(e);
+                assertTrue(dispatcher.dispatch("2", e, listeners));
+            }
+
+            // the other worker goes on while the first is held up
+            for (int i = 0; i < 100 && handled.size() < ordered.size(); i++)
+                Thread.sleep(50);
+            assertEquals(ordered, handled);
+
+            // a full queue drops
+            for (int i = 0; i < 10; i++)
+                assertTrue(dispatcher.dispatch("1", new PatchsetCreated(),
+                    listeners));
+            assertFalse(dispatcher.dispatch("1", new PatchsetCreated(),
+                listeners));
+            assertEquals(1, dispatcher.getDroppedCount());
+            assertEquals(10, dispatcher.getQueueDepth());
+
+            release.countDown();
+            for (int i = 0; i < 100 && handled.size() < 21; i++)
+                Thread.sleep(50);
+            assertEquals(21, handled.size());
+            assertEquals(slow, handled.get(10));
+            assertEquals(21, dispatcher.getLatency(listener).getEventCount());
+            assertTrue(dispatcher.getLatency(listener).getMaxMillis() > 0);
+        } finally {
+            release.countDown();
+            System.clearProperty(GerritEventDispatcher.PROP_WORKERS);
+            System.clearProperty(GerritEventDispatcher.PROP_QUEUE_SIZE);
+        }
+    }
+
+    public void testDebounce() throws Exception {
+        final AtomicInteger runs = new AtomicInteger(0);
+        Runnable detect = new Runnable() {
+
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        };
+        GerritDebouncer debouncer = new GerritDebouncer();
+
+        System.setProperty(GerritDebouncer.PROP_QUIET, "200");
+        System.setProperty(GerritDebouncer.PROP_MAX_WAIT, "5000");
+
+        try {
+            // a series of ten patch sets for two plans, longer than the
+            // window but never quiet for as long
+            for (int i = 0; i < 10; i++) {
+                assertEquals(i == 0, debouncer.submit("P-A 1", detect));
+                assertEquals(i == 0, debouncer.submit("P-B 1", detect));
+                Thread.sleep(50);
+            }
+
+            assertEquals(0, runs.get());
+            assertEquals(18, debouncer.getSuppressedCount());
+
+            for (int i = 0; i < 100 && debouncer.getPendingCount() > 0; i++)
+                Thread.sleep(50);
+            Thread.sleep(50);
+            assertEquals(2, runs.get());
+
+            // a new window
+            assertTrue(debouncer.submit("P-A 1", detect));
+            for (int i = 0; i < 100 && debouncer.getPendingCount() > 0; i++)
+                Thread.sleep(50);
+            Thread.sleep(50);
+            assertEquals(3, runs.get());
+
+            // a key that never goes quiet still runs by the maximum wait
+            System.setProperty(GerritDebouncer.PROP_MAX_WAIT, "400");
+
+            for (int i = 0; i < 20; i++) {
+                debouncer.submit("P-C 1", detect);
+                Thread.sleep(50);
+            }
+
+            assertTrue(runs.get() >= 4);
+        } finally {
+            System.clearProperty(GerritDebouncer.PROP_QUIET);
+            System.clearProperty(GerritDebouncer.PROP_MAX_WAIT);
+        }
+    }
+
+    public void testFetchPatchSet() throws Exception {
+        PatchSet p = data.getChange(2).getCurrentPatchSet();
+        JGitRepository repo = new JGitRepository();
+
+        try {
+            repo.setAccessData(gc);
+            repo.open(new File(dir, "clone"), true);
+            repo.openSSHTransport();
+            repo.fetch(p.getRef());
+
+            RevCommit c = repo.resolveRev(p.getRevision());
+
+            assertEquals(p.getRevision(), c.getName());
+        } finally {
+            repo.close();
+        }
+    }
+
+    public void testInitialize() throws Exception {
+        gc.setUserEmail(EMAIL);
+        service.initialize();
+
+        String config = readMetaConfig();
+
+        assertTrue(config.contains("[label \"Verified\"]"));
+        assertTrue(config.contains("accessDatabase = group Administrators"));
+        assertTrue(service.isInitialized());
+    }
+
+    private String readMetaConfig() throws IOException {
+        Repository repo = data.getRepository(GerritDataSet.ALL_PROJECTS);
+        RevWalk rw = new RevWalk(repo);
+
+        try {
+            RevCommit c =
+                rw.parseCommit(repo.resolve(GerritDataSet.META_CONFIG));
+            TreeWalk tw =
+                TreeWalk.forPath(repo, "project.config", c.getTree());
+            ObjectLoader blob = repo.open(tw.getObjectId(0));
+
+            return new String(blob.getBytes(), "UTF-8");
+        } finally {
+            rw.close();
+        }
+    }
+
+    /**
+     * Concurrent per-project polls, as many plans on one server make them.
+     */
+    public void testPollThroughput() throws Exception {
+        int changes = Integer.getInteger("gerrit.standin.changes", 1000);
+        int polls = Integer.getInteger("gerrit.standin.polls", 200);
+        final int projects = 10;
+
+        server.stop();
+        data.close();
+        start(GerritDataSet.generate(new File(dir, "perf"), USER, EMAIL,
+            projects, changes / projects, 1));
+
+        // pays for the handshake and version probe
+        service.getGerritChangeInfo("project-000");
+
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        long start = System.currentTimeMillis();
+
+        for (int i = 0; i < polls; i++) {
+            final String project = String.format("project-%03d", i % projects);
+
+            results.add(pool.submit(new Callable<Integer>() {
+
+                @Override
+                public Integer call() throws Exception {
+                    return service.getGerritChangeInfo(project).size();
+                }
+            }));
+        }
+
+        for (Future<Integer> f : results)
+            assertEquals(changes / projects, f.get().intValue());
+
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+
+        pool.shutdown();
+
+        int queries = server.getCommandCount("gerrit query");
+
+        log.info(String.format(
+            "%d polls of %d changes in %dms: %.1f polls/s, %d queries sent",
+            polls, changes, elapsed, polls * 1000.0 / elapsed, queries));
+        log.info(service.getPollAggregator());
+
+        // concurrent polls of a server share queries
+        assertTrue(queries < polls);
+    }
+}
@@ -0,0 +1,758 @@
+/*
+ * Houghton Associates Framework
+ * http://www.houghtonassociates.com
+ *
+ * Copyright 2014 Houghton Associates, Inc.
+ */
+package com.houghtonassociates.bamboo.plugins.dao.fixture;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+
+import com.houghtonassociates.bamboo.plugins.dao.GerritChangeVO;
+
+/**
+ * The projects, changes and accounts a {@link GerritSshServer} serves.
+ *
+ * Every project is a bare repository under the base directory, and every
+ * patch set is a real commit behind its <code>refs/changes/*</code> ref, so
+ * builds can fetch what the queries report. <code>All-Projects</code> carries
+ * a <code>refs/meta/config</code> like a fresh Gerrit site.
+ */
+public class GerritDataSet {
+
+    public static final String ALL_PROJECTS = "All-Projects";
+    public static final String META_CONFIG = "refs/meta/config";
+    public static final String MASTER = "refs/heads/master";
+
+    private static final String README = "Stand-in project.\n";
+
+    private static final String PROJECT_CONFIG = "[project]\n"
+        + "\tdescription = Access inherited by all other projects.\n"
+        + "[capability]\n" + "\tadministrateServer = group Administrators\n"
+        + "[access \"refs/heads/*\"]\n" + "\tread = group Registered Users\n"
+        + "[label \"Code-Review\"]\n" + "\tfunction = MaxWithBlock\n"
+        + "\tvalue = -2 Do not submit\n" + "\tvalue =  0 No score\n"
+        + "\tvalue = +2 Looks good to me, approved\n";
+
+    public static class Account {
+
+        private final int id;
+        private final String username;
+        private final String name;
+        private final String email;
+        private final long registeredOn = System.currentTimeMillis();
+
+        Account(int id, String username, String name, String email) {
+            this.id = id;
+            this.username = username;
+            this.name = name;
+            this.email = email;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getEmail() {
+            return email;
+        }
+
+        public long getRegisteredOn() {
+            return registeredOn;
+        }
+
+        JSONObject toJson() {
+            JSONObject j = new JSONObject();
+
+            j.put(GerritChangeVO.JSON_KEY_NAME, name);
+            j.put(GerritChangeVO.JSON_KEY_EMAIL, email);
+            j.put(GerritChangeVO.JSON_KEY_USERNAME, username);
+
+            return j;
+        }
+    }
+
+    public static class Approval {
+
+        private final String label;
+        private final int value;
+        private final Account by;
+        private final long grantedOn;
+
+        Approval(String label, int value, Account by, long grantedOn) {
+            this.label = label;
+            this.value = value;
+            this.by = by;
+            this.grantedOn = grantedOn;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public int getValue() {
+            return value;
+        }
+
+        public Account getBy() {
+            return by;
+        }
+    }
+
+    public static class PatchSet {
+
+        private final int number;
+        private final String revision;
+        private final String ref;
+        private final Account uploader;
+        private final long createdOn;
+        private final String file;
+        private final List<Approval> approvals = new ArrayList<Approval>();
+
+        PatchSet(int number, String revision, String ref, Account uploader,
+                 long createdOn, String file) {
+            this.number = number;
+            this.revision = revision;
+            this.ref = ref;
+            this.uploader = uploader;
+            this.createdOn = createdOn;
+            this.file = file;
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        public String getRevision() {
+            return revision;
+        }
+
+        public String getRef() {
+            return ref;
+        }
+
+        public List<Approval> getApprovals() {
+            return approvals;
+        }
+
+        /**
+         * @param label
+         * @return the latest vote on the label, 0 if none
+         */
+        public int getVote(String label) {
+            int vote = 0;
+
+            for (Approval a : approvals)
+                if (a.label.equalsIgnoreCase(label))
+                    vote = a.value;
+
+            return vote;
+        }
+    }
+
+    public static class Change {
+
+        private final int number;
+        private final String id;
+        private final String project;
+        private final String branch;
+        private final String subject;
+        private final Account owner;
+        private final long createdOn;
+        private long lastUpdated;
+        private String status = "NEW";
+        private final List<PatchSet> patchSets = new ArrayList<PatchSet>();
+
+        // rendered query rows by option set, dropped on every update
+        private final Map<Integer, String> rendered =
+            new HashMap<Integer, String>();
+
+        Change(int number, String id, String project, String branch,
+               String subject, Account owner, long createdOn) {
+            this.number = number;
+            this.id = id;
+            this.project = project;
+            this.branch = branch;
+            this.subject = subject;
+            this.owner = owner;
+            this.createdOn = createdOn;
+            this.lastUpdated = createdOn;
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getProject() {
+            return project;
+        }
+
+        public String getBranch() {
+            return branch;
+        }
+
+        public Account getOwner() {
+            return owner;
+        }
+
+        public String getStatus() {
+            return status;
+        }
+
+        public boolean isOpen() {
+            return "NEW".equals(status);
+        }
+
+        public long getLastUpdated() {
+            return lastUpdated;
+        }
+
+        public List<PatchSet> getPatchSets() {
+            return patchSets;
+        }
+
+        public PatchSet getCurrentPatchSet() {
+            return patchSets.get(patchSets.size() - 1);
+        }
+
+        public PatchSet getPatchSet(int number) {
+            for (PatchSet p : patchSets)
+                if (p.number == number)
+                    return p;
+
+            return null;
+        }
+    }
+
+    private final File baseDir;
+    private final Account admin;
+    private final List<Account> accounts = new ArrayList<Account>();
+    private final Map<String, Repository> repositories =
+        new TreeMap<String, Repository>();
+    private final Map<Integer, Change> changes = new TreeMap<Integer, Change>();
+    private int nextChange = 1;
+    private long clock = System.currentTimeMillis() / 1000 - 86400;
+
+    /**
+     * @param baseDir
+     *            where the repositories are created
+     * @param username
+     *            the account the plugin logs in as
+     * @param email
+     * @throws IOException
+     */
+    public GerritDataSet(File baseDir, String username, String email) throws IOException {
+        this.baseDir = baseDir;
+        this.admin = addAccount(username, "Bamboo", email);
+
+        Repository repo = createRepository(ALL_PROJECTS);
+        ObjectId config =
+            commit(repo, null, "project.config", PROJECT_CONFIG,
+                "Initialize project configuration", admin);
+
+        updateRef(repo, META_CONFIG, config);
+    }
+
+    /**
+     * A data set of <code>projects</code> projects with
+     * <code>changesPerProject</code> open changes each, every change having
+     * <code>patchSets</code> patch sets.
+     *
+     * @param baseDir
+     * @param username
+     * @param email
+     * @param projects
+     * @param changesPerProject
+     * @param patchSets
+     * @return
+     * @throws IOException
+     */
+    public static GerritDataSet generate(File baseDir, String username,
+                                         String email, int projects,
+                                         int changesPerProject, int patchSets) throws IOException {
+        GerritDataSet ds = new GerritDataSet(baseDir, username, email);
+        Account dev = ds.addAccount("developer", "Developer", "dev@example.com");
+
+        for (int p = 0; p < projects; p++) {
+            String project = String.format("project-%03d", p);
+
+            ds.addProject(project);
+
+            for (int c = 0; c < changesPerProject; c++) {
+                Change change =
+                    ds.addChange(project, "master", String.format(
+                        "Change %d of %s", c, project), dev);
+
+                for (int ps = 1; ps < patchSets; ps++)
+                    ds.addPatchSet(change.getNumber(), dev);
+            }
+        }
+
+        return ds;
+    }
+
+    public synchronized Account addAccount(String username, String name,
+                                           String email) {
+        Account a = new Account(1000000 + accounts.size(), username, name, email);
+
+        accounts.add(a);
+
+        return a;
+    }
+
+    public synchronized List<Account> getAccounts() {
+        return new ArrayList<Account>(accounts);
+    }
+
+    public synchronized Account getAccount(String username) {
+        for (Account a : accounts)
+            if (a.username.equals(username))
+                return a;
+
+        return null;
+    }
+
+    public Account getAdmin() {
+        return admin;
+    }
+
+    public synchronized void addProject(String name) throws IOException {
+        Repository repo = createRepository(name);
+        ObjectId head =
+            commit(repo, null, "README", README,
+                "Initial commit", admin);
+
+        updateRef(repo, MASTER, head);
+    }
+
+    /**
+     * @return project names, without <code>All-Projects</code>
+     */
+    public synchronized List<String> getProjects() {
+        List<String> projects = new ArrayList<String>(repositories.keySet());
+
+        projects.remove(ALL_PROJECTS);
+
+        return projects;
+    }
+
+    /**
+     * Upload a new change with one patch set.
+     *
+     * @param project
+     * @param branch
+     * @param subject
+     * @param owner
+     * @return
+     * @throws IOException
+     */
+    public synchronized Change addChange(String project, String branch,
+                                         String subject, Account owner) throws IOException {
+        int number = nextChange++;
+        String id = "I" + ObjectId.fromRaw(Constants.newMessageDigest()
+            .digest(Constants.encode(project + subject + number))).name();
+        Change c =
+            new Change(number, id, project, branch, subject, owner, tick());
+
+        changes.put(number, c);
+        addPatchSet(c, owner);
+
+        return c;
+    }
+
+    /**
+     * Upload a new patch set of a change.
+     *
+     * @param change
+     * @param uploader
+     * @return
+     * @throws IOException
+     */
+    public synchronized PatchSet addPatchSet(int change, Account uploader) throws IOException {
+        return addPatchSet(getChange(change), uploader);
+    }
+
+    private PatchSet addPatchSet(Change c, Account uploader) throws IOException {
+        Repository repo = getRepository(c.project);
+        int number = c.patchSets.size() + 1;
+        String file = String.format("change-%d.txt", c.number);
+        ObjectId parent = repo.resolve("refs/heads/" + c.branch);
+        ObjectId rev =
+            commit(repo, parent, file, String.format(
+                "change %d patch set %d\n", c.number, number), c.subject
+                + "\n\nChange-Id: " + c.id + "\n", uploader);
+        String ref =
+            String.format("refs/changes/%02d/%d/%d", c.number % 100, c.number,
+                number);
+
+        updateRef(repo, ref, rev);
+
+        PatchSet p =
+            new PatchSet(number, rev.name(), ref, uploader, tick(), file);
+
+        c.patchSets.add(p);
+        c.lastUpdated = p.createdOn;
+        c.rendered.clear();
+
+        return p;
+    }
+
+    public synchronized Change getChange(int number) {
+        return changes.get(number);
+    }
+
+    /**
+     * @param id
+     *            change number or Change-Id
+     * @return
+     */
+    public synchronized Change findChange(String id) {
+        if (id.matches("\\d+"))
+            return changes.get(Integer.valueOf(id));
+
+        for (Change c : changes.values())
+            if (c.id.equals(id))
+                return c;
+
+        return null;
+    }
+
+    /**
+     * @return the data set's time in seconds, a day behind ours when it
+     *         was created
+     */
+    public synchronized long getClock() {
+        return clock;
+    }
+
+    public synchronized int getChangeCount() {
+        return changes.size();
+    }
+
+    /**
+     * Record a vote, as <code>gerrit review</code> does.
+     *
+     * @param change
+     * @param patchSet
+     * @param label
+     * @param value
+     * @param by
+     * @return
+     */
+    public synchronized Approval review(int change, int patchSet,
+                                        String label, int value, Account by) {
+        Change c = changes.get(change);
+        PatchSet p = (c == null) ? null : c.getPatchSet(patchSet);
+
+        if (p == null)
+            throw new IllegalArgumentException("no such change " + change
+                + "," + patchSet);
+
+        Approval a = new Approval(label, value, by, tick());
+
+        p.approvals.add(a);
+        c.lastUpdated = a.grantedOn;
+        c.rendered.clear();
+
+        return a;
+    }
+
+    public synchronized void setStatus(int change, String status) {
+        Change c = changes.get(change);
+
+        c.status = status;
+        c.lastUpdated = tick();
+        c.rendered.clear();
+    }
+
+    /**
+     * @param query
+     *            see {@link GerritQuery} for what is understood
+     * @param limit
+     *            rows returned at most
+     * @return matching changes, most recently updated first
+     */
+    public synchronized List<Change> query(GerritQuery query, int limit) {
+        List<Change> result = new ArrayList<Change>();
+
+        for (Change c : changes.values())
+            if (query.matches(c))
+                result.add(c);
+
+        Collections.sort(result, new Comparator<Change>() {
+
+            @Override
+            public int compare(Change a, Change b) {
+                if (a.lastUpdated != b.lastUpdated)
+                    return (a.lastUpdated < b.lastUpdated) ? 1 : -1;
+
+                return b.number - a.number;
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * A change in the shape of <code>gerrit query --format=JSON</code>.
+     *
+     * @param c
+     * @param patchSets
+     * @param currentPatchSet
+     * @param files
+     * @param author
+     *            whether to report patch set authors, as 2.6 and later do
+     * @return
+     */
+    public synchronized JSONObject toJson(Change c, boolean patchSets,
+                                          boolean currentPatchSet,
+                                          boolean files, boolean author) {
+        JSONObject j = new JSONObject();
+
+        j.put(GerritChangeVO.JSON_KEY_PROJECT, c.project);
+        j.put(GerritChangeVO.JSON_KEY_BRANCH, c.branch);
+        j.put(GerritChangeVO.JSON_KEY_ID, c.id);
+        j.put(GerritChangeVO.JSON_KEY_NUMBER, String.valueOf(c.number));
+        j.put(GerritChangeVO.JSON_KEY_SUBJECT, c.subject);
+        j.put(GerritChangeVO.JSON_KEY_OWNER, c.owner.toJson());
+        j.put(GerritChangeVO.JSON_KEY_URL, "http://localhost/" + c.number);
+        j.put(GerritChangeVO.JSON_KEY_CREATED_ON, c.createdOn);
+        j.put(GerritChangeVO.JSON_KEY_LAST_UPDATE, c.lastUpdated);
+        j.put(GerritChangeVO.JSON_KEY_SORT_KEY,
+            String.format("%08x%08x", c.lastUpdated, c.number));
+        j.put(GerritChangeVO.JSON_KEY_OPEN, c.isOpen());
+        j.put(GerritChangeVO.JSON_KEY_STATUS, c.status);
+
+        if (patchSets) {
+            JSONArray all = new JSONArray();
+
+            for (PatchSet p : c.patchSets)
+                all.add(toJson(p, files, author));
+
+            j.put(GerritChangeVO.JSON_KEY_PATCH_SET, all);
+        }
+
+        if (currentPatchSet)
+            j.put(GerritChangeVO.JSON_KEY_CURRENT_PATCH_SET, toJson(
+                c.getCurrentPatchSet(), files, author));
+
+        return j;
+    }
+
+    /**
+     * {@link #toJson(Change, boolean, boolean, boolean, boolean)} as a
+     * line of text, cached until the change is updated.
+     */
+    public synchronized String render(Change c, boolean patchSets,
+                                      boolean currentPatchSet, boolean files,
+                                      boolean author) {
+        int key =
+            (patchSets ? 1 : 0) | (currentPatchSet ? 2 : 0) | (files ? 4 : 0)
+                | (author ? 8 : 0);
+        String row = c.rendered.get(key);
+
+        if (row == null) {
+            row =
+                toJson(c, patchSets, currentPatchSet, files, author)
+                    .toString();
+            c.rendered.put(key, row);
+        }
+
+        return row;
+    }
+
+    private JSONObject toJson(PatchSet p, boolean files, boolean author) {
+        JSONObject j = new JSONObject();
+
+        j.put(GerritChangeVO.JSON_KEY_PATCH_SET_NUM, String.valueOf(p.number));
+        j.put(GerritChangeVO.JSON_KEY_PATCH_SET_REV, p.revision);
+        j.put(GerritChangeVO.JSON_KEY_PATCH_SET_REF, p.ref);
+        j.put(GerritChangeVO.JSON_KEY_PATCH_SET_UPDLOADER, p.uploader.toJson());
+        j.put(GerritChangeVO.JSON_KEY_PATCH_SET_CREATED_ON, p.createdOn);
+
+        if (author)
+            j.put(GerritChangeVO.JSON_KEY_PATCH_SET_AUTHOR, p.uploader.toJson());
+
+        if (!p.approvals.isEmpty()) {
+            JSONArray approvals = new JSONArray();
+
+            for (Approval a : p.approvals) {
+                JSONObject aj = new JSONObject();
+
+                aj.put(GerritChangeVO.JSON_KEY_PATCH_SET_APPRVS_TYPE, a.label);
+                aj.put(GerritChangeVO.JSON_KEY_PATCH_SET_APPRVS_DESC, a.label);
+                aj.put(GerritChangeVO.JSON_KEY_PATCH_SET_APPRVS_VALUE,
+                    String.valueOf(a.value));
+                aj.put(GerritChangeVO.JSON_KEY_PATCH_SET_APPRVS_GRANTED_ON,
+                    a.grantedOn);
+                aj.put(GerritChangeVO.JSON_KEY_PATCH_SET_APPRVS_BY,
+                    a.by.toJson());
+                approvals.add(aj);
+            }
+
+            j.put(GerritChangeVO.JSON_KEY_PATCH_SET_APPRVS, approvals);
+        }
+
+        if (files) {
+            JSONArray fileSets = new JSONArray();
+
+            fileSets.add(toFileJson("/COMMIT_MSG", 8));
+            fileSets.add(toFileJson(p.file, 1));
+
+            j.put(GerritChangeVO.JSON_KEY_PATCH_SET_FILES, fileSets);
+        }
+
+        return j;
+    }
+
+    private static JSONObject toFileJson(String file, int insertions) {
+        JSONObject f = new JSONObject();
+
+        f.put(GerritChangeVO.JSON_KEY_PATCH_SET_FILES_FILE, file);
+        f.put(GerritChangeVO.JSON_KEY_PATCH_SET_FILES_TYPE, "ADDED");
+        f.put(GerritChangeVO.JSON_KEY_PATCH_SET_FILES_INSRT, insertions);
+        f.put(GerritChangeVO.JSON_KEY_PATCH_SET_FILES_DELT, 0);
+
+        return f;
+    }
+
+    /**
+     * @param path
+     *            as sent by git, e.g. <code>'/project.git'</code>
+     * @return the repository, or null if there is none
+     */
+    public synchronized Repository openRepository(String path) {
+        String name = path.replace("'", "").replace("\"", "");
+
+        while (name.startsWith("/"))
+            name = name.substring(1);
+
+        if (name.endsWith(".git"))
+            name = name.substring(0, name.length() - 4);
+
+        return repositories.get(name);
+    }
+
+    public synchronized Repository getRepository(String project) {
+        Repository repo = repositories.get(project);
+
+        if (repo == null)
+            throw new IllegalArgumentException("no such project " + project);
+
+        return repo;
+    }
+
+    public File getBaseDir() {
+        return baseDir;
+    }
+
+    public synchronized void close() {
+        for (Repository r : repositories.values())
+            r.close();
+
+        repositories.clear();
+    }
+
+    // one second per event, so every update is ordered
+    private long tick() {
+        return ++clock;
+    }
+
+    private Repository createRepository(String name) throws IOException {
+        Repository repo =
+            new FileRepositoryBuilder().setGitDir(
+                new File(baseDir, name + ".git")).setBare().build();
+
+        repo.create(true);
+        repositories.put(name, repo);
+
+        return repo;
+    }
+
+    private static ObjectId commit(Repository repo, ObjectId parent,
+                                   String file, String content,
+                                   String message, Account by) throws IOException {
+        ObjectInserter ins = repo.newObjectInserter();
+
+        try {
+            PersonIdent ident = new PersonIdent(by.name, by.email);
+            TreeFormatter tree = new TreeFormatter();
+
+            // patch sets sit on top of the branch's README
+            if (parent != null && !"README".equals(file))
+                tree.append("README", FileMode.REGULAR_FILE, ins.insert(
+                    Constants.OBJ_BLOB, Constants.encode(README)));
+
+            tree.append(file, FileMode.REGULAR_FILE, ins.insert(
+                Constants.OBJ_BLOB, Constants.encode(content)));
+
+            CommitBuilder cb = new CommitBuilder();
+
+            cb.setTreeId(ins.insert(tree));
+            if (parent != null)
+                cb.setParentId(parent);
+            cb.setAuthor(ident);
+            cb.setCommitter(ident);
+            cb.setMessage(message);
+
+            ObjectId id = ins.insert(cb);
+
+            ins.flush();
+
+            return id;
+        } finally {
+            ins.close();
+        }
+    }
+
+    private static void updateRef(Repository repo, String ref, ObjectId id) throws IOException {
+        RefUpdate u = repo.updateRef(ref);
+
+        u.setNewObjectId(id);
+        u.setForceUpdate(true);
+
+        switch (u.update()) {
+        case NEW:
+        case FORCED:
+        case FAST_FORWARD:
+        case NO_CHANGE:
+            return;
+        default:
+            throw new IOException("Failed to update " + ref);
+        }
+    }
+}
@@ -0,0 +1,476 @@
+/*
+ * Houghton Associates Framework
+ * http://www.houghtonassociates.com
+ *
+ * Copyright 2014 Houghton Associates, Inc.
+ */
+package com.houghtonassociates.bamboo.plugins.dao.fixture;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A TCP proxy that makes the link to a stand-in Gerrit slow or lossy.
+ *
+ * Every chunk read from either side is delayed by <code>latency</code> plus
+ * up to <code>jitter</code> milliseconds (order is kept), and written no
+ * faster than <code>bytesPerSecond</code>. With the given probability per
+ * chunk the proxy stalls all links for <code>stallMillis</code> or resets
+ * the link, closing both sockets with a TCP RST. Faults can be changed
+ * while connections are open.
+ *
+ * The proxy either forwards every connection to its target, so clients
+ * simply connect to its port, or acts as an HTTP CONNECT proxy, for
+ * clients configured with {@link #getProxyUrl()}.
+ */
+public class GerritFaultProxy {
+
+    private static final int CHUNK = 16 * 1024;
+
+    private final String targetHost;
+    private final int targetPort;
+    private final boolean httpConnect;
+
+    private ServerSocket listener;
+    private final ExecutorService threads = Executors
+        .newCachedThreadPool(new ThreadFactory() {
+
+            private final AtomicInteger count = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t =
+                    new Thread(r, "gerrit-proxy-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    private final CopyOnWriteArrayList<Link> links =
+        new CopyOnWriteArrayList<Link>();
+    private final Random random = new Random(0);
+
+    private volatile long latencyMillis = 0;
+    private volatile long jitterMillis = 0;
+    private volatile long bytesPerSecond = 0;
+    private volatile double stallProbability = 0;
+    private volatile long stallMillis = 0;
+    private volatile double resetProbability = 0;
+    private volatile long stalledUntil = 0;
+
+    private final AtomicLong connections = new AtomicLong(0);
+    private final AtomicLong bytes = new AtomicLong(0);
+    private final AtomicLong stalls = new AtomicLong(0);
+    private final AtomicLong resets = new AtomicLong(0);
+
+    /**
+     * A proxy forwarding every connection to the target.
+     *
+     * @param targetHost
+     * @param targetPort
+     */
+    public GerritFaultProxy(String targetHost, int targetPort) {
+        this(targetHost, targetPort, false);
+    }
+
+    /**
+     * @param targetHost
+     * @param targetPort
+     * @param httpConnect
+     *            true to expect an HTTP CONNECT request on each connection
+     *            and connect to the host it names
+     */
+    public GerritFaultProxy(String targetHost, int targetPort,
+                            boolean httpConnect) {
+        this.targetHost = targetHost;
+        this.targetPort = targetPort;
+        this.httpConnect = httpConnect;
+    }
+
+    public void start() throws IOException {
+        listener =
+            new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+
+        threads.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                accept();
+            }
+        });
+    }
+
+    public void stop() {
+        try {
+            listener.close();
+        } catch (IOException e) {
+            // already closed
+        }
+
+        resetAll();
+        threads.shutdownNow();
+    }
+
+    public int getPort() {
+        return listener.getLocalPort();
+    }
+
+    /**
+     * @return the proxy as <code>GerritConfig.setProxy</code> takes it
+     */
+    public String getProxyUrl() {
+        return "http://127.0.0.1:" + getPort();
+    }
+
+    /**
+     * @param latencyMillis
+     *            added to every chunk in each direction
+     * @param jitterMillis
+     *            up to this much more, at random
+     */
+    public void setLatency(long latencyMillis, long jitterMillis) {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+    }
+
+    /**
+     * @param bytesPerSecond
+     *            per direction of each link, 0 for no cap
+     */
+    public void setBandwidth(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * @param probability
+     *            per chunk
+     * @param stallMillis
+     */
+    public void setStalls(double probability, long stallMillis) {
+        this.stallProbability = probability;
+        this.stallMillis = stallMillis;
+    }
+
+    /**
+     * @param probability
+     *            per chunk
+     */
+    public void setResets(double probability) {
+        this.resetProbability = probability;
+    }
+
+    public void clearFaults() {
+        setLatency(0, 0);
+        setBandwidth(0);
+        setStalls(0, 0);
+        setResets(0);
+        stalledUntil = 0;
+    }
+
+    /**
+     * Stop forwarding on all links for a while; data read meanwhile is
+     * delivered afterwards.
+     *
+     * @param millis
+     */
+    public void stall(long millis) {
+        stalledUntil = Math.max(stalledUntil, System.currentTimeMillis()
+            + millis);
+        stalls.incrementAndGet();
+    }
+
+    /**
+     * Reset every open link.
+     */
+    public void resetAll() {
+        for (Link l : links)
+            l.reset();
+    }
+
+    public int getOpenLinks() {
+        return links.size();
+    }
+
+    public long getConnectionCount() {
+        return connections.get();
+    }
+
+    public long getByteCount() {
+        return bytes.get();
+    }
+
+    public long getStallCount() {
+        return stalls.get();
+    }
+
+    public long getResetCount() {
+        return resets.get();
+    }
+
+    private void accept() {
+        while (!listener.isClosed()) {
+            final Socket client;
+
+            try {
+                client = listener.accept();
+            } catch (IOException e) {
+                return;
+            }
+
+            connections.incrementAndGet();
+
+            threads.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    open(client);
+                }
+            });
+        }
+    }
+
+    private void open(Socket client) {
+        try {
+            String host = targetHost;
+            int port = targetPort;
+
+            if (httpConnect) {
+                String target = readConnect(client.getInputStream());
+                int colon = target.lastIndexOf(':');
+
+                host = target.substring(0, colon);
+                port = Integer.parseInt(target.substring(colon + 1));
+            }
+
+            Socket upstream = new Socket(host, port);
+
+            if (httpConnect) {
+                client.getOutputStream().write(
+                    "HTTP/1.1 200 Connection established\r\n\r\n"
+                        .getBytes("US-ASCII"));
+                client.getOutputStream().flush();
+            }
+
+            Link l = new Link(client, upstream);
+
+            links.add(l);
+            l.start();
+        } catch (IOException e) {
+            close(client);
+        }
+    }
+
+    // read up to the end of the request, but no further
+    private static String readConnect(InputStream in) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        int state = 0;
+
+        while (state < 4) {
+            int b = in.read();
+
+            if (b < 0)
+                throw new IOException("connection closed in CONNECT");
+
+            header.write(b);
+            state =
+                (b == '\r' && (state == 0 || state == 2)) ? state + 1
+                    : (b == '\n' && (state == 1 || state == 3)) ? state + 1
+                        : 0;
+        }
+
+        String request = header.toString("US-ASCII");
+        String[] parts = request.split("\\s+");
+
+        if (parts.length < 2 || !"CONNECT".equalsIgnoreCase(parts[0]))
+            throw new IOException("not a CONNECT request: " + request);
+
+        return parts[1];
+    }
+
+    private static void close(Socket s) {
+        try {
+            s.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+
+    private synchronized long nextDelay() {
+        long jitter =
+            (jitterMillis > 0) ? (long) (random.nextDouble() * jitterMillis)
+                : 0;
+
+        return latencyMillis + jitter;
+    }
+
+    private synchronized boolean roll(double probability) {
+        return probability > 0 && random.nextDouble() < probability;
+    }
+
+    /**
+     * A chunk in flight, null data marks the end of the stream.
+     */
+    private static class Chunk {
+
+        final byte[] data;
+        final long due;
+
+        Chunk(byte[] data, long due) {
+            this.data = data;
+            this.due = due;
+        }
+    }
+
+    /**
+     * One proxied connection.
+     */
+    private class Link {
+
+        private final Socket client;
+        private final Socket upstream;
+        private final AtomicInteger open = new AtomicInteger(2);
+        private volatile boolean closed = false;
+
+        Link(Socket client, Socket upstream) {
+            this.client = client;
+            this.upstream = upstream;
+        }
+
+        void start() throws IOException {
+            pump(client.getInputStream(), upstream);
+            pump(upstream.getInputStream(), client);
+        }
+
+        private void pump(final InputStream in, final Socket to) throws IOException {
+            final OutputStream out = to.getOutputStream();
+            final BlockingQueue<Chunk> queue = new LinkedBlockingQueue<Chunk>();
+
+            threads.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    read(in, queue);
+                }
+            });
+
+            threads.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    write(queue, out, to);
+                }
+            });
+        }
+
+        private void read(InputStream in, BlockingQueue<Chunk> queue) {
+            byte[] buf = new byte[CHUNK];
+            long lastDue = 0;
+
+            try {
+                int n;
+
+                while ((n = in.read(buf)) >= 0) {
+                    if (roll(resetProbability)) {
+                        reset();
+                        return;
+                    }
+
+                    if (roll(stallProbability))
+                        stall(stallMillis);
+
+                    // jitter must not reorder the stream
+                    lastDue =
+                        Math.max(lastDue, System.currentTimeMillis()
+                            + nextDelay());
+
+                    byte[] data = new byte[n];
+
+                    System.arraycopy(buf, 0, data, 0, n);
+                    queue.add(new Chunk(data, lastDue));
+                }
+            } catch (IOException e) {
+                // the link was closed or reset
+            }
+
+            queue.add(new Chunk(null, lastDue));
+        }
+
+        private void write(BlockingQueue<Chunk> queue, OutputStream out,
+                           Socket to) {
+            try {
+                while (true) {
+                    Chunk c = queue.take();
+
+                    sleepUntil(c.due);
+                    sleepUntil(stalledUntil);
+
+                    if (c.data == null) {
+                        to.shutdownOutput();
+
+                        // both directions ended cleanly
+                        if (open.decrementAndGet() == 0)
+                            close();
+
+                        return;
+                    }
+
+                    out.write(c.data);
+                    out.flush();
+                    bytes.addAndGet(c.data.length);
+
+                    long bps = bytesPerSecond;
+                    if (bps > 0)
+                        Thread.sleep(c.data.length * 1000L / bps);
+                }
+            } catch (InterruptedException e) {
+                // proxy stopped
+            } catch (IOException e) {
+                // the link was closed or reset
+            }
+
+            close();
+        }
+
+        private void sleepUntil(long until) throws InterruptedException {
+            for (long now = System.currentTimeMillis(); now < until; now =
+                System.currentTimeMillis())
+                Thread.sleep(Math.min(until - now, 50));
+        }
+
+        void reset() {
+            if (closed)
+                return;
+
+            resets.incrementAndGet();
+
+            try {
+                client.setSoLinger(true, 0);
+                upstream.setSoLinger(true, 0);
+            } catch (IOException e) {
+                // closing anyway
+            }
+
+            close();
+        }
+
+        void close() {
+            closed = true;
+            links.remove(this);
+            GerritFaultProxy.close(client);
+            GerritFaultProxy.close(upstream);
+        }
+    }
+}
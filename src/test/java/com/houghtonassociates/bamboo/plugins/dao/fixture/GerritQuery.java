@@ -0,0 +1,434 @@
+/*
+ * Houghton Associates Framework
+ * http://www.houghtonassociates.com
+ *
+ * Copyright 2014 Houghton Associates, Inc.
+ */
+package com.houghtonassociates.bamboo.plugins.dao.fixture;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.houghtonassociates.bamboo.plugins.dao.fixture.GerritDataSet.Approval;
+import com.houghtonassociates.bamboo.plugins.dao.fixture.GerritDataSet.Change;
+import com.houghtonassociates.bamboo.plugins.dao.fixture.GerritDataSet.PatchSet;
+
+/**
+ * The subset of Gerrit's query language the plugin uses.
+ *
+ * Operators: implicit AND, <code>AND</code>, <code>OR</code>,
+ * <code>-</code>/<code>NOT</code> and parentheses. Predicates:
+ * <code>is:</code>/<code>status:</code> open, closed, merged and abandoned,
+ * <code>project:</code>, <code>branch:</code>, <code>change:</code>,
+ * <code>commit:</code>, <code>owner:</code>, <code>label:Name=N</code>
+ * (also <code>&gt;=</code> and <code>&lt;=</code>), met if any account's
+ * latest vote on the current patch set meets it,
+ * <code>after:</code>/<code>since:</code>, <code>before:</code>/
+ * <code>until:</code>, <code>age:</code> against the wall clock and
+ * <code>limit:</code>.
+ */
+public class GerritQuery {
+
+    private static final Pattern LABEL = Pattern
+        .compile("([\\w-]+)(=|>=|<=)([+-]?\\d+)");
+
+    private static final Pattern AGE = Pattern.compile("(\\d+)([smhdw])");
+
+    private interface Predicate {
+
+        boolean matches(Change c);
+    }
+
+    private final List<String> tokens;
+    private int pos = 0;
+    private int limit = -1;
+    private final Predicate root;
+
+    /**
+     * @param query
+     * @throws IllegalArgumentException
+     *             the query can't be parsed
+     */
+    public GerritQuery(String query) {
+        tokens = tokenize(query);
+        root = tokens.isEmpty() ? all() : parseOr();
+
+        if (pos < tokens.size())
+            throw new IllegalArgumentException("unexpected "
+                + tokens.get(pos));
+    }
+
+    public boolean matches(Change c) {
+        return root.matches(c);
+    }
+
+    /**
+     * @return the <code>limit:</code> of the query, -1 if none
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    private static List<String> tokenize(String query) {
+        List<String> tokens = new ArrayList<String>();
+        StringBuilder cur = new StringBuilder();
+        boolean quoted = false;
+
+        for (char ch : query.toCharArray()) {
+            if (ch == '"') {
+                quoted = !quoted;
+            } else if (!quoted && (ch == '(' || ch == ')')) {
+                flush(tokens, cur);
+                tokens.add(String.valueOf(ch));
+            } else if (!quoted && Character.isWhitespace(ch)) {
+                flush(tokens, cur);
+            } else {
+                cur.append(ch);
+            }
+        }
+
+        flush(tokens, cur);
+
+        return tokens;
+    }
+
+    private static void flush(List<String> tokens, StringBuilder cur) {
+        if (cur.length() > 0) {
+            tokens.add(cur.toString());
+            cur.setLength(0);
+        }
+    }
+
+    private String peek() {
+        return (pos < tokens.size()) ? tokens.get(pos) : null;
+    }
+
+    private Predicate parseOr() {
+        final List<Predicate> any = new ArrayList<Predicate>();
+
+        any.add(parseAnd());
+
+        while ("OR".equals(peek())) {
+            pos++;
+            any.add(parseAnd());
+        }
+
+        return new Predicate() {
+
+            @Override
+            public boolean matches(Change c) {
+                for (Predicate p : any)
+                    if (p.matches(c))
+                        return true;
+
+                return false;
+            }
+        };
+    }
+
+    private Predicate parseAnd() {
+        final List<Predicate> all = new ArrayList<Predicate>();
+
+        all.add(parseUnary());
+
+        for (String t = peek(); t != null && !")".equals(t)
+            && !"OR".equals(t); t = peek()) {
+            if ("AND".equals(t))
+                pos++;
+
+            all.add(parseUnary());
+        }
+
+        return new Predicate() {
+
+            @Override
+            public boolean matches(Change c) {
+                for (Predicate p : all)
+                    if (!p.matches(c))
+                        return false;
+
+                return true;
+            }
+        };
+    }
+
+    private Predicate parseUnary() {
+        String t = peek();
+
+        if (t == null)
+            throw new IllegalArgumentException("query ends early");
+
+        pos++;
+
+        if ("NOT".equals(t) || "-".equals(t))
+            return not(parseUnary());
+
+        if (t.startsWith("-") && t.length() > 1) {
+            tokens.set(--pos, t.substring(1));
+            return not(parseUnary());
+        }
+
+        if ("(".equals(t)) {
+            Predicate p = parseOr();
+
+            if (!")".equals(peek()))
+                throw new IllegalArgumentException("missing )");
+
+            pos++;
+
+            return p;
+        }
+
+        return term(t);
+    }
+
+    private static Predicate not(final Predicate p) {
+        return new Predicate() {
+
+            @Override
+            public boolean matches(Change c) {
+                return !p.matches(c);
+            }
+        };
+    }
+
+    private static Predicate all() {
+        return new Predicate() {
+
+            @Override
+            public boolean matches(Change c) {
+                return true;
+            }
+        };
+    }
+
+    private Predicate term(String t) {
+        int colon = t.indexOf(':');
+
+        if (colon < 0)
+            throw new IllegalArgumentException("unsupported query term " + t);
+
+        String key = t.substring(0, colon);
+        final String value = t.substring(colon + 1);
+
+        if ("is".equals(key) || "status".equals(key))
+            return status(value);
+
+        if ("project".equals(key)) {
+            return new Predicate() {
+
+                @Override
+                public boolean matches(Change c) {
+                    return c.getProject().equals(value);
+                }
+            };
+        }
+
+        if ("branch".equals(key)) {
+            final String branch =
+                value.startsWith("refs/heads/") ? value.substring(11) : value;
+
+            return new Predicate() {
+
+                @Override
+                public boolean matches(Change c) {
+                    return c.getBranch().equals(branch);
+                }
+            };
+        }
+
+        if ("change".equals(key)) {
+            return new Predicate() {
+
+                @Override
+                public boolean matches(Change c) {
+                    return value.equals(String.valueOf(c.getNumber()))
+                        || value.equals(c.getId());
+                }
+            };
+        }
+
+        if ("commit".equals(key)) {
+            return new Predicate() {
+
+                @Override
+                public boolean matches(Change c) {
+                    for (PatchSet p : c.getPatchSets())
+                        if (p.getRevision().startsWith(value))
+                            return true;
+
+                    return false;
+                }
+            };
+        }
+
+        if ("owner".equals(key)) {
+            return new Predicate() {
+
+                @Override
+                public boolean matches(Change c) {
+                    return value.equals(c.getOwner().getUsername())
+                        || value.equals(c.getOwner().getEmail());
+                }
+            };
+        }
+
+        if ("label".equals(key))
+            return label(value);
+
+        if ("after".equals(key) || "since".equals(key)) {
+            final long at = toSeconds(value);
+
+            return new Predicate() {
+
+                @Override
+                public boolean matches(Change c) {
+                    return c.getLastUpdated() >= at;
+                }
+            };
+        }
+
+        if ("before".equals(key) || "until".equals(key)) {
+            final long at = toSeconds(value);
+
+            return new Predicate() {
+
+                @Override
+                public boolean matches(Change c) {
+                    return c.getLastUpdated() <= at;
+                }
+            };
+        }
+
+        if ("age".equals(key)) {
+            final long age = toAgeSeconds(value);
+
+            return new Predicate() {
+
+                @Override
+                public boolean matches(Change c) {
+                    return c.getLastUpdated() <= System.currentTimeMillis()
+                        / 1000 - age;
+                }
+            };
+        }
+
+        if ("limit".equals(key)) {
+            limit = Integer.parseInt(value);
+            return all();
+        }
+
+        throw new IllegalArgumentException("unsupported query term " + t);
+    }
+
+    private static Predicate status(final String value) {
+        if (!value.matches("open|closed|merged|abandoned"))
+            throw new IllegalArgumentException("unsupported status " + value);
+
+        return new Predicate() {
+
+            @Override
+            public boolean matches(Change c) {
+                if ("open".equals(value))
+                    return c.isOpen();
+
+                if ("closed".equals(value))
+                    return !c.isOpen();
+
+                return c.getStatus().equalsIgnoreCase(value);
+            }
+        };
+    }
+
+    private static Predicate label(String value) {
+        Matcher m = LABEL.matcher(value);
+
+        if (!m.matches())
+            throw new IllegalArgumentException("unsupported label " + value);
+
+        final String label = m.group(1);
+        final String op = m.group(2);
+        final int score = Integer.parseInt(m.group(3).replace("+", ""));
+
+        return new Predicate() {
+
+            @Override
+            public boolean matches(Change c) {
+                Map<String, Integer> votes = new HashMap<String, Integer>();
+
+                for (Approval a : c.getCurrentPatchSet().getApprovals())
+                    if (a.getLabel().equalsIgnoreCase(label))
+                        votes.put(a.getBy().getUsername(), a.getValue());
+
+                if (votes.isEmpty())
+                    return matches(0);
+
+                for (int vote : votes.values())
+                    if (matches(vote))
+                        return true;
+
+                return false;
+            }
+
+            private boolean matches(int vote) {
+                if (">=".equals(op))
+                    return vote >= score;
+
+                if ("<=".equals(op))
+                    return vote <= score;
+
+                return vote == score;
+            }
+        };
+    }
+
+    private static long toAgeSeconds(String value) {
+        Matcher m = AGE.matcher(value);
+
+        if (!m.matches())
+            throw new IllegalArgumentException("unsupported age " + value);
+
+        long n = Long.parseLong(m.group(1));
+        char unit = m.group(2).charAt(0);
+
+        switch (unit) {
+        case 'm':
+            return n * 60;
+        case 'h':
+            return n * 3600;
+        case 'd':
+            return n * 86400;
+        case 'w':
+            return n * 7 * 86400;
+        default:
+            return n;
+        }
+    }
+
+    private static long toSeconds(String value) {
+        String[] formats =
+            { "yyyy-MM-dd HH:mm:ss Z", "yyyy-MM-dd HH:mm:ss", "yyyy-MM-dd" };
+
+        for (String f : formats) {
+            SimpleDateFormat df = new SimpleDateFormat(f, Locale.ENGLISH);
+
+            df.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+            try {
+                return df.parse(value).getTime() / 1000;
+            } catch (ParseException e) {
+                // try the next format
+            }
+        }
+
+        throw new IllegalArgumentException("unsupported date " + value);
+    }
+}
@@ -0,0 +1,871 @@
+/*
+ * Houghton Associates Framework
+ * http://www.houghtonassociates.com
+ *
+ * Copyright 2014 Houghton Associates, Inc.
+ */
+package com.houghtonassociates.bamboo.plugins.dao.fixture;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.PublicKey;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.apache.sshd.SshServer;
+import org.apache.sshd.server.Command;
+import org.apache.sshd.server.CommandFactory;
+import org.apache.sshd.server.Environment;
+import org.apache.sshd.server.ExitCallback;
+import org.apache.sshd.server.PasswordAuthenticator;
+import org.apache.sshd.server.PublickeyAuthenticator;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.server.session.ServerSession;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.ReceivePack;
+import org.eclipse.jgit.transport.UploadPack;
+
+import com.houghtonassociates.bamboo.plugins.dao.GerritChangeVO;
+import com.houghtonassociates.bamboo.plugins.dao.fixture.GerritDataSet.Account;
+import com.houghtonassociates.bamboo.plugins.dao.fixture.GerritDataSet.Change;
+import com.houghtonassociates.bamboo.plugins.dao.fixture.GerritDataSet.PatchSet;
+
+/**
+ * A local stand-in for Gerrit's SSH daemon, serving a {@link GerritDataSet}.
+ *
+ * Understands <code>gerrit version</code>, <code>ls-projects</code>,
+ * <code>query</code>, <code>gsql</code>, <code>review</code> and
+ * <code>stream-events</code>, plus <code>git-upload-pack</code> and
+ * <code>git-receive-pack</code> for the data set's repositories. Reviews and
+ * uploads made through the server are published to every open
+ * <code>stream-events</code>.
+ *
+ * Any key or password is accepted for a user the data set knows. Like
+ * Gerrit, a query returns at most <code>queryLimit</code> rows.
+ */
+public class GerritSshServer {
+
+    public static final String DEFAULT_VERSION = "2.11.4";
+    public static final int DEFAULT_QUERY_LIMIT = 500;
+
+    private static final Pattern GSQL_SELECT = Pattern.compile(
+        "select \\* from (\\w+)\\s*;?", Pattern.CASE_INSENSITIVE);
+
+    private final GerritDataSet data;
+    private final SshServer sshd;
+    private final ExecutorService threads = Executors
+        .newCachedThreadPool(new ThreadFactory() {
+
+            private final AtomicInteger count = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t =
+                    new Thread(r, "gerrit-standin-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    private volatile String version = DEFAULT_VERSION;
+    private volatile boolean gsqlEnabled = true;
+    private volatile boolean authorInPatchSets = true;
+    private volatile int queryLimit = DEFAULT_QUERY_LIMIT;
+
+    private final List<String> commands = Collections
+        .synchronizedList(new ArrayList<String>());
+    private final AtomicLong commandCount = new AtomicLong(0);
+    private final List<BlockingQueue<String>> streams =
+        new CopyOnWriteArrayList<BlockingQueue<String>>();
+
+    public GerritSshServer(GerritDataSet data) {
+        this.data = data;
+
+        sshd = SshServer.setUpDefaultServer();
+        sshd.setHost("127.0.0.1");
+        sshd.setPort(0);
+        sshd.setKeyPairProvider(new SimpleGeneratorHostKeyProvider(null,
+            "RSA", 1024));
+
+        sshd.setPublickeyAuthenticator(new PublickeyAuthenticator() {
+
+            @Override
+            public boolean authenticate(String username, PublicKey key,
+                                        ServerSession session) {
+                return GerritSshServer.this.data.getAccount(username) != null;
+            }
+        });
+
+        sshd.setPasswordAuthenticator(new PasswordAuthenticator() {
+
+            @Override
+            public boolean authenticate(String username, String password,
+                                        ServerSession session) {
+                return GerritSshServer.this.data.getAccount(username) != null;
+            }
+        });
+
+        sshd.setCommandFactory(new CommandFactory() {
+
+            @Override
+            public Command createCommand(String command) {
+                return newCommand(command);
+            }
+        });
+    }
+
+    public void start() throws IOException {
+        sshd.start();
+    }
+
+    public void stop() throws InterruptedException {
+        sshd.stop(true);
+        threads.shutdownNow();
+    }
+
+    public int getPort() {
+        return sshd.getPort();
+    }
+
+    public GerritDataSet getDataSet() {
+        return data;
+    }
+
+    /**
+     * @param version
+     *            reported by <code>gerrit version</code>
+     */
+    public void setVersion(String version) {
+        this.version = version;
+    }
+
+    /**
+     * @param gsqlEnabled
+     *            false to answer like 2.15 and later, which have no gsql
+     */
+    public void setGsqlEnabled(boolean gsqlEnabled) {
+        this.gsqlEnabled = gsqlEnabled;
+    }
+
+    /**
+     * @param authorInPatchSets
+     *            false to leave authors out of patch sets, like before 2.6
+     */
+    public void setAuthorInPatchSets(boolean authorInPatchSets) {
+        this.authorInPatchSets = authorInPatchSets;
+    }
+
+    public void setQueryLimit(int queryLimit) {
+        this.queryLimit = queryLimit;
+    }
+
+    /**
+     * @return every command received so far
+     */
+    public List<String> getCommands() {
+        synchronized (commands) {
+            return new ArrayList<String>(commands);
+        }
+    }
+
+    /**
+     * @param prefix
+     * @return how many commands received so far start with the prefix
+     */
+    public int getCommandCount(String prefix) {
+        int n = 0;
+
+        for (String c : getCommands())
+            if (c.startsWith(prefix))
+                n++;
+
+        return n;
+    }
+
+    public long getCommandCount() {
+        return commandCount.get();
+    }
+
+    /**
+     * @return open <code>stream-events</code> sessions
+     */
+    public int getStreamCount() {
+        return streams.size();
+    }
+
+    /**
+     * Send an event to every open <code>stream-events</code>.
+     *
+     * @param event
+     */
+    public void publish(JSONObject event) {
+        String line = event.toString();
+
+        for (BlockingQueue<String> q : streams)
+            q.offer(line);
+    }
+
+    /**
+     * Upload a change and announce it, as a developer pushing to
+     * <code>refs/for/branch</code> would.
+     *
+     * @param project
+     * @param branch
+     * @param subject
+     * @param owner
+     * @return
+     * @throws IOException
+     */
+    public Change uploadChange(String project, String branch, String subject,
+                               Account owner) throws IOException {
+        Change c = data.addChange(project, branch, subject, owner);
+
+        publishPatchSetCreated(c, c.getCurrentPatchSet(), owner);
+
+        return c;
+    }
+
+    /**
+     * Upload a new patch set of a change and announce it.
+     *
+     * @param change
+     * @return
+     * @throws IOException
+     */
+    public PatchSet uploadPatchSet(int change) throws IOException {
+        Change c = data.getChange(change);
+        Account dev = c.getOwner();
+        PatchSet p = data.addPatchSet(change, dev);
+
+        publishPatchSetCreated(c, p, dev);
+
+        return p;
+    }
+
+    private void publishPatchSetCreated(Change c, PatchSet p, Account by) {
+        JSONObject event = newEvent("patchset-created", c, p);
+
+        event.put("uploader", accountJson(by));
+
+        publish(event);
+    }
+
+    private JSONObject newEvent(String type, Change c, PatchSet p) {
+        JSONObject event = new JSONObject();
+
+        event.put("type", type);
+        event.put("change", data.toJson(c, false, false, false, false));
+        event.put("patchSet", patchSetJson(c, p));
+        event.put("eventCreatedOn", data.getClock());
+
+        return event;
+    }
+
+    private JSONObject patchSetJson(Change c, PatchSet p) {
+        JSONObject full =
+            data.toJson(c, true, false, false, authorInPatchSets);
+        JSONArray all = full.getJSONArray(GerritChangeVO.JSON_KEY_PATCH_SET);
+
+        return all.getJSONObject(p.getNumber() - 1);
+    }
+
+    private static JSONObject accountJson(Account a) {
+        JSONObject j = new JSONObject();
+
+        j.put(GerritChangeVO.JSON_KEY_NAME, a.getName());
+        j.put(GerritChangeVO.JSON_KEY_EMAIL, a.getEmail());
+        j.put(GerritChangeVO.JSON_KEY_USERNAME, a.getUsername());
+
+        return j;
+    }
+
+    private Command newCommand(String line) {
+        commands.add(line);
+        commandCount.incrementAndGet();
+
+        List<String> args = split(line);
+        String name = args.isEmpty() ? "" : args.get(0);
+
+        if ("git-upload-pack".equals(name) || "git-receive-pack".equals(name))
+            return new GitCommand(args);
+
+        if (args.size() < 2 || !"gerrit".equals(name))
+            return new Unknown(args);
+
+        String sub = args.get(1);
+
+        if ("version".equals(sub))
+            return new Version(args);
+        if ("ls-projects".equals(sub))
+            return new LsProjects(args);
+        if ("query".equals(sub))
+            return new Query(args);
+        if ("gsql".equals(sub) && gsqlEnabled)
+            return new Gsql(args);
+        if ("review".equals(sub))
+            return new Review(args);
+        if ("stream-events".equals(sub))
+            return new StreamEvents(args);
+
+        return new Unknown(args);
+    }
+
+    /**
+     * Split a command line like Gerrit's SSH daemon: whitespace separates
+     * arguments, quotes group them and a backslash escapes the next
+     * character outside single quotes.
+     *
+     * @param line
+     * @return
+     */
+    static List<String> split(String line) {
+        List<String> args = new ArrayList<String>();
+        StringBuilder cur = new StringBuilder();
+        boolean inArg = false;
+        char quote = 0;
+
+        for (int i = 0; i < line.length(); i++) {
+            char ch = line.charAt(i);
+
+            if (quote == '\'') {
+                if (ch == '\'')
+                    quote = 0;
+                else
+                    cur.append(ch);
+            } else if (ch == '\\' && i + 1 < line.length()) {
+                cur.append(line.charAt(++i));
+                inArg = true;
+            } else if (quote == '"') {
+                if (ch == '"')
+                    quote = 0;
+                else
+                    cur.append(ch);
+            } else if (ch == '\'' || ch == '"') {
+                quote = ch;
+                inArg = true;
+            } else if (Character.isWhitespace(ch)) {
+                if (inArg)
+                    args.add(cur.toString());
+                cur.setLength(0);
+                inArg = false;
+            } else {
+                cur.append(ch);
+                inArg = true;
+            }
+        }
+
+        if (inArg)
+            args.add(cur.toString());
+
+        return args;
+    }
+
+    /**
+     * A command running on its own thread.
+     */
+    private abstract class GerritCommand implements Command, Runnable {
+
+        protected final List<String> args;
+        protected InputStream in;
+        protected OutputStream out;
+        protected OutputStream err;
+        protected String user;
+        private ExitCallback exit;
+        private volatile Thread worker;
+
+        GerritCommand(List<String> args) {
+            this.args = args;
+        }
+
+        @Override
+        public void setInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public void setOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void setErrorStream(OutputStream err) {
+            this.err = err;
+        }
+
+        @Override
+        public void setExitCallback(ExitCallback exit) {
+            this.exit = exit;
+        }
+
+        @Override
+        public void start(Environment env) throws IOException {
+            user = env.getEnv().get(Environment.ENV_USER);
+            threads.execute(this);
+        }
+
+        @Override
+        public void destroy() {
+            Thread t = worker;
+
+            if (t != null)
+                t.interrupt();
+        }
+
+        @Override
+        public void run() {
+            worker = Thread.currentThread();
+
+            int rc;
+
+            try {
+                rc = execute();
+            } catch (InterruptedException e) {
+                rc = 1;
+            } catch (Exception e) {
+                rc = 1;
+                try {
+                    write(err, "fatal: " + e.getMessage());
+                } catch (IOException ie) {
+                    // the client has gone
+                }
+            } finally {
+                worker = null;
+                Thread.interrupted();
+            }
+
+            exit.onExit(rc);
+        }
+
+        /**
+         * @return exit status
+         */
+        protected abstract int execute() throws Exception;
+
+        protected void write(OutputStream s, String line) throws IOException {
+            s.write(Constants.encode(line + "\n"));
+            s.flush();
+        }
+
+        protected void json(JSONObject j) throws IOException {
+            out.write(Constants.encode(j.toString() + "\n"));
+        }
+
+        /**
+         * @param name
+         * @return the value of an option, null if it wasn't given
+         */
+        protected String option(String name) {
+            for (int i = 2; i < args.size(); i++) {
+                String a = args.get(i);
+
+                if (a.equals(name) && i + 1 < args.size())
+                    return args.get(i + 1);
+
+                if (a.startsWith(name + "="))
+                    return a.substring(name.length() + 1);
+            }
+
+            return null;
+        }
+
+        protected boolean flag(String name) {
+            return args.subList(2, args.size()).contains(name);
+        }
+    }
+
+    private class Unknown extends GerritCommand {
+
+        Unknown(List<String> args) {
+            super(args);
+        }
+
+        @Override
+        protected int execute() throws IOException {
+            write(err, "fatal: " + (args.isEmpty() ? "" : args.get(0))
+                + ": " + (args.size() > 1 ? args.get(1) : "") + ": not found");
+
+            return 127;
+        }
+    }
+
+    private class Version extends GerritCommand {
+
+        Version(List<String> args) {
+            super(args);
+        }
+
+        @Override
+        protected int execute() throws IOException {
+            write(out, "gerrit version " + version);
+
+            return 0;
+        }
+    }
+
+    private class LsProjects extends GerritCommand {
+
+        LsProjects(List<String> args) {
+            super(args);
+        }
+
+        @Override
+        protected int execute() throws IOException {
+            List<String> projects = data.getProjects();
+
+            projects.add(GerritDataSet.ALL_PROJECTS);
+            Collections.sort(projects);
+
+            for (String p : projects)
+                out.write(Constants.encode(p + "\n"));
+
+            out.flush();
+
+            return 0;
+        }
+    }
+
+    private class Query extends GerritCommand {
+
+        // options that take a value
+        private final List<String> valued = Arrays.asList(
+            "--format", "--start", "-S", "--resume_sortkey");
+
+        Query(List<String> args) {
+            super(args);
+        }
+
+        @Override
+        protected int execute() throws IOException {
+            long start = System.currentTimeMillis();
+            StringBuilder q = new StringBuilder();
+
+            for (int i = 2; i < args.size(); i++) {
+                String a = args.get(i);
+
+                if (valued.contains(a)) {
+                    i++;
+                } else if (a.startsWith("-") && a.length() > 1
+                    && (a.startsWith("--") || a.length() == 2)) {
+                    continue;
+                } else {
+                    if (q.length() > 0)
+                        q.append(' ');
+
+                    // keep arguments that held spaces together
+                    if (a.contains(" ") && a.indexOf(':') > 0)
+                        a = a.replaceFirst(":", ":\"") + "\"";
+
+                    q.append(a);
+                }
+            }
+
+            GerritQuery query;
+
+            try {
+                query = new GerritQuery(q.toString());
+            } catch (IllegalArgumentException e) {
+                JSONObject error = new JSONObject();
+
+                error.put("type", "error");
+                error.put("message", e.getMessage());
+                json(error);
+                out.flush();
+
+                return 1;
+            }
+
+            String s = option("--start");
+            if (s == null)
+                s = option("-S");
+            int offset = (s == null) ? 0 : Integer.parseInt(s);
+
+            int limit = queryLimit;
+            if (query.getLimit() >= 0)
+                limit = Math.min(limit, query.getLimit());
+
+            List<Change> matches = data.query(query, Integer.MAX_VALUE);
+            List<Change> page =
+                matches.subList(Math.min(offset, matches.size()),
+                    Math.min(offset + limit, matches.size()));
+
+            boolean patchSets = flag("--patch-sets");
+            boolean current = flag("--current-patch-set");
+            boolean files = flag("--files");
+
+            for (Change c : page)
+                out.write(Constants.encode(data.render(c, patchSets, current,
+                    files, authorInPatchSets) + "\n"));
+
+            JSONObject stats = new JSONObject();
+
+            stats.put("type", "stats");
+            stats.put(GerritChangeVO.JSON_KEY_ROWCOUNT, page.size());
+            stats.put("runTimeMilliseconds", System.currentTimeMillis()
+                - start);
+            stats.put("moreChanges", offset + page.size() < matches.size());
+            json(stats);
+            out.flush();
+
+            return 0;
+        }
+    }
+
+    private class Gsql extends GerritCommand {
+
+        Gsql(List<String> args) {
+            super(args);
+        }
+
+        @Override
+        protected int execute() throws IOException {
+            String sql = option("-c");
+            Matcher m =
+                (sql == null) ? null : GSQL_SELECT.matcher(sql.trim());
+
+            if (m == null || !m.matches()) {
+                error("unsupported statement: " + sql);
+                return 0;
+            }
+
+            String table = m.group(1).toLowerCase(Locale.ENGLISH);
+            List<JSONObject> rows = new ArrayList<JSONObject>();
+
+            if ("accounts".equals(table)) {
+                SimpleDateFormat df =
+                    new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS",
+                        Locale.ENGLISH);
+
+                for (Account a : data.getAccounts()) {
+                    JSONObject c = new JSONObject();
+
+                    c.put("account_id", String.valueOf(a.getId()));
+                    c.put("full_name", a.getName());
+                    c.put("preferred_email", a.getEmail());
+                    c.put("registered_on", df.format(new Date(a
+                        .getRegisteredOn())));
+                    c.put("copy_self_on_email", "N");
+                    c.put("inactive", "N");
+                    rows.add(c);
+                }
+            } else if ("account_external_ids".equals(table)) {
+                for (Account a : data.getAccounts()) {
+                    JSONObject c = new JSONObject();
+
+                    c.put("account_id", String.valueOf(a.getId()));
+                    c.put("email_address", a.getEmail());
+                    c.put("external_id", "username:" + a.getUsername());
+                    rows.add(c);
+                }
+            } else if ("schema_version".equals(table)) {
+                JSONObject c = new JSONObject();
+
+                c.put("version_nbr", "108");
+                c.put("singleton", "X");
+                rows.add(c);
+            } else {
+                error("Table '" + table + "' not found");
+                return 0;
+            }
+
+            for (JSONObject c : rows) {
+                JSONObject row = new JSONObject();
+
+                row.put("type", "row");
+                row.put("columns", c);
+                json(row);
+            }
+
+            JSONObject stats = new JSONObject();
+
+            stats.put("type", "query-stats");
+            stats.put(GerritChangeVO.JSON_KEY_ROWCOUNT, rows.size());
+            stats.put("runTimeMilliseconds", 0);
+            json(stats);
+            out.flush();
+
+            return 0;
+        }
+
+        private void error(String message) throws IOException {
+            JSONObject error = new JSONObject();
+
+            error.put("type", "error");
+            error.put("message", message);
+            json(error);
+            out.flush();
+        }
+    }
+
+    private class Review extends GerritCommand {
+
+        Review(List<String> args) {
+            super(args);
+        }
+
+        @Override
+        protected int execute() throws IOException {
+            List<String[]> votes = new ArrayList<String[]>();
+            List<String> targets = new ArrayList<String>();
+            String message = null;
+
+            for (int i = 2; i < args.size(); i++) {
+                String a = args.get(i);
+                String next = (i + 1 < args.size()) ? args.get(i + 1) : null;
+
+                if ("--message".equals(a) || "-m".equals(a)) {
+                    message = next;
+                    i++;
+                } else if ("--verified".equals(a)) {
+                    votes.add(new String[] { "Verified", next });
+                    i++;
+                } else if ("--code-review".equals(a)) {
+                    votes.add(new String[] { "Code-Review", next });
+                    i++;
+                } else if ("--label".equals(a) || "-l".equals(a)) {
+                    votes.add(next.split("=", 2));
+                    i++;
+                } else if ("--project".equals(a) || "-p".equals(a)) {
+                    i++;
+                } else if (!a.startsWith("-")) {
+                    targets.add(a);
+                }
+            }
+
+            int status = 0;
+
+            // like Gerrit, a bad patch set doesn't stop the others
+            for (String target : targets)
+                if (!review(target, votes, message))
+                    status = 1;
+
+            return status;
+        }
+
+        private boolean review(String target, List<String[]> votes,
+                               String message) throws IOException {
+            Change c = null;
+            int ps = 0;
+
+            if (target.matches("\\d+,\\d+")) {
+                String[] parts = target.split(",");
+
+                c = data.getChange(Integer.parseInt(parts[0]));
+                ps = Integer.parseInt(parts[1]);
+            } else {
+                List<Change> found =
+                    data.query(new GerritQuery("commit:" + target), 1);
+
+                if (!found.isEmpty()) {
+                    c = found.get(0);
+
+                    for (PatchSet p : c.getPatchSets())
+                        if (p.getRevision().startsWith(target))
+                            ps = p.getNumber();
+                }
+            }
+
+            if (c == null || c.getPatchSet(ps) == null) {
+                write(err, "error: " + target + ": no such patch set");
+                return false;
+            }
+
+            Account by = data.getAccount(user);
+            JSONArray approvals = new JSONArray();
+
+            for (String[] v : votes) {
+                int value = Integer.parseInt(v[1].replace("+", ""));
+
+                data.review(c.getNumber(), ps, v[0], value, by);
+
+                JSONObject a = new JSONObject();
+
+                a.put("type", v[0]);
+                a.put("description", v[0]);
+                a.put("value", String.valueOf(value));
+                approvals.add(a);
+            }
+
+            JSONObject event =
+                newEvent("comment-added", c, c.getPatchSet(ps));
+
+            event.put("author", accountJson(by));
+            event.put("approvals", approvals);
+            event.put("comment", (message == null) ? "" : message);
+            publish(event);
+
+            return true;
+        }
+    }
+
+    private class StreamEvents extends GerritCommand {
+
+        StreamEvents(List<String> args) {
+            super(args);
+        }
+
+        @Override
+        protected int execute() throws Exception {
+            BlockingQueue<String> queue = new LinkedBlockingQueue<String>();
+
+            streams.add(queue);
+
+            try {
+                while (true) {
+                    String line = queue.poll(1, TimeUnit.SECONDS);
+
+                    if (line != null)
+                        write(out, line);
+                }
+            } finally {
+                streams.remove(queue);
+            }
+        }
+    }
+
+    private class GitCommand extends GerritCommand {
+
+        GitCommand(List<String> args) {
+            super(args);
+        }
+
+        @Override
+        protected int execute() throws IOException {
+            Repository repo =
+                (args.size() < 2) ? null : data.openRepository(args.get(1));
+
+            if (repo == null) {
+                write(err, "fatal: '" + (args.size() < 2 ? "" : args.get(1))
+                    + "' does not appear to be a git repository");
+                return 128;
+            }
+
+            if ("git-upload-pack".equals(args.get(0)))
+                new UploadPack(repo).upload(in, out, err);
+            else
+                new ReceivePack(repo).receive(in, out, err);
+
+            return 0;
+        }
+    }
+}
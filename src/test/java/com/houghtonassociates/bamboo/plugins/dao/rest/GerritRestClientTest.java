@@ -0,0 +1,323 @@
+/*
+ * Houghton Associates Framework
+ * http://www.houghtonassociates.com
+ *
+ * Copyright 2014 Houghton Associates, Inc.
+ */
+package com.houghtonassociates.bamboo.plugins.dao.rest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import net.sf.json.JSONSerializer;
+
+import com.houghtonassociates.bamboo.plugins.dao.GerritChangeVO;
+import com.sonymobile.tools.gerrit.gerritevents.GerritQueryException;
+import com.sun.net.httpserver.BasicAuthenticator;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs the REST client against a local stand-in for Gerrit's REST API.
+ */
+public class GerritRestClientTest extends TestCase {
+
+    private static final String USER = "bamboo";
+    private static final String PASSWORD = "secret";
+    private static final String SHA1 =
+        "1111111111111111111111111111111111111111";
+    private static final String SHA2 =
+        "2222222222222222222222222222222222222222";
+
+    private HttpServer server;
+    private GerritRestClient client;
+
+    private final List<String> requests =
+        Collections.synchronizedList(new ArrayList<String>());
+    private final Set<Integer> clientPorts =
+        Collections.synchronizedSet(new HashSet<Integer>());
+    private final List<String> bodies =
+        Collections.synchronizedList(new ArrayList<String>());
+    private volatile boolean gzipped = false;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+
+        HttpContext ctx = server.createContext("/a/", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange ex) throws IOException {
+                serve(ex);
+            }
+        });
+
+        ctx.setAuthenticator(new BasicAuthenticator("Gerrit Code Review") {
+
+            @Override
+            public boolean checkCredentials(String user, String pwd) {
+                return USER.equals(user) && PASSWORD.equals(pwd);
+            }
+        });
+
+        server.start();
+
+        client =
+            new GerritRestClient("http://127.0.0.1:"
+                + server.getAddress().getPort() + "/", USER, PASSWORD);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.stop(0);
+    }
+
+    private void serve(HttpExchange ex) throws IOException {
+        String path = ex.getRequestURI().getPath();
+        String query = ex.getRequestURI().getRawQuery();
+
+        requests.add(ex.getRequestMethod() + " " + path
+            + ((query == null) ? "" : "?" + query));
+        clientPorts.add(ex.getRemoteAddress().getPort());
+        bodies.add(read(ex.getRequestBody()));
+
+        if (path.equals("/a/changes/")) {
+            respond(ex, 200, changes().toString());
+        } else if (path.equals("/a/changes/42/revisions/2/review")) {
+            respond(ex, 200, "{\"labels\":{\"Verified\":1}}");
+        } else if (path.equals("/a/config/server/version")) {
+            respond(ex, 200, "\"2.11.3\"");
+        } else if (path.equals("/a/projects/")) {
+            respond(ex, 200, "{\"All-Projects\":{},\"gReview\":{}}");
+        } else if (path.equals("/a/accounts/bamboo")) {
+            respond(ex, 200, "{\"_account_id\":1000001,\"name\":\"Bamboo\","
+                + "\"email\":\"bamboo@example.com\",\"username\":\"bamboo\"}");
+        } else if (path.equals("/a/accounts/broken")) {
+            respond(ex, 503, "down for maintenance");
+        } else {
+            respond(ex, 404, "Not found");
+        }
+    }
+
+    private void respond(HttpExchange ex, int status, String json) throws IOException {
+        byte[] body = (")]}'\n" + json).getBytes("UTF-8");
+        String accept = ex.getRequestHeaders().getFirst("Accept-Encoding");
+
+        if (accept != null && accept.contains("gzip")) {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            GZIPOutputStream gz = new GZIPOutputStream(buf);
+            gz.write(body);
+            gz.close();
+            body = buf.toByteArray();
+            ex.getResponseHeaders().set("Content-Encoding", "gzip");
+            gzipped = true;
+        }
+
+        ex.getResponseHeaders().set("Content-Type", "application/json");
+        ex.sendResponseHeaders(status, body.length);
+
+        OutputStream out = ex.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        byte[] b = new byte[1024];
+        int n;
+
+        while ((n = in.read(b)) > 0)
+            buf.write(b, 0, n);
+
+        return buf.toString("UTF-8");
+    }
+
+    private static JSONArray changes() {
+        JSONObject owner = new JSONObject();
+        owner.put("_account_id", 1000000);
+        owner.put("name", "Jane Doe");
+        owner.put("email", "jane@example.com");
+        owner.put("username", "jane");
+
+        JSONObject vote = JSONObject.fromObject(owner);
+        vote.put("value", -1);
+        vote.put("date", "2014-05-06 07:08:09.000000000");
+
+        JSONObject verified = new JSONObject();
+        verified.put("all", JSONArray.fromObject(new Object[] { vote }));
+
+        JSONObject labels = new JSONObject();
+        labels.put("Verified", verified);
+
+        JSONObject file = new JSONObject();
+        file.put("status", "A");
+        file.put("lines_inserted", 12);
+
+        JSONObject files = new JSONObject();
+        files.put("src/Main.java", file);
+        files.put("/COMMIT_MSG", new JSONObject());
+
+        JSONObject rev1 = new JSONObject();
+        rev1.put("_number", 1);
+        rev1.put("ref", "refs/changes/42/42/1");
+        rev1.put("created", "2014-05-01 00:00:00.000000000");
+        rev1.put("uploader", owner);
+
+        JSONObject rev2 = new JSONObject();
+        rev2.put("_number", 2);
+        rev2.put("ref", "refs/changes/42/42/2");
+        rev2.put("created", "2014-05-02 00:00:00.000000000");
+        rev2.put("uploader", owner);
+        rev2.put("files", files);
+
+        JSONObject revisions = new JSONObject();
+        revisions.put(SHA2, rev2);
+        revisions.put(SHA1, rev1);
+
+        JSONObject change = new JSONObject();
+        change.put("project", "gReview");
+        change.put("branch", "master");
+        change.put("change_id", "I0123456789abcdef0123456789abcdef01234567");
+        change.put("subject", "Add REST support");
+        change.put("status", "NEW");
+        change.put("created", "2014-05-01 00:00:00.000000000");
+        change.put("updated", "2014-05-06 07:08:09.000000000");
+        change.put("_number", 42);
+        change.put("owner", owner);
+        change.put("labels", labels);
+        change.put("current_revision", SHA2);
+        change.put("revisions", revisions);
+        change.put("_more_changes", true);
+
+        return JSONArray.fromObject(new Object[] { change });
+    }
+
+    public void testQueryChangesReturnsSshShape() throws Exception {
+        List<JSONObject> rows =
+            client.queryChanges("is:open project:gReview", true, true, true,
+                5000);
+
+        assertEquals(2, rows.size());
+
+        JSONObject c = rows.get(0);
+        assertEquals("gReview", c.getString(GerritChangeVO.JSON_KEY_PROJECT));
+        assertEquals("I0123456789abcdef0123456789abcdef01234567",
+            c.getString(GerritChangeVO.JSON_KEY_ID));
+        assertEquals(42, c.getInt(GerritChangeVO.JSON_KEY_NUMBER));
+        assertTrue(c.getBoolean(GerritChangeVO.JSON_KEY_OPEN));
+        assertEquals(client.getBaseUrl() + "/42",
+            c.getString(GerritChangeVO.JSON_KEY_URL));
+        assertEquals(1399360089,
+            c.getInt(GerritChangeVO.JSON_KEY_LAST_UPDATE));
+
+        JSONArray patchSets =
+            c.getJSONArray(GerritChangeVO.JSON_KEY_PATCH_SET);
+        assertEquals(2, patchSets.size());
+        assertEquals(SHA1, patchSets.getJSONObject(0).getString(
+            GerritChangeVO.JSON_KEY_PATCH_SET_REV));
+
+        JSONObject current =
+            c.getJSONObject(GerritChangeVO.JSON_KEY_CURRENT_PATCH_SET);
+        assertEquals(2, current.getInt(GerritChangeVO.JSON_KEY_PATCH_SET_NUM));
+        assertEquals("jane",
+            current.getJSONObject(GerritChangeVO.JSON_KEY_PATCH_SET_AUTHOR)
+                .getString(GerritChangeVO.JSON_KEY_USERNAME));
+
+        JSONObject approval =
+            current.getJSONArray(GerritChangeVO.JSON_KEY_PATCH_SET_APPRVS)
+                .getJSONObject(0);
+        assertEquals("Verified",
+            approval.getString(GerritChangeVO.JSON_KEY_PATCH_SET_APPRVS_TYPE));
+        assertEquals(-1,
+            approval.getInt(GerritChangeVO.JSON_KEY_PATCH_SET_APPRVS_VALUE));
+
+        JSONArray files =
+            current.getJSONArray(GerritChangeVO.JSON_KEY_PATCH_SET_FILES);
+        assertEquals(2, files.size());
+        for (int i = 0; i < files.size(); i++) {
+            JSONObject f = files.getJSONObject(i);
+            if ("src/Main.java".equals(f.getString(GerritChangeVO.JSON_KEY_PATCH_SET_FILES_FILE))) {
+                assertEquals("ADDED", f.getString(GerritChangeVO.JSON_KEY_PATCH_SET_FILES_TYPE));
+                assertEquals(12, f.getInt(GerritChangeVO.JSON_KEY_PATCH_SET_FILES_INSRT));
+            }
+        }
+
+        JSONObject stats = rows.get(1);
+        assertEquals(1, stats.getInt(GerritChangeVO.JSON_KEY_ROWCOUNT));
+        assertTrue(stats.getBoolean("moreChanges"));
+
+        String request = requests.get(requests.size() - 1);
+        assertTrue(request, request.startsWith("GET /a/changes/?q="));
+        assertTrue(request, request.contains("o=ALL_REVISIONS"));
+        assertTrue(request, request.contains("o=DETAILED_LABELS"));
+        assertTrue(request, request.contains("o=ALL_FILES"));
+    }
+
+    public void testReviewPostsVerifiedLabel() throws Exception {
+        client.review(42, 2, "Build passed", "Verified", 1, 5000);
+
+        String request = requests.get(requests.size() - 1);
+        assertEquals("POST /a/changes/42/revisions/2/review", request);
+
+        JSONObject input =
+            (JSONObject) JSONSerializer.toJSON(bodies.get(bodies.size() - 1));
+        assertEquals("Build passed", input.getString("message"));
+        assertEquals(1, input.getJSONObject("labels").getInt("Verified"));
+    }
+
+    public void testVersionProjectsAndAccounts() throws Exception {
+        assertEquals("2.11.3", client.getVersion(5000));
+        assertEquals(2, client.listProjects(5000).size());
+        assertEquals(1000001,
+            client.getAccount("bamboo", 5000).getInt("_account_id"));
+    }
+
+    public void testConnectionsAreReusedAndGzipped() throws Exception {
+        for (int i = 0; i < 5; i++)
+            client.getVersion(5000);
+
+        assertTrue("responses should be gzip compressed", gzipped);
+        assertEquals("requests should share one keep-alive connection: "
+            + clientPorts, 1, clientPorts.size());
+    }
+
+    public void testClientErrorIsAQueryException() throws Exception {
+        try {
+            client.getAccount("nobody", 5000);
+            fail("expected GerritQueryException");
+        } catch (GerritQueryException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("404"));
+        }
+    }
+
+    public void testServerErrorIsAnIOException() throws Exception {
+        try {
+            client.getAccount("broken", 5000);
+            fail("expected IOException");
+        } catch (GerritQueryException e) {
+            fail("server errors must not look like rejected queries");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testToSeconds() {
+        assertEquals(0, GerritRestClient.toSeconds(null));
+        assertEquals(1399360089,
+            GerritRestClient.toSeconds("2014-05-06 07:08:09.123000000"));
+    }
+}